@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2015 the original author or authors.
+ * Copyright 2014-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -17,6 +17,7 @@ package org.glowroot.agent.advicegen;
 
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
 import javax.annotation.Nullable;
@@ -30,6 +31,8 @@ class Accessor {
     private final AccessorType accessorType;
     private final @Nullable Method method;
     private final @Nullable Field field;
+    // non-null when the value is read via a generated accessor class instead of via reflection
+    private final @Nullable DirectAccessor directAccessor;
 
     static Accessor fromMethod(Method method) {
         return new Accessor(method);
@@ -47,18 +50,43 @@ class Accessor {
         accessorType = AccessorType.METHOD;
         this.method = method;
         this.field = null;
+        this.directAccessor = null;
     }
 
     private Accessor(Field field) {
         accessorType = AccessorType.FIELD;
         this.method = null;
         this.field = field;
+        this.directAccessor = null;
     }
 
     private Accessor() {
         accessorType = AccessorType.ARRAY_LENGTH;
         this.method = null;
         this.field = null;
+        this.directAccessor = null;
+    }
+
+    private Accessor(Accessor accessor, DirectAccessor directAccessor) {
+        accessorType = accessor.accessorType;
+        this.method = accessor.method;
+        this.field = accessor.field;
+        this.directAccessor = directAccessor;
+    }
+
+    // returns an equivalent accessor that uses a generated class (see AccessorGenerator) instead
+    // of reflection, or returns this accessor if that is not possible
+    Accessor withDirectAccessor() {
+        DirectAccessor directAccessor = null;
+        if (method != null) {
+            directAccessor = AccessorGenerator.generate(method);
+        } else if (field != null) {
+            directAccessor = AccessorGenerator.generate(field);
+        }
+        if (directAccessor == null) {
+            return this;
+        }
+        return new Accessor(this, directAccessor);
     }
 
     Class<?> getValueType() {
@@ -81,6 +109,14 @@ class Accessor {
         if (isArrayEvaluation(object)) {
             return evaluateArray((/*@Nullable*/ Object[]) object);
         }
+        if (directAccessor != null) {
+            try {
+                return directAccessor.evaluate(object);
+            } catch (Throwable t) {
+                // wrap the same as Method.invoke(), see MessageTemplate.ValuePathPart
+                throw new InvocationTargetException(t);
+            }
+        }
         switch (accessorType) {
             case METHOD:
                 checkNotNull(method);
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.advicegen;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ACONST_NULL;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_5;
+
+// generates a small class per accessor that reads the property with a direct invokevirtual /
+// invokeinterface / getfield instead of going through reflection
+//
+// the generated class is defined in its own class loader (see AccessorClassLoader), which can see
+// both the class declaring the property and DirectAccessor, so only public members of public
+// classes can be accessed this way, everything else stays on the reflective path
+class AccessorGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccessorGenerator.class);
+
+    private static final String DIRECT_ACCESSOR_INTERNAL_NAME =
+            Type.getInternalName(DirectAccessor.class);
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    private AccessorGenerator() {}
+
+    static @Nullable DirectAccessor generate(Method method) {
+        if (!isAccessible(method) || method.getParameterTypes().length > 0) {
+            return null;
+        }
+        Class<?> declaringClass = method.getDeclaringClass();
+        String accessorInternalName = newAccessorInternalName();
+        ClassWriter cw = visitClass(accessorInternalName);
+        MethodVisitor mv = visitEvaluateMethod(cw, declaringClass);
+        String owner = Type.getInternalName(declaringClass);
+        String desc = Type.getMethodDescriptor(method);
+        if (declaringClass.isInterface()) {
+            mv.visitMethodInsn(INVOKEINTERFACE, owner, method.getName(), desc, true);
+        } else {
+            mv.visitMethodInsn(INVOKEVIRTUAL, owner, method.getName(), desc, false);
+        }
+        Class<?> returnType = method.getReturnType();
+        if (returnType == void.class) {
+            // same as Method.invoke()
+            mv.visitInsn(ACONST_NULL);
+        } else {
+            box(mv, Type.getType(returnType));
+        }
+        return define(cw, mv, accessorInternalName, declaringClass);
+    }
+
+    static @Nullable DirectAccessor generate(Field field) {
+        if (!isAccessible(field)) {
+            return null;
+        }
+        Class<?> declaringClass = field.getDeclaringClass();
+        String accessorInternalName = newAccessorInternalName();
+        ClassWriter cw = visitClass(accessorInternalName);
+        MethodVisitor mv = visitEvaluateMethod(cw, declaringClass);
+        Type fieldType = Type.getType(field.getType());
+        mv.visitFieldInsn(GETFIELD, Type.getInternalName(declaringClass), field.getName(),
+                fieldType.getDescriptor());
+        box(mv, fieldType);
+        return define(cw, mv, accessorInternalName, declaringClass);
+    }
+
+    private static boolean isAccessible(Member member) {
+        // static members are rare enough in templates that they are left on the reflective path
+        int modifiers = member.getModifiers();
+        return Modifier.isPublic(modifiers) && !Modifier.isStatic(modifiers)
+                && Modifier.isPublic(member.getDeclaringClass().getModifiers());
+    }
+
+    private static String newAccessorInternalName() {
+        return "org/glowroot/agent/advicegen/GeneratedAccessor" + counter.incrementAndGet();
+    }
+
+    private static ClassWriter visitClass(String accessorInternalName) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS + ClassWriter.COMPUTE_FRAMES);
+        cw.visit(V1_5, ACC_PUBLIC + ACC_FINAL + ACC_SUPER, accessorInternalName, null,
+                "java/lang/Object", new String[] {DIRECT_ACCESSOR_INTERNAL_NAME});
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        return cw;
+    }
+
+    private static MethodVisitor visitEvaluateMethod(ClassWriter cw, Class<?> declaringClass) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "evaluate",
+                "(Ljava/lang/Object;)Ljava/lang/Object;", null,
+                new String[] {"java/lang/Exception"});
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitTypeInsn(CHECKCAST, Type.getInternalName(declaringClass));
+        return mv;
+    }
+
+    private static void box(MethodVisitor mv, Type type) {
+        if (type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY) {
+            return;
+        }
+        Type boxedType = getBoxedType(type);
+        mv.visitMethodInsn(INVOKESTATIC, boxedType.getInternalName(), "valueOf",
+                Type.getMethodDescriptor(boxedType, type), false);
+    }
+
+    private static Type getBoxedType(Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+                return Type.getType(Boolean.class);
+            case Type.CHAR:
+                return Type.getType(Character.class);
+            case Type.BYTE:
+                return Type.getType(Byte.class);
+            case Type.SHORT:
+                return Type.getType(Short.class);
+            case Type.INT:
+                return Type.getType(Integer.class);
+            case Type.FLOAT:
+                return Type.getType(Float.class);
+            case Type.LONG:
+                return Type.getType(Long.class);
+            case Type.DOUBLE:
+                return Type.getType(Double.class);
+            default:
+                throw new AssertionError("Unexpected primitive type: " + type);
+        }
+    }
+
+    private static @Nullable DirectAccessor define(ClassWriter cw, MethodVisitor mv,
+            String accessorInternalName, Class<?> declaringClass) {
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        byte[] bytes = cw.toByteArray();
+        try {
+            AccessorClassLoader loader =
+                    new AccessorClassLoader(declaringClass.getClassLoader());
+            Class<?> accessorClass = loader.defineClass(
+                    Type.getObjectType(accessorInternalName).getClassName(), bytes);
+            return (DirectAccessor) accessorClass.newInstance();
+        } catch (Throwable t) {
+            // e.g. SecurityException from creating the class loader, the reflective path still
+            // works in this case
+            logger.debug(t.getMessage(), t);
+            return null;
+        }
+    }
+
+    // parent is the loader of the class declaring the property, and DirectAccessor is resolved to
+    // the glowroot class regardless of whether it is visible from the parent
+    private static class AccessorClassLoader extends ClassLoader {
+
+        private AccessorClassLoader(@Nullable ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve)
+                throws ClassNotFoundException {
+            if (name.equals(DirectAccessor.class.getName())) {
+                return DirectAccessor.class;
+            }
+            return super.loadClass(name, resolve);
+        }
+
+        private Class<?> defineClass(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
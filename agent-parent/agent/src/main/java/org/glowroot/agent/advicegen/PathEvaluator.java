@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2015 the original author or authors.
+ * Copyright 2014-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -40,7 +40,9 @@ class PathEvaluator {
                 parts.add(0, currPart);
                 break;
             }
-            accessors.add(accessor);
+            // path evaluators are created once per template, so it is worth generating a class
+            // per accessor so that evaluation does not go through reflection
+            accessors.add(accessor.withDirectAccessor());
             currClass = accessor.getValueType();
         }
         this.accessors = accessors.toArray(new Accessor[accessors.size()]);
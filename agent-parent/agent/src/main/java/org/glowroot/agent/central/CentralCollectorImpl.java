@@ -17,11 +17,14 @@ package org.glowroot.agent.central;
 
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.central.CentralConnection.GrpcOneWayCall;
+import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.wire.api.Collector;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
@@ -35,6 +38,7 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.InitMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.ProcessInfo;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.StreamMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceMessage;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
@@ -46,10 +50,20 @@ class CentralCollectorImpl implements Collector {
     private final CollectorServiceStub collectorServiceStub;
     private final String serverId;
 
-    CentralCollectorImpl(CentralConnection centralConnection, String serverId) {
+    // null when not using the streaming rpc
+    private final @Nullable CollectStreamSender collectStreamSender;
+
+    CentralCollectorImpl(CentralConnection centralConnection, String serverId,
+            boolean streaming, int streamCapacity) {
         this.centralConnection = centralConnection;
         collectorServiceStub = CollectorServiceGrpc.newStub(centralConnection.getChannel());
         this.serverId = serverId;
+        if (streaming) {
+            collectStreamSender = new CollectStreamSender(centralConnection, collectorServiceStub,
+                    streamCapacity);
+        } else {
+            collectStreamSender = null;
+        }
     }
 
     @Override
@@ -74,6 +88,12 @@ class CentralCollectorImpl implements Collector {
                 .setCaptureTime(captureTime)
                 .addAllAggregatesByType(aggregatesByType)
                 .build();
+        if (collectStreamSender != null) {
+            collectStreamSender.send(StreamMessage.newBuilder()
+                    .setAggregateMessage(aggregateMessage)
+                    .build());
+            return;
+        }
         centralConnection.callWithAFewRetries(new GrpcOneWayCall<EmptyMessage>() {
             @Override
             public void call(StreamObserver<EmptyMessage> responseObserver) {
@@ -88,6 +108,12 @@ class CentralCollectorImpl implements Collector {
                 .setServerId(serverId)
                 .addAllGaugeValues(gaugeValues)
                 .build();
+        if (collectStreamSender != null) {
+            collectStreamSender.send(StreamMessage.newBuilder()
+                    .setGaugeValueMessage(gaugeValueMessage)
+                    .build());
+            return;
+        }
         centralConnection.callWithAFewRetries(new GrpcOneWayCall<EmptyMessage>() {
             @Override
             public void call(StreamObserver<EmptyMessage> responseObserver) {
@@ -102,6 +128,12 @@ class CentralCollectorImpl implements Collector {
                 .setServerId(serverId)
                 .setTrace(trace)
                 .build();
+        if (collectStreamSender != null) {
+            collectStreamSender.send(StreamMessage.newBuilder()
+                    .setTraceMessage(traceMessage)
+                    .build());
+            return;
+        }
         centralConnection.callWithAFewRetries(new GrpcOneWayCall<EmptyMessage>() {
             @Override
             public void call(StreamObserver<EmptyMessage> responseObserver) {
@@ -110,6 +142,15 @@ class CentralCollectorImpl implements Collector {
         });
     }
 
+    @Override
+    public void collectTraces(List<Trace> traces) {
+        // there is no batched trace message, but when streaming, the traces are all sent over the
+        // already open stream
+        for (Trace trace : traces) {
+            collectTrace(trace);
+        }
+    }
+
     @Override
     public void log(LogEvent logEvent) {
         if (centralConnection.suppressLogCollector()) {
@@ -126,4 +167,11 @@ class CentralCollectorImpl implements Collector {
             }
         });
     }
+
+    @OnlyUsedByTests
+    void close() throws InterruptedException {
+        if (collectStreamSender != null) {
+            collectStreamSender.close();
+        }
+    }
 }
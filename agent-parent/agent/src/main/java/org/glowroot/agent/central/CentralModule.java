@@ -34,6 +34,9 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 public class CentralModule {
 
+    private static final int STREAM_CAPACITY =
+            Integer.getInteger("glowroot.internal.collector.streamCapacity", 1000);
+
     private final CentralConnection centralConnection;
     private final CentralCollectorImpl grpcCollector;
     private final DownstreamServiceObserver downstreamServiceObserver;
@@ -58,11 +61,19 @@ public class CentralModule {
             collectorPort = Integer.parseInt(collectorPortStr);
         }
         checkNotNull(collectorHost);
+        // when enabled, aggregates, gauge values and traces are sent over a single long-lived
+        // bidirectional-streaming rpc instead of one unary rpc per message
+        String streamingStr = properties.get("glowroot.collector.streaming");
+        if (Strings.isNullOrEmpty(streamingStr)) {
+            streamingStr = System.getProperty("glowroot.collector.streaming");
+        }
+        boolean streaming = Boolean.parseBoolean(streamingStr);
 
         centralConnection = new CentralConnection(collectorHost, collectorPort, scheduledExecutor);
         ConfigUpdateService configUpdateService =
                 new ConfigUpdateService(configService, liveWeavingService);
-        grpcCollector = new CentralCollectorImpl(centralConnection, serverId);
+        grpcCollector = new CentralCollectorImpl(centralConnection, serverId, streaming,
+                STREAM_CAPACITY);
         downstreamServiceObserver = new DownstreamServiceObserver(centralConnection,
                 configUpdateService, liveJvmService, serverId);
         downstreamServiceObserver.connectAsync();
@@ -79,6 +90,7 @@ public class CentralModule {
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         downstreamServiceObserver.close();
+        grpcCollector.close();
         centralConnection.close();
     }
 
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorServiceStub;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.StreamAck;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.StreamMessage;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// sends messages to central over a single long-lived collectStream rpc
+//
+// each message is assigned an increasing sequence number and is retained until central
+// acknowledges that it has been stored, at most MAX_UNACKNOWLEDGED messages are sent ahead of the
+// acknowledgements, which bounds the memory retained for re-sending them
+//
+// when the stream fails (or stops acknowledging messages), a new stream is opened after an
+// exponential backoff and the unacknowledged messages are re-sent on it in their original order
+class CollectStreamSender {
+
+    private static final Logger logger = LoggerFactory.getLogger(CollectStreamSender.class);
+
+    private static final int MAX_UNACKNOWLEDGED = 100;
+    private static final long ACK_TIMEOUT_MILLIS = SECONDS.toMillis(60);
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = SECONDS.toMillis(60);
+    // how long the sending thread waits for the next message before re-checking the stream
+    private static final long POLL_MILLIS = 1000;
+    private static final long CLOSE_TIMEOUT_MILLIS = SECONDS.toMillis(5);
+
+    // consecutive stream failures (without any acknowledgement in between) after which the
+    // unacknowledged messages are dropped
+    private static final int MAX_RETRIES = 30;
+
+    private final CentralConnection centralConnection;
+    private final CollectorServiceStub collectorServiceStub;
+    private final int capacity;
+    private final BlockingQueue<StreamMessage> queue;
+
+    private final Object lock = new Object();
+    @GuardedBy("lock")
+    private final Deque<StreamMessage> unacknowledged = new ArrayDeque<StreamMessage>();
+    // time of the last acknowledgement, or of the first message sent since then
+    @GuardedBy("lock")
+    private long lastProgressMillis;
+    @GuardedBy("lock")
+    private int retryCounter;
+
+    private final Thread thread;
+
+    private final RateLimiter warningRateLimiter = RateLimiter.create(1.0 / 60);
+    @GuardedBy("warningRateLimiter")
+    private int countSinceLastWarning;
+
+    private volatile boolean closed;
+
+    CollectStreamSender(CentralConnection centralConnection,
+            CollectorServiceStub collectorServiceStub, int capacity) {
+        this.centralConnection = centralConnection;
+        this.collectorServiceStub = collectorServiceStub;
+        this.capacity = capacity;
+        queue = new ArrayBlockingQueue<StreamMessage>(capacity);
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("Glowroot-Collect-Stream").build();
+        thread = threadFactory.newThread(new StreamLoop());
+        thread.start();
+    }
+
+    void send(StreamMessage message) {
+        if (closed) {
+            return;
+        }
+        if (!queue.offer(message)) {
+            logDroppedWarning();
+        }
+    }
+
+    // completes the stream, waiting a few seconds for central to acknowledge the messages already
+    // sent on it
+    @OnlyUsedByTests
+    void close() throws InterruptedException {
+        closed = true;
+        thread.interrupt();
+        thread.join(SECONDS.toMillis(10));
+        if (thread.isAlive()) {
+            throw new IllegalStateException("Could not terminate collect stream thread");
+        }
+    }
+
+    private void acknowledge(long sequence) {
+        synchronized (lock) {
+            while (!unacknowledged.isEmpty()
+                    && unacknowledged.peekFirst().getSequence() <= sequence) {
+                unacknowledged.removeFirst();
+            }
+            lastProgressMillis = System.currentTimeMillis();
+            retryCounter = 0;
+            lock.notifyAll();
+        }
+    }
+
+    private void logDroppedWarning() {
+        synchronized (warningRateLimiter) {
+            if (warningRateLimiter.tryAcquire(0, MILLISECONDS)) {
+                final int count = countSinceLastWarning;
+                centralConnection.suppressLogCollector(new Runnable() {
+                    @Override
+                    public void run() {
+                        logger.warn("not sending a message to the central collector because of an"
+                                + " excessive backlog of {} messages already waiting to be sent"
+                                + " (this warning will appear at most once a minute, there were {}"
+                                + " additional messages not sent since the last warning)",
+                                capacity, count);
+                    }
+                });
+                countSinceLastWarning = 0;
+            } else {
+                countSinceLastWarning++;
+            }
+        }
+    }
+
+    private class StreamLoop implements Runnable {
+
+        // only accessed by the stream thread
+        private long nextSequence = 1;
+        private @Nullable Stream stream;
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    try {
+                        runOnce();
+                    } catch (InterruptedException e) {
+                        // only interrupted by close()
+                        return;
+                    } catch (final Throwable t) {
+                        // log and continue processing
+                        centralConnection.suppressLogCollector(new Runnable() {
+                            @Override
+                            public void run() {
+                                logger.error(t.getMessage(), t);
+                            }
+                        });
+                    }
+                }
+            } finally {
+                if (stream != null) {
+                    stream.complete();
+                }
+            }
+        }
+
+        private void runOnce() throws Exception {
+            if (stream == null && hasUnacknowledged()) {
+                openStream();
+            }
+            if (stream != null) {
+                Throwable error = awaitCapacity(stream);
+                if (error != null) {
+                    onStreamFailure(stream, error);
+                    return;
+                }
+            }
+            StreamMessage message = queue.poll(POLL_MILLIS, MILLISECONDS);
+            if (message == null) {
+                return;
+            }
+            message = message.toBuilder()
+                    .setSequence(nextSequence++)
+                    .build();
+            synchronized (lock) {
+                if (unacknowledged.isEmpty()) {
+                    lastProgressMillis = System.currentTimeMillis();
+                }
+                unacknowledged.addLast(message);
+            }
+            if (stream == null) {
+                // the new message is sent along with any other unacknowledged messages
+                openStream();
+            } else {
+                stream.send(message);
+            }
+        }
+
+        private boolean hasUnacknowledged() {
+            synchronized (lock) {
+                return !unacknowledged.isEmpty();
+            }
+        }
+
+        private void openStream() {
+            List<StreamMessage> messages;
+            synchronized (lock) {
+                messages = ImmutableList.copyOf(unacknowledged);
+            }
+            Stream stream = new Stream();
+            // central storage is idempotent, so it is ok to re-send messages that were already
+            // stored prior to a failure
+            for (StreamMessage message : messages) {
+                stream.send(message);
+            }
+            this.stream = stream;
+        }
+
+        // returns the stream error, or null once there is room for another unacknowledged message
+        private @Nullable Throwable awaitCapacity(Stream stream) throws InterruptedException {
+            synchronized (lock) {
+                while (true) {
+                    Throwable error = stream.error;
+                    if (error != null) {
+                        return error;
+                    }
+                    long ackWaitMillis = ACK_TIMEOUT_MILLIS;
+                    if (!unacknowledged.isEmpty()) {
+                        ackWaitMillis = lastProgressMillis + ACK_TIMEOUT_MILLIS
+                                - System.currentTimeMillis();
+                        if (ackWaitMillis <= 0) {
+                            return new TimeoutException("Timed out waiting for central to"
+                                    + " acknowledge stream messages");
+                        }
+                    }
+                    if (unacknowledged.size() < MAX_UNACKNOWLEDGED) {
+                        return null;
+                    }
+                    lock.wait(ackWaitMillis);
+                }
+            }
+        }
+
+        private void onStreamFailure(Stream stream, Throwable error) throws InterruptedException {
+            logStreamError(error);
+            stream.cancel(error);
+            this.stream = null;
+            int retryCount;
+            synchronized (lock) {
+                retryCount = ++retryCounter;
+                if (retryCount >= MAX_RETRIES) {
+                    // no logging since DownstreamServiceObserver handles logging central
+                    // connectivity
+                    unacknowledged.clear();
+                    retryCounter = 0;
+                }
+            }
+            long backoffMillis = INITIAL_BACKOFF_MILLIS << Math.min(retryCount - 1, 16);
+            MILLISECONDS.sleep(Math.min(backoffMillis, MAX_BACKOFF_MILLIS));
+        }
+
+        private void logStreamError(final Throwable t) {
+            centralConnection.suppressLogCollector(new Runnable() {
+                @Override
+                public void run() {
+                    logger.debug(t.getMessage(), t);
+                }
+            });
+        }
+    }
+
+    private class Stream {
+
+        private final StreamObserver<StreamMessage> requestObserver;
+
+        @GuardedBy("lock")
+        private @Nullable Throwable error;
+        @GuardedBy("lock")
+        private boolean completed;
+
+        private Stream() {
+            requestObserver = collectorServiceStub.collectStream(new StreamObserver<StreamAck>() {
+                @Override
+                public void onNext(StreamAck ack) {
+                    acknowledge(ack.getSequence());
+                }
+                @Override
+                public void onError(Throwable t) {
+                    synchronized (lock) {
+                        error = t;
+                        lock.notifyAll();
+                    }
+                }
+                @Override
+                public void onCompleted() {
+                    synchronized (lock) {
+                        if (!closed) {
+                            error = new IllegalStateException("Stream completed unexpectedly");
+                        }
+                        completed = true;
+                        lock.notifyAll();
+                    }
+                }
+            });
+        }
+
+        private void send(StreamMessage message) {
+            requestObserver.onNext(message);
+        }
+
+        // cancels the stream unless it has already terminated (e.g. on ack timeout)
+        private void cancel(Throwable t) {
+            synchronized (lock) {
+                if (completed || error != null) {
+                    return;
+                }
+            }
+            requestObserver.onError(t);
+        }
+
+        // waits a few seconds for central to acknowledge the messages already sent and to
+        // complete its side of the stream (this is called from close(), after the stream thread
+        // has been interrupted, so the interrupt status is cleared for the duration of the wait)
+        private void complete() {
+            synchronized (lock) {
+                if (error != null) {
+                    return;
+                }
+            }
+            requestObserver.onCompleted();
+            boolean interrupted = Thread.interrupted();
+            long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+            try {
+                synchronized (lock) {
+                    while (!completed && error == null) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            return;
+                        }
+                        lock.wait(remaining);
+                    }
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -144,6 +144,9 @@ class ConfigUpdateService {
             builder.mbeanGaugeNotFoundDelaySeconds(
                     config.getMbeanGaugeNotFoundDelaySeconds().getValue());
         }
+        if (config.hasNormalizeQueryLiterals()) {
+            builder.normalizeQueryLiterals(config.getNormalizeQueryLiterals().getValue());
+        }
         configService.updateAdvancedConfig(builder.build());
     }
 
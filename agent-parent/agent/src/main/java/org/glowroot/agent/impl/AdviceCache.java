@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2015 the original author or authors.
+ * Copyright 2012-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -26,15 +26,20 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Supplier;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -47,10 +52,13 @@ import org.glowroot.agent.advicegen.AdviceGenerator;
 import org.glowroot.agent.plugin.api.weaving.Mixin;
 import org.glowroot.agent.plugin.api.weaving.Pointcut;
 import org.glowroot.agent.plugin.api.weaving.Shim;
+import org.glowroot.agent.util.StartupTimeline;
 import org.glowroot.agent.weaving.Advice;
 import org.glowroot.agent.weaving.AdviceBuilder;
+import org.glowroot.agent.weaving.AspectTargets;
 import org.glowroot.agent.weaving.ClassLoaders;
 import org.glowroot.agent.weaving.ClassLoaders.LazyDefinedClass;
+import org.glowroot.agent.weaving.LazyAdvisors;
 import org.glowroot.agent.weaving.MixinType;
 import org.glowroot.agent.weaving.ShimType;
 import org.glowroot.common.config.InstrumentationConfig;
@@ -65,20 +73,28 @@ public class AdviceCache {
 
     private static final AtomicInteger jarFileCounter = new AtomicInteger();
 
-    private final ImmutableList<Advice> pluginAdvisors;
+    // plugin advisors grow when lazy aspects are activated, which happens from inside
+    // ClassFileTransformer.transform(), so the advisor lists are swapped via compare and set
+    // instead of being guarded by a lock (see LazyAspects.activate())
+    private final AtomicReference<AdvisorLists> advisorLists;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
     private final @Nullable Instrumentation instrumentation;
     private final File baseDir;
 
-    private volatile ImmutableList<Advice> reweavableAdvisors;
+    private final @Nullable LazyAspects lazyAspects;
+
     private volatile ImmutableSet<String> reweavableConfigVersions;
 
-    private volatile ImmutableList<Advice> allAdvisors;
+    // used to reuse the advice for unchanged configs across updateAdvisors(), so that reweaving can
+    // be limited to the classes affected by the changed configs
+    private volatile ImmutableListMultimap<InstrumentationConfig, Advice> reweavableConfigAdvisors =
+            ImmutableListMultimap.of();
 
     public AdviceCache(List<PluginDescriptor> pluginDescriptors, List<File> pluginJars,
             List<InstrumentationConfig> reweavableConfigs,
-            @Nullable Instrumentation instrumentation, File baseDir) throws Exception {
+            @Nullable Instrumentation instrumentation, File baseDir, boolean lazyAspectLoading,
+            StartupTimeline startupTimeline) throws Exception {
 
         List<Advice> pluginAdvisors = Lists.newArrayList();
         List<ShimType> shimTypes = Lists.newArrayList();
@@ -92,19 +108,35 @@ public class AdviceCache {
         }
         ClassLoader tempIsolatedClassLoader =
                 new IsolatedClassLoader(pluginJarURLs, AdviceCache.class.getClassLoader());
+        Map<String, AspectTargets> lazyAspectTargets = Maps.newLinkedHashMap();
         for (PluginDescriptor pluginDescriptor : pluginDescriptors) {
-            for (String aspect : pluginDescriptor.aspects()) {
-                try {
-                    Class<?> aspectClass = Class.forName(aspect, false, tempIsolatedClassLoader);
-                    pluginAdvisors.addAll(getAdvisors(aspectClass));
-                    shimTypes.addAll(getShimTypes(aspectClass));
-                    mixinTypes.addAll(getMixinTypes(aspectClass));
-                } catch (ClassNotFoundException e) {
-                    logger.warn("aspect not found: {}", aspect, e);
+            StartupTimeline.Span pluginSpan =
+                    startupTimeline.startSpan("Plugin " + pluginDescriptor.id());
+            try {
+                for (String aspect : pluginDescriptor.aspects()) {
+                    if (lazyAspectLoading) {
+                        AspectTargets aspectTargets =
+                                AspectTargets.read(aspect, tempIsolatedClassLoader);
+                        if (aspectTargets != null) {
+                            lazyAspectTargets.put(aspect, aspectTargets);
+                            continue;
+                        }
+                    }
+                    try {
+                        Class<?> aspectClass =
+                                Class.forName(aspect, false, tempIsolatedClassLoader);
+                        pluginAdvisors.addAll(getAdvisors(aspectClass));
+                        shimTypes.addAll(getShimTypes(aspectClass));
+                        mixinTypes.addAll(getMixinTypes(aspectClass));
+                    } catch (ClassNotFoundException e) {
+                        logger.warn("aspect not found: {}", aspect, e);
+                    }
                 }
+                lazyAdvisors.putAll(AdviceGenerator.createAdvisors(
+                        pluginDescriptor.instrumentationConfigs(), pluginDescriptor.id(), false));
+            } finally {
+                pluginSpan.end();
             }
-            lazyAdvisors.putAll(AdviceGenerator.createAdvisors(
-                    pluginDescriptor.instrumentationConfigs(), pluginDescriptor.id(), false));
         }
         for (Entry<Advice, LazyDefinedClass> entry : lazyAdvisors.entrySet()) {
             pluginAdvisors.add(entry.getKey());
@@ -124,11 +156,17 @@ public class AdviceCache {
                         instrumentation, jarFile);
             }
         }
-        this.pluginAdvisors = ImmutableList.copyOf(pluginAdvisors);
+        advisorLists = new AtomicReference<AdvisorLists>(new AdvisorLists(
+                ImmutableList.copyOf(pluginAdvisors), ImmutableList.<Advice>of()));
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
         this.instrumentation = instrumentation;
         this.baseDir = baseDir;
+        if (lazyAspectTargets.isEmpty()) {
+            lazyAspects = null;
+        } else {
+            lazyAspects = new LazyAspects(pluginJarURLs, lazyAspectTargets);
+        }
         updateAdvisors(reweavableConfigs, true);
     }
 
@@ -136,11 +174,15 @@ public class AdviceCache {
         return new Supplier<List<Advice>>() {
             @Override
             public List<Advice> get() {
-                return allAdvisors;
+                return advisorLists.get().allAdvisors;
             }
         };
     }
 
+    public @Nullable LazyAdvisors getLazyAdvisors() {
+        return lazyAspects;
+    }
+
     @VisibleForTesting
     public List<ShimType> getShimTypes() {
         return shimTypes;
@@ -151,11 +193,26 @@ public class AdviceCache {
         return mixinTypes;
     }
 
-    @EnsuresNonNull({"reweavableAdvisors", "reweavableConfigVersions", "allAdvisors"})
+    @EnsuresNonNull("reweavableConfigVersions")
     public void updateAdvisors(/*>>>@UnknownInitialization(AdviceCache.class) AdviceCache this,*/
             List<InstrumentationConfig> reweavableConfigs, boolean cleanTmpDir) throws Exception {
-        ImmutableMap<Advice, LazyDefinedClass> advisors =
-                AdviceGenerator.createAdvisors(reweavableConfigs, null, true);
+        ListMultimap<InstrumentationConfig, Advice> priorConfigAdvisors =
+                ArrayListMultimap.create(reweavableConfigAdvisors);
+        ImmutableListMultimap.Builder<InstrumentationConfig, Advice> configAdvisors =
+                ImmutableListMultimap.builder();
+        Map<Advice, LazyDefinedClass> advisors = Maps.newHashMap();
+        for (InstrumentationConfig reweavableConfig : reweavableConfigs) {
+            List<Advice> priorAdvisors = priorConfigAdvisors.get(reweavableConfig);
+            if (!priorAdvisors.isEmpty()) {
+                // the generated advice class for this config has already been defined
+                configAdvisors.put(reweavableConfig, priorAdvisors.remove(0));
+                continue;
+            }
+            ImmutableMap<Advice, LazyDefinedClass> configAdvice = AdviceGenerator
+                    .createAdvisors(ImmutableList.of(reweavableConfig), null, true);
+            configAdvisors.putAll(reweavableConfig, configAdvice.keySet());
+            advisors.putAll(configAdvice);
+        }
         if (instrumentation == null) {
             // this is for tests that don't run with javaagent container
             ClassLoader loader = AdviceCache.class.getClassLoader();
@@ -178,9 +235,22 @@ public class AdviceCache {
                         jarFile);
             }
         }
-        reweavableAdvisors = advisors.keySet().asList();
+        reweavableConfigAdvisors = configAdvisors.build();
+        ImmutableList<Advice> reweavableAdvisors =
+                ImmutableList.copyOf(reweavableConfigAdvisors.values());
         reweavableConfigVersions = createReweavableConfigVersions(reweavableConfigs);
-        allAdvisors = ImmutableList.copyOf(Iterables.concat(pluginAdvisors, reweavableAdvisors));
+        while (true) {
+            // retry if a lazy aspect was activated concurrently
+            AdvisorLists current = advisorLists.get();
+            if (advisorLists.compareAndSet(current, new AdvisorLists(current.pluginAdvisors,
+                    reweavableAdvisors, current.activatedAspects))) {
+                break;
+            }
+        }
+    }
+
+    public List<Advice> getReweavableAdvisors() {
+        return advisorLists.get().reweavableAdvisors;
     }
 
     public boolean isOutOfSync(List<InstrumentationConfig> reweavableConfigs) {
@@ -242,6 +312,185 @@ public class AdviceCache {
         return getAdvisorsSupplier().get();
     }
 
+    // aspects whose advisors are only created once a class matching one of their pointcut class
+    // names is woven or analyzed, so that the aspects of plugins for libraries that are never used
+    // by the application are never loaded
+    //
+    // activation happens from inside ClassFileTransformer.transform(), so aspect classes are never
+    // loaded while holding a lock (loading them can block on class loader locks held by other
+    // threads that are themselves inside transform()), instead threads that race to activate the
+    // same aspect each load it, and the first to publish its advisors wins
+    private class LazyAspects implements LazyAdvisors {
+
+        private final URL[] pluginJarURLs;
+
+        private final AtomicReference<Targets> targets;
+
+        // loading the aspects goes back through weaving
+        @SuppressWarnings("nullness:type.argument.type.incompatible")
+        private final ThreadLocal<Boolean> inActivation = new ThreadLocal<Boolean>() {
+            @Override
+            protected Boolean initialValue() {
+                return false;
+            }
+        };
+
+        private LazyAspects(URL[] pluginJarURLs, Map<String, AspectTargets> aspectTargets) {
+            this.pluginJarURLs = pluginJarURLs;
+            ImmutableListMultimap.Builder<String, String> aspectsByTargetInternalName =
+                    ImmutableListMultimap.builder();
+            ImmutableListMultimap.Builder<Pattern, String> aspectsByTargetPattern =
+                    ImmutableListMultimap.builder();
+            for (Entry<String, AspectTargets> entry : aspectTargets.entrySet()) {
+                String aspect = entry.getKey();
+                for (String className : entry.getValue().getClassNames()) {
+                    aspectsByTargetInternalName.put(className.replace('.', '/'), aspect);
+                }
+                for (Pattern pattern : entry.getValue().getClassNamePatterns()) {
+                    aspectsByTargetPattern.put(pattern, aspect);
+                }
+            }
+            targets = new AtomicReference<Targets>(new Targets(aspectsByTargetInternalName.build(),
+                    aspectsByTargetPattern.build()));
+        }
+
+        @Override
+        public void activateFor(String internalName) {
+            Targets targets = this.targets.get();
+            List<String> aspects = targets.aspectsByTargetInternalName.get(internalName);
+            if (!targets.aspectsByTargetPattern.isEmpty()) {
+                String className = internalName.replace('/', '.');
+                for (Entry<Pattern, String> entry : targets.aspectsByTargetPattern.entries()) {
+                    if (entry.getKey().matcher(className).matches()) {
+                        aspects = Lists.newArrayList(aspects);
+                        aspects.add(entry.getValue());
+                    }
+                }
+            }
+            if (!aspects.isEmpty()) {
+                activate(aspects, internalName);
+            }
+        }
+
+        private void activate(List<String> aspects, String internalName) {
+            Set<String> pendingAspects = Sets.newLinkedHashSet(aspects);
+            // another thread may have already activated some of them
+            pendingAspects.removeAll(advisorLists.get().activatedAspects);
+            if (pendingAspects.isEmpty() || inActivation.get()) {
+                return;
+            }
+            Map<String, List<Advice>> activatedAdvisors;
+            inActivation.set(true);
+            try {
+                activatedAdvisors = load(pendingAspects);
+            } finally {
+                inActivation.set(false);
+            }
+            while (true) {
+                AdvisorLists current = advisorLists.get();
+                AdvisorLists updated = current.withActivatedAspects(activatedAdvisors);
+                if (updated == current || advisorLists.compareAndSet(current, updated)) {
+                    break;
+                }
+            }
+            for (String aspect : pendingAspects) {
+                logger.debug("activated aspect {} on first use of {}", aspect,
+                        internalName.replace('/', '.'));
+            }
+            // the activated aspects are removed only after their advisors have been published, so
+            // that a thread that does not find them here is guaranteed to see their advisors
+            while (true) {
+                Targets current = targets.get();
+                if (targets.compareAndSet(current, current.without(pendingAspects))) {
+                    break;
+                }
+            }
+        }
+
+        private Map<String, List<Advice>> load(Set<String> aspects) {
+            ClassLoader tempIsolatedClassLoader =
+                    new IsolatedClassLoader(pluginJarURLs, AdviceCache.class.getClassLoader());
+            Map<String, List<Advice>> advisors = Maps.newLinkedHashMap();
+            for (String aspect : aspects) {
+                try {
+                    Class<?> aspectClass = Class.forName(aspect, false, tempIsolatedClassLoader);
+                    advisors.put(aspect, getAdvisors(aspectClass));
+                } catch (ClassNotFoundException e) {
+                    logger.warn("aspect not found: {}", aspect, e);
+                    advisors.put(aspect, ImmutableList.<Advice>of());
+                }
+            }
+            return advisors;
+        }
+    }
+
+    private static class Targets {
+
+        // keyed by the internal name of the pointcut class name
+        private final ImmutableListMultimap<String, String> aspectsByTargetInternalName;
+        private final ImmutableListMultimap<Pattern, String> aspectsByTargetPattern;
+
+        private Targets(ImmutableListMultimap<String, String> aspectsByTargetInternalName,
+                ImmutableListMultimap<Pattern, String> aspectsByTargetPattern) {
+            this.aspectsByTargetInternalName = aspectsByTargetInternalName;
+            this.aspectsByTargetPattern = aspectsByTargetPattern;
+        }
+
+        private Targets without(Set<String> aspects) {
+            return new Targets(AdviceCache.without(aspectsByTargetInternalName, aspects),
+                    AdviceCache.without(aspectsByTargetPattern, aspects));
+        }
+    }
+
+    private static class AdvisorLists {
+
+        private final ImmutableList<Advice> pluginAdvisors;
+        private final ImmutableList<Advice> reweavableAdvisors;
+        private final ImmutableList<Advice> allAdvisors;
+        private final ImmutableSet<String> activatedAspects;
+
+        private AdvisorLists(ImmutableList<Advice> pluginAdvisors,
+                ImmutableList<Advice> reweavableAdvisors) {
+            this(pluginAdvisors, reweavableAdvisors, ImmutableSet.<String>of());
+        }
+
+        private AdvisorLists(ImmutableList<Advice> pluginAdvisors,
+                ImmutableList<Advice> reweavableAdvisors, ImmutableSet<String> activatedAspects) {
+            this.pluginAdvisors = pluginAdvisors;
+            this.reweavableAdvisors = reweavableAdvisors;
+            allAdvisors =
+                    ImmutableList.copyOf(Iterables.concat(pluginAdvisors, reweavableAdvisors));
+            this.activatedAspects = activatedAspects;
+        }
+
+        private AdvisorLists withActivatedAspects(Map<String, List<Advice>> activatedAdvisors) {
+            List<Advice> pluginAdvisors = Lists.newArrayList(this.pluginAdvisors);
+            Set<String> activatedAspects = Sets.newLinkedHashSet(this.activatedAspects);
+            for (Entry<String, List<Advice>> entry : activatedAdvisors.entrySet()) {
+                // skip the aspects that another thread activated concurrently
+                if (activatedAspects.add(entry.getKey())) {
+                    pluginAdvisors.addAll(entry.getValue());
+                }
+            }
+            if (activatedAspects.size() == this.activatedAspects.size()) {
+                return this;
+            }
+            return new AdvisorLists(ImmutableList.copyOf(pluginAdvisors), reweavableAdvisors,
+                    ImmutableSet.copyOf(activatedAspects));
+        }
+    }
+
+    private static <K> ImmutableListMultimap<K, String> without(
+            ImmutableListMultimap<K, String> multimap, Set<String> values) {
+        ImmutableListMultimap.Builder<K, String> builder = ImmutableListMultimap.builder();
+        for (Entry<K, String> entry : multimap.entries()) {
+            if (!values.contains(entry.getValue())) {
+                builder.put(entry);
+            }
+        }
+        return builder.build();
+    }
+
     private static class IsolatedClassLoader extends URLClassLoader {
 
         private IsolatedClassLoader(URL[] urls, @Nullable ClassLoader parent) {
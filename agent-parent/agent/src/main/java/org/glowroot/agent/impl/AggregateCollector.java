@@ -39,7 +39,7 @@ import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate.OptionalDouble;
 
-// must be used under an appropriate lock
+// must be confined to a single thread, or used under an appropriate lock
 @Styles.Private
 class AggregateCollector {
 
@@ -92,7 +92,7 @@ class AggregateCollector {
         mergeRootTimer(toBeMergedRootTimer, mainThreadRootTimers);
     }
 
-    void mergeAuxThreadRootTimer(TimerImpl toBeMergedRootTimer) {
+    void mergeAuxThreadRootTimer(CommonTimerImpl toBeMergedRootTimer) {
         mergeRootTimer(toBeMergedRootTimer, auxThreadRootTimers);
     }
 
@@ -117,6 +117,25 @@ class AggregateCollector {
         }
     }
 
+    void merge(AggregateCollector toBeMergedAggregateCollector) {
+        totalNanos += toBeMergedAggregateCollector.totalNanos;
+        transactionCount += toBeMergedAggregateCollector.transactionCount;
+        errorCount += toBeMergedAggregateCollector.errorCount;
+        mainThreadStats.merge(toBeMergedAggregateCollector.mainThreadStats);
+        auxThreadStats.merge(toBeMergedAggregateCollector.auxThreadStats);
+        lazyHistogram.merge(toBeMergedAggregateCollector.lazyHistogram);
+        mergeRootTimers(toBeMergedAggregateCollector.mainThreadRootTimers, mainThreadRootTimers);
+        mergeRootTimers(toBeMergedAggregateCollector.auxThreadRootTimers, auxThreadRootTimers);
+        mergeRootTimers(toBeMergedAggregateCollector.asyncRootTimers, asyncRootTimers);
+        if (toBeMergedAggregateCollector.mainThreadProfile.getSampleCount() > 0) {
+            mainThreadProfile.merge(toBeMergedAggregateCollector.mainThreadProfile);
+        }
+        if (toBeMergedAggregateCollector.auxThreadProfile.getSampleCount() > 0) {
+            auxThreadProfile.merge(toBeMergedAggregateCollector.auxThreadProfile);
+        }
+        queries.mergeQueries(toBeMergedAggregateCollector.queries);
+    }
+
     Aggregate build(ScratchBuffer scratchBuffer) throws IOException {
         Aggregate.Builder builder = Aggregate.newBuilder()
                 .setTotalDurationNanos(totalNanos)
@@ -145,7 +164,8 @@ class AggregateCollector {
     private static void mergeRootTimer(CommonTimerImpl toBeMergedRootTimer,
             List<MutableTimer> rootTimers) {
         for (MutableTimer rootTimer : rootTimers) {
-            if (toBeMergedRootTimer.getName().equals(rootTimer.getName())) {
+            if (toBeMergedRootTimer.getName().equals(rootTimer.getName())
+                    && toBeMergedRootTimer.isExtended() == rootTimer.isExtended()) {
                 rootTimer.merge(toBeMergedRootTimer);
                 return;
             }
@@ -156,6 +176,26 @@ class AggregateCollector {
         rootTimers.add(rootTimer);
     }
 
+    private static void mergeRootTimers(List<MutableTimer> toBeMergedRootTimers,
+            List<MutableTimer> rootTimers) {
+        for (MutableTimer toBeMergedRootTimer : toBeMergedRootTimers) {
+            MutableTimer matchingRootTimer = null;
+            for (MutableTimer rootTimer : rootTimers) {
+                if (toBeMergedRootTimer.getName().equals(rootTimer.getName())
+                        && toBeMergedRootTimer.isExtended() == rootTimer.isExtended()) {
+                    matchingRootTimer = rootTimer;
+                    break;
+                }
+            }
+            if (matchingRootTimer == null) {
+                matchingRootTimer = MutableTimer.createRootTimer(toBeMergedRootTimer.getName(),
+                        toBeMergedRootTimer.isExtended());
+                rootTimers.add(matchingRootTimer);
+            }
+            matchingRootTimer.merge(toBeMergedRootTimer);
+        }
+    }
+
     private static List<Aggregate.Timer> getRootTimersProtobuf(List<MutableTimer> rootTimers) {
         List<Aggregate.Timer> protobufRootTimers =
                 Lists.newArrayListWithCapacity(rootTimers.size());
@@ -185,6 +225,21 @@ class AggregateCollector {
             empty = false;
         }
 
+        private void merge(MutableThreadStats toBeMergedThreadStats) {
+            if (toBeMergedThreadStats.empty) {
+                return;
+            }
+            totalCpuNanos = NotAvailableAware.add(totalCpuNanos,
+                    toBeMergedThreadStats.totalCpuNanos);
+            totalBlockedNanos = NotAvailableAware.add(totalBlockedNanos,
+                    toBeMergedThreadStats.totalBlockedNanos);
+            totalWaitedNanos = NotAvailableAware.add(totalWaitedNanos,
+                    toBeMergedThreadStats.totalWaitedNanos);
+            totalAllocatedBytes = NotAvailableAware.add(totalAllocatedBytes,
+                    toBeMergedThreadStats.totalAllocatedBytes);
+            empty = false;
+        }
+
         private boolean isNA() {
             if (empty) {
                 return true;
@@ -15,7 +15,6 @@
  */
 package org.glowroot.agent.impl;
 
-import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -34,7 +33,6 @@ import org.glowroot.agent.model.TimerImpl;
 import org.glowroot.agent.model.Transaction;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.wire.api.Collector;
-import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
 import org.glowroot.wire.api.model.AggregateOuterClass.TransactionAggregate;
 
@@ -45,50 +43,78 @@ public class AggregateIntervalCollector {
     private static final AtomicBoolean maxAggregateTransactionsWarnLogged = new AtomicBoolean();
 
     private final long captureTime;
-    private final Map<String, IntervalTypeCollector> typeCollectors = Maps.newConcurrentMap();
+    // each aggregator stripe accumulates into its own partial type collectors, which are only ever
+    // accessed by that stripe's processing thread until they are combined during flush (which
+    // happens-after all stripes are done with this interval, see Aggregator)
+    private final List<Map<String, IntervalTypeCollector>> partialTypeCollectors;
     private final int maxAggregateTransactionsPerTransactionType;
     private final int maxAggregateQueriesPerQueryType;
 
     AggregateIntervalCollector(long currentTime, long aggregateIntervalMillis,
-            int maxAggregateTransactionsPerTransactionType, int maxAggregateQueriesPerQueryType) {
+            int maxAggregateTransactionsPerTransactionType, int maxAggregateQueriesPerQueryType,
+            int partialCount) {
         captureTime = (long) Math.ceil(currentTime / (double) aggregateIntervalMillis)
                 * aggregateIntervalMillis;
         this.maxAggregateTransactionsPerTransactionType =
                 maxAggregateTransactionsPerTransactionType;
         this.maxAggregateQueriesPerQueryType = maxAggregateQueriesPerQueryType;
+        partialTypeCollectors = Lists.newArrayListWithCapacity(partialCount);
+        for (int i = 0; i < partialCount; i++) {
+            partialTypeCollectors.add(Maps.<String, IntervalTypeCollector>newHashMap());
+        }
     }
 
     public long getCaptureTime() {
         return captureTime;
     }
 
-    public void add(Transaction transaction) {
-        IntervalTypeCollector typeCollector = getTypeCollector(transaction.getTransactionType());
+    // must only be called by the aggregator stripe's processing thread that owns the partial
+    public void add(Transaction transaction, int partialIndex) {
+        Map<String, IntervalTypeCollector> typeCollectors =
+                partialTypeCollectors.get(partialIndex);
+        IntervalTypeCollector typeCollector =
+                getTypeCollector(typeCollectors, transaction.getTransactionType());
         typeCollector.add(transaction);
     }
 
     void flush(Collector collector) throws Exception {
+        Map<String, IntervalTypeCollector> typeCollectors = combinePartialTypeCollectors();
         List<AggregatesByType> aggregatesByTypeList = Lists.newArrayList();
         ScratchBuffer scratchBuffer = new ScratchBuffer();
         for (Entry<String, IntervalTypeCollector> e : typeCollectors.entrySet()) {
             IntervalTypeCollector intervalTypeCollector = e.getValue();
             AggregatesByType.Builder aggregatesByType = AggregatesByType.newBuilder()
                     .setTransactionType(e.getKey())
-                    .setOverallAggregate(buildOverallAggregate(
-                            intervalTypeCollector.overallAggregateCollector, scratchBuffer));
-            for (Entry<String, AggregateCollector> f : intervalTypeCollector.transactionAggregateCollectors
-                    .entrySet()) {
-                aggregatesByType.addTransactionAggregate(
-                        buildTransactionAggregate(f.getKey(), f.getValue(), scratchBuffer));
+                    .setOverallAggregate(intervalTypeCollector.overallAggregateCollector
+                            .build(scratchBuffer));
+            Map<String, AggregateCollector> transactionAggregateCollectors =
+                    intervalTypeCollector.transactionAggregateCollectors;
+            for (Entry<String, AggregateCollector> f : transactionAggregateCollectors.entrySet()) {
+                aggregatesByType.addTransactionAggregate(TransactionAggregate.newBuilder()
+                        .setTransactionName(f.getKey())
+                        .setAggregate(f.getValue().build(scratchBuffer))
+                        .build());
             }
             aggregatesByTypeList.add(aggregatesByType.build());
         }
         collector.collectAggregates(captureTime, aggregatesByTypeList);
     }
 
-    private IntervalTypeCollector getTypeCollector(String transactionType) {
-        IntervalTypeCollector typeCollector;
-        typeCollector = typeCollectors.get(transactionType);
+    private Map<String, IntervalTypeCollector> combinePartialTypeCollectors() {
+        Map<String, IntervalTypeCollector> typeCollectors = partialTypeCollectors.get(0);
+        for (int i = 1; i < partialTypeCollectors.size(); i++) {
+            for (Entry<String, IntervalTypeCollector> e : partialTypeCollectors.get(i)
+                    .entrySet()) {
+                IntervalTypeCollector typeCollector = getTypeCollector(typeCollectors, e.getKey());
+                typeCollector.merge(e.getValue());
+            }
+        }
+        return typeCollectors;
+    }
+
+    private IntervalTypeCollector getTypeCollector(
+            Map<String, IntervalTypeCollector> typeCollectors, String transactionType) {
+        IntervalTypeCollector typeCollector = typeCollectors.get(transactionType);
         if (typeCollector == null) {
             typeCollector = new IntervalTypeCollector();
             typeCollectors.put(transactionType, typeCollector);
@@ -96,33 +122,13 @@ public class AggregateIntervalCollector {
         return typeCollector;
     }
 
-    private Aggregate buildOverallAggregate(AggregateCollector aggregateCollector,
-            ScratchBuffer scratchBuffer) throws IOException {
-        synchronized (aggregateCollector) {
-            return aggregateCollector.build(scratchBuffer);
-        }
-    }
-
-    private TransactionAggregate buildTransactionAggregate(String transactionName,
-            AggregateCollector aggregateCollector, ScratchBuffer scratchBuffer) throws IOException {
-        synchronized (aggregateCollector) {
-            return TransactionAggregate.newBuilder()
-                    .setTransactionName(transactionName)
-                    .setAggregate(aggregateCollector.build(scratchBuffer))
-                    .build();
-        }
-    }
-
-    private @Nullable AggregateCollector getAggregateCollector(String transactionType,
-            @Nullable String transactionName) {
-        IntervalTypeCollector intervalTypeCollector = typeCollectors.get(transactionType);
-        if (intervalTypeCollector == null) {
-            return null;
-        }
-        if (transactionName == null) {
-            return intervalTypeCollector.overallAggregateCollector;
-        } else {
-            return intervalTypeCollector.transactionAggregateCollectors.get(transactionName);
+    private static void logMaxAggregateTransactionsWarning() {
+        if (!maxAggregateTransactionsWarnLogged.getAndSet(true)) {
+            logger.warn("the max transaction names per transaction type was exceeded during the"
+                    + " current interval. consider increasing the limit under Configuration >"
+                    + " Advanced, or reducing the number of transaction names by configuring"
+                    + " instrumentation points under Configuration > Instrumentation that override"
+                    + " the transaction name.");
         }
     }
 
@@ -130,7 +136,7 @@ public class AggregateIntervalCollector {
 
         private final AggregateCollector overallAggregateCollector;
         private final Map<String, AggregateCollector> transactionAggregateCollectors =
-                Maps.newConcurrentMap();
+                Maps.newHashMap();
 
         private IntervalTypeCollector() {
             overallAggregateCollector =
@@ -140,58 +146,73 @@ public class AggregateIntervalCollector {
         private void add(Transaction transaction) {
             merge(transaction, overallAggregateCollector);
             AggregateCollector transactionAggregateCollector =
-                    transactionAggregateCollectors.get(transaction.getTransactionName());
-            if (transactionAggregateCollector == null && transactionAggregateCollectors
-                    .size() < maxAggregateTransactionsPerTransactionType) {
-                transactionAggregateCollector = new AggregateCollector(
-                        transaction.getTransactionName(), maxAggregateQueriesPerQueryType);
-                transactionAggregateCollectors.put(transaction.getTransactionName(),
-                        transactionAggregateCollector);
-            }
+                    getOrCreateTransactionAggregateCollector(transaction.getTransactionName());
             if (transactionAggregateCollector == null) {
-                if (!maxAggregateTransactionsWarnLogged.getAndSet(true)) {
-                    logger.warn("the max transaction names per transaction type was exceeded"
-                            + " during the current interval. consider increasing the limit under"
-                            + " Configuration > Advanced, or reducing the number of transaction"
-                            + " names by configuring instrumentation points under Configuration"
-                            + " > Instrumentation that override the transaction name.");
-                }
+                logMaxAggregateTransactionsWarning();
                 return;
             }
             merge(transaction, transactionAggregateCollector);
         }
 
+        private void merge(IntervalTypeCollector toBeMergedTypeCollector) {
+            overallAggregateCollector.merge(toBeMergedTypeCollector.overallAggregateCollector);
+            Map<String, AggregateCollector> toBeMergedTransactionAggregateCollectors =
+                    toBeMergedTypeCollector.transactionAggregateCollectors;
+            for (Entry<String, AggregateCollector> e : toBeMergedTransactionAggregateCollectors
+                    .entrySet()) {
+                AggregateCollector transactionAggregateCollector =
+                        getOrCreateTransactionAggregateCollector(e.getKey());
+                if (transactionAggregateCollector == null) {
+                    logMaxAggregateTransactionsWarning();
+                    continue;
+                }
+                transactionAggregateCollector.merge(e.getValue());
+            }
+        }
+
+        private @Nullable AggregateCollector getOrCreateTransactionAggregateCollector(
+                String transactionName) {
+            AggregateCollector transactionAggregateCollector =
+                    transactionAggregateCollectors.get(transactionName);
+            if (transactionAggregateCollector == null && transactionAggregateCollectors
+                    .size() < maxAggregateTransactionsPerTransactionType) {
+                transactionAggregateCollector =
+                        new AggregateCollector(transactionName, maxAggregateQueriesPerQueryType);
+                transactionAggregateCollectors.put(transactionName,
+                        transactionAggregateCollector);
+            }
+            return transactionAggregateCollector;
+        }
+
         private void merge(Transaction transaction, AggregateCollector aggregateCollector) {
-            synchronized (aggregateCollector) {
-                aggregateCollector.add(transaction);
-                TimerImpl mainThreadRootTimer = transaction.getMainThreadRootTimer();
+            aggregateCollector.add(transaction);
+            TimerImpl mainThreadRootTimer = transaction.getMainThreadRootTimer();
+            if (transaction.isAsynchronous()) {
+                // the main thread is treated as just another auxiliary thread
+                aggregateCollector.mergeAuxThreadRootTimer(mainThreadRootTimer);
+            } else {
+                aggregateCollector.mergeMainThreadRootTimer(mainThreadRootTimer);
+            }
+            for (CommonTimerImpl rootTimer : transaction.getAuxThreadRootTimers()) {
+                aggregateCollector.mergeAuxThreadRootTimer(rootTimer);
+            }
+            for (CommonTimerImpl rootTimer : transaction.getAsyncRootTimers()) {
+                aggregateCollector.mergeAsyncRootTimer(rootTimer);
+            }
+            Profile mainThreadProfile = transaction.getMainThreadProfile();
+            if (mainThreadProfile != null) {
                 if (transaction.isAsynchronous()) {
                     // the main thread is treated as just another auxiliary thread
-                    aggregateCollector.mergeAuxThreadRootTimer(mainThreadRootTimer);
+                    aggregateCollector.mergeAuxThreadProfile(mainThreadProfile);
                 } else {
-                    aggregateCollector.mergeMainThreadRootTimer(mainThreadRootTimer);
-                }
-                for (TimerImpl rootTimer : transaction.getAuxThreadRootTimers()) {
-                    aggregateCollector.mergeAuxThreadRootTimer(rootTimer);
+                    aggregateCollector.mergeMainThreadProfile(mainThreadProfile);
                 }
-                for (CommonTimerImpl rootTimer : transaction.getAsyncRootTimers()) {
-                    aggregateCollector.mergeAsyncRootTimer(rootTimer);
-                }
-                Profile mainThreadProfile = transaction.getMainThreadProfile();
-                if (mainThreadProfile != null) {
-                    if (transaction.isAsynchronous()) {
-                        // the main thread is treated as just another auxiliary thread
-                        aggregateCollector.mergeAuxThreadProfile(mainThreadProfile);
-                    } else {
-                        aggregateCollector.mergeMainThreadProfile(mainThreadProfile);
-                    }
-                }
-                Profile auxThreadProfile = transaction.getAuxThreadProfile();
-                if (auxThreadProfile != null) {
-                    aggregateCollector.mergeAuxThreadProfile(auxThreadProfile);
-                }
-                aggregateCollector.mergeQueries(transaction.getQueries());
             }
+            Profile auxThreadProfile = transaction.getAuxThreadProfile();
+            if (auxThreadProfile != null) {
+                aggregateCollector.mergeAuxThreadProfile(auxThreadProfile);
+            }
+            aggregateCollector.mergeQueries(transaction.getQueries());
         }
     }
 }
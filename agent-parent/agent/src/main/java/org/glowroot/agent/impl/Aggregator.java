@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2015 the original author or authors.
+ * Copyright 2013-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,12 +16,21 @@
 package org.glowroot.agent.impl;
 
 import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ScheduledExecutorService;
 
-import com.google.common.collect.ImmutableList;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Queues;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.RateLimiter;
 import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,9 +46,23 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 public class Aggregator {
 
-    private static final Logger logger = LoggerFactory.getLogger(TransactionProcessor.class);
+    private static final Logger logger = LoggerFactory.getLogger(Aggregator.class);
+
+    // each stripe has its own lock, bounded queue, processing thread and partial aggregates, so
+    // that application threads completing transactions concurrently do not all contend on a single
+    // lock and a single set of aggregates (default is one stripe per two cores, up to four)
+    private static final int STRIPE_COUNT = Math.max(1, Integer.getInteger(
+            "glowroot.internal.aggregator.stripes",
+            Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
 
-    private volatile AggregateIntervalCollector activeIntervalCollector;
+    // this is per stripe
+    private static final int QUEUE_CAPACITY =
+            Math.max(1, Integer.getInteger("glowroot.internal.aggregator.queueCapacity", 10000));
+
+    // keyed by interval capture time, and ordered so that the oldest interval is flushed first
+    private final ConcurrentNavigableMap<Long, AggregateIntervalCollector>
+            activeIntervalCollectors =
+                    new ConcurrentSkipListMap<Long, AggregateIntervalCollector>();
     private final List<AggregateIntervalCollector> pendingIntervalCollectors =
             Lists.newCopyOnWriteArrayList();
 
@@ -50,30 +73,49 @@ public class Aggregator {
 
     private final long aggregateIntervalMillis;
 
-    private final BlockingQueue<PendingTransaction> pendingTransactionQueue =
-            Queues.newLinkedBlockingQueue();
+    private final Stripe[] stripes;
+    private final List<Thread> processingThreads = Lists.newArrayList();
 
-    private final Thread processingThread;
+    private final Object flushLock = new Object();
 
-    private final Object lock = new Object();
+    private final RateLimiter warningRateLimiter = RateLimiter.create(1.0 / 60);
+    @GuardedBy("warningRateLimiter")
+    private int countSinceLastWarning;
 
     public Aggregator(ScheduledExecutorService scheduledExecutor, Collector collector,
             ConfigService configService, long aggregateIntervalMillis, Clock clock) {
+        this(scheduledExecutor, collector, configService, aggregateIntervalMillis, clock,
+                STRIPE_COUNT, QUEUE_CAPACITY);
+    }
+
+    @VisibleForTesting
+    Aggregator(ScheduledExecutorService scheduledExecutor, Collector collector,
+            ConfigService configService, long aggregateIntervalMillis, Clock clock,
+            int stripeCount, int queueCapacity) {
         this.scheduledExecutor = scheduledExecutor;
         this.collector = collector;
         this.configService = configService;
         this.clock = clock;
         this.aggregateIntervalMillis = aggregateIntervalMillis;
-        activeIntervalCollector =
-                new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
-                        configService.getAdvancedConfig()
-                                .maxAggregateTransactionsPerTransactionType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerQueryType());
-        // dedicated thread to aggregating transaction data
-        processingThread = new Thread(new TransactionProcessor());
-        processingThread.setDaemon(true);
-        processingThread.setName("Glowroot-Aggregate-Collector");
-        processingThread.start();
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(queueCapacity);
+        }
+        AggregateIntervalCollector intervalCollector =
+                createIntervalCollector(clock.currentTimeMillis());
+        activeIntervalCollectors.put(intervalCollector.getCaptureTime(), intervalCollector);
+        for (int i = 0; i < stripeCount; i++) {
+            // dedicated thread(s) to aggregating transaction data
+            Thread processingThread = new Thread(new TransactionProcessor(stripes[i], i));
+            processingThread.setDaemon(true);
+            if (stripeCount == 1) {
+                processingThread.setName("Glowroot-Aggregate-Collector");
+            } else {
+                processingThread.setName("Glowroot-Aggregate-Collector-" + i);
+            }
+            processingThread.start();
+            processingThreads.add(processingThread);
+        }
     }
 
     // from is non-inclusive
@@ -90,39 +132,145 @@ public class Aggregator {
     }
 
     long add(Transaction transaction) {
-        // this synchronized block is to ensure traces are placed into processing queue in the
-        // order of captureTime (so that queue reader can assume if captureTime indicates time to
-        // flush, then no new traces will come in with prior captureTime)
-        synchronized (lock) {
+        Stripe stripe = stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+        // this synchronized block is to ensure traces are placed into each stripe's processing
+        // queue in the order of captureTime (so that queue reader can assume if captureTime
+        // indicates time to flush, then no new traces will come in on that stripe with prior
+        // captureTime)
+        synchronized (stripe.lock) {
             long captureTime = clock.currentTimeMillis();
-            pendingTransactionQueue.add(ImmutablePendingTransaction.of(captureTime, transaction));
+            if (!stripe.queue.offer(ImmutablePendingTransaction.of(captureTime, transaction))) {
+                // bounded queue is full, application threads should never block on aggregation
+                logQueueFullWarning();
+            }
             return captureTime;
         }
     }
 
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
-        // grab active first then pending (and de-dup) to make sure one is not missed between states
-        AggregateIntervalCollector activeIntervalCollector = this.activeIntervalCollector;
+        // grab pending first then active (and de-dup) to make sure one is not missed between
+        // states
         List<AggregateIntervalCollector> intervalCollectors =
                 Lists.newArrayList(pendingIntervalCollectors);
-        if (intervalCollectors.isEmpty()) {
-            // common case
-            return ImmutableList.of(activeIntervalCollector);
-        } else if (!intervalCollectors.contains(activeIntervalCollector)) {
-            intervalCollectors.add(activeIntervalCollector);
-            return intervalCollectors;
-        } else {
-            return intervalCollectors;
+        for (AggregateIntervalCollector intervalCollector : activeIntervalCollectors.values()) {
+            if (!intervalCollectors.contains(intervalCollector)) {
+                intervalCollectors.add(intervalCollector);
+            }
+        }
+        return CaptureTimeOrdering.INSTANCE.sortedCopy(intervalCollectors);
+    }
+
+    private AggregateIntervalCollector getOrCreateIntervalCollector(long captureTime) {
+        Entry<Long, AggregateIntervalCollector> entry =
+                activeIntervalCollectors.ceilingEntry(captureTime);
+        if (entry != null && entry.getKey() - aggregateIntervalMillis < captureTime) {
+            // common case, interval already exists
+            return entry.getValue();
+        }
+        AggregateIntervalCollector intervalCollector = createIntervalCollector(captureTime);
+        AggregateIntervalCollector existingIntervalCollector = activeIntervalCollectors
+                .putIfAbsent(intervalCollector.getCaptureTime(), intervalCollector);
+        return existingIntervalCollector == null ? intervalCollector : existingIntervalCollector;
+    }
+
+    private AggregateIntervalCollector createIntervalCollector(long currentTime) {
+        return new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
+                configService.getAdvancedConfig().maxAggregateTransactionsPerTransactionType(),
+                configService.getAdvancedConfig().maxAggregateQueriesPerQueryType(),
+                stripes.length);
+    }
+
+    private long getMinWatermark() {
+        long minWatermark = Long.MAX_VALUE;
+        for (Stripe stripe : stripes) {
+            minWatermark = Math.min(minWatermark, stripe.watermark);
+        }
+        return minWatermark;
+    }
+
+    private void maybeFlush() {
+        long minWatermark = getMinWatermark();
+        Long firstCaptureTime = firstCaptureTime();
+        if (firstCaptureTime == null || firstCaptureTime >= minWatermark) {
+            // common case, nothing to flush
+            return;
+        }
+        synchronized (flushLock) {
+            while (true) {
+                Entry<Long, AggregateIntervalCollector> entry =
+                        activeIntervalCollectors.firstEntry();
+                if (entry == null || entry.getKey() >= minWatermark) {
+                    break;
+                }
+                // safe to flush, every stripe has already received a transaction (or has
+                // confirmed under its lock that it has not received any transaction) with a
+                // later capture time, so no other pending transactions can enter this interval
+                //
+                // the next interval is created (if not already present) before removing this
+                // one so that there is always an active interval to flush, even if there are no
+                // transactions during that interval
+                getOrCreateIntervalCollector(minWatermark);
+                // flusher is constructed prior to removing the interval from the active intervals
+                // so that it is not missed between states in getOrderedAllIntervalCollectors()
+                IntervalFlusher intervalFlusher = new IntervalFlusher(entry.getValue());
+                activeIntervalCollectors.remove(entry.getKey());
+                // flush in separate thread to avoid pending transactions from piling up quickly
+                scheduledExecutor.execute(intervalFlusher);
+            }
+        }
+    }
+
+    private @Nullable Long firstCaptureTime() {
+        Entry<Long, AggregateIntervalCollector> entry = activeIntervalCollectors.firstEntry();
+        return entry == null ? null : entry.getKey();
+    }
+
+    private void logQueueFullWarning() {
+        synchronized (warningRateLimiter) {
+            if (warningRateLimiter.tryAcquire(0, MILLISECONDS)) {
+                logger.warn("not aggregating a transaction because of an excessive backlog of"
+                        + " transactions already waiting to be aggregated (this warning will appear"
+                        + " at most once a minute, there were {} additional transactions not"
+                        + " aggregated since the last warning)", countSinceLastWarning);
+                countSinceLastWarning = 0;
+            } else {
+                countSinceLastWarning++;
+            }
         }
     }
 
     @OnlyUsedByTests
     public void close() {
-        processingThread.interrupt();
+        for (Thread processingThread : processingThreads) {
+            processingThread.interrupt();
+        }
+    }
+
+    private static class Stripe {
+
+        private final Object lock = new Object();
+
+        private final BlockingQueue<PendingTransaction> queue;
+
+        // no transaction with capture time prior to the watermark will be processed from this
+        // stripe (only updated by the stripe's own processing thread)
+        private volatile long watermark;
+
+        private Stripe(int queueCapacity) {
+            queue = new ArrayBlockingQueue<PendingTransaction>(queueCapacity);
+        }
     }
 
     private class TransactionProcessor implements Runnable {
 
+        private final Stripe stripe;
+        private final int stripeIndex;
+
+        private TransactionProcessor(Stripe stripe, int stripeIndex) {
+            this.stripe = stripe;
+            this.stripeIndex = stripeIndex;
+        }
+
         @Override
         public void run() {
             while (true) {
@@ -139,53 +287,39 @@ public class Aggregator {
         }
 
         private void processOne() throws InterruptedException {
-            long timeToActiveIntervalEndTime = Math.max(0,
-                    activeIntervalCollector.getCaptureTime() - clock.currentTimeMillis());
+            Long firstCaptureTime = firstCaptureTime();
+            long timeToActiveIntervalEndTime = firstCaptureTime == null ? 0
+                    : Math.max(0, firstCaptureTime - clock.currentTimeMillis());
             PendingTransaction pendingTransaction =
-                    pendingTransactionQueue.poll(timeToActiveIntervalEndTime + 1000, MILLISECONDS);
+                    stripe.queue.poll(timeToActiveIntervalEndTime + 1000, MILLISECONDS);
             if (pendingTransaction == null) {
                 maybeEndOfInterval();
                 return;
             }
-            if (pendingTransaction.captureTime() > activeIntervalCollector.getCaptureTime()) {
-                // flush in separate thread to avoid pending transactions from piling up quickly
-                scheduledExecutor.execute(new IntervalFlusher(activeIntervalCollector));
-                activeIntervalCollector = new AggregateIntervalCollector(
-                        pendingTransaction.captureTime(), aggregateIntervalMillis,
-                        configService.getAdvancedConfig()
-                                .maxAggregateTransactionsPerTransactionType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerQueryType());
-            }
-            // the synchronized block is to ensure visibility of updates to this particular
-            // activeIntervalCollector
-            synchronized (activeIntervalCollector) {
-                activeIntervalCollector.add(pendingTransaction.transaction());
-            }
+            AggregateIntervalCollector intervalCollector =
+                    getOrCreateIntervalCollector(pendingTransaction.captureTime());
+            // each stripe accumulates into its own thread-confined partial aggregates, which are
+            // only combined when the interval is flushed
+            intervalCollector.add(pendingTransaction.transaction(), stripeIndex);
+            // watermark must only be advanced after the transaction has been added above, so
+            // that its interval cannot be flushed out from underneath it
+            stripe.watermark = pendingTransaction.captureTime();
+            maybeFlush();
         }
 
         private void maybeEndOfInterval() {
-            synchronized (lock) {
-                if (pendingTransactionQueue.peek() != null) {
+            synchronized (stripe.lock) {
+                if (stripe.queue.peek() != null) {
                     // something just crept into the queue, possibly still something from
                     // active interval, it will get picked up right away and if it is in
                     // next interval it will force active aggregate to be flushed anyways
                     return;
                 }
-                // this should be true since poll timed out above, but checking again to be sure
-                long currentTime = clock.currentTimeMillis();
-                if (currentTime > activeIntervalCollector.getCaptureTime()) {
-                    // safe to flush, no other pending transactions can enter queue with later
-                    // time (since under same lock that they use)
-                    //
-                    // flush in separate thread to avoid pending transactions from piling up quickly
-                    scheduledExecutor.execute(new IntervalFlusher(activeIntervalCollector));
-                    activeIntervalCollector = new AggregateIntervalCollector(currentTime,
-                            aggregateIntervalMillis,
-                            configService.getAdvancedConfig()
-                                    .maxAggregateTransactionsPerTransactionType(),
-                            configService.getAdvancedConfig().maxAggregateQueriesPerQueryType());
-                }
+                // no other pending transactions can enter this stripe's queue with earlier time
+                // (since under same lock that they use)
+                stripe.watermark = clock.currentTimeMillis();
             }
+            maybeFlush();
         }
     }
 
@@ -200,21 +334,27 @@ public class Aggregator {
 
         @Override
         public void run() {
-            // this synchronized block is to ensure visibility of updates to this particular
-            // activeIntervalCollector
-            synchronized (intervalCollector) {
-                try {
-                    intervalCollector.flush(collector);
-                } catch (Throwable t) {
-                    // log and terminate successfully
-                    logger.error(t.getMessage(), t);
-                } finally {
-                    pendingIntervalCollectors.remove(intervalCollector);
-                }
+            try {
+                intervalCollector.flush(collector);
+            } catch (Throwable t) {
+                // log and terminate successfully
+                logger.error(t.getMessage(), t);
+            } finally {
+                pendingIntervalCollectors.remove(intervalCollector);
             }
         }
     }
 
+    private static class CaptureTimeOrdering extends Ordering<AggregateIntervalCollector> {
+
+        private static final CaptureTimeOrdering INSTANCE = new CaptureTimeOrdering();
+
+        @Override
+        public int compare(AggregateIntervalCollector left, AggregateIntervalCollector right) {
+            return Longs.compare(left.getCaptureTime(), right.getCaptureTime());
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     interface PendingTransaction {
@@ -50,6 +50,10 @@ class MutableTimer {
         return name;
     }
 
+    boolean isExtended() {
+        return extended;
+    }
+
     void merge(CommonTimerImpl timer) {
         count += timer.getCount();
         totalNanos += timer.getTotalNanos();
@@ -75,6 +79,27 @@ class MutableTimer {
         }
     }
 
+    void merge(MutableTimer timer) {
+        count += timer.count;
+        totalNanos += timer.totalNanos;
+        for (MutableTimer toBeMergedChildTimer : timer.childTimers) {
+            MutableTimer matchingChildTimer = null;
+            for (MutableTimer childTimer : childTimers) {
+                if (toBeMergedChildTimer.name.equals(childTimer.name)
+                        && toBeMergedChildTimer.extended == childTimer.extended) {
+                    matchingChildTimer = childTimer;
+                    break;
+                }
+            }
+            if (matchingChildTimer == null) {
+                matchingChildTimer = new MutableTimer(toBeMergedChildTimer.name,
+                        toBeMergedChildTimer.extended, 0, 0, new ArrayList<MutableTimer>());
+                childTimers.add(matchingChildTimer);
+            }
+            matchingChildTimer.merge(toBeMergedChildTimer);
+        }
+    }
+
     Aggregate.Timer toProto() {
         Aggregate.Timer.Builder builder = Aggregate.Timer.newBuilder()
                 .setName(name)
@@ -0,0 +1,304 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.agent.model.TraceCreator;
+import org.glowroot.agent.model.Transaction;
+import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.common.util.Styles;
+import org.glowroot.wire.api.Collector;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// bounded queue of completed transactions waiting to have their traces built and stored, drained
+// in batches by a small pool of dedicated worker threads
+//
+// the bound covers both the transactions waiting in the queue and the transactions whose traces
+// are in the process of being built and stored by the worker threads
+class TraceStoragePipeline implements TraceStoragePipelineMXBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(TraceStoragePipeline.class);
+
+    private static final int MAX_BATCH_SIZE = 100;
+
+    // higher priority pending traces are kept at the expense of lower priority pending traces when
+    // the queue is full
+    private static final int PRIORITY_SLOW = 0;
+    private static final int PRIORITY_ERROR = 1;
+    // transactions that were already partially stored should not get left out in case they cause
+    // an avalanche of slowness
+    private static final int PRIORITY_PARTIALLY_STORED = 2;
+
+    private final Collector collector;
+    private final int capacity;
+    private final BlockingQueue<PendingTrace> queue;
+    // one permit per pending trace, released once the trace has been stored (or evicted)
+    private final Semaphore permits;
+
+    // this includes both transactions waiting in the queue and transactions whose traces are in
+    // the process of being built and stored
+    private final Set<Transaction> pendingTransactions = Sets.newConcurrentHashSet();
+
+    private final @Nullable ExecutorService workerExecutor;
+
+    // only used when queue is full
+    private final Object evictionLock = new Object();
+
+    private final AtomicLong storedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong droppedSlowCount = new AtomicLong();
+    private final AtomicLong droppedErrorCount = new AtomicLong();
+    private final AtomicLong droppedPartiallyStoredCount = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+
+    private final RateLimiter warningRateLimiter = RateLimiter.create(1.0 / 60);
+    @GuardedBy("warningRateLimiter")
+    private int countSinceLastWarning;
+
+    TraceStoragePipeline(Collector collector, int capacity, int workerCount) {
+        this.collector = collector;
+        this.capacity = capacity;
+        queue = new ArrayBlockingQueue<PendingTrace>(capacity);
+        permits = new Semaphore(capacity);
+        if (workerCount == 0) {
+            // this is only used by tests, in order to inspect the queue
+            workerExecutor = null;
+        } else {
+            ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("Glowroot-Trace-Storage-%d").build();
+            workerExecutor = Executors.newFixedThreadPool(workerCount, threadFactory);
+            for (int i = 0; i < workerCount; i++) {
+                workerExecutor.execute(new Worker());
+            }
+        }
+    }
+
+    Collection<Transaction> getPendingTransactions() {
+        return pendingTransactions;
+    }
+
+    // this needs to be called inside the transaction thread
+    boolean add(Transaction transaction, long captureTime, boolean slow, boolean error) {
+        int priority;
+        if (transaction.isPartiallyStored()) {
+            priority = PRIORITY_PARTIALLY_STORED;
+        } else if (error) {
+            priority = PRIORITY_ERROR;
+        } else {
+            priority = PRIORITY_SLOW;
+        }
+        if (!reserve(priority)) {
+            if (priority == PRIORITY_PARTIALLY_STORED) {
+                droppedPartiallyStoredCount.incrementAndGet();
+            } else if (priority == PRIORITY_ERROR) {
+                droppedErrorCount.incrementAndGet();
+            } else {
+                droppedSlowCount.incrementAndGet();
+            }
+            logDroppedWarning();
+            return false;
+        }
+        // this is only called once the trace has been admitted, so that dropped transactions are
+        // not completed for trace storage
+        transaction.onCompleteWillStoreTrace(captureTime);
+        pendingTransactions.add(transaction);
+        // cannot fail since a permit was reserved above and there are never more queued traces
+        // than permits held
+        queue.add(ImmutablePendingTrace.of(transaction, slow, priority));
+        return true;
+    }
+
+    @Override
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    @Override
+    public long getStoredCount() {
+        return storedCount.get();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    @Override
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    @Override
+    public long getDroppedSlowCount() {
+        return droppedSlowCount.get();
+    }
+
+    @Override
+    public long getDroppedErrorCount() {
+        return droppedErrorCount.get();
+    }
+
+    @Override
+    public long getDroppedPartiallyStoredCount() {
+        return droppedPartiallyStoredCount.get();
+    }
+
+    @Override
+    public long getEvictedCount() {
+        return evictedCount.get();
+    }
+
+    @OnlyUsedByTests
+    void close() throws InterruptedException {
+        if (workerExecutor != null) {
+            workerExecutor.shutdownNow();
+            if (!workerExecutor.awaitTermination(10, SECONDS)) {
+                throw new IllegalStateException("Could not terminate trace storage executor");
+            }
+        }
+    }
+
+    private boolean reserve(int priority) {
+        if (permits.tryAcquire()) {
+            // common case
+            return true;
+        }
+        synchronized (evictionLock) {
+            return permits.tryAcquire() || evictLowerPriority(priority);
+        }
+    }
+
+    // evicts the oldest queued trace with the lowest priority, as long as its priority is lower
+    // than the given priority, and hands its permit over to the caller
+    @GuardedBy("evictionLock")
+    private boolean evictLowerPriority(int priority) {
+        for (int lowerPriority = PRIORITY_SLOW; lowerPriority < priority; lowerPriority++) {
+            for (PendingTrace pendingTrace : queue) {
+                // the trace may have been taken by a worker thread in the meantime
+                if (pendingTrace.priority() == lowerPriority && queue.remove(pendingTrace)) {
+                    pendingTransactions.remove(pendingTrace.transaction());
+                    evictedCount.incrementAndGet();
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void store(List<PendingTrace> batch) {
+        List<Trace> traces = Lists.newArrayListWithCapacity(batch.size());
+        for (PendingTrace pendingTrace : batch) {
+            try {
+                traces.add(TraceCreator.createCompletedTrace(pendingTrace.transaction(),
+                        pendingTrace.slow()));
+            } catch (Throwable t) {
+                failedCount.incrementAndGet();
+                logger.error(t.getMessage(), t);
+            }
+        }
+        if (traces.isEmpty()) {
+            return;
+        }
+        try {
+            collector.collectTraces(traces);
+            storedCount.addAndGet(traces.size());
+            batchCount.incrementAndGet();
+        } catch (Throwable t) {
+            failedCount.addAndGet(traces.size());
+            logger.error(t.getMessage(), t);
+        }
+    }
+
+    private void logDroppedWarning() {
+        synchronized (warningRateLimiter) {
+            if (warningRateLimiter.tryAcquire(0, MILLISECONDS)) {
+                logger.warn("not storing a trace because of an excessive backlog of {} traces"
+                        + " already waiting to be stored (this warning will appear at most once a"
+                        + " minute, there were {} additional traces not stored since the last"
+                        + " warning)", capacity, countSinceLastWarning);
+                countSinceLastWarning = 0;
+            } else {
+                countSinceLastWarning++;
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        private final List<PendingTrace> batch = Lists.newArrayList();
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    // block for the first trace, then grab whatever else is already waiting
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                try {
+                    store(batch);
+                } finally {
+                    for (PendingTrace pendingTrace : batch) {
+                        pendingTransactions.remove(pendingTrace.transaction());
+                    }
+                    permits.release(batch.size());
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface PendingTrace {
+        Transaction transaction();
+        boolean slow();
+        int priority();
+    }
+}
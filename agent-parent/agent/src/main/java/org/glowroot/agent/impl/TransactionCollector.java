@@ -17,14 +17,8 @@ package org.glowroot.agent.impl;
 
 import java.util.Collection;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.ExecutorService;
-
-import javax.annotation.concurrent.GuardedBy;
 
 import com.google.common.base.Ticker;
-import com.google.common.collect.Sets;
-import com.google.common.util.concurrent.RateLimiter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,6 +26,7 @@ import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.model.TraceCreator;
 import org.glowroot.agent.model.Transaction;
 import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.wire.api.Collector;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
@@ -41,28 +36,29 @@ public class TransactionCollector {
 
     private static final Logger logger = LoggerFactory.getLogger(TransactionCollector.class);
 
-    private static final int PENDING_LIMIT = 100;
+    // max number of completed traces waiting to be stored
+    private static final int PENDING_LIMIT =
+            Integer.getInteger("glowroot.internal.traceStorage.capacity", 100);
+
+    private static final int WORKER_COUNT =
+            Integer.getInteger("glowroot.internal.traceStorage.threads", 1);
 
-    private final ExecutorService executor;
     private final ConfigService configService;
     private final Collector collector;
     private final Aggregator aggregator;
     private final Clock clock;
     private final Ticker ticker;
-    private final Set<Transaction> pendingTransactions = Sets.newCopyOnWriteArraySet();
-
-    private final RateLimiter warningRateLimiter = RateLimiter.create(1.0 / 60);
-    @GuardedBy("warningRateLimiter")
-    private int countSinceLastWarning;
+    private final TraceStoragePipeline traceStoragePipeline;
 
-    public TransactionCollector(ExecutorService executor, ConfigService configService,
-            Collector collector, Aggregator aggregator, Clock clock, Ticker ticker) {
-        this.executor = executor;
+    public TransactionCollector(ConfigService configService, Collector collector,
+            Aggregator aggregator, Clock clock, Ticker ticker) {
         this.configService = configService;
         this.collector = collector;
         this.aggregator = aggregator;
         this.clock = clock;
         this.ticker = ticker;
+        traceStoragePipeline = new TraceStoragePipeline(collector, Math.max(1, PENDING_LIMIT),
+                Math.max(1, WORKER_COUNT));
     }
 
     public boolean shouldStoreSlow(Transaction transaction) {
@@ -87,45 +83,26 @@ public class TransactionCollector {
     }
 
     public Collection<Transaction> getPendingTransactions() {
-        return pendingTransactions;
+        return traceStoragePipeline.getPendingTransactions();
+    }
+
+    public TraceStoragePipelineMXBean getTraceStoragePipelineStats() {
+        return traceStoragePipeline;
     }
 
-    void onCompletedTransaction(final Transaction transaction) {
+    void onCompletedTransaction(Transaction transaction) {
         // capture time is calculated by the aggregator because it depends on monotonically
         // increasing capture times so it can flush aggregates without concern for new data
         // arriving with a prior capture time
         long captureTime = aggregator.add(transaction);
-        final boolean slow = shouldStoreSlow(transaction);
-        if (!slow && !shouldStoreError(transaction)) {
+        boolean slow = shouldStoreSlow(transaction);
+        boolean error = shouldStoreError(transaction);
+        if (!slow && !error) {
             return;
         }
-        // limit doesn't apply to transactions that were already (partially) stored to make sure
-        // they don't get left out in case they cause an avalanche of slowness
-        if (pendingTransactions.size() >= PENDING_LIMIT && !transaction.isPartiallyStored()) {
-            logPendingLimitWarning();
-            return;
-        }
-        pendingTransactions.add(transaction);
-
-        // this need to be called inside the transaction thread
-        transaction.onCompleteWillStoreTrace(captureTime);
-
-        Runnable command = new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    Trace trace = TraceCreator.createCompletedTrace(transaction, slow);
-                    collector.collectTrace(trace);
-                } catch (Throwable t) {
-                    logger.error(t.getMessage(), t);
-                } finally {
-                    pendingTransactions.remove(transaction);
-                }
-            }
-        };
-        // transaction is ended, so Executor Plugin won't tie this async work to the transaction
-        // (which is good)
-        executor.execute(command);
+        // when the pipeline is full, error traces (and transactions that were already partially
+        // stored) are kept at the expense of slow traces
+        traceStoragePipeline.add(transaction, captureTime, slow, error);
     }
 
     // no need to throttle partial trace storage since throttling is handled upstream by using a
@@ -144,18 +121,9 @@ public class TransactionCollector {
         }
     }
 
-    private void logPendingLimitWarning() {
-        synchronized (warningRateLimiter) {
-            if (warningRateLimiter.tryAcquire(0, MILLISECONDS)) {
-                logger.warn("not storing a trace because of an excessive backlog of {} traces"
-                        + " already waiting to be stored (this warning will appear at most once a"
-                        + " minute, there were {} additional traces not stored since the last"
-                        + " warning)", PENDING_LIMIT, countSinceLastWarning);
-                countSinceLastWarning = 0;
-            } else {
-                countSinceLastWarning++;
-            }
-        }
+    @OnlyUsedByTests
+    public void close() throws InterruptedException {
+        traceStoragePipeline.close();
     }
 
     static boolean containsIgnoreCase(List<String> list, String test) {
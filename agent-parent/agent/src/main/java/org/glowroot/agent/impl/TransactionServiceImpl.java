@@ -75,6 +75,7 @@ public class TransactionServiceImpl implements AdvancedService, ConfigListener {
     private boolean captureThreadStats;
     private int maxAggregateQueriesPerQueryType;
     private int maxTraceEntriesPerTransaction;
+    private boolean normalizeQueryLiterals;
 
     public static TransactionServiceImpl create(TransactionRegistry transactionRegistry,
             TransactionCollector transactionCollector, ConfigService configService,
@@ -140,8 +141,9 @@ public class TransactionServiceImpl implements AdvancedService, ConfigListener {
         Transaction transaction = new Transaction(clock.currentTimeMillis(), startTick,
                 transactionType, transactionName, messageSupplier, timerName, captureThreadStats,
                 maxTraceEntriesPerTransaction, maxAggregateQueriesPerQueryType,
-                threadAllocatedBytes, transactionCompletionCallback, ticker, transactionRegistry,
-                this, configService, userProfileScheduler, threadContextHolder);
+                normalizeQueryLiterals, threadAllocatedBytes, transactionCompletionCallback, ticker,
+                transactionRegistry, this, configService, userProfileScheduler,
+                threadContextHolder);
         if (transactionType.equals("Startup")) {
             transaction.setSlowThresholdMillis(0, OverrideSource.STARTUP);
         }
@@ -154,7 +156,6 @@ public class TransactionServiceImpl implements AdvancedService, ConfigListener {
             TraceEntryImpl parentTraceEntry,
             Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder) {
         long startTick = ticker.read();
-        // FIXME implement limit on auxiliary thread context creation for a given transaction
         TimerName auxThreadTimerName = timerNameCache.getAuxThreadTimerName();
         return transaction.startAuxThreadContext(parentTraceEntry, auxThreadTimerName,
                 startTick, threadContextHolder, threadAllocatedBytes);
@@ -164,7 +165,7 @@ public class TransactionServiceImpl implements AdvancedService, ConfigListener {
             MessageSupplier messageSupplier, @Nullable String queryType, @Nullable String queryText,
             long queryExecutionCount, TimerName timerName) {
         long startTick = ticker.read();
-        if (threadContext.getTransaction().allowAnotherEntry()) {
+        if (threadContext.allowAnotherEntry()) {
             TimerImpl timer = startTimer(timerName, startTick, threadContext);
             return threadContext.pushEntry(startTick, messageSupplier, queryType, queryText,
                     queryExecutionCount, timer);
@@ -204,6 +205,7 @@ public class TransactionServiceImpl implements AdvancedService, ConfigListener {
         captureThreadStats = configService.getTransactionConfig().captureThreadStats();
         maxAggregateQueriesPerQueryType = advancedConfig.maxAggregateQueriesPerQueryType();
         maxTraceEntriesPerTransaction = advancedConfig.maxTraceEntriesPerTransaction();
+        normalizeQueryLiterals = advancedConfig.normalizeQueryLiterals();
     }
 
     private class TransactionCompletionCallback implements CompletionCallback {
@@ -279,7 +281,7 @@ public class TransactionServiceImpl implements AdvancedService, ConfigListener {
         private void endWithErrorInternal(ErrorMessage errorMessage) {
             long endTick = ticker.read();
             endInternal(endTick);
-            if (threadContext.getTransaction().allowAnotherErrorEntry()) {
+            if (threadContext.allowAnotherErrorEntry()) {
                 // entry won't be nested properly, but at least the error will get captured
                 org.glowroot.agent.model.TraceEntryImpl entry =
                         threadContext.addErrorEntry(startTick, endTick, messageSupplier,
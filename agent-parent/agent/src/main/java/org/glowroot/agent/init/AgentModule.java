@@ -27,6 +27,9 @@ import java.util.concurrent.ThreadFactory;
 import java.util.jar.JarFile;
 
 import javax.annotation.Nullable;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Ticker;
@@ -45,6 +48,7 @@ import org.glowroot.agent.impl.GlowrootServiceImpl;
 import org.glowroot.agent.impl.ServiceRegistryImpl;
 import org.glowroot.agent.impl.ServiceRegistryImpl.ConfigServiceFactory;
 import org.glowroot.agent.impl.TimerNameCache;
+import org.glowroot.agent.impl.TraceStoragePipelineMXBean;
 import org.glowroot.agent.impl.TransactionCollector;
 import org.glowroot.agent.impl.TransactionRegistry;
 import org.glowroot.agent.impl.TransactionServiceImpl;
@@ -54,13 +58,17 @@ import org.glowroot.agent.live.LiveJvmServiceImpl;
 import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
 import org.glowroot.agent.util.LazyPlatformMBeanServer;
+import org.glowroot.agent.util.LazyPlatformMBeanServer.InitListener;
 import org.glowroot.agent.util.OptionalService;
+import org.glowroot.agent.util.StartupTimeline;
 import org.glowroot.agent.util.ThreadAllocatedBytes;
 import org.glowroot.agent.util.Tickers;
 import org.glowroot.agent.weaving.AnalyzedWorld;
+import org.glowroot.agent.weaving.AnalyzedWorldSnapshot;
 import org.glowroot.agent.weaving.ExtraBootResourceFinder;
 import org.glowroot.agent.weaving.IsolatedWeavingClassLoader;
 import org.glowroot.agent.weaving.WeaverImpl;
+import org.glowroot.agent.weaving.WeavingCache;
 import org.glowroot.agent.weaving.WeavingClassFileTransformer;
 import org.glowroot.agent.weaving.WeavingTimerService;
 import org.glowroot.common.config.PluginDescriptor;
@@ -69,6 +77,7 @@ import org.glowroot.common.live.LiveTraceRepository;
 import org.glowroot.common.live.LiveWeavingService;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.common.util.ScheduledRunnable;
 import org.glowroot.wire.api.Collector;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -86,6 +95,24 @@ public class AgentModule {
     private static final long ROLLUP_0_INTERVAL_MILLIS =
             Long.getLong("glowroot.internal.rollup.0.intervalMillis", 60 * 1000);
 
+    // persists weaving results across jvm restarts to reduce startup time (see WeavingCache)
+    private static final boolean WEAVING_CACHE_ENABLED =
+            Boolean.getBoolean("glowroot.weaving.cache");
+
+    // persists the analyzed super classes from jar files across jvm restarts to reduce the time
+    // spent reading super classes while weaving (see AnalyzedWorldSnapshot)
+    private static final boolean ANALYZED_WORLD_SNAPSHOT_ENABLED =
+            Boolean.getBoolean("glowroot.weaving.snapshot");
+
+    private static final long ANALYZED_WORLD_SNAPSHOT_INTERVAL_MILLIS =
+            Long.getLong("glowroot.internal.weaving.snapshot.intervalMillis", 60 * 1000);
+
+    // only loads plugin aspects once a class that they target is seen, so that startup time and
+    // heap are not spent on plugins for libraries that the application does not use (see
+    // AdviceCache.LazyAspects)
+    private static final boolean LAZY_ASPECTS_ENABLED =
+            Boolean.getBoolean("glowroot.weaving.lazyAspects");
+
     private final PluginCache pluginCache;
     private final ConfigService configService;
     private final AnalyzedWorld analyzedWorld;
@@ -110,30 +137,62 @@ public class AgentModule {
 
     private final LazyPlatformMBeanServer lazyPlatformMBeanServer;
 
+    private final StartupTimeline startupTimeline;
+
+    private volatile boolean unregisterMBeans;
+
     // accepts @Nullable Ticker to deal with shading issues when called from GlowrootModule
     public AgentModule(Clock clock, @Nullable Ticker nullableTicker, final PluginCache pluginCache,
             final ConfigService configService, Collector collector,
-            @Nullable Instrumentation instrumentation, File baseDir) throws Exception {
+            @Nullable Instrumentation instrumentation, File baseDir,
+            StartupTimeline startupTimeline) throws Exception {
 
         Ticker ticker = nullableTicker == null ? Tickers.getTicker() : nullableTicker;
         this.pluginCache = pluginCache;
         this.configService = configService;
+        this.startupTimeline = startupTimeline;
         transactionRegistry = new TransactionRegistry();
 
         ExtraBootResourceFinder extraBootResourceFinder =
                 createExtraBootResourceFinder(instrumentation, pluginCache.pluginJars());
 
+        boolean lazyAspects = LAZY_ASPECTS_ENABLED;
+        if (lazyAspects && (WEAVING_CACHE_ENABLED || ANALYZED_WORLD_SNAPSHOT_ENABLED)) {
+            // the weaving cache and analyzed world snapshot are keyed by the fingerprint of the
+            // full advice set, which changes on each lazy aspect activation, and the directories
+            // for all but the initial advice set are then deleted on the next jvm startup
+            startupLogger.warn("glowroot.weaving.lazyAspects is ignored since it cannot be"
+                    + " combined with glowroot.weaving.cache or glowroot.weaving.snapshot");
+            lazyAspects = false;
+        }
+        StartupTimeline.Span span = startupTimeline.startSpan("Advice cache");
         adviceCache = new AdviceCache(pluginCache.pluginDescriptors(), pluginCache.pluginJars(),
-                configService.getInstrumentationConfigs(), instrumentation, baseDir);
+                configService.getInstrumentationConfigs(), instrumentation, baseDir,
+                lazyAspects, startupTimeline);
+        span = span.next("Weaver");
+        AnalyzedWorldSnapshot analyzedWorldSnapshot = null;
+        if (ANALYZED_WORLD_SNAPSHOT_ENABLED) {
+            analyzedWorldSnapshot = new AnalyzedWorldSnapshot(
+                    new File(baseDir, "analyzed-world"), adviceCache.getAdvisorsSupplier(),
+                    adviceCache.getShimTypes(), adviceCache.getMixinTypes());
+        }
         analyzedWorld = new AnalyzedWorld(adviceCache.getAdvisorsSupplier(),
-                adviceCache.getShimTypes(), adviceCache.getMixinTypes(), extraBootResourceFinder);
+                adviceCache.getShimTypes(), adviceCache.getMixinTypes(),
+                extraBootResourceFinder, analyzedWorldSnapshot, adviceCache.getLazyAdvisors());
         final TimerNameCache timerNameCache = new TimerNameCache();
         weavingTimerService =
                 new WeavingTimerServiceImpl(transactionRegistry, configService, timerNameCache);
 
+        WeavingCache weavingCache = null;
+        if (WEAVING_CACHE_ENABLED) {
+            weavingCache = new WeavingCache(new File(baseDir, "weaving-cache"),
+                    adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
+                    adviceCache.getMixinTypes());
+        }
         WeaverImpl weaver = new WeaverImpl(adviceCache.getAdvisorsSupplier(),
                 adviceCache.getShimTypes(), adviceCache.getMixinTypes(), analyzedWorld,
-                weavingTimerService);
+                weavingTimerService, weavingCache, startupTimeline);
+        span.end();
 
         if (instrumentation == null) {
             // instrumentation is null when debugging with LocalContainer
@@ -143,6 +202,7 @@ public class AgentModule {
             isolatedWeavingClassLoader.setWeaver(weaver);
             jvmRetransformClassesSupported = false;
         } else {
+            span = startupTimeline.startSpan("Class file transformer");
             ClassFileTransformer transformer = new WeavingClassFileTransformer(weaver);
             if (instrumentation.isRetransformClassesSupported()) {
                 instrumentation.addTransformer(transformer, true);
@@ -151,16 +211,21 @@ public class AgentModule {
                 instrumentation.addTransformer(transformer);
                 jvmRetransformClassesSupported = false;
             }
+            span.end();
         }
 
+        span = startupTimeline.startSpan("Transaction services");
         ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true)
                 .setNameFormat("Glowroot-Background-%d").build();
         scheduledExecutor = Executors.newScheduledThreadPool(2, threadFactory);
+        if (analyzedWorldSnapshot != null) {
+            scheduleAnalyzedWorldSnapshot(scheduledExecutor, analyzedWorldSnapshot);
+        }
 
         aggregator = new Aggregator(scheduledExecutor, collector, configService,
                 ROLLUP_0_INTERVAL_MILLIS, clock);
-        transactionCollector = new TransactionCollector(scheduledExecutor, configService, collector,
-                aggregator, clock, ticker);
+        transactionCollector =
+                new TransactionCollector(configService, collector, aggregator, clock, ticker);
 
         OptionalService<ThreadAllocatedBytes> threadAllocatedBytes = ThreadAllocatedBytes.create();
 
@@ -182,8 +247,26 @@ public class AgentModule {
         };
         ServiceRegistryImpl.init(glowrootService, timerNameCache, transactionService,
                 configServiceFactory);
-
+        span = span.next("Collectors");
         lazyPlatformMBeanServer = new LazyPlatformMBeanServer();
+        final TraceStoragePipelineMXBean traceStoragePipelineStats =
+                transactionCollector.getTraceStoragePipelineStats();
+        lazyPlatformMBeanServer.addInitListener(new InitListener() {
+            @Override
+            public void postInit(MBeanServer mbeanServer) throws Exception {
+                try {
+                    mbeanServer.registerMBean(traceStoragePipelineStats,
+                            new ObjectName("org.glowroot:type=TraceStoragePipeline"));
+                    unregisterMBeans = true;
+                } catch (InstanceAlreadyExistsException e) {
+                    // this happens during unit tests when a non-shared local container is used
+                    // (so that then there are two local containers in the same jvm)
+                    //
+                    // log exception at debug level
+                    logger.debug(e.getMessage(), e);
+                }
+            }
+        });
         gaugeCollector = new GaugeCollector(configService, collector, lazyPlatformMBeanServer,
                 clock, ticker);
         // using fixed rate to keep gauge collections close to on the second mark
@@ -200,14 +283,15 @@ public class AgentModule {
         immedateTraceStoreWatcher.scheduleWithFixedDelay(scheduledExecutor, 0,
                 ImmediateTraceStoreWatcher.PERIOD_MILLIS, MILLISECONDS);
 
-        liveTraceRepository = new LiveTraceRepositoryImpl(transactionRegistry, transactionCollector,
-                clock, ticker);
+        liveTraceRepository = new LiveTraceRepositoryImpl(transactionRegistry,
+                transactionCollector, clock, ticker);
         liveWeavingService = new LiveWeavingServiceImpl(analyzedWorld, instrumentation,
                 configService, adviceCache, jvmRetransformClassesSupported);
         liveJvmService = new LiveJvmServiceImpl(lazyPlatformMBeanServer, transactionRegistry,
                 transactionCollector, threadAllocatedBytes.getAvailability());
-
+        span = span.next("Plugin initialization");
         initPlugins(pluginCache.pluginDescriptors());
+        span.end();
 
         List<PluginDescriptor> pluginDescriptors = pluginCache.pluginDescriptors();
         List<String> pluginNames = Lists.newArrayList();
@@ -243,6 +327,10 @@ public class AgentModule {
         return liveJvmService;
     }
 
+    public StartupTimeline getStartupTimeline() {
+        return startupTimeline;
+    }
+
     public WeavingTimerService getWeavingTimerService() {
         return weavingTimerService;
     }
@@ -255,6 +343,20 @@ public class AgentModule {
         return scheduledExecutor;
     }
 
+    private static void scheduleAnalyzedWorldSnapshot(ScheduledExecutorService scheduledExecutor,
+            final AnalyzedWorldSnapshot analyzedWorldSnapshot) {
+        // most super class lookups happen during application startup, so writing periodically
+        // (only jar files with newly analyzed classes are written) captures them without
+        // depending on a clean jvm shutdown
+        new ScheduledRunnable() {
+            @Override
+            protected void runInternal() {
+                analyzedWorldSnapshot.write();
+            }
+        }.scheduleWithFixedDelay(scheduledExecutor, ANALYZED_WORLD_SNAPSHOT_INTERVAL_MILLIS,
+                ANALYZED_WORLD_SNAPSHOT_INTERVAL_MILLIS, MILLISECONDS);
+    }
+
     private static @Nullable ExtraBootResourceFinder createExtraBootResourceFinder(
             @Nullable Instrumentation instrumentation, List<File> pluginJars) throws IOException {
         if (instrumentation == null) {
@@ -282,9 +384,14 @@ public class AgentModule {
     }
 
     @OnlyUsedByTests
-    public void close() throws InterruptedException {
+    public void close() throws Exception {
+        if (unregisterMBeans) {
+            lazyPlatformMBeanServer
+                    .unregisterMBean(new ObjectName("org.glowroot:type=TraceStoragePipeline"));
+        }
         immedateTraceStoreWatcher.cancel();
         aggregator.close();
+        transactionCollector.close();
         gaugeCollector.close();
         stackTraceCollector.close();
         scheduledExecutor.shutdown();
@@ -69,6 +69,13 @@ public class CollectorProxy implements Collector {
         }
     }
 
+    @Override
+    public void collectTraces(List<Trace> traces) throws Exception {
+        if (instance != null) {
+            instance.collectTraces(traces);
+        }
+    }
+
     @Override
     public void log(LogEvent logEvent) throws Exception {
         if (instance != null) {
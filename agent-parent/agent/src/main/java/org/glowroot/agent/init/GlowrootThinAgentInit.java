@@ -31,6 +31,7 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.agent.central.CentralModule;
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.config.PluginCache;
+import org.glowroot.agent.util.StartupTimeline;
 import org.glowroot.agent.util.Tickers;
 import org.glowroot.agent.weaving.PreInitializeWeavingClasses;
 import org.glowroot.common.util.Clock;
@@ -50,15 +51,21 @@ public class GlowrootThinAgentInit implements GlowrootAgentInit {
             final @Nullable Instrumentation instrumentation, @Nullable File glowrootJarFile,
             final String glowrootVersion, boolean viewerMode) throws Exception {
 
+        Ticker ticker = Tickers.getTicker();
+        StartupTimeline startupTimeline = new StartupTimeline(glowrootVersion, ticker);
         if (instrumentation != null) {
+            StartupTimeline.Span span = startupTimeline.startSpan("Pre-initialize weaving classes");
             PreInitializeWeavingClasses.preInitializeClasses();
+            span.end();
         }
-        Ticker ticker = Tickers.getTicker();
         Clock clock = Clock.systemClock();
 
+        StartupTimeline.Span span = startupTimeline.startSpan("Plugin cache");
         PluginCache pluginCache = PluginCache.create(glowrootJarFile, false);
+        span = span.next("Config service");
         final ConfigService configService =
                 ConfigService.create(baseDir, pluginCache.pluginDescriptors());
+        span.end();
 
         final CollectorProxy collectorProxy = new CollectorProxy();
 
@@ -69,8 +76,10 @@ public class GlowrootThinAgentInit implements GlowrootAgentInit {
         collectorLogbackAppender.start();
         attachAppender(collectorLogbackAppender);
 
+        span = startupTimeline.startSpan("Agent module");
         final AgentModule agentModule = new AgentModule(clock, ticker, pluginCache, configService,
-                collectorProxy, instrumentation, baseDir);
+                collectorProxy, instrumentation, baseDir, startupTimeline);
+        span.end();
 
         NettyWorkaround.run(instrumentation, new Callable</*@Nullable*/ Void>() {
             @Override
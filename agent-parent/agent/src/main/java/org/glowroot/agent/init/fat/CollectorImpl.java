@@ -72,6 +72,13 @@ class CollectorImpl implements Collector {
         traceRepository.collect(SERVER_ID, trace);
     }
 
+    @Override
+    public void collectTraces(List<Trace> traces) throws Exception {
+        for (Trace trace : traces) {
+            traceRepository.collect(SERVER_ID, trace);
+        }
+    }
+
     @Override
     public void log(LogEvent logEvent) {
         // do nothing, already logging locally through ConsoleAppender and RollingFileAppender
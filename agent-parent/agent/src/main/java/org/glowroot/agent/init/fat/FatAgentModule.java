@@ -38,6 +38,7 @@ import org.glowroot.agent.init.AgentModule;
 import org.glowroot.agent.init.CollectorProxy;
 import org.glowroot.agent.init.ProcessInfoCreator;
 import org.glowroot.agent.util.LazyPlatformMBeanServer;
+import org.glowroot.agent.util.StartupTimeline;
 import org.glowroot.common.live.LiveTraceRepository.LiveTraceRepositoryNop;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
@@ -45,6 +46,7 @@ import org.glowroot.storage.repo.ConfigRepository;
 import org.glowroot.storage.simplerepo.PlatformMBeanServerLifecycle;
 import org.glowroot.storage.simplerepo.SimpleRepoModule;
 import org.glowroot.storage.simplerepo.util.DataSource;
+import org.glowroot.storage.simplerepo.util.DataSource.SchemaSyncListener;
 import org.glowroot.ui.CreateUiModuleBuilder;
 import org.glowroot.ui.UiModule;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
@@ -56,6 +58,7 @@ class FatAgentModule {
 
     private final Ticker ticker;
     private final Clock clock;
+    private final StartupTimeline startupTimeline;
     // only null in viewer mode
     private final @Nullable ScheduledExecutorService scheduledExecutor;
     private final SimpleRepoModule simpleRepoModule;
@@ -76,15 +79,17 @@ class FatAgentModule {
             @Nullable Instrumentation instrumentation, @Nullable File glowrootJarFile,
             String glowrootVersion, boolean viewerMode) throws Exception {
 
-        dataDirLockingCloseable = DataDirLocking.lockDataDir(baseDir);
-
         ticker = Ticker.systemTicker();
         clock = Clock.systemClock();
+        startupTimeline = new StartupTimeline(glowrootVersion, ticker);
+
+        dataDirLockingCloseable = DataDirLocking.lockDataDir(baseDir);
 
         // mem db is only used for testing (by glowroot-test-container)
         h2MemDb = Boolean.parseBoolean(properties.get("glowroot.internal.h2.memdb"));
 
         File dataDir = new File(baseDir, "data");
+        StartupTimeline.Span span = startupTimeline.startSpan("Data source");
         DataSource dataSource;
         if (h2MemDb) {
             // mem db is only used for testing (by glowroot-test-container)
@@ -92,6 +97,7 @@ class FatAgentModule {
         } else {
             dataSource = new DataSource(new File(dataDir, "data.h2.db"));
         }
+        span.end();
 
         if (viewerMode) {
             viewerAgentModule = new ViewerAgentModule(baseDir, glowrootJarFile);
@@ -108,22 +114,31 @@ class FatAgentModule {
             // which loads java.sql.DriverManager, which loads 3rd party jdbc drivers found via
             // services/java.sql.Driver, and those drivers need to be woven
             CollectorProxy collectorProxy = new CollectorProxy();
+            span = startupTimeline.startSpan("Plugin cache");
             PluginCache pluginCache = PluginCache.create(glowrootJarFile, false);
+            span = span.next("Config service");
             ConfigService configService =
                     ConfigService.create(baseDir, pluginCache.pluginDescriptors());
-            agentModule = new AgentModule(clock, null, pluginCache, configService, collectorProxy,
-                    instrumentation, baseDir);
-
+            span = span.next("Agent module");
+            agentModule = new AgentModule(clock, null, pluginCache, configService,
+                    collectorProxy, instrumentation, baseDir, startupTimeline);
+            span = span.next("Pre-initialize storage shutdown classes");
             PreInitializeStorageShutdownClasses.preInitializeClasses();
+            span.end();
             ConfigRepository configRepository =
                     ConfigRepositoryImpl.create(baseDir, agentModule.getConfigService());
             ThreadFactory threadFactory = new ThreadFactoryBuilder().setDaemon(true)
                     .setNameFormat("Glowroot-Background-%d").build();
             scheduledExecutor = Executors.newScheduledThreadPool(2, threadFactory);
+            // this includes the database schema upgrade/creation
+            span = startupTimeline.startSpan("Storage");
+            dataSource.setSchemaSyncListener(new SchemaSyncListenerImpl(startupTimeline));
             simpleRepoModule = new SimpleRepoModule(dataSource, dataDir, clock, ticker,
                     configRepository, scheduledExecutor, false);
-            simpleRepoModule.registerMBeans(
-                    new PlatformMBeanServerLifecycleImpl(agentModule.getLazyPlatformMBeanServer()));
+            dataSource.setSchemaSyncListener(null);
+            simpleRepoModule.registerMBeans(new PlatformMBeanServerLifecycleImpl(
+                    agentModule.getLazyPlatformMBeanServer()));
+            span.end();
 
             // now inject the real collector into the proxy
             CollectorImpl collectorImpl =
@@ -146,6 +161,7 @@ class FatAgentModule {
 
     void initEmbeddedServer() throws Exception {
         if (agentModule != null) {
+            StartupTimeline.Span span = startupTimeline.startSpan("UI");
             uiModule = new CreateUiModuleBuilder()
                     .central(false)
                     .ticker(ticker)
@@ -162,11 +178,13 @@ class FatAgentModule {
                     .rollupLevelService(simpleRepoModule.getRollupLevelService())
                     .liveTraceRepository(agentModule.getLiveTraceRepository())
                     .liveWeavingService(agentModule.getLiveWeavingService())
+                    .startupTimelineService(startupTimeline)
                     .bindAddress(bindAddress)
                     .numWorkerThreads(2)
                     .version(version)
                     .pluginDescriptors(agentModule.getPluginDescriptors())
                     .build();
+            span.end();
         } else {
             checkNotNull(viewerAgentModule);
             uiModule = new CreateUiModuleBuilder()
@@ -185,6 +203,7 @@ class FatAgentModule {
                     .rollupLevelService(simpleRepoModule.getRollupLevelService())
                     .liveTraceRepository(new LiveTraceRepositoryNop())
                     .liveWeavingService(null)
+                    .startupTimelineService(null)
                     .bindAddress(bindAddress)
                     .numWorkerThreads(10)
                     .version(version)
@@ -266,4 +285,28 @@ class FatAgentModule {
                     });
         }
     }
+
+    private static class SchemaSyncListenerImpl implements SchemaSyncListener {
+
+        private final StartupTimeline startupTimeline;
+
+        private @Nullable StartupTimeline.Span span;
+
+        private SchemaSyncListenerImpl(StartupTimeline startupTimeline) {
+            this.startupTimeline = startupTimeline;
+        }
+
+        @Override
+        public void onSyncStart(String description) {
+            span = startupTimeline.startSpan(description);
+        }
+
+        @Override
+        public void onSyncEnd() {
+            if (span != null) {
+                span.end();
+                span = null;
+            }
+        }
+    }
 }
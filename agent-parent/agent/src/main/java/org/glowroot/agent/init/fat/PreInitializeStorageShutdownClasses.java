@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2015 the original author or authors.
+ * Copyright 2012-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -63,18 +63,30 @@ class PreInitializeStorageShutdownClasses {
     @VisibleForTesting
     static List<String> usedTypes() {
         List<String> types = Lists.newArrayList();
+        types.addAll(getGuavaUsedTypes());
         types.addAll(getGlowrootUsedTypes());
         types.addAll(getH2UsedTypes());
         return types;
     }
 
+    private static List<String> getGuavaUsedTypes() {
+        List<String> types = Lists.newArrayList();
+        types.add("com.google.common.base.Function");
+        types.add("com.google.common.cache.Cache");
+        types.add("com.google.common.cache.LoadingCache");
+        return types;
+    }
+
     private static List<String> getGlowrootUsedTypes() {
         List<String> types = Lists.newArrayList();
         types.add("org.glowroot.storage.simplerepo.util.CappedDatabase");
         types.add("org.glowroot.storage.simplerepo.util.CappedDatabase$ShutdownHookThread");
         types.add("org.glowroot.storage.simplerepo.util.CappedDatabaseOutputStream");
+        types.add("org.glowroot.storage.simplerepo.util.CappedDatabaseOutputStream$MappedRegion");
         types.add("org.glowroot.storage.simplerepo.util.DataSource");
+        types.add("org.glowroot.storage.simplerepo.util.DataSource$CachedConnection");
         types.add("org.glowroot.storage.simplerepo.util.DataSource$ShutdownHookThread");
+        types.add("org.glowroot.storage.simplerepo.util.MemoryFences");
         return types;
     }
 
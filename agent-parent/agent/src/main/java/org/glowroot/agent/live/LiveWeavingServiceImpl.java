@@ -17,6 +17,7 @@ package org.glowroot.agent.live;
 
 import java.lang.instrument.Instrumentation;
 import java.lang.reflect.Modifier;
+import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
@@ -25,6 +26,7 @@ import javax.annotation.Nullable;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
@@ -35,18 +37,22 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.config.ConfigService;
 import org.glowroot.agent.impl.AdviceCache;
 import org.glowroot.agent.live.ClasspathCache.UiAnalyzedMethod;
+import org.glowroot.agent.weaving.Advice;
+import org.glowroot.agent.weaving.AffectedClassFinder;
 import org.glowroot.agent.weaving.AnalyzedWorld;
-import org.glowroot.common.config.InstrumentationConfig;
 import org.glowroot.common.live.ImmutableGlobalMeta;
 import org.glowroot.common.live.ImmutableMethodSignature;
 import org.glowroot.common.live.LiveWeavingService;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.objectweb.asm.Opcodes.ACC_FINAL;
 import static org.objectweb.asm.Opcodes.ACC_SYNCHRONIZED;
 
@@ -55,6 +61,11 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
     private static final String THE_SINGLE_KEY = "THE_SINGLE_KEY";
     private static final Splitter splitter = Splitter.on(' ').omitEmptyStrings();
 
+    private static final Logger logger = LoggerFactory.getLogger(LiveWeavingServiceImpl.class);
+
+    private static final int RETRANSFORM_BATCH_SIZE =
+            Integer.getInteger("glowroot.internal.reweave.batchSize", 100);
+
     private final AnalyzedWorld analyzedWorld;
     private final @Nullable Instrumentation instrumentation;
     private final ConfigService configService;
@@ -181,31 +192,39 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
 
     @RequiresNonNull("instrumentation")
     private int reweaveInternal() throws Exception {
-        List<InstrumentationConfig> configs = configService.getInstrumentationConfigs();
-        adviceCache.updateAdvisors(configs, false);
-        Set<String> classNames = Sets.newHashSet();
-        for (InstrumentationConfig config : configs) {
-            String className = config.className();
-            if (!className.isEmpty()) {
-                classNames.add(className);
-            }
-        }
-        Set<Class<?>> classes = Sets.newHashSet();
-        List<Class<?>> possibleNewReweavableClasses = getExistingSubClasses(classNames);
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        Set<Advice> priorAdvisors = newIdentitySet(adviceCache.getReweavableAdvisors());
+        adviceCache.updateAdvisors(configService.getInstrumentationConfigs(), false);
+        Set<Advice> currAdvisors = newIdentitySet(adviceCache.getReweavableAdvisors());
+        // advisors for unchanged instrumentation configs are retained by AdviceCache, so only
+        // the classes affected by the advisors that were actually removed or added need to be
+        // re-transformed
+        Set<Advice> removedAdvisors = newIdentitySet(priorAdvisors);
+        removedAdvisors.removeAll(currAdvisors);
+        Set<Advice> addedAdvisors = newIdentitySet(currAdvisors);
+        addedAdvisors.removeAll(priorAdvisors);
         // need to remove these classes from AnalyzedWorld, otherwise if a subclass and its parent
         // class are both in the list and the subclass is re-transformed first, it will use the
         // old cached AnalyzedClass for its parent which will have the old AnalyzedMethod advisors
         List<Class<?>> existingReweavableClasses =
-                analyzedWorld.getClassesWithReweavableAdvice(true);
+                analyzedWorld.getClassesWithAdvice(removedAdvisors, true);
+        List<Class<?>> possibleNewReweavableClasses = Lists.newArrayList();
+        for (Class<?> clazz : new AffectedClassFinder(ImmutableList.copyOf(addedAdvisors))
+                .find(instrumentation.getAllLoadedClasses())) {
+            if (instrumentation.isModifiableClass(clazz)) {
+                possibleNewReweavableClasses.add(clazz);
+            }
+        }
         analyzedWorld.removeClasses(possibleNewReweavableClasses);
+        Set<Class<?>> classes = Sets.newLinkedHashSet();
         classes.addAll(existingReweavableClasses);
         classes.addAll(possibleNewReweavableClasses);
         if (classes.isEmpty()) {
             return 0;
         }
-        instrumentation.retransformClasses(Iterables.toArray(classes, Class.class));
-        List<Class<?>> updatedReweavableClasses =
-                analyzedWorld.getClassesWithReweavableAdvice(false);
+        retransformClassesInBatches(ImmutableList.copyOf(classes), stopwatch);
+        Set<Class<?>> updatedReweavableClasses =
+                newIdentitySet(analyzedWorld.getClassesWithAdvice(addedAdvisors, false));
         // all existing reweavable classes were woven
         int count = existingReweavableClasses.size();
         // now add newly reweavable classes
@@ -215,34 +234,29 @@ public class LiveWeavingServiceImpl implements LiveWeavingService {
                 count++;
             }
         }
+        logger.info("re-transformed {} classes ({} with changed instrumentation) in {} ms",
+                classes.size(), count, stopwatch.elapsed(MILLISECONDS));
         return count;
     }
 
+    // retransformClasses() holds a jvm-wide lock for the whole call, so large reweaves are split
+    // up into batches, which also allows logging progress along the way
     @RequiresNonNull("instrumentation")
-    private List<Class<?>> getExistingSubClasses(Set<String> classNames) {
-        List<Class<?>> classes = Lists.newArrayList();
-        for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
-            if (isSubClassOfOneOf(clazz, classNames)) {
-                classes.add(clazz);
-            }
+    private void retransformClassesInBatches(List<Class<?>> classes, Stopwatch stopwatch)
+            throws Exception {
+        int done = 0;
+        for (List<Class<?>> batch : Lists.partition(classes, RETRANSFORM_BATCH_SIZE)) {
+            instrumentation.retransformClasses(Iterables.toArray(batch, Class.class));
+            done += batch.size();
+            logger.debug("re-transformed {} of {} classes ({} ms)", done, classes.size(),
+                    stopwatch.elapsed(MILLISECONDS));
         }
-        return classes;
     }
 
-    private static boolean isSubClassOfOneOf(Class<?> clazz, Set<String> classNames) {
-        if (classNames.contains(clazz.getName())) {
-            return true;
-        }
-        Class<?> superclass = clazz.getSuperclass();
-        if (superclass != null && isSubClassOfOneOf(superclass, classNames)) {
-            return true;
-        }
-        for (Class<?> iface : clazz.getInterfaces()) {
-            if (isSubClassOfOneOf(iface, classNames)) {
-                return true;
-            }
-        }
-        return false;
+    private static <T> Set<T> newIdentitySet(Collection<T> elements) {
+        Set<T> set = Sets.newIdentityHashSet();
+        set.addAll(elements);
+        return set;
     }
 
     @VisibleForTesting
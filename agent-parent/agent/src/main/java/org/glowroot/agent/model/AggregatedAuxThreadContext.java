@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.glowroot.common.util.NotAvailableAware;
+
+// once a transaction exceeds the auxiliary thread context limit, the data from each additional
+// auxiliary thread context is merged into this single aggregated auxiliary thread context when the
+// auxiliary thread context completes (and the auxiliary thread context itself is then discarded),
+// so that transactions that fan out to very large numbers of tasks (e.g. parallel streams) still
+// capture their auxiliary thread timers, thread stats and queries, but with bounded memory
+//
+// this bounds the memory retained per transaction, not the allocation per task, since each
+// additional auxiliary thread context is still a full thread context while it runs (plugins can
+// start nested timers, trace entries and queries, and create further auxiliary thread contexts
+// from it), it is just discarded once merged here
+//
+// merges are performed by the auxiliary threads as they complete, while reads can be performed at
+// any time by other threads (e.g. partial traces and active traces displayed in the UI), so all
+// access is synchronized, and reads return copies
+class AggregatedAuxThreadContext {
+
+    @GuardedBy("this")
+    private @Nullable MutableTimer rootTimer;
+
+    @GuardedBy("this")
+    private long totalCpuNanos;
+    @GuardedBy("this")
+    private long totalBlockedMillis;
+    @GuardedBy("this")
+    private long totalWaitedMillis;
+    @GuardedBy("this")
+    private long totalAllocatedBytes;
+
+    // key is query type, then query text
+    @GuardedBy("this")
+    private final Map<String, Map<String, QueryData>> queries = Maps.newHashMap();
+    @GuardedBy("this")
+    private final List<QueryData> orderedQueries = Lists.newArrayList();
+
+    synchronized void merge(ThreadContextImpl auxThreadContext) {
+        TimerImpl auxRootTimer = auxThreadContext.getRootTimer();
+        if (rootTimer == null) {
+            rootTimer =
+                    MutableTimer.createRootTimer(auxRootTimer.getName(), auxRootTimer.isExtended());
+        }
+        rootTimer.merge(auxRootTimer);
+        ThreadStats threadStats = auxThreadContext.getThreadStats();
+        totalCpuNanos = NotAvailableAware.add(totalCpuNanos, threadStats.getTotalCpuNanos());
+        totalBlockedMillis =
+                NotAvailableAware.add(totalBlockedMillis, threadStats.getTotalBlockedMillis());
+        totalWaitedMillis =
+                NotAvailableAware.add(totalWaitedMillis, threadStats.getTotalWaitedMillis());
+        totalAllocatedBytes =
+                NotAvailableAware.add(totalAllocatedBytes, threadStats.getTotalAllocatedBytes());
+        Iterator<QueryData> i = auxThreadContext.getQueries();
+        while (i.hasNext()) {
+            QueryData queryData = i.next();
+            Map<String, QueryData> queriesForQueryType = queries.get(queryData.getQueryType());
+            if (queriesForQueryType == null) {
+                queriesForQueryType = Maps.newHashMap();
+                queries.put(queryData.getQueryType(), queriesForQueryType);
+            }
+            QueryData aggregatedQueryData = queriesForQueryType.get(queryData.getQueryText());
+            if (aggregatedQueryData == null) {
+                aggregatedQueryData =
+                        new QueryData(queryData.getQueryType(), queryData.getQueryText(), null);
+                queriesForQueryType.put(queryData.getQueryText(), aggregatedQueryData);
+                orderedQueries.add(aggregatedQueryData);
+            }
+            aggregatedQueryData.merge(queryData);
+        }
+    }
+
+    synchronized @Nullable CommonTimerImpl getRootTimer() {
+        if (rootTimer == null) {
+            return null;
+        }
+        MutableTimer copy =
+                MutableTimer.createRootTimer(rootTimer.getName(), rootTimer.isExtended());
+        copy.merge(rootTimer);
+        return copy;
+    }
+
+    synchronized ThreadStats getThreadStats() {
+        return new ThreadStats(totalCpuNanos, totalBlockedMillis, totalWaitedMillis,
+                totalAllocatedBytes);
+    }
+
+    synchronized List<QueryData> getQueries() {
+        List<QueryData> copies = Lists.newArrayListWithCapacity(orderedQueries.size());
+        for (QueryData queryData : orderedQueries) {
+            QueryData copy = new QueryData(queryData.getQueryType(), queryData.getQueryText(),
+                    null);
+            copy.merge(queryData);
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    // queries that have already been merged here do not need to count again against the aggregate
+    // query limit, otherwise each aggregated auxiliary thread context running the same query would
+    // count separately against the limit
+    synchronized boolean containsQuery(String queryType, String queryText) {
+        Map<String, QueryData> queriesForQueryType = queries.get(queryType);
+        return queriesForQueryType != null && queriesForQueryType.containsKey(queryText);
+    }
+}
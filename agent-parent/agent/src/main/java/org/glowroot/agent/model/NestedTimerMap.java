@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2015 the original author or authors.
+ * Copyright 2014-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -18,55 +18,80 @@ package org.glowroot.agent.model;
 import javax.annotation.Nullable;
 
 // micro-optimized map for nested timers
-// TODO get rid of Entry objects, e.g. gs collection's UnifiedMap
+//
+// this is an open addressing hash table (linear probing) with keys and values stored in parallel
+// arrays, so put() does not allocate (other than when resizing)
+//
+// there is no need to support removal since nested timers live for the life of their parent timer
 class NestedTimerMap {
 
+    // most timers have only a few nested timers, so start small to reduce memory in the typical
+    // case, and resize to avoid long probe sequences in the atypical case of lots of entries
+    private static final int INITIAL_CAPACITY = 4;
+
     // table length must always be a power of 2, see comment in get()
-    //
-    // TODO reduce initial capacity (to reduce memory in typical case of few entries) and add
-    // resizing (to avoid collisions in atypical case of lots of entries)
-    private final @Nullable Entry[] table = new Entry[16];
+    private @Nullable TimerNameImpl[] timerNames = new TimerNameImpl[INITIAL_CAPACITY];
+    private @Nullable TimerImpl[] timers = new TimerImpl[INITIAL_CAPACITY];
+
+    private int size;
 
     @Nullable
     TimerImpl get(TimerNameImpl timerName) {
         // this mask requires table length to be a power of 2
-        int bucket = timerName.specialHashCode() & (table.length - 1);
-        Entry entry = table[bucket];
+        int mask = timerNames.length - 1;
+        int bucket = timerName.specialHashCode() & mask;
         while (true) {
-            if (entry == null) {
-                return null;
+            TimerNameImpl currTimerName = timerNames[bucket];
+            if (currTimerName == timerName) {
+                return timers[bucket];
             }
-            if (entry.timerName == timerName) {
-                return entry.timer;
+            if (currTimerName == null) {
+                return null;
             }
-            entry = entry.nextEntry;
+            bucket = (bucket + 1) & mask;
         }
     }
 
     void put(TimerNameImpl timerName, TimerImpl timer) {
-        Entry newEntry = new Entry(timerName, timer);
-        int bucket = timerName.specialHashCode() & (table.length - 1);
-        Entry entry = table[bucket];
-        if (entry == null) {
-            table[bucket] = newEntry;
-            return;
+        // keep load factor at or below 0.5 so that probe sequences stay short
+        if ((size + 1) * 2 > timerNames.length) {
+            resize(timerNames.length * 2);
         }
-        Entry nextEntry;
-        while ((nextEntry = entry.nextEntry) != null) {
-            entry = nextEntry;
+        if (putInternal(timerNames, timers, timerName, timer)) {
+            size++;
         }
-        entry.nextEntry = newEntry;
     }
 
-    private static class Entry {
-
-        private final TimerNameImpl timerName;
-        private final TimerImpl timer;
-        private @Nullable Entry nextEntry;
+    private void resize(int newCapacity) {
+        TimerNameImpl[] newTimerNames = new TimerNameImpl[newCapacity];
+        TimerImpl[] newTimers = new TimerImpl[newCapacity];
+        for (int i = 0; i < timerNames.length; i++) {
+            TimerNameImpl timerName = timerNames[i];
+            if (timerName != null) {
+                putInternal(newTimerNames, newTimers, timerName, timers[i]);
+            }
+        }
+        timerNames = newTimerNames;
+        timers = newTimers;
+    }
 
-        private Entry(TimerNameImpl timerName, TimerImpl timer) {
-            this.timerName = timerName;
-            this.timer = timer;
+    // returns true if a new entry was added, false if an existing entry was replaced
+    private static boolean putInternal(@Nullable TimerNameImpl[] timerNames,
+            @Nullable TimerImpl[] timers, TimerNameImpl timerName, @Nullable TimerImpl timer) {
+        int mask = timerNames.length - 1;
+        int bucket = timerName.specialHashCode() & mask;
+        while (true) {
+            TimerNameImpl currTimerName = timerNames[bucket];
+            if (currTimerName == null) {
+                timerNames[bucket] = timerName;
+                timers[bucket] = timer;
+                return true;
+            }
+            if (currTimerName == timerName) {
+                timers[bucket] = timer;
+                return false;
+            }
+            bucket = (bucket + 1) & mask;
         }
     }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+import org.glowroot.common.util.QueryTextNormalizer;
+
+// the query texts that are used to aggregate queries (but not the query texts that are captured
+// in trace entries) can optionally be normalized (see AdvancedConfig.normalizeQueryLiterals()),
+// so that sql built with inlined literals does not crowd the useful queries out of
+// maxAggregateQueriesPerQueryType
+//
+// the normalized query texts are cached (bounded, least recently used) by raw query text, since
+// the same (e.g. prepared statement) query texts are typically executed over and over, which also
+// means that all aggregated query data for the same query text share a single normalized string
+// instance
+class NormalizedQueryTexts {
+
+    // very long query texts (e.g. large batched inserts) are left as is to bound the cost of
+    // normalization in the transaction thread
+    private static final int MAX_QUERY_TEXT_LENGTH =
+            Integer.getInteger("glowroot.internal.query.normalizeMaxLength", 10000);
+
+    private static final int CACHE_SIZE =
+            Integer.getInteger("glowroot.internal.query.normalizedCacheSize", 1000);
+
+    private static final LoadingCache<String, String> normalizedQueryTexts =
+            CacheBuilder.newBuilder()
+                    .maximumSize(CACHE_SIZE)
+                    .build(new CacheLoader<String, String>() {
+                        @Override
+                        public String load(String queryText) {
+                            return QueryTextNormalizer.normalize(queryText);
+                        }
+                    });
+
+    private NormalizedQueryTexts() {}
+
+    static String get(String queryType, String queryText) {
+        if (queryText.length() > MAX_QUERY_TEXT_LENGTH || !isSqlOrCql(queryType)) {
+            return queryText;
+        }
+        return normalizedQueryTexts.getUnchecked(queryText);
+    }
+
+    // other query types (from other plugins) are not necessarily sql-like
+    private static boolean isSqlOrCql(String queryType) {
+        return queryType.equals("SQL") || queryType.equals("CQL");
+    }
+}
@@ -119,6 +119,13 @@ public class QueryData {
         }
     }
 
+    // only called after the other query data's auxiliary thread context has completed
+    void merge(QueryData queryData) {
+        totalNanos += queryData.totalNanos;
+        executionCount += queryData.executionCount;
+        totalRows += queryData.totalRows;
+    }
+
     private void endInternal(long endTick) {
         totalNanos += endTick - startTick;
     }
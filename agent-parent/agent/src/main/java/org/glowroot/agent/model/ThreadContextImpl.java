@@ -88,6 +88,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
     private final long threadId;
 
     private final boolean auxiliary;
+    // this is non-null for auxiliary threads that exceed the auxiliary thread context limit, in
+    // which case the data from this thread context is merged into the aggregated auxiliary thread
+    // context upon completion
+    private final @Nullable AggregatedAuxThreadContext aggregatedAuxThreadContext;
 
     private final TransactionRegistry transactionRegistry;
     private final TransactionServiceImpl transactionService;
@@ -100,8 +104,9 @@ public class ThreadContextImpl implements ThreadContextPlus {
     ThreadContextImpl(Transaction transaction, @Nullable TraceEntryImpl parentTraceEntry,
             MessageSupplier messageSupplier, TimerName rootTimerName, long startTick,
             boolean captureThreadStats, @Nullable ThreadAllocatedBytes threadAllocatedBytes,
-            boolean auxiliary, TransactionRegistry transactionRegistry,
-            TransactionServiceImpl transactionService, ConfigService configService, Ticker ticker,
+            boolean auxiliary, @Nullable AggregatedAuxThreadContext aggregatedAuxThreadContext,
+            TransactionRegistry transactionRegistry, TransactionServiceImpl transactionService,
+            ConfigService configService, Ticker ticker,
             Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder) {
         this.transaction = transaction;
         this.parentTraceEntry = parentTraceEntry;
@@ -110,9 +115,10 @@ public class ThreadContextImpl implements ThreadContextPlus {
         traceEntryComponent = new TraceEntryComponent(castInitialized(this), messageSupplier,
                 rootTimer, startTick, ticker);
         threadId = Thread.currentThread().getId();
-        threadStatsComponent =
-                captureThreadStats ? new ThreadStatsComponent(threadAllocatedBytes) : null;
+        threadStatsComponent = captureThreadStats
+                ? new ThreadStatsComponent(threadAllocatedBytes, auxiliary) : null;
         this.auxiliary = auxiliary;
+        this.aggregatedAuxThreadContext = aggregatedAuxThreadContext;
         this.transactionRegistry = transactionRegistry;
         this.transactionService = transactionService;
         this.configService = configService;
@@ -153,6 +159,16 @@ public class ThreadContextImpl implements ThreadContextPlus {
         return threadStatsComponent.getThreadStats();
     }
 
+    // trace entries are never captured for aggregated auxiliary thread contexts (only their timers,
+    // thread stats and queries are retained), so they should not count against the entry limit
+    public boolean allowAnotherEntry() {
+        return aggregatedAuxThreadContext == null && transaction.allowAnotherEntry();
+    }
+
+    public boolean allowAnotherErrorEntry() {
+        return aggregatedAuxThreadContext == null && transaction.allowAnotherErrorEntry();
+    }
+
     public long getThreadId() {
         return threadId;
     }
@@ -219,9 +235,12 @@ public class ThreadContextImpl implements ThreadContextPlus {
     }
 
     // only called by transaction thread
-    public @Nullable QueryData getOrCreateQueryDataIfPossible(String queryType, String queryText) {
+    public @Nullable QueryData getOrCreateQueryDataIfPossible(String queryType,
+            String rawQueryText) {
+        String queryText = transaction.isNormalizeQueryLiterals()
+                ? NormalizedQueryTexts.get(queryType, rawQueryText) : rawQueryText;
         if (headQueryData == null) {
-            if (!transaction.allowAnotherAggregateQuery()) {
+            if (!allowAnotherAggregateQuery(queryType, queryText)) {
                 return null;
             }
             QueryData queryData = new QueryData(queryType, queryText, null);
@@ -238,7 +257,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
             currentQueryTypeQueries = getOrCreateQueriesForQueryType(queryType);
         }
         QueryData queryData = currentQueryTypeQueries.get(queryText);
-        if (queryData == null && transaction.allowAnotherAggregateQuery()) {
+        if (queryData == null && allowAnotherAggregateQuery(queryType, queryText)) {
             queryData = new QueryData(queryType, queryText, headQueryData);
             currentQueryTypeQueries.put(queryText, queryData);
             headQueryData = queryData;
@@ -295,10 +314,21 @@ public class ThreadContextImpl implements ThreadContextPlus {
             if (threadStatsComponent != null) {
                 threadStatsComponent.onComplete();
             }
+            if (aggregatedAuxThreadContext != null) {
+                aggregatedAuxThreadContext.merge(this);
+            }
             threadContextHolder.set(null);
         }
     }
 
+    private boolean allowAnotherAggregateQuery(String queryType, String queryText) {
+        if (aggregatedAuxThreadContext != null
+                && aggregatedAuxThreadContext.containsQuery(queryType, queryText)) {
+            return true;
+        }
+        return transaction.allowAnotherAggregateQuery();
+    }
+
     private Map<String, QueryData> getOrCreateQueriesForQueryType(String queryType) {
         if (allQueryTypesMap == null) {
             allQueryTypesMap = new HashMap<String, Map<String, QueryData>>(2);
@@ -539,7 +569,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
             @Nullable String queryText,
             long queryExecutionCount, TimerName timerName) {
         long startTick = ticker.read();
-        if (transaction.allowAnotherEntry()) {
+        if (allowAnotherEntry()) {
             TimerImpl timer = startTimer(timerName, startTick);
             return pushEntry(startTick, messageSupplier, queryType, queryText, queryExecutionCount,
                     timer);
@@ -553,7 +583,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
             TimerName syncTimerName, TimerName asyncTimerName, @Nullable String queryType,
             @Nullable String queryText, long queryExecutionCount) {
         long startTick = ticker.read();
-        if (transaction.allowAnotherEntry()) {
+        if (allowAnotherEntry()) {
             TimerImpl syncTimer = startTimer(syncTimerName, startTick);
             AsyncTimerImpl asyncTimer = startAsyncTimer(asyncTimerName, startTick);
             return startAsyncEntry(startTick, messageSupplier, syncTimer, asyncTimer, queryType,
@@ -566,7 +596,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
 
     private void addErrorEntryInternal(ErrorMessage errorMessage) {
         // use higher entry limit when adding errors, but still need some kind of cap
-        if (transaction.allowAnotherErrorEntry()) {
+        if (allowAnotherErrorEntry()) {
             long currTick = ticker.read();
             org.glowroot.agent.model.TraceEntryImpl entry =
                     addErrorEntry(currTick, currTick, null, errorMessage);
@@ -680,7 +710,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
         private void endWithErrorInternal(ErrorMessage errorMessage) {
             long endTick = ticker.read();
             endInternal(endTick);
-            if (transaction.allowAnotherErrorEntry()) {
+            if (allowAnotherErrorEntry()) {
                 // entry won't be nested properly, but at least the error will get captured
                 org.glowroot.agent.model.TraceEntryImpl entry =
                         addErrorEntry(startTick, endTick, messageSupplier, errorMessage);
@@ -22,6 +22,7 @@ import java.lang.management.ThreadMXBean;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.annotations.VisibleForTesting;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 import org.checkerframework.checker.nullness.qual.RequiresNonNull;
 
@@ -37,12 +38,33 @@ class ThreadStatsComponent {
     private static final boolean IS_THREAD_CONTENTION_MONITORING_SUPPORTED =
             threadMXBean.isThreadContentionMonitoringSupported();
 
+    // blocked and waited times require ThreadMXBean.getThreadInfo(), which is by far the most
+    // expensive part of capturing thread stats, and auxiliary thread contexts can be created for
+    // every task submitted to an executor, so blocked and waited times are only captured for one
+    // out of every N auxiliary thread contexts on a given thread, scaled up by N (and zero for the
+    // others), which keeps the sums over auxiliary threads (which is all that is reported for
+    // auxiliary threads) accurate over many tasks (set this to 1 to capture exact blocked and
+    // waited times for every auxiliary thread context)
+    private static final int AUX_BLOCKED_WAITED_SAMPLING_INTERVAL = Integer.getInteger(
+            "glowroot.internal.auxThreadStats.blockedWaitedSamplingInterval", 10);
+
+    @SuppressWarnings("nullness:type.argument.type.incompatible")
+    private static final ThreadLocal<int[]> auxThreadContextCount = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
     private final long threadId;
     private final long startingCpuNanos;
     private final long startingBlockedMillis;
     private final long startingWaitedMillis;
     private final long startingAllocatedBytes;
 
+    private final boolean captureBlockedWaited;
+    private final int blockedWaitedScale;
+
     private final @Nullable ThreadAllocatedBytes threadAllocatedBytes;
 
     @GuardedBy("lock")
@@ -50,17 +72,26 @@ class ThreadStatsComponent {
 
     private final Object lock = new Object();
 
-    ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes) {
+    ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes, boolean auxiliary) {
+        this(threadAllocatedBytes, auxiliary, AUX_BLOCKED_WAITED_SAMPLING_INTERVAL);
+    }
+
+    @VisibleForTesting
+    ThreadStatsComponent(@Nullable ThreadAllocatedBytes threadAllocatedBytes, boolean auxiliary,
+            int auxBlockedWaitedSamplingInterval) {
         threadId = Thread.currentThread().getId();
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        // thread info for current thread cannot be null
-        checkNotNull(threadInfo);
         if (IS_THREAD_CPU_TIME_SUPPORTED) {
             startingCpuNanos = threadMXBean.getCurrentThreadCpuTime();
         } else {
             startingCpuNanos = -1;
         }
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+        captureBlockedWaited = IS_THREAD_CONTENTION_MONITORING_SUPPORTED
+                && (!auxiliary || isAuxBlockedWaitedSample(auxBlockedWaitedSamplingInterval));
+        blockedWaitedScale = auxiliary ? auxBlockedWaitedSamplingInterval : 1;
+        if (captureBlockedWaited) {
+            ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            // thread info for current thread cannot be null
+            checkNotNull(threadInfo);
             startingBlockedMillis = threadInfo.getBlockedTime();
             startingWaitedMillis = threadInfo.getWaitedTime();
         } else {
@@ -68,7 +99,7 @@ class ThreadStatsComponent {
             startingWaitedMillis = -1;
         }
         if (threadAllocatedBytes != null) {
-            startingAllocatedBytes = threadAllocatedBytes.getThreadAllocatedBytesSafely(threadId);
+            startingAllocatedBytes = threadAllocatedBytes.getCurrentThreadAllocatedBytes();
         } else {
             startingAllocatedBytes = -1;
         }
@@ -78,7 +109,9 @@ class ThreadStatsComponent {
     // must be called from transaction thread
     void onComplete() {
         synchronized (lock) {
-            completedThreadStats = getThreadStats();
+            if (completedThreadStats == null) {
+                completedThreadStats = getThreadStatsInternal(true);
+            }
         }
     }
 
@@ -89,37 +122,41 @@ class ThreadStatsComponent {
                 // transaction thread is still alive (and cannot terminate in the middle of this
                 // method because of above lock), so safe to capture ThreadMXBean.getThreadInfo()
                 // and ThreadMXBean.getThreadCpuTime() for the transaction thread
-                return getThreadStatsInternal();
+                return getThreadStatsInternal(false);
             } else {
                 return completedThreadStats;
             }
         }
     }
 
-    private ThreadStats getThreadStatsInternal() {
-        ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
-        if (threadInfo == null) {
-            // thread must have just recently terminated
-            return new ThreadStats(-1, -1, -1, -1);
-        }
-        long totalCpuNanos;
-        if (IS_THREAD_CPU_TIME_SUPPORTED) {
-            totalCpuNanos = getTotalCpuNanos();
-        } else {
-            totalCpuNanos = -1;
-        }
+    private ThreadStats getThreadStatsInternal(boolean currentThread) {
         long totalBlockedMillis;
         long totalWaitedMillis;
-        if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+        if (captureBlockedWaited) {
+            ThreadInfo threadInfo = threadMXBean.getThreadInfo(threadId, 0);
+            if (threadInfo == null) {
+                // thread must have just recently terminated
+                return new ThreadStats(-1, -1, -1, -1);
+            }
             totalBlockedMillis = getTotalBlockedMillis(threadInfo);
             totalWaitedMillis = getTotalWaitedMillis(threadInfo);
+        } else if (IS_THREAD_CONTENTION_MONITORING_SUPPORTED) {
+            // not sampled (see AUX_BLOCKED_WAITED_SAMPLING_INTERVAL)
+            totalBlockedMillis = 0;
+            totalWaitedMillis = 0;
         } else {
             totalBlockedMillis = -1;
             totalWaitedMillis = -1;
         }
+        long totalCpuNanos;
+        if (IS_THREAD_CPU_TIME_SUPPORTED) {
+            totalCpuNanos = getTotalCpuNanos(currentThread);
+        } else {
+            totalCpuNanos = -1;
+        }
         long totalAllocatedBytes;
         if (this.threadAllocatedBytes != null) {
-            totalAllocatedBytes = getThreadAllocatedBytes();
+            totalAllocatedBytes = getThreadAllocatedBytes(currentThread);
         } else {
             totalAllocatedBytes = -1;
         }
@@ -127,10 +164,11 @@ class ThreadStatsComponent {
                 totalAllocatedBytes);
     }
 
-    private long getTotalCpuNanos() {
+    private long getTotalCpuNanos(boolean currentThread) {
         // getThreadCpuTime() returns -1 if CPU time measurement is disabled (which is different
         // than whether or not it is supported)
-        long threadCpuNanos = threadMXBean.getThreadCpuTime(threadId);
+        long threadCpuNanos = currentThread ? threadMXBean.getCurrentThreadCpuTime()
+                : threadMXBean.getThreadCpuTime(threadId);
         if (startingCpuNanos != -1 && threadCpuNanos != -1) {
             return threadCpuNanos - startingCpuNanos;
         } else {
@@ -143,7 +181,7 @@ class ThreadStatsComponent {
         // different than whether or not it is supported)
         long threadBlockedTimeMillis = threadInfo.getBlockedTime();
         if (startingBlockedMillis != -1 && threadBlockedTimeMillis != -1) {
-            return threadBlockedTimeMillis - startingBlockedMillis;
+            return (threadBlockedTimeMillis - startingBlockedMillis) * blockedWaitedScale;
         } else {
             return -1;
         }
@@ -154,19 +192,34 @@ class ThreadStatsComponent {
         // different than whether or not it is supported)
         long threadWaitedTimeMillis = threadInfo.getWaitedTime();
         if (startingWaitedMillis != -1 && threadWaitedTimeMillis != -1) {
-            return threadWaitedTimeMillis - startingWaitedMillis;
+            return (threadWaitedTimeMillis - startingWaitedMillis) * blockedWaitedScale;
         } else {
             return -1;
         }
     }
 
     @RequiresNonNull("threadAllocatedBytes")
-    private long getThreadAllocatedBytes() {
-        long allocatedBytes = threadAllocatedBytes.getThreadAllocatedBytesSafely(threadId);
+    private long getThreadAllocatedBytes(boolean currentThread) {
+        long allocatedBytes = currentThread
+                ? threadAllocatedBytes.getCurrentThreadAllocatedBytes()
+                : threadAllocatedBytes.getThreadAllocatedBytes(threadId);
         if (startingAllocatedBytes != -1 && allocatedBytes != -1) {
             return allocatedBytes - startingAllocatedBytes;
         } else {
             return -1;
         }
     }
+
+    private static boolean isAuxBlockedWaitedSample(int samplingInterval) {
+        if (samplingInterval <= 1) {
+            return true;
+        }
+        // counted per thread to avoid contention between threads
+        int[] count = auxThreadContextCount.get();
+        if (++count[0] < samplingInterval) {
+            return false;
+        }
+        count[0] = 0;
+        return true;
+    }
 }
@@ -56,6 +56,7 @@ import org.glowroot.agent.plugin.api.MessageSupplier;
 import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.internal.ReadableMessage;
 import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
+import org.glowroot.agent.util.AppendOnlyChunkedList;
 import org.glowroot.agent.util.ThreadAllocatedBytes;
 import org.glowroot.common.config.AdvancedConfig;
 import org.glowroot.common.util.Cancellable;
@@ -80,6 +81,13 @@ public class Transaction {
     // this is just to limit memory (and also to limit display size of trace)
     private static final long ATTRIBUTE_VALUES_PER_KEY_LIMIT = 10000;
 
+    // this is to limit memory and the cost of reading auxiliary thread contexts, e.g. for
+    // transactions that fan out into large numbers of fork join tasks, auxiliary thread contexts
+    // beyond this limit are merged into a single aggregated auxiliary thread context (see
+    // AggregatedAuxThreadContext for what this does and does not save)
+    private static final int AUX_THREAD_CONTEXT_LIMIT =
+            Integer.getInteger("glowroot.internal.auxThreadContextLimit", 1000);
+
     private static final AtomicBoolean loggedBackgroundTransactionSuggestion = new AtomicBoolean();
 
     private final Supplier<UUID> uuid = Suppliers.memoize(new Supplier<UUID>() {
@@ -114,6 +122,7 @@ public class Transaction {
 
     private final int maxTraceEntriesPerTransaction;
     private final int maxAggregateQueriesPerQueryType;
+    private final boolean normalizeQueryLiterals;
 
     // stack trace data constructed from profiling
     private volatile @MonotonicNonNull Profile mainThreadProfile;
@@ -147,10 +156,15 @@ public class Transaction {
     private final AtomicInteger entryLimitCounter = new AtomicInteger();
     private final AtomicInteger extraErrorEntryLimitCounter = new AtomicInteger();
     private final AtomicInteger aggregateQueryLimitCounter = new AtomicInteger();
+    private final AtomicInteger auxThreadContextLimitCounter = new AtomicInteger();
 
     private final ThreadContextImpl mainThreadContext;
-    // FIXME impose simple max on number of auxiliary thread contexts (AdvancedConfig)
-    private final List<ThreadContextImpl> auxThreadContexts = Lists.newCopyOnWriteArrayList();
+    // not using CopyOnWriteArrayList since the cost of copying on each add is quadratic in the
+    // number of auxiliary thread contexts
+    private final AppendOnlyChunkedList<ThreadContextImpl> auxThreadContexts =
+            new AppendOnlyChunkedList<ThreadContextImpl>();
+    // lazy created once the auxiliary thread context limit has been exceeded
+    private volatile @MonotonicNonNull AggregatedAuxThreadContext aggregatedAuxThreadContext;
     // async root timers are the root timers which do not have corresponding thread context
     // (those corresponding to async trace entries)
     // FIXME impose simple max on number of async root timers (AdvancedConfig)
@@ -169,7 +183,7 @@ public class Transaction {
     public Transaction(long startTime, long startTick, String transactionType,
             String transactionName, MessageSupplier messageSupplier, TimerName timerName,
             boolean captureThreadStats, int maxTraceEntriesPerTransaction,
-            int maxAggregateQueriesPerQueryType,
+            int maxAggregateQueriesPerQueryType, boolean normalizeQueryLiterals,
             @Nullable ThreadAllocatedBytes threadAllocatedBytes,
             CompletionCallback completionCallback, Ticker ticker,
             TransactionRegistry transactionRegistry, TransactionServiceImpl transactionService,
@@ -183,6 +197,7 @@ public class Transaction {
         gcActivityComponent = new GcActivityComponent();
         this.maxTraceEntriesPerTransaction = maxTraceEntriesPerTransaction;
         this.maxAggregateQueriesPerQueryType = maxAggregateQueriesPerQueryType;
+        this.normalizeQueryLiterals = normalizeQueryLiterals;
         this.completionCallback = completionCallback;
         this.ticker = ticker;
         this.transactionRegistry = transactionRegistry;
@@ -190,7 +205,7 @@ public class Transaction {
         this.configService = configService;
         this.userProfileScheduler = userProfileScheduler;
         mainThreadContext = new ThreadContextImpl(castInitialized(this), null, messageSupplier,
-                timerName, startTick, captureThreadStats, threadAllocatedBytes, false,
+                timerName, startTick, captureThreadStats, threadAllocatedBytes, false, null,
                 transactionRegistry, transactionService, configService, ticker,
                 threadContextHolder);
     }
@@ -199,11 +214,18 @@ public class Transaction {
             TimerName auxTimerName, long startTick,
             Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder,
             @Nullable ThreadAllocatedBytes threadAllocatedBytes) {
+        AggregatedAuxThreadContext aggregatedAuxThreadContext = null;
+        if (!allowAnotherAuxThreadContext()) {
+            aggregatedAuxThreadContext = getOrCreateAggregatedAuxThreadContext();
+        }
         ThreadContextImpl auxThreadContext = new ThreadContextImpl(this, parentTraceEntry,
                 AuxThreadRootMessageSupplier.INSTANCE, auxTimerName, startTick,
-                captureThreadStats, threadAllocatedBytes, true, transactionRegistry,
-                transactionService, configService, ticker, threadContextHolder);
-        auxThreadContexts.add(auxThreadContext);
+                captureThreadStats, threadAllocatedBytes, true, aggregatedAuxThreadContext,
+                transactionRegistry, transactionService, configService, ticker,
+                threadContextHolder);
+        if (aggregatedAuxThreadContext == null) {
+            auxThreadContexts.add(auxThreadContext);
+        }
         threadContextHolder.set(auxThreadContext);
         return auxThreadContext.getRootEntry();
     }
@@ -289,13 +311,24 @@ public class Transaction {
         return mainThreadContext.getRootTimer();
     }
 
-    public Iterable<TimerImpl> getAuxThreadRootTimers() {
+    public Iterable<CommonTimerImpl> getAuxThreadRootTimers() {
         readMemoryBarrier();
-        if (auxThreadContexts.isEmpty()) {
+        AggregatedAuxThreadContext aggregatedAuxThreadContext = this.aggregatedAuxThreadContext;
+        if (auxThreadContexts.isEmpty() && aggregatedAuxThreadContext == null) {
             // optimization for common case
             return ImmutableList.of();
         }
-        return Iterables.transform(auxThreadContexts, GetRootTimerFunction.INSTANCE);
+        Iterable<CommonTimerImpl> rootTimers =
+                Iterables.transform(auxThreadContexts, GetRootTimerFunction.INSTANCE);
+        if (aggregatedAuxThreadContext == null) {
+            return rootTimers;
+        }
+        CommonTimerImpl aggregatedRootTimer = aggregatedAuxThreadContext.getRootTimer();
+        if (aggregatedRootTimer == null) {
+            // none of the aggregated auxiliary thread contexts have completed yet
+            return rootTimers;
+        }
+        return Iterables.concat(rootTimers, ImmutableList.of(aggregatedRootTimer));
     }
 
     public List<AsyncTimerImpl> getAsyncRootTimers() {
@@ -310,13 +343,20 @@ public class Transaction {
 
     // can be called from a non-transaction thread
     public Iterable<ThreadStats> getAuxThreadStats() {
-        if (auxThreadContexts.isEmpty()) {
+        AggregatedAuxThreadContext aggregatedAuxThreadContext = this.aggregatedAuxThreadContext;
+        if (auxThreadContexts.isEmpty() && aggregatedAuxThreadContext == null) {
             return ImmutableList.of();
         }
         if (!captureThreadStats) {
             return ImmutableList.of(ThreadStats.NA);
         }
-        return Iterables.transform(auxThreadContexts, GetThreadStatsFunction.INSTANCE);
+        Iterable<ThreadStats> threadStats =
+                Iterables.transform(auxThreadContexts, GetThreadStatsFunction.INSTANCE);
+        if (aggregatedAuxThreadContext == null) {
+            return threadStats;
+        }
+        return Iterables.concat(threadStats,
+                ImmutableList.of(aggregatedAuxThreadContext.getThreadStats()));
     }
 
     // can be called from a non-transaction thread
@@ -326,16 +366,20 @@ public class Transaction {
 
     public Iterator<QueryData> getQueries() {
         readMemoryBarrier();
-        if (auxThreadContexts.size() == 1) {
+        AggregatedAuxThreadContext aggregatedAuxThreadContext = this.aggregatedAuxThreadContext;
+        if (auxThreadContexts.isEmpty() && aggregatedAuxThreadContext == null) {
             // optimization for common case
             return mainThreadContext.getQueries();
         }
         List<Iterator<QueryData>> queries =
-                Lists.newArrayListWithCapacity(auxThreadContexts.size() + 1);
+                Lists.newArrayListWithCapacity(auxThreadContexts.size() + 2);
         queries.add(mainThreadContext.getQueries());
         for (ThreadContextImpl threadContext : auxThreadContexts) {
             queries.add(threadContext.getQueries());
         }
+        if (aggregatedAuxThreadContext != null) {
+            queries.add(aggregatedAuxThreadContext.getQueries().iterator());
+        }
         return Iterators.concat(queries.iterator());
     }
 
@@ -355,6 +399,10 @@ public class Transaction {
                 * AdvancedConfig.OVERALL_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER;
     }
 
+    boolean isNormalizeQueryLiterals() {
+        return normalizeQueryLiterals;
+    }
+
     public List<Trace.Entry> getEntriesProtobuf(long captureTick) {
         readMemoryBarrier();
         Multimap<TraceEntryImpl, TraceEntryImpl> auxRootTraceEntries = ArrayListMultimap.create();
@@ -440,7 +488,9 @@ public class Transaction {
         return mainThreadContext;
     }
 
-    public List<ThreadContextImpl> getAuxThreadContexts() {
+    // does not include the auxiliary thread contexts that were merged into the aggregated auxiliary
+    // thread context
+    public Iterable<ThreadContextImpl> getAuxThreadContexts() {
         return auxThreadContexts;
     }
 
@@ -567,7 +617,7 @@ public class Transaction {
         this.endTick = endTick;
         for (ThreadContextImpl auxThreadContext : auxThreadContexts) {
             // FIXME how to suppress false positives??
-            if (!loggedBackgroundTransactionSuggestion.get()) {
+            if (!loggedBackgroundTransactionSuggestion.get() && !auxThreadContext.isCompleted()) {
                 ThreadInfo threadInfo = ManagementFactory.getThreadMXBean()
                         .getThreadInfo(auxThreadContext.getThreadId(), Integer.MAX_VALUE);
                 if (threadInfo != null && !auxThreadContext.isCompleted()) {
@@ -608,6 +658,24 @@ public class Transaction {
         return captureTime;
     }
 
+    private boolean allowAnotherAuxThreadContext() {
+        return auxThreadContextLimitCounter.getAndIncrement() < AUX_THREAD_CONTEXT_LIMIT;
+    }
+
+    private AggregatedAuxThreadContext getOrCreateAggregatedAuxThreadContext() {
+        AggregatedAuxThreadContext aggregatedAuxThreadContext = this.aggregatedAuxThreadContext;
+        if (aggregatedAuxThreadContext == null) {
+            synchronized (auxThreadContexts) {
+                aggregatedAuxThreadContext = this.aggregatedAuxThreadContext;
+                if (aggregatedAuxThreadContext == null) {
+                    aggregatedAuxThreadContext = new AggregatedAuxThreadContext();
+                    this.aggregatedAuxThreadContext = aggregatedAuxThreadContext;
+                }
+            }
+        }
+        return aggregatedAuxThreadContext;
+    }
+
     private boolean readMemoryBarrier() {
         return memoryBarrier;
     }
@@ -646,12 +714,13 @@ public class Transaction {
         }
     }
 
-    private static class GetRootTimerFunction implements Function<ThreadContextImpl, TimerImpl> {
+    private static class GetRootTimerFunction
+            implements Function<ThreadContextImpl, CommonTimerImpl> {
 
         private static final GetRootTimerFunction INSTANCE = new GetRootTimerFunction();
 
         @Override
-        public TimerImpl apply(@Nullable ThreadContextImpl input) {
+        public CommonTimerImpl apply(@Nullable ThreadContextImpl input) {
             checkNotNull(input);
             return input.getRootTimer();
         }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.annotation.Nullable;
+
+// append-only list that can be iterated by other threads concurrently with appends (without
+// locking), and which unlike CopyOnWriteArrayList does not copy the existing elements on each
+// append, which matters for transactions that append very large numbers of elements (e.g.
+// auxiliary thread contexts)
+//
+// elements are stored in linked chunks, starting small (since most lists are small) and doubling
+// in size up to a max chunk size
+//
+// iterators only see the elements that were appended prior to the iterator being created
+public class AppendOnlyChunkedList<T> implements Iterable<T> {
+
+    private static final int INITIAL_CHUNK_SIZE = 4;
+    private static final int MAX_CHUNK_SIZE = 1024;
+
+    private final Chunk headChunk = new Chunk(INITIAL_CHUNK_SIZE);
+    // guarded by this
+    private Chunk tailChunk = headChunk;
+    // guarded by this
+    private int tailChunkSize;
+
+    // size is written (inside of synchronized add) after the element and any new chunk are
+    // written, and it is read by iterators before the elements and chunks are read, so it provides
+    // the memory barrier that makes them visible to the iterating threads
+    private volatile int size;
+
+    public synchronized void add(T element) {
+        if (tailChunkSize == tailChunk.elements.length) {
+            Chunk chunk = new Chunk(Math.min(tailChunkSize * 2, MAX_CHUNK_SIZE));
+            tailChunk.nextChunk = chunk;
+            tailChunk = chunk;
+            tailChunkSize = 0;
+        }
+        tailChunk.elements[tailChunkSize++] = element;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new ChunkedIterator(size);
+    }
+
+    private static class Chunk {
+
+        private final Object[] elements;
+        private @Nullable Chunk nextChunk;
+
+        private Chunk(int capacity) {
+            elements = new Object[capacity];
+        }
+    }
+
+    private class ChunkedIterator implements Iterator<T> {
+
+        private final int size;
+        private int index;
+
+        private @Nullable Chunk chunk = headChunk;
+        private int chunkIndex;
+
+        private ChunkedIterator(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < size;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (index >= size || chunk == null) {
+                throw new NoSuchElementException();
+            }
+            if (chunkIndex == chunk.elements.length) {
+                chunk = chunk.nextChunk;
+                chunkIndex = 0;
+                if (chunk == null) {
+                    // this is not possible since size was read before any of the chunks
+                    throw new NoSuchElementException();
+                }
+            }
+            index++;
+            return (T) chunk.elements[chunkIndex++];
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Longs;
+
+import org.glowroot.common.live.ImmutableClassLoaderWeaving;
+import org.glowroot.common.live.ImmutableStartupSpan;
+import org.glowroot.common.live.ImmutableStartupTimeline;
+import org.glowroot.common.live.ImmutableWovenClass;
+import org.glowroot.common.live.StartupTimelineService;
+
+// records where agent startup time goes, as nested spans around the startup phases (on whichever
+// thread runs them), plus cumulative weaving time per class loader (type) and the slowest classes
+// woven, which keep being recorded after startup since class loading continues well past agent
+// startup in most applications
+public class StartupTimeline implements StartupTimelineService {
+
+    private static final int SLOWEST_WOVEN_CLASSES_LIMIT =
+            Integer.getInteger("glowroot.internal.startupTimeline.slowestWovenClasses", 20);
+
+    private static final Ordering<WovenClass> WOVEN_CLASS_ORDERING = new Ordering<WovenClass>() {
+        @Override
+        public int compare(WovenClass left, WovenClass right) {
+            return Longs.compare(left.nanos, right.nanos);
+        }
+    };
+
+    private final String agentVersion;
+    private final Ticker ticker;
+    private final long startTick;
+    private final long jvmUptimeAtStartMillis;
+
+    private final List<Span> spans = Collections.synchronizedList(Lists.<Span>newArrayList());
+
+    @SuppressWarnings("nullness:type.argument.type.incompatible")
+    private final ThreadLocal<Integer> currentDepth = new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+            return 0;
+        }
+    };
+
+    // keyed by class loader class name, since keying by class loader instance would either retain
+    // class loaders or not survive their collection
+    private final ConcurrentMap<String, LoaderWeaving> loaderWeavings = Maps.newConcurrentMap();
+
+    // min-heap, guarded by itself
+    private final PriorityQueue<WovenClass> slowestWovenClasses =
+            new PriorityQueue<WovenClass>(SLOWEST_WOVEN_CLASSES_LIMIT + 1, WOVEN_CLASS_ORDERING);
+    // woven classes that take less than this are not recorded in slowestWovenClasses
+    private volatile long slowestWovenClassesThreshold;
+
+    public StartupTimeline(String agentVersion, Ticker ticker) {
+        this.agentVersion = agentVersion;
+        this.ticker = ticker;
+        startTick = ticker.read();
+        jvmUptimeAtStartMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+
+    public Span startSpan(String name) {
+        int depth = currentDepth.get();
+        currentDepth.set(depth + 1);
+        Span span = new Span(name, depth, ticker.read());
+        spans.add(span);
+        return span;
+    }
+
+    // this is called for every class woven, so it needs to be cheap
+    public void recordWeaving(@Nullable ClassLoader loader, String className, long nanos) {
+        String loaderName = loader == null ? "bootstrap" : loader.getClass().getName();
+        LoaderWeaving loaderWeaving = loaderWeavings.get(loaderName);
+        if (loaderWeaving == null) {
+            loaderWeaving = new LoaderWeaving();
+            LoaderWeaving existing = loaderWeavings.putIfAbsent(loaderName, loaderWeaving);
+            if (existing != null) {
+                loaderWeaving = existing;
+            }
+        }
+        loaderWeaving.classCount.getAndIncrement();
+        loaderWeaving.totalNanos.getAndAdd(nanos);
+        if (nanos <= slowestWovenClassesThreshold) {
+            return;
+        }
+        synchronized (slowestWovenClasses) {
+            slowestWovenClasses.add(new WovenClass(className, loaderName, nanos));
+            if (slowestWovenClasses.size() > SLOWEST_WOVEN_CLASSES_LIMIT) {
+                slowestWovenClasses.poll();
+                slowestWovenClassesThreshold = slowestWovenClasses.peek().nanos;
+            }
+        }
+    }
+
+    @Override
+    public StartupTimelineService.StartupTimeline getStartupTimeline() {
+        ImmutableStartupTimeline.Builder builder = ImmutableStartupTimeline.builder()
+                .agentVersion(agentVersion)
+                .jvmUptimeAtStartMillis(jvmUptimeAtStartMillis);
+        List<Span> spans;
+        synchronized (this.spans) {
+            spans = Lists.newArrayList(this.spans);
+        }
+        for (Span span : spans) {
+            builder.addSpans(ImmutableStartupSpan.builder()
+                    .name(span.name)
+                    .depth(span.depth)
+                    .offsetNanos(span.startTick - startTick)
+                    .durationNanos(span.ended ? span.endTick - span.startTick : -1)
+                    .build());
+        }
+        for (Entry<String, LoaderWeaving> entry : loaderWeavings.entrySet()) {
+            builder.addClassLoaderWeavings(ImmutableClassLoaderWeaving.builder()
+                    .classLoader(entry.getKey())
+                    .classCount(entry.getValue().classCount.get())
+                    .totalNanos(entry.getValue().totalNanos.get())
+                    .build());
+        }
+        List<WovenClass> wovenClasses;
+        synchronized (slowestWovenClasses) {
+            wovenClasses = WOVEN_CLASS_ORDERING.reverse().sortedCopy(slowestWovenClasses);
+        }
+        for (WovenClass wovenClass : wovenClasses) {
+            builder.addSlowestWovenClasses(ImmutableWovenClass.builder()
+                    .className(wovenClass.className.replace('/', '.'))
+                    .classLoader(wovenClass.classLoader)
+                    .nanos(wovenClass.nanos)
+                    .build());
+        }
+        return builder.build();
+    }
+
+    public class Span {
+
+        private final String name;
+        private final int depth;
+        private final long startTick;
+        // written before ended, and only read after ended
+        private long endTick;
+        private volatile boolean ended;
+
+        private Span(String name, int depth, long startTick) {
+            this.name = name;
+            this.depth = depth;
+            this.startTick = startTick;
+        }
+
+        public void end() {
+            endTick = ticker.read();
+            ended = true;
+            currentDepth.set(depth);
+        }
+
+        // ends this span and starts the next startup phase as a sibling span, so that a sequence
+        // of startup phases reads as a flat sequence of calls
+        public Span next(String name) {
+            end();
+            return startSpan(name);
+        }
+    }
+
+    private static class LoaderWeaving {
+        private final AtomicLong classCount = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+    }
+
+    private static class WovenClass {
+
+        private final String className;
+        private final String classLoader;
+        private final long nanos;
+
+        private WovenClass(String className, String classLoader, long nanos) {
+            this.className = className;
+            this.classLoader = classLoader;
+            this.nanos = nanos;
+        }
+    }
+}
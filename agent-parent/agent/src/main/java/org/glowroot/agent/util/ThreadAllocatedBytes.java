@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2015 the original author or authors.
+ * Copyright 2013-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,6 +16,7 @@
 package org.glowroot.agent.util;
 
 import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.lang.reflect.Method;
 
 import javax.annotation.Nullable;
@@ -28,8 +29,7 @@ public class ThreadAllocatedBytes {
 
     private static final Logger logger = LoggerFactory.getLogger(ThreadAllocatedBytes.class);
 
-    private final Method getThreadAllocatedBytesMethod;
-    private volatile boolean disabledDueToError;
+    private final SunThreadMXBean sunThreadMXBean;
 
     public static OptionalService<ThreadAllocatedBytes> create() {
         try {
@@ -68,34 +68,52 @@ public class ThreadAllocatedBytes {
             return OptionalService.unavailable("Method com.sun.management.ThreadMXBean"
                     + ".isThreadAllocatedMemorySupported() returned false");
         }
-        Method getThreadAllocatedBytesMethod =
-                Reflections.getMethod(sunThreadMXBeanClass, "getThreadAllocatedBytes", long.class);
-        return OptionalService.available(new ThreadAllocatedBytes(getThreadAllocatedBytesMethod));
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!sunThreadMXBeanClass.isInstance(threadMXBean)) {
+            return OptionalService.unavailable("ThreadMXBean does not implement"
+                    + " com.sun.management.ThreadMXBean");
+        }
+        return OptionalService.available(
+                new ThreadAllocatedBytes(new SunThreadMXBean(threadMXBean)));
+    }
+
+    private ThreadAllocatedBytes(SunThreadMXBean sunThreadMXBean) {
+        this.sunThreadMXBean = sunThreadMXBean;
     }
 
-    private ThreadAllocatedBytes(Method getThreadAllocatedBytesMethod) {
-        this.getThreadAllocatedBytesMethod = getThreadAllocatedBytesMethod;
+    public long getThreadAllocatedBytes(long threadId) {
+        return sunThreadMXBean.getThreadAllocatedBytes(threadId);
     }
 
-    public long getThreadAllocatedBytesSafely(long threadId) {
-        if (disabledDueToError) {
-            // prevent excessive error logging in case there is a problem
-            return -1;
+    public long getCurrentThreadAllocatedBytes() {
+        return sunThreadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // this is called at the start and end of every thread context, so com.sun.management
+    // .ThreadMXBean is called directly instead of via reflection (which boxes the argument and
+    // return value on every call), the reference is isolated in this class so that it is only
+    // loaded after com.sun.management.ThreadMXBean has been found
+    private static class SunThreadMXBean {
+
+        private final com.sun.management.ThreadMXBean threadMXBean;
+        private volatile boolean disabledDueToError;
+
+        private SunThreadMXBean(ThreadMXBean threadMXBean) {
+            this.threadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
         }
-        try {
-            Long threadAllocatedBytes = (Long) Reflections.invoke(getThreadAllocatedBytesMethod,
-                    ManagementFactory.getThreadMXBean(), threadId);
-            if (threadAllocatedBytes == null) {
-                logger.error("method unexpectedly returned null:"
-                        + " com.sun.management.ThreadMXBean.getThreadAllocatedBytes()");
+
+        private long getThreadAllocatedBytes(long threadId) {
+            if (disabledDueToError) {
+                // prevent excessive error logging in case there is a problem
+                return -1;
+            }
+            try {
+                return threadMXBean.getThreadAllocatedBytes(threadId);
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
                 disabledDueToError = true;
                 return -1;
             }
-            return threadAllocatedBytes;
-        } catch (Exception e) {
-            logger.error(e.getMessage(), e);
-            disabledDueToError = true;
-            return -1;
         }
     }
 }
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.objectweb.asm.ClassReader;
+
+// bloom filter over the (internal) names that a class has to reference, as its own name, as a
+// direct super type or as a class annotation, in order to possibly match any advice, shim or mixin,
+// so that the (vast majority of) classes that cannot possibly need weaving can be rejected using
+// only the class file header and constant pool (see AnalyzedWorld.tryFastReject())
+//
+// the filter also accumulates the names of analyzed classes that carry advice, shims or mixins
+// (which are inherited by their sub classes), so that their direct sub classes go straight to full
+// analysis
+//
+// false positives only cost a full analysis, while false negatives would lead to missed weaving,
+// so anything that is not understood here (e.g. advice that is a candidate for every class) leads
+// to a positive
+class AdviceBloomFilter {
+
+    private static final int NUM_HASHES = 3;
+
+    // carriers are added after construction, so the filter is sized with plenty of room
+    private static final int MIN_NUM_BITS = 1 << 16;
+    private static final int BITS_PER_NAME = 32;
+
+    // constant pool tag (see ClassWriter.UTF8 which is not public)
+    private static final int UTF8_TAG = 1;
+
+    private final List<Advice> advisors;
+    private final boolean matchesEverything;
+
+    private final long[] bits;
+    private final int mask;
+
+    // internal names, e.g. "org/example/"
+    private final ImmutableList<String> classNamePrefixes;
+    private final boolean hasClassAnnotations;
+
+    private AdviceBloomFilter(List<Advice> advisors, boolean matchesEverything, Set<String> names,
+            List<String> classNamePrefixes, boolean hasClassAnnotations) {
+        this.advisors = advisors;
+        this.matchesEverything = matchesEverything;
+        int numBits = Math.max(MIN_NUM_BITS,
+                Integer.highestOneBit(Math.max(names.size(), 1) * BITS_PER_NAME) << 1);
+        bits = new long[numBits / 64];
+        mask = numBits - 1;
+        for (String name : names) {
+            put(name);
+        }
+        this.classNamePrefixes = ImmutableList.copyOf(classNamePrefixes);
+        this.hasClassAnnotations = hasClassAnnotations;
+    }
+
+    static AdviceBloomFilter create(AdviceIndex adviceIndex, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        Set<String> names = Sets.newHashSet();
+        for (String className : adviceIndex.getExactClassNames()) {
+            names.add(ClassNames.toInternalName(className));
+        }
+        // class annotations are already in descriptor form, e.g. "Lorg/example/Foo;"
+        names.addAll(adviceIndex.getClassAnnotations());
+        for (ShimType shimType : shimTypes) {
+            names.add(ClassNames.toInternalName(shimType.target()));
+        }
+        for (MixinType mixinType : mixinTypes) {
+            for (String target : mixinType.targets()) {
+                names.add(ClassNames.toInternalName(target));
+            }
+        }
+        List<String> classNamePrefixes = Lists.newArrayList();
+        for (String classNamePrefix : adviceIndex.getClassNamePrefixes()) {
+            classNamePrefixes.add(ClassNames.toInternalName(classNamePrefix));
+        }
+        return new AdviceBloomFilter(adviceIndex.getAdvisors(), adviceIndex.hasUnindexed(), names,
+                classNamePrefixes, !adviceIndex.getClassAnnotations().isEmpty());
+    }
+
+    List<Advice> getAdvisors() {
+        return advisors;
+    }
+
+    // returns false only if neither the class name nor any of its class annotations can match any
+    // advice, shim or mixin, and none of its direct super types are known to carry any
+    //
+    // super types further up the hierarchy are not checked here (see
+    // AnalyzedWorld.isKnownAdviceFreeHierarchy())
+    boolean mayMatch(ClassReader cr, String internalName, @Nullable String superInternalName,
+            String[] interfaceInternalNames) {
+        if (matchesEverything) {
+            return true;
+        }
+        for (String classNamePrefix : classNamePrefixes) {
+            if (internalName.startsWith(classNamePrefix)) {
+                return true;
+            }
+        }
+        if (mightContain(internalName)) {
+            return true;
+        }
+        if (superInternalName != null && mightContain(superInternalName)) {
+            return true;
+        }
+        for (String interfaceInternalName : interfaceInternalNames) {
+            if (mightContain(interfaceInternalName)) {
+                return true;
+            }
+        }
+        return hasClassAnnotations && mayHaveClassAnnotation(cr);
+    }
+
+    // className is not an internal name (same as AnalyzedClass.name())
+    void addCarrier(String className) {
+        put(ClassNames.toInternalName(className));
+    }
+
+    // the class annotation descriptors are looked up directly in the constant pool instead of
+    // parsing the class annotations, which means other field descriptors are looked up as well,
+    // but those can only lead to (harmless) false positives
+    private boolean mayHaveClassAnnotation(ClassReader cr) {
+        byte[] b = cr.b;
+        for (int i = 1; i < cr.getItemCount(); i++) {
+            int index = cr.getItem(i);
+            // index is 0 for the second slot of long and double constants
+            if (index == 0 || b[index - 1] != UTF8_TAG) {
+                continue;
+            }
+            int length = cr.readUnsignedShort(index);
+            int start = index + 2;
+            if (length < 3 || b[start] != 'L' || b[start + length - 1] != ';') {
+                continue;
+            }
+            if (mightContain(b, start, length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void put(String name) {
+        int hash = hash(name);
+        int hash2 = secondHash(hash);
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (hash + i * hash2) & mask;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    // reads are not synchronized, which at worst misses a carrier that is being added concurrently
+    // (carriers only short cut the hierarchy check, so this does not lead to missed weaving)
+    private boolean mightContain(String name) {
+        return mightContain(hash(name));
+    }
+
+    private boolean mightContain(byte[] b, int start, int length) {
+        int hash = 0x811c9dc5;
+        for (int i = start; i < start + length; i++) {
+            if (b[i] < 0) {
+                // non-ascii modified utf-8, which is not worth decoding in order to compute the
+                // same hash as the corresponding string
+                return true;
+            }
+            hash = (hash ^ b[i]) * 0x01000193;
+        }
+        return mightContain(hash);
+    }
+
+    private boolean mightContain(int hash) {
+        int hash2 = secondHash(hash);
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = (hash + i * hash2) & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // FNV-1a, computed the same way over ascii bytes in mightContain(byte[], int, int)
+    private static int hash(String name) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < name.length(); i++) {
+            hash = (hash ^ name.charAt(i)) * 0x01000193;
+        }
+        return hash;
+    }
+
+    private static int secondHash(int hash) {
+        // odd so that the probes do not collapse onto a single bit
+        return Integer.rotateLeft(hash * 0x9e3779b9, 16) | 1;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+
+// index over the declaring class criteria of a set of advisors, so that the (vast majority of)
+// classes that do not match any advice can be rejected with a few hash lookups instead of
+// evaluating every advice against every class
+//
+// each advice is placed in exactly one of the following buckets:
+// * exact declaring class name
+// * declaring class name pattern, keyed by the package portion of the pattern's literal prefix
+// * class annotation, if the advice has no declaring class name
+// * unindexed (full regex patterns, patterns without a literal package prefix, and advice that
+//   matches every class), which are always candidates
+//
+// the index only narrows down the candidates, AdviceMatcher still performs the full match against
+// each candidate
+class AdviceIndex {
+
+    private final List<Advice> advisors;
+
+    private final Map<String, int[]> exactClassNameBuckets;
+    private final Map<String, int[]> classNamePrefixBuckets;
+    private final Map<String, int[]> classAnnotationBuckets;
+    private final int[] unindexed;
+
+    // used to stop looking for prefix buckets early
+    private final int maxPrefixLength;
+
+    AdviceIndex(List<Advice> advisors) {
+        this.advisors = advisors;
+        Map<String, List<Integer>> exactClassNameBuckets = Maps.newHashMap();
+        Map<String, List<Integer>> classNamePrefixBuckets = Maps.newHashMap();
+        Map<String, List<Integer>> classAnnotationBuckets = Maps.newHashMap();
+        List<Integer> unindexed = Lists.newArrayList();
+        int maxPrefixLength = 0;
+        for (int i = 0; i < advisors.size(); i++) {
+            Advice advice = advisors.get(i);
+            String declaringClassName = advice.pointcutMethodDeclaringClassName();
+            if (advice.pointcutMethodDeclaringClassNamePattern() != null) {
+                List<String> prefixes = getPackagePrefixes(declaringClassName);
+                if (prefixes.isEmpty()) {
+                    unindexed.add(i);
+                } else {
+                    for (String prefix : prefixes) {
+                        addToBucket(classNamePrefixBuckets, prefix, i);
+                        maxPrefixLength = Math.max(maxPrefixLength, prefix.length());
+                    }
+                }
+            } else if (!declaringClassName.isEmpty()) {
+                addToBucket(exactClassNameBuckets, declaringClassName, i);
+            } else {
+                String classAnnotation = advice.pointcut().classAnnotation();
+                if (classAnnotation.isEmpty()) {
+                    unindexed.add(i);
+                } else {
+                    // same form as the class annotations passed to getCandidates()
+                    addToBucket(classAnnotationBuckets,
+                            'L' + classAnnotation.replace('.', '/') + ';', i);
+                }
+            }
+        }
+        this.exactClassNameBuckets = toIntArrays(exactClassNameBuckets);
+        this.classNamePrefixBuckets = toIntArrays(classNamePrefixBuckets);
+        this.classAnnotationBuckets = toIntArrays(classAnnotationBuckets);
+        this.unindexed = Ints.toArray(unindexed);
+        this.maxPrefixLength = maxPrefixLength;
+    }
+
+    List<Advice> getAdvisors() {
+        return advisors;
+    }
+
+    // the following are used to build AdviceBloomFilter
+
+    boolean hasUnindexed() {
+        return unindexed.length != 0;
+    }
+
+    Set<String> getExactClassNames() {
+        return exactClassNameBuckets.keySet();
+    }
+
+    Set<String> getClassNamePrefixes() {
+        return classNamePrefixBuckets.keySet();
+    }
+
+    Set<String> getClassAnnotations() {
+        return classAnnotationBuckets.keySet();
+    }
+
+    // returns the advisors (in their original order) whose declaring class criteria may match
+    List<Advice> getCandidates(String className, List<String> classAnnotations) {
+        int[] candidates = unindexed;
+        int[] exact = exactClassNameBuckets.get(className);
+        if (exact != null) {
+            candidates = concat(candidates, exact);
+        }
+        if (!classNamePrefixBuckets.isEmpty()) {
+            int maxIndex = Math.min(className.length(), maxPrefixLength);
+            for (int i = className.indexOf('.'); i != -1 && i < maxIndex;
+                    i = className.indexOf('.', i + 1)) {
+                int[] bucket = classNamePrefixBuckets.get(className.substring(0, i + 1));
+                if (bucket != null) {
+                    candidates = concat(candidates, bucket);
+                }
+            }
+        }
+        if (!classAnnotationBuckets.isEmpty()) {
+            for (String classAnnotation : classAnnotations) {
+                int[] bucket = classAnnotationBuckets.get(classAnnotation);
+                if (bucket != null) {
+                    candidates = concat(candidates, bucket);
+                }
+            }
+        }
+        if (candidates.length == 0) {
+            return ImmutableList.of();
+        }
+        if (candidates != unindexed) {
+            // an advice can be in more than one prefix bucket, and the original order is restored
+            // so that the result does not depend on the bucketing
+            Arrays.sort(candidates);
+        }
+        List<Advice> candidateAdvisors = Lists.newArrayListWithCapacity(candidates.length);
+        int prior = -1;
+        for (int candidate : candidates) {
+            if (candidate != prior) {
+                candidateAdvisors.add(advisors.get(candidate));
+                prior = candidate;
+            }
+        }
+        return candidateAdvisors;
+    }
+
+    // returns empty list if any part of the pattern lacks a literal package prefix, in which case
+    // the advice cannot be indexed by prefix
+    //
+    // the returned prefixes are truncated to the last '.' so that they can be looked up for each
+    // package of the class name being matched
+    private static List<String> getPackagePrefixes(String declaringClassName) {
+        if (declaringClassName.startsWith("/") && declaringClassName.endsWith("/")) {
+            // full regex
+            return ImmutableList.of();
+        }
+        List<String> prefixes = Lists.newArrayList();
+        for (String part : declaringClassName.split("\\|")) {
+            int index = part.indexOf('*');
+            String literalPrefix = index == -1 ? part : part.substring(0, index);
+            int lastDotIndex = literalPrefix.lastIndexOf('.');
+            if (lastDotIndex == -1) {
+                return ImmutableList.of();
+            }
+            prefixes.add(literalPrefix.substring(0, lastDotIndex + 1));
+        }
+        return prefixes;
+    }
+
+    private static void addToBucket(Map<String, List<Integer>> buckets, String key, int index) {
+        List<Integer> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = Lists.newArrayList();
+            buckets.put(key, bucket);
+        }
+        if (!bucket.contains(index)) {
+            bucket.add(index);
+        }
+    }
+
+    private static Map<String, int[]> toIntArrays(Map<String, List<Integer>> buckets) {
+        Map<String, int[]> map = Maps.newHashMapWithExpectedSize(buckets.size());
+        for (Map.Entry<String, List<Integer>> entry : buckets.entrySet()) {
+            map.put(entry.getKey(), Ints.toArray(entry.getValue()));
+        }
+        return map;
+    }
+
+    private static int[] concat(int[] first, int[] second) {
+        if (first.length == 0) {
+            // copy since the result may be sorted in place
+            return second.clone();
+        }
+        int[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2015 the original author or authors.
+ * Copyright 2012-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -36,9 +36,9 @@ abstract class AdviceMatcher {
     private static final Logger logger = LoggerFactory.getLogger(AdviceMatcher.class);
 
     static ImmutableList<AdviceMatcher> getAdviceMatchers(String className,
-            List<String> classAnnotations, List<Advice> advisors) {
+            List<String> classAnnotations, AdviceIndex adviceIndex) {
         List<AdviceMatcher> adviceMatchers = Lists.newArrayList();
-        for (Advice advice : advisors) {
+        for (Advice advice : adviceIndex.getCandidates(className, classAnnotations)) {
             if (isDeclaringClassMatch(className, classAnnotations, advice)) {
                 adviceMatchers.add(ImmutableAdviceMatcher.of(advice));
             }
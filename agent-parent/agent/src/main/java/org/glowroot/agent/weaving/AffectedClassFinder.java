@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.lang.annotation.Annotation;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// finds the already loaded classes that may need to be re-transformed in order to pick up newly
+// added advice, using the same declaring class matching that is applied to the class hierarchy
+// during weaving (see AnalyzedWorld.getAnalyzedHierarchy()), so that only classes whose hierarchy
+// matches one of the new advisors are re-transformed
+//
+// this may still return some classes that end up with none of the new advice (e.g. subclasses
+// that do not override the advised method), but never misses a class that needs it
+public class AffectedClassFinder {
+
+    private static final Logger logger = LoggerFactory.getLogger(AffectedClassFinder.class);
+
+    private final AdviceIndex adviceIndex;
+    private final boolean classAnnotationsNeeded;
+
+    // memoizes the result for each super class and interface, since these are shared by many of
+    // the loaded classes
+    private final Map<Class<?>, Boolean> hierarchyMatches = Maps.newIdentityHashMap();
+
+    public AffectedClassFinder(List<Advice> addedAdvisors) {
+        adviceIndex = new AdviceIndex(addedAdvisors);
+        boolean classAnnotationsNeeded = false;
+        for (Advice advice : addedAdvisors) {
+            if (!advice.pointcut().classAnnotation().isEmpty()) {
+                classAnnotationsNeeded = true;
+                break;
+            }
+        }
+        this.classAnnotationsNeeded = classAnnotationsNeeded;
+    }
+
+    public List<Class<?>> find(Class<?>[] loadedClasses) {
+        if (adviceIndex.getAdvisors().isEmpty()) {
+            return ImmutableList.of();
+        }
+        List<Class<?>> classes = Lists.newArrayList();
+        for (Class<?> clazz : loadedClasses) {
+            if (clazz.isArray() || clazz.isPrimitive()) {
+                continue;
+            }
+            if (isHierarchyMatch(clazz)) {
+                classes.add(clazz);
+            }
+        }
+        return classes;
+    }
+
+    private boolean isHierarchyMatch(@Nullable Class<?> clazz) {
+        if (clazz == null) {
+            return false;
+        }
+        Boolean match = hierarchyMatches.get(clazz);
+        if (match != null) {
+            return match;
+        }
+        match = isDeclaringClassMatch(clazz) || isHierarchyMatch(clazz.getSuperclass());
+        if (!match) {
+            for (Class<?> iface : clazz.getInterfaces()) {
+                if (isHierarchyMatch(iface)) {
+                    match = true;
+                    break;
+                }
+            }
+        }
+        hierarchyMatches.put(clazz, match);
+        return match;
+    }
+
+    private boolean isDeclaringClassMatch(Class<?> clazz) {
+        return !AdviceMatcher
+                .getAdviceMatchers(clazz.getName(), getClassAnnotations(clazz), adviceIndex)
+                .isEmpty();
+    }
+
+    private List<String> getClassAnnotations(Class<?> clazz) {
+        if (!classAnnotationsNeeded) {
+            return ImmutableList.of();
+        }
+        List<String> classAnnotations = Lists.newArrayList();
+        try {
+            for (Annotation annotation : clazz.getDeclaredAnnotations()) {
+                // same form as the class annotations collected by ClassAnalyzer
+                classAnnotations.add(
+                        'L' + annotation.annotationType().getName().replace('.', '/') + ';');
+            }
+        } catch (Throwable t) {
+            // e.g. annotation type is not available from the class loader, in which case it is
+            // also not available to the advice
+            logger.debug(t.getMessage(), t);
+        }
+        return classAnnotations;
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2015 the original author or authors.
+ * Copyright 2012-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,6 +16,7 @@
 package org.glowroot.agent.weaving;
 
 import java.lang.reflect.Modifier;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
@@ -43,10 +44,10 @@ abstract class AnalyzedClass {
         return Modifier.isAbstract(modifiers());
     }
 
-    boolean hasReweavableAdvice() {
+    boolean hasAnyAdvice(Set<Advice> advisors) {
         for (AnalyzedMethod analyzedMethod : analyzedMethods()) {
             for (Advice advice : analyzedMethod.advisors()) {
-                if (advice.reweavable()) {
+                if (advisors.contains(advice)) {
                     return true;
                 }
             }
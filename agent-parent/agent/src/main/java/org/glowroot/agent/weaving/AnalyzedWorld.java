@@ -18,12 +18,15 @@ package org.glowroot.agent.weaving;
 import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.net.URL;
 import java.security.CodeSource;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -45,6 +48,7 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.advicegen.AdviceGenerator;
 import org.glowroot.agent.util.Reflections;
+import org.glowroot.agent.weaving.AnalyzedWorldSnapshot.SuperAnalyzedClasses;
 import org.glowroot.agent.weaving.ClassLoaders.LazyDefinedClass;
 import org.glowroot.common.config.InstrumentationConfig;
 import org.glowroot.common.util.Styles;
@@ -55,6 +59,12 @@ public class AnalyzedWorld {
 
     private static final Method findLoadedClassMethod;
 
+    private static final boolean FAST_REJECT_DISABLED =
+            Boolean.getBoolean("glowroot.internal.weaving.disableFastReject");
+
+    private static final byte[] INSTRUMENT_ANNOTATION_MARKER =
+            "Lorg/glowroot/agent/api/Instrument$".getBytes(Charsets.UTF_8);
+
     static {
         try {
             findLoadedClassMethod = Reflections.getDeclaredMethod(ClassLoader.class,
@@ -92,20 +102,36 @@ public class AnalyzedWorld {
 
     private final @Nullable ExtraBootResourceFinder extraBootResourceFinder;
 
+    private final @Nullable AnalyzedWorldSnapshot snapshot;
+
+    private final @Nullable LazyAdvisors lazyAdvisors;
+
+    // index over the current advisors, rebuilt on first use after the advisors change (see
+    // AdviceCache.updateAdvisors())
+    private volatile @Nullable AdviceIndex adviceIndex;
+
+    // bloom filter over the current advisors, rebuilt on first use after the advisors change, which
+    // also drops the carriers accumulated so far (these only short cut the hierarchy check)
+    private volatile @Nullable AdviceBloomFilter adviceBloomFilter;
+
     public AnalyzedWorld(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
-            List<MixinType> mixinTypes, @Nullable ExtraBootResourceFinder extraBootResourceFinder) {
+            List<MixinType> mixinTypes, @Nullable ExtraBootResourceFinder extraBootResourceFinder,
+            @Nullable AnalyzedWorldSnapshot snapshot, @Nullable LazyAdvisors lazyAdvisors) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
         this.extraBootResourceFinder = extraBootResourceFinder;
+        this.snapshot = snapshot;
+        this.lazyAdvisors = lazyAdvisors;
     }
 
-    public List<Class<?>> getClassesWithReweavableAdvice(boolean remove) {
+    // returns the classes that were woven with any of the given advice
+    public List<Class<?>> getClassesWithAdvice(Set<Advice> advisors, boolean remove) {
         List<Class<?>> classes = Lists.newArrayList();
         for (ClassLoader loader : getClassLoaders()) {
-            classes.addAll(getClassesWithReweavableAdvice(loader, remove));
+            classes.addAll(getClassesWithAdvice(loader, advisors, remove));
         }
-        classes.addAll(getClassesWithReweavableAdvice(null, remove));
+        classes.addAll(getClassesWithAdvice(null, advisors, remove));
         return classes;
     }
 
@@ -129,6 +155,54 @@ public class AnalyzedWorld {
     void add(AnalyzedClass analyzedClass, @Nullable ClassLoader loader) {
         ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses = getAnalyzedClasses(loader);
         loaderAnalyzedClasses.put(analyzedClass.name(), analyzedClass);
+        addCarrierIfNecessary(analyzedClass);
+    }
+
+    // returns the analyzed class if the class cannot possibly need weaving, which is determined
+    // using only the class file header and constant pool (see AdviceBloomFilter) plus the already
+    // analyzed super types, otherwise returns null
+    //
+    // the returned analyzed class is the same as what ClassAnalyzer produces for a class that short
+    // circuits before analyzing methods
+    @Nullable
+    AnalyzedClass tryFastReject(List<Advice> advisors, byte[] classBytes,
+            @Nullable ClassLoader loader) {
+        if (FAST_REJECT_DISABLED) {
+            return null;
+        }
+        ClassReader cr = new ClassReader(classBytes);
+        String internalName = cr.getClassName();
+        String superInternalName = cr.getSuperName();
+        String[] interfaceInternalNames = cr.getInterfaces();
+        if (getAdviceBloomFilter(advisors).mayMatch(cr, internalName, superInternalName,
+                interfaceInternalNames)) {
+            return null;
+        }
+        int access = cr.getAccess();
+        String superName = ClassNames.fromInternalName(superInternalName);
+        ImmutableList<String> interfaceNames =
+                ClassNames.fromInternalNames(Arrays.asList(interfaceInternalNames));
+        // super types are not part of the analysis of interfaces (see ClassAnalyzer)
+        if (!Modifier.isInterface(access)) {
+            if (!isKnownAdviceFreeHierarchy(superName, loader)) {
+                return null;
+            }
+            for (String interfaceName : interfaceNames) {
+                if (!isKnownAdviceFreeHierarchy(interfaceName, loader)) {
+                    return null;
+                }
+            }
+        }
+        // checked last since it scans the entire class bytes (see mergeInstrumentAnnotations())
+        if (Bytes.indexOf(classBytes, INSTRUMENT_ANNOTATION_MARKER) != -1) {
+            return null;
+        }
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(access)
+                .name(ClassNames.fromInternalName(internalName))
+                .superName(superName)
+                .addAllInterfaceNames(interfaceNames)
+                .build();
     }
 
     // it's ok if there are duplicates in the returned list (e.g. an interface that appears twice
@@ -147,10 +221,23 @@ public class AnalyzedWorld {
         return getOrCreateAnalyzedClass(className, loader);
     }
 
+    AdviceIndex getAdviceIndex(List<Advice> advisors) {
+        AdviceIndex adviceIndex = this.adviceIndex;
+        if (adviceIndex != null && adviceIndex.getAdvisors() == advisors) {
+            return adviceIndex;
+        }
+        adviceIndex = new AdviceIndex(advisors);
+        if (advisors == this.advisors.get()) {
+            this.adviceIndex = adviceIndex;
+        }
+        // otherwise the advisors include advisors from @Instrument annotations (see
+        // mergeInstrumentAnnotations()), which is rare enough that it is not worth keeping
+        return adviceIndex;
+    }
+
     List<Advice> mergeInstrumentAnnotations(List<Advice> advisors, byte[] classBytes,
             @Nullable ClassLoader loader, String className) {
-        byte[] marker = "Lorg/glowroot/agent/api/Instrument$".getBytes(Charsets.UTF_8);
-        if (Bytes.indexOf(classBytes, marker) == -1) {
+        if (Bytes.indexOf(classBytes, INSTRUMENT_ANNOTATION_MARKER) == -1) {
             return advisors;
         }
         InstrumentationSeekerClassVisitor cv = new InstrumentationSeekerClassVisitor();
@@ -243,15 +330,69 @@ public class AnalyzedWorld {
             // (rare) concurrent AnalyzedClass creation, use the one that made it into the map
             return existingAnalyzedClass;
         }
+        addCarrierIfNecessary(analyzedClass);
         return analyzedClass;
     }
 
-    private List<Class<?>> getClassesWithReweavableAdvice(@Nullable ClassLoader loader,
-            boolean remove) {
+    // same lookup as getOrCreateAnalyzedClass(), but never reads class files, and returns false
+    // if any class in the hierarchy has not been analyzed yet
+    private boolean isKnownAdviceFreeHierarchy(@Nullable String className,
+            @Nullable ClassLoader loader) {
+        if (className == null || className.equals("java.lang.Object")) {
+            // same as getAnalyzedHierarchy()
+            return true;
+        }
+        ClassLoader analyzedClassLoader = getAnalyzedLoader(className, loader);
+        AnalyzedClass analyzedClass = getAnalyzedClasses(analyzedClassLoader).get(className);
+        if (analyzedClass == null && loader != analyzedClassLoader) {
+            analyzedClass = getAnalyzedClasses(loader).get(className);
+        }
+        if (analyzedClass == null || isCarrier(analyzedClass)) {
+            return false;
+        }
+        if (!isKnownAdviceFreeHierarchy(analyzedClass.superName(), loader)) {
+            return false;
+        }
+        for (String interfaceName : analyzedClass.interfaceNames()) {
+            if (!isKnownAdviceFreeHierarchy(interfaceName, loader)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private AdviceBloomFilter getAdviceBloomFilter(List<Advice> advisors) {
+        AdviceBloomFilter adviceBloomFilter = this.adviceBloomFilter;
+        if (adviceBloomFilter != null && adviceBloomFilter.getAdvisors() == advisors) {
+            return adviceBloomFilter;
+        }
+        adviceBloomFilter =
+                AdviceBloomFilter.create(getAdviceIndex(advisors), shimTypes, mixinTypes);
+        if (advisors == this.advisors.get()) {
+            this.adviceBloomFilter = adviceBloomFilter;
+        }
+        return adviceBloomFilter;
+    }
+
+    private void addCarrierIfNecessary(AnalyzedClass analyzedClass) {
+        AdviceBloomFilter adviceBloomFilter = this.adviceBloomFilter;
+        if (adviceBloomFilter != null && isCarrier(analyzedClass)) {
+            adviceBloomFilter.addCarrier(analyzedClass.name());
+        }
+    }
+
+    // whether the class passes advice, shims or mixins on to its sub classes
+    private static boolean isCarrier(AnalyzedClass analyzedClass) {
+        return !analyzedClass.analyzedMethods().isEmpty() || !analyzedClass.shimTypes().isEmpty()
+                || !analyzedClass.mixinTypes().isEmpty();
+    }
+
+    private List<Class<?>> getClassesWithAdvice(@Nullable ClassLoader loader,
+            Set<Advice> advisors, boolean remove) {
         List<Class<?>> classes = Lists.newArrayList();
         ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses = getAnalyzedClasses(loader);
         for (Entry<String, AnalyzedClass> innerEntry : loaderAnalyzedClasses.entrySet()) {
-            if (innerEntry.getValue().hasReweavableAdvice()) {
+            if (innerEntry.getValue().hasAnyAdvice(advisors)) {
                 try {
                     classes.add(Class.forName(innerEntry.getKey(), false, loader));
                 } catch (ClassNotFoundException e) {
@@ -293,9 +434,17 @@ public class AnalyzedWorld {
         return analyzedLoader;
     }
 
+    void activateLazyAdvisors(String internalName) {
+        if (lazyAdvisors != null) {
+            lazyAdvisors.activateFor(internalName);
+        }
+    }
+
     private AnalyzedClass createAnalyzedClass(String className, @Nullable ClassLoader loader)
             throws ClassNotFoundException, IOException {
-        String path = ClassNames.toInternalName(className) + ".class";
+        String internalName = ClassNames.toInternalName(className);
+        activateLazyAdvisors(internalName);
+        String path = internalName + ".class";
         URL url;
         if (loader == null) {
             // null loader means the bootstrap class loader
@@ -319,18 +468,55 @@ public class AnalyzedWorld {
             // org.codehaus.groovy.runtime.callsite.CallSiteClassLoader
             return createAnalyzedClassPlanB(className, loader);
         }
+        List<Advice> currentAdvisors = this.advisors.get();
+        if (snapshot != null) {
+            AnalyzedClass analyzedClass = snapshot.getAnalyzedClass(className, url,
+                    currentAdvisors, new SuperAnalyzedClassesImpl(loader));
+            if (analyzedClass != null) {
+                return analyzedClass;
+            }
+        }
         byte[] bytes = Resources.toByteArray(url);
-        List<Advice> advisors =
-                mergeInstrumentAnnotations(this.advisors.get(), bytes, loader, className);
-        ThinClassVisitor accv = new ThinClassVisitor();
-        new ClassReader(bytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
-        ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors, shimTypes,
-                mixinTypes, loader, this, null);
-        if (classAnalyzer.isShortCircuitBeforeAnalyzeMethods()) {
-            return classAnalyzer.getAnalyzedClass();
-        }
-        classAnalyzer.analyzeMethods();
-        return classAnalyzer.getAnalyzedClass();
+        AnalyzedClass analyzedClass = tryFastReject(currentAdvisors, bytes, loader);
+        List<Advice> advisors = currentAdvisors;
+        List<AnalyzedClass> superAnalyzedClasses = null;
+        if (analyzedClass == null) {
+            advisors = mergeInstrumentAnnotations(currentAdvisors, bytes, loader, className);
+            ThinClassVisitor accv = new ThinClassVisitor();
+            new ClassReader(bytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+            ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors,
+                    shimTypes, mixinTypes, loader, this, null);
+            if (!classAnalyzer.isShortCircuitBeforeAnalyzeMethods()) {
+                classAnalyzer.analyzeMethods();
+            }
+            analyzedClass = classAnalyzer.getAnalyzedClass();
+            superAnalyzedClasses = classAnalyzer.getSuperAnalyzedClasses();
+        }
+        if (snapshot != null) {
+            if (superAnalyzedClasses == null) {
+                superAnalyzedClasses = getSuperAnalyzedClasses(analyzedClass, loader);
+            }
+            snapshot.putAnalyzedClass(analyzedClass, url, advisors, superAnalyzedClasses);
+        }
+        return analyzedClass;
+    }
+
+    // same as ClassAnalyzer.getSuperAnalyzedClasses()
+    private List<AnalyzedClass> getSuperAnalyzedClasses(AnalyzedClass analyzedClass,
+            @Nullable ClassLoader loader) {
+        if (analyzedClass.isInterface()) {
+            // super types are not part of the analysis of interfaces (see ClassAnalyzer)
+            return ImmutableList.of();
+        }
+        ParseContext parseContext = ImmutableParseContext.of(analyzedClass.name(), null);
+        List<AnalyzedClass> superAnalyzedClasses = Lists.newArrayList();
+        superAnalyzedClasses
+                .addAll(getAnalyzedHierarchy(analyzedClass.superName(), loader, parseContext));
+        for (String interfaceName : analyzedClass.interfaceNames()) {
+            superAnalyzedClasses
+                    .addAll(getAnalyzedHierarchy(interfaceName, loader, parseContext));
+        }
+        return superAnalyzedClasses;
     }
 
     private @Nullable AnalyzedClass tryToReuseFromParentLoader(String className,
@@ -374,7 +560,7 @@ public class AnalyzedWorld {
         }
         // the class loaded by Class.forName() above was not previously loaded which means
         // weaving was bypassed since ClassFileTransformer.transform() is not re-entrant
-        analyzedClass = createAnalyzedClassPlanC(clazz, advisors.get());
+        analyzedClass = createAnalyzedClassPlanC(clazz, getAdviceIndex(advisors.get()));
         if (analyzedClass.isInterface()) {
             return analyzedClass;
         }
@@ -420,7 +606,8 @@ public class AnalyzedWorld {
     }
 
     // now that the type has been loaded anyways, build the analyzed class via reflection
-    private static AnalyzedClass createAnalyzedClassPlanC(Class<?> clazz, List<Advice> advisors) {
+    private static AnalyzedClass createAnalyzedClassPlanC(Class<?> clazz,
+            AdviceIndex adviceIndex) {
         ImmutableAnalyzedClass.Builder classBuilder = ImmutableAnalyzedClass.builder();
         classBuilder.modifiers(clazz.getModifiers());
         classBuilder.name(clazz.getName());
@@ -436,7 +623,7 @@ public class AnalyzedWorld {
             classAnnotations.add(annotation.annotationType().getName());
         }
         List<AdviceMatcher> adviceMatchers =
-                AdviceMatcher.getAdviceMatchers(clazz.getName(), classAnnotations, advisors);
+                AdviceMatcher.getAdviceMatchers(clazz.getName(), classAnnotations, adviceIndex);
         for (Method method : clazz.getDeclaredMethods()) {
             if (method.isSynthetic()) {
                 // don't add synthetic methods to the analyzed model
@@ -485,6 +672,20 @@ public class AnalyzedWorld {
         return matchingAdvisors;
     }
 
+    private class SuperAnalyzedClassesImpl implements SuperAnalyzedClasses {
+
+        private final @Nullable ClassLoader loader;
+
+        private SuperAnalyzedClassesImpl(@Nullable ClassLoader loader) {
+            this.loader = loader;
+        }
+
+        @Override
+        public List<AnalyzedClass> get(AnalyzedClass analyzedClass) {
+            return getSuperAnalyzedClasses(analyzedClass, loader);
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     abstract static class ParseContext {
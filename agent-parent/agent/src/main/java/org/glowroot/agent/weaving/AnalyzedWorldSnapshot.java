@@ -0,0 +1,546 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.util.Version;
+
+// persistent snapshot of the analyzed classes that AnalyzedWorld creates when it reads super
+// classes (and interfaces) that have not been loaded yet, so that on jvm restart these can be
+// restored instead of each one being read via ClassLoader.getResource() and re-analyzed
+//
+// only classes from jar files are stored, one snapshot file per jar file, keyed by the jar file's
+// path, size and last modified time, so that a changed jar file is simply re-analyzed, and each
+// snapshot file is only read on first lookup of a class from that jar file (the snapshot file name
+// starts with a hash of just the jar file's path, so that the snapshot files from previous
+// versions of the same jar file can be found and deleted when writing, see deleteStaleFiles())
+//
+// similar to WeavingCache, snapshot files are stored under a directory named after the fingerprint
+// of the advice set (and glowroot version), since the analyzed classes reference the advice that
+// matched their methods (stored as indexes into the advice list), and the directories of previous
+// advice sets (e.g. after a reweave) are deleted on the next write
+//
+// the analysis of a class also depends on its super classes, which may live in other jar files, so
+// each analyzed class is stored along with a digest of its analyzed super class hierarchy (see
+// WeavingCache.getHierarchyDigest()), which is re-validated on lookup
+//
+// in order to not keep a second copy of each analyzed class for the life of the jvm, an analyzed
+// class is released from the snapshot once it is handed to AnalyzedWorld (which keeps its own
+// copy), and newly analyzed classes are only kept until they are written (write() merges them into
+// the existing snapshot file)
+//
+// snapshot files are only read from inside ClassFileTransformer.transform(), so reading sticks to
+// jdk classes (see PreInitializeWeavingClasses), and are written periodically from a background
+// thread (see write())
+public class AnalyzedWorldSnapshot {
+
+    private static final Logger logger = LoggerFactory.getLogger(AnalyzedWorldSnapshot.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File baseDir;
+    private final Supplier<List<Advice>> advisors;
+    private final ImmutableList<ShimType> shimTypes;
+    private final ImmutableList<MixinType> mixinTypes;
+    private final String version;
+
+    // cloned for each use since MessageDigest is not thread safe, and MessageDigest.getInstance()
+    // is not used inside of transform() since it can trigger loading of security provider classes
+    private final MessageDigest messageDigest;
+
+    private volatile Generation generation;
+
+    public AnalyzedWorldSnapshot(File baseDir, Supplier<List<Advice>> advisors,
+            List<ShimType> shimTypes, List<MixinType> mixinTypes)
+            throws NoSuchAlgorithmException, CloneNotSupportedException {
+        this.baseDir = baseDir;
+        this.advisors = advisors;
+        this.shimTypes = ImmutableList.copyOf(shimTypes);
+        this.mixinTypes = ImmutableList.copyOf(mixinTypes);
+        version = Version.getVersion(AnalyzedWorldSnapshot.class);
+        messageDigest = MessageDigest.getInstance("SHA-1");
+        // verify up front that the message digest can be cloned, see newMessageDigest()
+        messageDigest.clone();
+        generation = createGeneration(advisors.get());
+        WeavingCache.deleteOtherFingerprintDirs(baseDir, generation.dir);
+    }
+
+    // writes the snapshot files for the jar files that have newly analyzed classes
+    public void write() {
+        Generation generation = this.generation;
+        // the advice set has changed since startup if there has been a reweave
+        WeavingCache.deleteOtherFingerprintDirs(baseDir, generation.dir);
+        Map<Object, Integer> indexes = getIndexes(generation.advisors, shimTypes, mixinTypes);
+        for (JarSnapshot jarSnapshot : generation.jarSnapshots.values()) {
+            File file = jarSnapshot.file;
+            if (file == null || jarSnapshot.newEntries.isEmpty()) {
+                continue;
+            }
+            // make sure previously stored analyzed classes that have not been looked up (or that
+            // have already been released) during this jvm run are not lost
+            Map<String, Entry> entries = Maps.newLinkedHashMap();
+            if (file.exists()) {
+                try {
+                    for (Entry entry : readEntries(file, generation.advisors, shimTypes,
+                            mixinTypes)) {
+                        entries.put(entry.analyzedClass.name(), entry);
+                    }
+                } catch (IOException e) {
+                    logger.debug(e.getMessage(), e);
+                }
+            }
+            Map<String, Entry> newEntries = Maps.newHashMap(jarSnapshot.newEntries);
+            entries.putAll(newEntries);
+            write(file, entries.values(), indexes);
+            for (Map.Entry<String, Entry> newEntry : newEntries.entrySet()) {
+                jarSnapshot.newEntries.remove(newEntry.getKey(), newEntry.getValue());
+            }
+        }
+    }
+
+    // the analyzed class is released from the snapshot on a hit, since the caller keeps it from
+    // then on
+    @Nullable
+    AnalyzedClass getAnalyzedClass(String className, URL url, List<Advice> advisors,
+            SuperAnalyzedClasses superAnalyzedClasses) {
+        Generation generation = getGeneration(advisors);
+        if (generation == null) {
+            return null;
+        }
+        JarSnapshot jarSnapshot = getJarSnapshot(generation, url);
+        if (jarSnapshot == null) {
+            return null;
+        }
+        jarSnapshot.ensureLoaded(advisors, shimTypes, mixinTypes);
+        Entry entry = jarSnapshot.entries.remove(className);
+        if (entry == null) {
+            return null;
+        }
+        String hierarchyDigest = WeavingCache.getHierarchyDigest(newMessageDigest(),
+                superAnalyzedClasses.get(entry.analyzedClass));
+        if (!hierarchyDigest.equals(entry.hierarchyDigest)) {
+            // a super class has changed (or is no longer found) since the entry was stored
+            return null;
+        }
+        return entry.analyzedClass;
+    }
+
+    void putAnalyzedClass(AnalyzedClass analyzedClass, URL url, List<Advice> advisors,
+            List<AnalyzedClass> superAnalyzedClasses) {
+        Generation generation = getGeneration(advisors);
+        if (generation == null) {
+            return;
+        }
+        JarSnapshot jarSnapshot = getJarSnapshot(generation, url);
+        if (jarSnapshot == null) {
+            return;
+        }
+        String hierarchyDigest =
+                WeavingCache.getHierarchyDigest(newMessageDigest(), superAnalyzedClasses);
+        jarSnapshot.newEntries.put(analyzedClass.name(),
+                new Entry(analyzedClass, hierarchyDigest));
+    }
+
+    private @Nullable Generation getGeneration(List<Advice> advisors) {
+        Generation generation = this.generation;
+        if (generation.advisors != advisors) {
+            // advice set has changed (or includes advisors from @Instrument annotations, see
+            // AnalyzedWorld.mergeInstrumentAnnotations())
+            if (advisors != this.advisors.get()) {
+                // @Instrument annotation advisors are derived from the class bytes, and cannot be
+                // referenced from the snapshot
+                return null;
+            }
+            generation = createGeneration(advisors);
+            this.generation = generation;
+        }
+        return generation;
+    }
+
+    private Generation createGeneration(List<Advice> advisors) {
+        String dirName = WeavingCache.createFingerprint(newMessageDigest(), version, advisors,
+                shimTypes, mixinTypes);
+        return new Generation(advisors, new File(baseDir, dirName));
+    }
+
+    private @Nullable JarSnapshot getJarSnapshot(Generation generation, URL url) {
+        // e.g. jar:file:/path/to/app.jar!/com/example/Foo.class, or in the case of nested jar
+        // files, jar:file:/path/to/app.jar!/lib/lib.jar!/com/example/Foo.class
+        String externalForm = url.toExternalForm();
+        if (!externalForm.startsWith("jar:file:")) {
+            return null;
+        }
+        int index = externalForm.lastIndexOf("!/");
+        if (index == -1) {
+            return null;
+        }
+        String jarKey = externalForm.substring("jar:".length(), index);
+        JarSnapshot jarSnapshot = generation.jarSnapshots.get(jarKey);
+        if (jarSnapshot == null) {
+            jarSnapshot = new JarSnapshot(getSnapshotFile(generation.dir, jarKey));
+            JarSnapshot existingJarSnapshot =
+                    generation.jarSnapshots.putIfAbsent(jarKey, jarSnapshot);
+            if (existingJarSnapshot != null) {
+                jarSnapshot = existingJarSnapshot;
+            }
+        }
+        if (jarSnapshot.file == null) {
+            return null;
+        }
+        return jarSnapshot;
+    }
+
+    // returns null if the jar file cannot be identified, in which case the jar file is not
+    // considered stable
+    private @Nullable File getSnapshotFile(File dir, String jarKey) {
+        int index = jarKey.indexOf("!/");
+        String jarFilePath = jarKey.substring("file:".length(), index == -1 ? jarKey.length()
+                : index);
+        if (jarFilePath.indexOf('%') != -1) {
+            // not worth decoding url escapes here since this is called from inside transform()
+            return null;
+        }
+        File jarFile = new File(jarFilePath);
+        if (!jarFile.isFile()) {
+            return null;
+        }
+        String text = jarKey + '\n' + jarFile.length() + '\n' + jarFile.lastModified();
+        String name = WeavingCache.toHex(newMessageDigest().digest(jarKey.getBytes(UTF_8))) + '-'
+                + WeavingCache.toHex(newMessageDigest().digest(text.getBytes(UTF_8)));
+        return new File(dir, name);
+    }
+
+    private MessageDigest newMessageDigest() {
+        try {
+            return (MessageDigest) messageDigest.clone();
+        } catch (CloneNotSupportedException e) {
+            // this has already been verified in the constructor
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // also used by WeavingCache, which stores analyzed classes in the same format
+    static Map<Object, Integer> getIndexes(List<Advice> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        // identity since the analyzed classes reference the same instances
+        Map<Object, Integer> indexes = new IdentityHashMap<Object, Integer>();
+        putIndexes(indexes, advisors);
+        putIndexes(indexes, shimTypes);
+        putIndexes(indexes, mixinTypes);
+        return indexes;
+    }
+
+    private static void putIndexes(Map<Object, Integer> indexes, List<?> list) {
+        for (int i = 0; i < list.size(); i++) {
+            indexes.put(list.get(i), i);
+        }
+    }
+
+    // writes to a temporary file first and then renames it, so that a partially written file is
+    // never read
+    private static void write(File file, Iterable<Entry> entries, Map<Object, Integer> indexes) {
+        try {
+            File dir = file.getParentFile();
+            if (!dir.exists() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+            }
+            List<Entry> writableEntries = Lists.newArrayList();
+            for (Entry entry : entries) {
+                if (isWritable(entry.analyzedClass, indexes)) {
+                    writableEntries.add(entry);
+                }
+            }
+            File tmpFile = File.createTempFile(file.getName() + ".", ".tmp", dir);
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeInt(writableEntries.size());
+                for (Entry entry : writableEntries) {
+                    out.writeUTF(entry.hierarchyDigest);
+                    writeAnalyzedClass(out, entry.analyzedClass, indexes);
+                }
+            } finally {
+                out.close();
+            }
+            if (file.exists() && !file.delete()) {
+                // renameTo() does not replace existing files on all platforms
+                logger.debug("unable to delete analyzed world snapshot file: {}", file);
+            }
+            if (!tmpFile.renameTo(file) && !tmpFile.delete()) {
+                logger.debug("unable to delete analyzed world snapshot file: {}", tmpFile);
+            }
+            deleteStaleFiles(file);
+        } catch (IOException e) {
+            logger.warn("unable to write analyzed world snapshot file {}: {}", file,
+                    e.getMessage());
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    // deletes the snapshot files from previous versions (size or last modified time) of the same
+    // jar file, which would otherwise never be read again
+    private static void deleteStaleFiles(File file) {
+        String name = file.getName();
+        String prefix = name.substring(0, name.indexOf('-') + 1);
+        File[] files = file.getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            String fileName = f.getName();
+            if (fileName.startsWith(prefix) && !fileName.equals(name)
+                    && !fileName.endsWith(".tmp") && !f.delete()) {
+                logger.debug("unable to delete stale analyzed world snapshot file: {}", f);
+            }
+        }
+    }
+
+    // analyzed classes that reference advice from @Instrument annotations cannot be written
+    static boolean isWritable(AnalyzedClass analyzedClass, Map<Object, Integer> indexes) {
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            if (!indexes.keySet().containsAll(analyzedMethod.advisors())
+                    || !indexes.keySet().containsAll(analyzedMethod.declaredOnlyAdvisors())) {
+                return false;
+            }
+        }
+        return indexes.keySet().containsAll(analyzedClass.shimTypes())
+                && indexes.keySet().containsAll(analyzedClass.mixinTypes());
+    }
+
+    static void writeAnalyzedClass(DataOutputStream out, AnalyzedClass analyzedClass,
+            Map<Object, Integer> indexes) throws IOException {
+        out.writeInt(analyzedClass.modifiers());
+        out.writeUTF(analyzedClass.name());
+        writeNullableString(out, analyzedClass.superName());
+        writeStrings(out, analyzedClass.interfaceNames());
+        out.writeInt(analyzedClass.analyzedMethods().size());
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            out.writeUTF(analyzedMethod.name());
+            writeStrings(out, analyzedMethod.parameterTypes());
+            out.writeUTF(analyzedMethod.returnType());
+            out.writeInt(analyzedMethod.modifiers());
+            writeNullableString(out, analyzedMethod.signature());
+            writeStrings(out, analyzedMethod.exceptions());
+            writeIndexes(out, analyzedMethod.advisors(), indexes);
+            writeIndexes(out, analyzedMethod.declaredOnlyAdvisors(), indexes);
+        }
+        writeIndexes(out, analyzedClass.shimTypes(), indexes);
+        writeIndexes(out, analyzedClass.mixinTypes(), indexes);
+    }
+
+    private static void writeNullableString(DataOutputStream out, @Nullable String str)
+            throws IOException {
+        out.writeBoolean(str != null);
+        if (str != null) {
+            out.writeUTF(str);
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings)
+            throws IOException {
+        out.writeInt(strings.size());
+        for (String str : strings) {
+            out.writeUTF(str);
+        }
+    }
+
+    private static void writeIndexes(DataOutputStream out, List<?> list,
+            Map<Object, Integer> indexes) throws IOException {
+        out.writeInt(list.size());
+        for (Object item : list) {
+            Integer index = indexes.get(item);
+            // this has already been verified by isWritable()
+            out.writeInt(index == null ? -1 : index);
+        }
+    }
+
+    private static List<Entry> readEntries(File file, List<Advice> advisors,
+            List<ShimType> shimTypes, List<MixinType> mixinTypes) throws IOException {
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int count = in.readInt();
+            List<Entry> entries = Lists.newArrayListWithCapacity(count);
+            for (int i = 0; i < count; i++) {
+                String hierarchyDigest = in.readUTF();
+                entries.add(new Entry(readAnalyzedClass(in, advisors, shimTypes, mixinTypes),
+                        hierarchyDigest));
+            }
+            return entries;
+        } finally {
+            in.close();
+        }
+    }
+
+    static AnalyzedClass readAnalyzedClass(DataInputStream in, List<Advice> advisors,
+            List<ShimType> shimTypes, List<MixinType> mixinTypes) throws IOException {
+        ImmutableAnalyzedClass.Builder classBuilder = ImmutableAnalyzedClass.builder()
+                .modifiers(in.readInt())
+                .name(in.readUTF())
+                .superName(readNullableString(in))
+                .addAllInterfaceNames(readStrings(in));
+        int methodCount = in.readInt();
+        for (int i = 0; i < methodCount; i++) {
+            classBuilder.addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                    .name(in.readUTF())
+                    .addAllParameterTypes(readStrings(in))
+                    .returnType(in.readUTF())
+                    .modifiers(in.readInt())
+                    .signature(readNullableString(in))
+                    .addAllExceptions(readStrings(in))
+                    .addAllAdvisors(readIndexes(in, advisors))
+                    .addAllDeclaredOnlyAdvisors(readIndexes(in, advisors))
+                    .build());
+        }
+        return classBuilder.addAllShimTypes(readIndexes(in, shimTypes))
+                .addAllMixinTypes(readIndexes(in, mixinTypes))
+                .build();
+    }
+
+    private static @Nullable String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> strings = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+
+    private static <T> List<T> readIndexes(DataInputStream in, List<T> list) throws IOException {
+        int count = in.readInt();
+        List<T> items = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            int index = in.readInt();
+            if (index < 0 || index >= list.size()) {
+                throw new IOException("Invalid index: " + index);
+            }
+            items.add(list.get(index));
+        }
+        return items;
+    }
+
+    private static class Generation {
+
+        private final List<Advice> advisors;
+        private final File dir;
+        private final ConcurrentMap<String, JarSnapshot> jarSnapshots =
+                new ConcurrentHashMap<String, JarSnapshot>();
+
+        private Generation(List<Advice> advisors, File dir) {
+            this.advisors = advisors;
+            this.dir = dir;
+        }
+    }
+
+    // this is used (instead of passing AnalyzedWorld) since the super classes are looked up via
+    // the class loader that is being analyzed
+    interface SuperAnalyzedClasses {
+        List<AnalyzedClass> get(AnalyzedClass analyzedClass);
+    }
+
+    private static class Entry {
+
+        private final AnalyzedClass analyzedClass;
+        private final String hierarchyDigest;
+
+        private Entry(AnalyzedClass analyzedClass, String hierarchyDigest) {
+            this.analyzedClass = analyzedClass;
+            this.hierarchyDigest = hierarchyDigest;
+        }
+    }
+
+    private static class JarSnapshot {
+
+        // null if the jar file cannot be identified (see getSnapshotFile())
+        private final @Nullable File file;
+        // entries read from the snapshot file that have not been looked up yet
+        private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+        // entries that have not been written yet
+        private final ConcurrentMap<String, Entry> newEntries =
+                new ConcurrentHashMap<String, Entry>();
+
+        private volatile boolean loaded;
+
+        private JarSnapshot(@Nullable File file) {
+            this.file = file;
+        }
+
+        private void ensureLoaded(List<Advice> advisors, List<ShimType> shimTypes,
+                List<MixinType> mixinTypes) {
+            if (loaded) {
+                return;
+            }
+            synchronized (this) {
+                if (loaded) {
+                    return;
+                }
+                if (file != null && file.exists()) {
+                    load(file, advisors, shimTypes, mixinTypes);
+                }
+                loaded = true;
+            }
+        }
+
+        private void load(File file, List<Advice> advisors, List<ShimType> shimTypes,
+                List<MixinType> mixinTypes) {
+            List<Entry> loadedEntries;
+            try {
+                loadedEntries = readEntries(file, advisors, shimTypes, mixinTypes);
+            } catch (IOException e) {
+                logger.warn("unable to read analyzed world snapshot file {}: {}", file,
+                        e.getMessage());
+                logger.debug(e.getMessage(), e);
+                return;
+            }
+            for (Entry entry : loadedEntries) {
+                // analyzed classes created during this jvm run (before loading) take precedence
+                if (!newEntries.containsKey(entry.analyzedClass.name())) {
+                    entries.putIfAbsent(entry.analyzedClass.name(), entry);
+                }
+            }
+        }
+    }
+}
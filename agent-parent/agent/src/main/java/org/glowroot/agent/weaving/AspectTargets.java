@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Type;
+
+import org.glowroot.agent.plugin.api.weaving.Mixin;
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+import org.glowroot.agent.plugin.api.weaving.Shim;
+
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ASM5;
+
+// the class names targeted by the @Pointcut classes nested in an aspect class, read directly from
+// the class bytes so that the aspect class does not need to be loaded in order to find out
+// whether it is needed
+public class AspectTargets {
+
+    private static final String POINTCUT_DESC = Type.getDescriptor(Pointcut.class);
+    private static final String SHIM_DESC = Type.getDescriptor(Shim.class);
+    private static final String MIXIN_DESC = Type.getDescriptor(Mixin.class);
+
+    private final ImmutableList<String> classNames;
+    private final ImmutableList<Pattern> classNamePatterns;
+
+    private AspectTargets(List<String> classNames, List<Pattern> classNamePatterns) {
+        this.classNames = ImmutableList.copyOf(classNames);
+        this.classNamePatterns = ImmutableList.copyOf(classNamePatterns);
+    }
+
+    public List<String> getClassNames() {
+        return classNames;
+    }
+
+    public List<Pattern> getClassNamePatterns() {
+        return classNamePatterns;
+    }
+
+    // returns null if the aspect cannot be loaded lazily, which is the case when it contains shims
+    // or mixins (these are part of the analysis of every class), or when any of its pointcuts does
+    // not match on the class name alone (class annotation only, or a method declaring class name
+    // which may already have been analyzed by the time the pointcut class name is seen)
+    public static @Nullable AspectTargets read(String aspectClassName, ClassLoader loader)
+            throws IOException {
+        AspectClassVisitor aspectClassVisitor = new AspectClassVisitor();
+        if (!accept(ClassNames.toInternalName(aspectClassName), loader, aspectClassVisitor)) {
+            return null;
+        }
+        if (!aspectClassVisitor.superName.equals("java/lang/Object")) {
+            // Class.getClasses() used to find the pointcut classes also returns inherited member
+            // classes
+            return null;
+        }
+        List<String> classNames = Lists.newArrayList();
+        List<Pattern> classNamePatterns = Lists.newArrayList();
+        for (String memberClassInternalName : aspectClassVisitor.memberClassInternalNames) {
+            MemberClassVisitor memberClassVisitor = new MemberClassVisitor();
+            if (!accept(memberClassInternalName, loader, memberClassVisitor)
+                    || memberClassVisitor.shimOrMixin) {
+                return null;
+            }
+            PointcutAnnotationVisitor pointcut = memberClassVisitor.pointcut;
+            if (pointcut == null) {
+                continue;
+            }
+            if (pointcut.className.isEmpty() || !pointcut.methodDeclaringClassName.isEmpty()) {
+                return null;
+            }
+            Pattern pattern = AdviceBuilder.buildPattern(pointcut.className);
+            if (pattern == null) {
+                classNames.add(pointcut.className);
+            } else {
+                classNamePatterns.add(pattern);
+            }
+        }
+        return new AspectTargets(classNames, classNamePatterns);
+    }
+
+    private static boolean accept(String internalName, ClassLoader loader, ClassVisitor cv)
+            throws IOException {
+        InputStream in = loader.getResourceAsStream(internalName + ".class");
+        if (in == null) {
+            return false;
+        }
+        byte[] bytes;
+        try {
+            bytes = ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+        new ClassReader(bytes).accept(cv,
+                ClassReader.SKIP_CODE + ClassReader.SKIP_DEBUG + ClassReader.SKIP_FRAMES);
+        return true;
+    }
+
+    private static class AspectClassVisitor extends ClassVisitor {
+
+        private final List<String> memberClassInternalNames = Lists.newArrayList();
+
+        private String name = "";
+        private String superName = "";
+
+        private AspectClassVisitor() {
+            super(ASM5);
+        }
+
+        @Override
+        public void visit(int version, int access, String name, @Nullable String signature,
+                @Nullable String superName, String /*@Nullable*/[] interfaces) {
+            this.name = name;
+            this.superName = superName == null ? "" : superName;
+        }
+
+        @Override
+        public void visitInnerClass(String name, @Nullable String outerName,
+                @Nullable String innerName, int access) {
+            // same as the public member classes returned by Class.getClasses()
+            if (this.name.equals(outerName) && (access & ACC_PUBLIC) != 0) {
+                memberClassInternalNames.add(name);
+            }
+        }
+    }
+
+    private static class MemberClassVisitor extends ClassVisitor {
+
+        private @Nullable PointcutAnnotationVisitor pointcut;
+        private boolean shimOrMixin;
+
+        private MemberClassVisitor() {
+            super(ASM5);
+        }
+
+        @Override
+        public @Nullable AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+            if (desc.equals(POINTCUT_DESC)) {
+                pointcut = new PointcutAnnotationVisitor();
+                return pointcut;
+            }
+            if (desc.equals(SHIM_DESC) || desc.equals(MIXIN_DESC)) {
+                shimOrMixin = true;
+            }
+            return null;
+        }
+    }
+
+    private static class PointcutAnnotationVisitor extends AnnotationVisitor {
+
+        private String className = "";
+        private String methodDeclaringClassName = "";
+
+        private PointcutAnnotationVisitor() {
+            super(ASM5);
+        }
+
+        @Override
+        public void visit(@Nullable String name, Object value) {
+            if ("className".equals(name)) {
+                className = (String) value;
+            } else if ("methodDeclaringClassName".equals(name)) {
+                methodDeclaringClassName = (String) value;
+            }
+        }
+    }
+}
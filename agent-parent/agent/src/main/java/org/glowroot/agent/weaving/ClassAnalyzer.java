@@ -1,5 +1,5 @@
 /*
- * Copyright 2015 the original author or authors.
+ * Copyright 2015-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -74,8 +74,8 @@ class ClassAnalyzer {
                 .name(className)
                 .superName(superClassName)
                 .addAllInterfaceNames(interfaceNames);
-        adviceMatchers =
-                AdviceMatcher.getAdviceMatchers(className, thinClass.annotations(), advisors);
+        adviceMatchers = AdviceMatcher.getAdviceMatchers(className, thinClass.annotations(),
+                analyzedWorld.getAdviceIndex(advisors));
         if (Modifier.isInterface(thinClass.access())) {
             superAnalyzedClasses = ImmutableList.of();
             matchedShimTypes = getMatchedShimTypes(shimTypes, className,
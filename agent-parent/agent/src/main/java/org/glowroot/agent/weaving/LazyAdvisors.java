@@ -0,0 +1,27 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+// advisors that are only added to the advisors supplier once a class they may match is seen
+//
+// activateFor() is called with the internal name of each class before any advice is matched
+// against that class (both for classes being woven and for classes analyzed as part of a super
+// class hierarchy), so activating advisors at that point never leaves a stale AnalyzedClass behind
+// in AnalyzedWorld
+public interface LazyAdvisors {
+
+    void activateFor(String internalName);
+}
@@ -243,6 +243,8 @@ public class PreInitializeWeavingClasses {
         types.add("com.google.common.primitives.Booleans");
         types.add("com.google.common.primitives.Bytes");
         types.add("com.google.common.primitives.Ints");
+        types.add("com.google.common.primitives.Ints$IntArrayAsList");
+        types.add("com.google.common.primitives.Longs");
         return types;
     }
 
@@ -258,7 +260,6 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.impl.WeavingTimerServiceImpl$NopWeavingTimer");
         types.add("org.glowroot.agent.model.CommonTimerImpl");
         types.add("org.glowroot.agent.model.NestedTimerMap");
-        types.add("org.glowroot.agent.model.NestedTimerMap$Entry");
         types.add("org.glowroot.agent.model.OptionalThreadContextImpl");
         types.add("org.glowroot.agent.model.ThreadContextImpl");
         types.add("org.glowroot.agent.model.ThreadContextPlus");
@@ -291,20 +292,32 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.plugin.api.weaving.Pointcut");
         types.add("org.glowroot.agent.plugin.api.weaving.Shim");
         types.add("org.glowroot.agent.util.Reflections");
+        types.add("org.glowroot.agent.util.StartupTimeline");
+        types.add("org.glowroot.agent.util.StartupTimeline$1");
+        types.add("org.glowroot.agent.util.StartupTimeline$LoaderWeaving");
+        types.add("org.glowroot.agent.util.StartupTimeline$WovenClass");
         types.add("org.glowroot.agent.util.Tickers");
         types.add("org.glowroot.agent.util.Tickers$DummyTicker");
         types.add("org.glowroot.agent.weaving.Advice");
         types.add("org.glowroot.agent.weaving.Advice$AdviceOrdering");
         types.add("org.glowroot.agent.weaving.Advice$AdviceParameter");
         types.add("org.glowroot.agent.weaving.AdviceAdapter");
+        types.add("org.glowroot.agent.weaving.AdviceBloomFilter");
         types.add("org.glowroot.agent.weaving.AdviceBuilder");
         types.add("org.glowroot.agent.weaving.AdviceBuilder$1");
         types.add("org.glowroot.agent.weaving.AdviceBuilder$AdviceConstructionException");
+        types.add("org.glowroot.agent.weaving.AdviceIndex");
         types.add("org.glowroot.agent.weaving.AdviceMatcher");
         types.add("org.glowroot.agent.weaving.AnalyzedClass");
         types.add("org.glowroot.agent.weaving.AnalyzedMethod");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld");
         types.add("org.glowroot.agent.weaving.AnalyzedWorld$ParseContext");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$SuperAnalyzedClassesImpl");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorldSnapshot");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorldSnapshot$Entry");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorldSnapshot$Generation");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorldSnapshot$JarSnapshot");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorldSnapshot$SuperAnalyzedClasses");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$ClassMetaHolder");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$MethodMetaHolder");
@@ -349,6 +362,7 @@ public class PreInitializeWeavingClasses {
                 + "$TraceEntryAnnotationVisitor");
         types.add("org.glowroot.agent.weaving.InstrumentationSeekerClassVisitor"
                 + "$TransactionAnnotationVisitor");
+        types.add("org.glowroot.agent.weaving.LazyAdvisors");
         types.add("org.glowroot.agent.weaving.MixinType");
         types.add("org.glowroot.agent.weaving.ParameterKind");
         types.add("org.glowroot.agent.weaving.ShimType");
@@ -360,11 +374,17 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.WeaverImpl");
         types.add("org.glowroot.agent.weaving.WeaverImpl$ComputeFramesClassWriter");
         types.add("org.glowroot.agent.weaving.WeaverImpl$JSRInlinerClassVisitor");
+        types.add("org.glowroot.agent.weaving.WeavingCache");
+        types.add("org.glowroot.agent.weaving.WeavingCache$CachedWovenClass");
+        types.add("org.glowroot.agent.weaving.WeavingCache$Fingerprint");
+        types.add("org.glowroot.agent.weaving.WeavingCache$Key");
         types.add("org.glowroot.agent.weaving.WeavingClassFileTransformer");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor");
+        types.add("org.glowroot.agent.weaving.WeavingClassVisitor$FrameDeduplicator");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$InitMixins");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$MethodMetaGroup");
         types.add("org.glowroot.agent.weaving.WeavingMethodVisitor");
+        types.add("org.glowroot.agent.weaving.WeavingMethodVisitor$CapturedFrame");
         types.add("org.glowroot.agent.weaving.WeavingMethodVisitor$CatchHandler");
         types.add("org.glowroot.agent.weaving.WeavingTimerService");
         types.add("org.glowroot.agent.weaving.WeavingTimerService$WeavingTimer");
@@ -374,6 +394,7 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.common.config.InstrumentationConfig");
         types.add("org.glowroot.common.config.InstrumentationConfig$CaptureKind");
         types.add("org.glowroot.common.config.InstrumentationConfig$MethodModifier");
+        types.add("org.glowroot.common.live.StartupTimelineService");
         types.add("org.glowroot.common.util.Patterns");
         return types;
     }
@@ -403,6 +424,7 @@ public class PreInitializeWeavingClasses {
         types.add("org.objectweb.asm.TypePath");
         types.add("org.objectweb.asm.TypeReference");
         types.add("org.objectweb.asm.commons.AdviceAdapter");
+        types.add("org.objectweb.asm.commons.AnalyzerAdapter");
         types.add("org.objectweb.asm.commons.GeneratorAdapter");
         types.add("org.objectweb.asm.commons.JSRInlinerAdapter");
         types.add("org.objectweb.asm.commons.JSRInlinerAdapter$Instantiation");
@@ -475,12 +497,13 @@ public class PreInitializeWeavingClasses {
         // these are special classes generated by javac (but not by the eclipse compiler) to handle
         // accessing the private constructor in an enclosed type
         // (see http://stackoverflow.com/questions/2883181)
-        types.add("org.glowroot.agent.model.NestedTimerMap$1");
         types.add("org.glowroot.agent.util.Tickers$1");
         types.add("org.glowroot.agent.weaving.Advice$1");
         types.add("org.glowroot.agent.weaving.AnalyzedClass$1");
         types.add("org.glowroot.agent.weaving.AnalyzedMethod$1");
         types.add("org.glowroot.agent.weaving.AnalyzedMethodKey$1");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorld$1");
+        types.add("org.glowroot.agent.weaving.AnalyzedWorldSnapshot$1");
         types.add("org.glowroot.agent.weaving.BootstrapMetaHolders$1");
         types.add("org.glowroot.agent.weaving.FelixOsgiHackClassVisitor$1");
         types.add("org.glowroot.agent.weaving.ImmutableAnalyzedClass$1");
@@ -496,6 +519,7 @@ public class PreInitializeWeavingClasses {
         types.add("org.glowroot.agent.weaving.MethodMetaGroup$1");
         types.add("org.glowroot.agent.weaving.ThinClassVisitor$1");
         types.add("org.glowroot.agent.weaving.WeaverImpl$1");
+        types.add("org.glowroot.agent.weaving.WeavingCache$1");
         types.add("org.glowroot.agent.weaving.WeavingClassVisitor$1");
         types.add("org.glowroot.common.config.ImmutableInstrumentationConfig$1");
         // this is a special class generated by javac (but not by the eclipse compiler) to handle
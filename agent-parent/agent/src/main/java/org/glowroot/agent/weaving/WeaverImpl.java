@@ -21,13 +21,16 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.security.CodeSource;
 import java.util.List;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.common.base.StandardSystemProperty;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
@@ -38,10 +41,15 @@ import org.objectweb.asm.util.CheckClassAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.agent.util.StartupTimeline;
 import org.glowroot.agent.weaving.AnalyzedWorld.ParseContext;
+import org.glowroot.agent.weaving.WeavingCache.CachedWovenClass;
 import org.glowroot.agent.weaving.WeavingTimerService.WeavingTimer;
 
+import static com.google.common.base.Preconditions.checkNotNull;
 import static org.objectweb.asm.Opcodes.ASM5;
+import static org.objectweb.asm.Opcodes.V1_6;
+import static org.objectweb.asm.Opcodes.V1_7;
 
 public class WeaverImpl implements Weaver {
 
@@ -50,26 +58,55 @@ public class WeaverImpl implements Weaver {
     // useful for debugging java.lang.VerifyErrors
     private static final boolean verifyWeaving = Boolean.getBoolean("glowroot.weaving.verify");
 
+    // preserving the original stack map frames of woven classes and only inserting frames for the
+    // advice bytecode avoids the common super class lookups that are needed to recompute all
+    // frames, which are expensive and can require loading other classes in the middle of weaving
+    private static final boolean PRESERVE_FRAMES =
+            Boolean.getBoolean("glowroot.internal.weaving.preserveFrames");
+
+    private static final byte[] STACK_MAP_TABLE_ATTRIBUTE_NAME =
+            "StackMapTable".getBytes(Charsets.US_ASCII);
+
+    // constant pool tag (see ClassWriter.UTF8 which is not public)
+    private static final int UTF8_TAG = 1;
+
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
     private final AnalyzedWorld analyzedWorld;
     private final WeavingTimerService weavingTimerService;
+    private final @Nullable WeavingCache weavingCache;
+    private final @Nullable StartupTimeline startupTimeline;
+    private final boolean preserveFrames;
 
     public WeaverImpl(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
-            WeavingTimerService weavingTimerService) {
+            WeavingTimerService weavingTimerService, @Nullable WeavingCache weavingCache,
+            @Nullable StartupTimeline startupTimeline) {
+        this(advisors, shimTypes, mixinTypes, analyzedWorld, weavingTimerService, weavingCache,
+                startupTimeline, PRESERVE_FRAMES);
+    }
+
+    @VisibleForTesting
+    WeaverImpl(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
+            WeavingTimerService weavingTimerService, @Nullable WeavingCache weavingCache,
+            @Nullable StartupTimeline startupTimeline, boolean preserveFrames) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
         this.analyzedWorld = analyzedWorld;
         this.weavingTimerService = weavingTimerService;
+        this.weavingCache = weavingCache;
+        this.startupTimeline = startupTimeline;
+        this.preserveFrames = preserveFrames;
     }
 
     @Override
     public byte /*@Nullable*/[] weave(byte[] classBytes, String className,
             @Nullable CodeSource codeSource, @Nullable ClassLoader loader) {
         WeavingTimer weavingTimer = weavingTimerService.start();
+        long startTick = System.nanoTime();
         try {
             logger.trace("transform(): className={}", className);
             byte[] transformedBytes = weaveUnderTimer(classBytes, className, codeSource, loader);
@@ -79,13 +116,31 @@ public class WeaverImpl implements Weaver {
             return transformedBytes;
         } finally {
             weavingTimer.stop();
+            if (startupTimeline != null) {
+                startupTimeline.recordWeaving(loader, className, System.nanoTime() - startTick);
+            }
         }
     }
 
     private byte/*@Nullable*/[] weaveUnderTimer(byte[] classBytes, String className,
             @Nullable CodeSource codeSource, @Nullable ClassLoader loader) {
-        List<Advice> advisors = analyzedWorld.mergeInstrumentAnnotations(this.advisors.get(),
+        analyzedWorld.activateLazyAdvisors(className);
+        List<Advice> currentAdvisors = this.advisors.get();
+        if (!className.equals("org/apache/felix/framework/BundleWiringImpl")) {
+            AnalyzedClass fastRejectedClass =
+                    analyzedWorld.tryFastReject(currentAdvisors, classBytes, loader);
+            if (fastRejectedClass != null) {
+                analyzedWorld.add(fastRejectedClass, loader);
+                return null;
+            }
+        }
+        List<Advice> advisors = analyzedWorld.mergeInstrumentAnnotations(currentAdvisors,
                 classBytes, loader, className);
+        WeavingCache.Key cacheKey = null;
+        if (weavingCache != null
+                && !className.equals("org/apache/felix/framework/BundleWiringImpl")) {
+            cacheKey = weavingCache.getKey(className, classBytes, advisors);
+        }
         ThinClassVisitor accv = new ThinClassVisitor();
         new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
         byte[] maybeFelixBytes = null;
@@ -103,11 +158,33 @@ public class WeaverImpl implements Weaver {
             analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
             return maybeFelixBytes;
         }
+        if (cacheKey != null) {
+            CachedWovenClass cachedWovenClass =
+                    checkNotNull(weavingCache).get(cacheKey, classAnalyzer);
+            if (cachedWovenClass != null && WeavingCache.isNoWeavingNeeded(cachedWovenClass)) {
+                // method analysis would not have added anything to the analyzed class (otherwise
+                // the marker would not have been stored)
+                analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+                return null;
+            }
+            if (cachedWovenClass != null && isStillValid(cachedWovenClass, loader, codeSource,
+                    className)) {
+                // normally added by WeavingClassVisitor.visitEnd()
+                analyzedWorld.add(checkNotNull(cachedWovenClass.getAnalyzedClass()), loader);
+                return cachedWovenClass.getWovenBytes();
+            }
+        }
         classAnalyzer.analyzeMethods();
         if (!classAnalyzer.isWeavingRequired()) {
-            analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+            AnalyzedClass analyzedClass = classAnalyzer.getAnalyzedClass();
+            analyzedWorld.add(analyzedClass, loader);
+            if (cacheKey != null && analyzedClass.analyzedMethods().isEmpty()) {
+                checkNotNull(weavingCache).putNoWeavingNeeded(cacheKey, classAnalyzer);
+            }
             return maybeFelixBytes;
         }
+        ClassReader cr = new ClassReader(maybeFelixBytes == null ? classBytes : maybeFelixBytes);
+        int majorVersion = cr.readUnsignedShort(6);
         // from http://www.oracle.com/technetwork/java/javase/compatibility-417013.html:
         //
         // "Classfiles with version number 51 are exclusively verified using the type-checking
@@ -120,16 +197,32 @@ public class WeaverImpl implements Weaver {
         // stackmap information to be consistent with the bytecode in order to pass
         // verification."
         //
-        ClassWriter cw = new ComputeFramesClassWriter(ClassWriter.COMPUTE_FRAMES, analyzedWorld,
-                loader, codeSource, className);
-        WeavingClassVisitor cv =
-                new WeavingClassVisitor(cw, loader, classAnalyzer.getAnalyzedClass(),
-                        classAnalyzer.getMethodsThatOnlyNowFulfillAdvice(),
-                        classAnalyzer.getMatchedShimTypes(), classAnalyzer.getMatchedMixinTypes(),
-                        classAnalyzer.getMethodAdvisors(), analyzedWorld);
-        ClassReader cr = new ClassReader(maybeFelixBytes == null ? classBytes : maybeFelixBytes);
+        boolean preserveFrames = this.preserveFrames && (majorVersion < V1_6
+                || hasFrames(cr, majorVersion)
+                        && !hasMixinWithoutFrames(classAnalyzer.getMatchedMixinTypes()));
+        ComputeFramesClassWriter cw;
+        if (preserveFrames) {
+            // passing the class reader means that methods which are not woven are copied as-is
+            cw = new ComputeFramesClassWriter(cr, ClassWriter.COMPUTE_MAXS, analyzedWorld, loader,
+                    codeSource, className);
+        } else {
+            cw = new ComputeFramesClassWriter(ClassWriter.COMPUTE_FRAMES, analyzedWorld, loader,
+                    codeSource, className);
+        }
+        // class files prior to version 50 do not have stack map frames, so there is nothing to
+        // preserve, and nothing to insert either
+        boolean insertFrames = preserveFrames && majorVersion >= V1_6;
+        ClassVisitor cv = new WeavingClassVisitor(cw, loader, classAnalyzer.getAnalyzedClass(),
+                classAnalyzer.getMethodsThatOnlyNowFulfillAdvice(),
+                classAnalyzer.getMatchedShimTypes(), classAnalyzer.getMatchedMixinTypes(),
+                classAnalyzer.getMethodAdvisors(), analyzedWorld, insertFrames);
+        // jsr/ret instructions are not allowed starting with class file version 51, and skipping
+        // the JSRInlinerAdapter is required in order to copy methods that are not woven as-is
+        if (!preserveFrames || majorVersion < V1_7) {
+            cv = new JSRInlinerClassVisitor(cv);
+        }
         try {
-            cr.accept(new JSRInlinerClassVisitor(cv), ClassReader.SKIP_FRAMES);
+            cr.accept(cv, insertFrames ? ClassReader.EXPAND_FRAMES : ClassReader.SKIP_FRAMES);
         } catch (RuntimeException e) {
             logger.error("unable to weave {}: {}", className, e.getMessage(), e);
             try {
@@ -145,9 +238,71 @@ public class WeaverImpl implements Weaver {
         if (verifyWeaving) {
             verify(transformedBytes, loader, classBytes, className);
         }
+        if (cacheKey != null) {
+            checkNotNull(weavingCache).putWovenClass(cacheKey, classAnalyzer, transformedBytes,
+                    cw.getCommonSuperClassLookups());
+        }
         return transformedBytes;
     }
 
+    // stack map frames are required starting with class file version 51, but are optional in
+    // version 50, and inserting frames only for the advice bytecode into methods without any other
+    // frames is not enough for the type-checking verifier (even though the hotspot jvm would fail
+    // over to the type-inferencing verifier)
+    private static boolean hasFrames(ClassReader cr, int majorVersion) {
+        if (majorVersion > V1_6) {
+            return true;
+        }
+        // a class with any frames has the attribute name in its constant pool
+        byte[] b = cr.b;
+        byte[] name = STACK_MAP_TABLE_ATTRIBUTE_NAME;
+        for (int i = 1; i < cr.getItemCount(); i++) {
+            int index = cr.getItem(i);
+            // index is 0 for the second slot of long and double constants
+            if (index == 0 || b[index - 1] != UTF8_TAG
+                    || cr.readUnsignedShort(index) != name.length) {
+                continue;
+            }
+            boolean equal = true;
+            for (int j = 0; j < name.length; j++) {
+                if (b[index + 2 + j] != name[j]) {
+                    equal = false;
+                    break;
+                }
+            }
+            if (equal) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // mixin methods are copied with their original frames (see WeavingClassVisitor.addMixin()), so
+    // frames need to be computed if any mixin implementation class does not have them
+    private static boolean hasMixinWithoutFrames(List<MixinType> mixinTypes) {
+        for (MixinType mixinType : mixinTypes) {
+            if (new ClassReader(mixinType.implementationBytes()).readUnsignedShort(6) < V1_6) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the stack frames in the cached woven bytes were computed using common super class lookups
+    // against the class hierarchy at that time, which may have changed since (e.g. library upgrade)
+    private boolean isStillValid(CachedWovenClass cachedWovenClass, @Nullable ClassLoader loader,
+            @Nullable CodeSource codeSource, String className) {
+        ComputeFramesClassWriter cw =
+                new ComputeFramesClassWriter(0, analyzedWorld, loader, codeSource, className);
+        for (String lookup : cachedWovenClass.getCommonSuperClassLookups()) {
+            String[] parts = lookup.split(" ");
+            if (!cw.getCommonSuperClassNotRecorded(parts[0], parts[1]).equals(parts[2])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private static void verify(byte[] transformedBytes, @Nullable ClassLoader loader,
             byte[] originalBytes, String className) {
         String originalBytesVerifyError = verify(originalBytes, loader);
@@ -221,6 +376,13 @@ public class WeaverImpl implements Weaver {
         private final @Nullable ClassLoader loader;
         private final ParseContext parseContext;
 
+        // recorded for WeavingCache, each lookup is stored as "type1 type2 result"
+        //
+        // asm looks up the same pair of types many times while computing frames (e.g. at each
+        // branch target), so the lookups are de-duplicated in order to not repeat them when
+        // re-validating a cache entry
+        private final Set<String> commonSuperClassLookups = Sets.newLinkedHashSet();
+
         public ComputeFramesClassWriter(int flags, AnalyzedWorld analyzedWorld,
                 @Nullable ClassLoader loader, @Nullable CodeSource codeSource, String className) {
             super(flags);
@@ -229,9 +391,28 @@ public class WeaverImpl implements Weaver {
             this.parseContext = ImmutableParseContext.of(className, codeSource);
         }
 
+        public ComputeFramesClassWriter(ClassReader classReader, int flags,
+                AnalyzedWorld analyzedWorld, @Nullable ClassLoader loader,
+                @Nullable CodeSource codeSource, String className) {
+            super(classReader, flags);
+            this.analyzedWorld = analyzedWorld;
+            this.loader = loader;
+            this.parseContext = ImmutableParseContext.of(className, codeSource);
+        }
+
         // implements logic similar to org.objectweb.asm.ClassWriter.getCommonSuperClass()
         @Override
         protected String getCommonSuperClass(String type1, String type2) {
+            String commonSuperClass = getCommonSuperClassNotRecorded(type1, type2);
+            commonSuperClassLookups.add(type1 + " " + type2 + " " + commonSuperClass);
+            return commonSuperClass;
+        }
+
+        Set<String> getCommonSuperClassLookups() {
+            return commonSuperClassLookups;
+        }
+
+        String getCommonSuperClassNotRecorded(String type1, String type2) {
             if (type1.equals("java/lang/Object") || type2.equals("java/lang/Object")) {
                 return "java/lang/Object";
             }
@@ -0,0 +1,450 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.common.util.Version;
+
+// persistent cache of weaving results, so that weaving can be mostly skipped on jvm restart
+//
+// entries are stored one file per class, under a directory named after the fingerprint of the
+// advice set (and glowroot version), so that any change to the advice set (e.g. via
+// AdviceCache.updateAdvisors()) naturally invalidates all entries
+//
+// entries are keyed by class name, class bytes and the analyzed super class hierarchy, which
+// together determine the result of method analysis, so that entries are looked up before method
+// analysis and a hit skips both method analysis and weaving
+//
+// classes that do not need weaving are stored as empty marker files. markers are only stored when
+// method analysis contributes nothing to the analyzed class, so that on a hit the analyzed class
+// (which is still added to the analyzed world) is the same as without the cache
+//
+// woven classes are stored along with the analyzed class that method analysis produced (in the
+// same format as AnalyzedWorldSnapshot), and the common super class lookups that were made while
+// computing stack frames are stored and re-validated on each hit, so that a stale hit can never
+// produce invalid stack frames
+//
+// entries for classes that are no longer used (e.g. after upgrading libraries) are never removed
+// individually, so the size of the cache directory is bounded instead: if it has grown past the
+// limit at startup then it is cleared, and otherwise no new entries are written once it reaches the
+// limit
+//
+// this is only used from inside ClassFileTransformer.transform(), so it intentionally sticks to jdk
+// classes for its i/o (see PreInitializeWeavingClasses)
+public class WeavingCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeavingCache.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final long MAX_SIZE_BYTES =
+            Long.getLong("glowroot.internal.weaving.cacheMaxSizeMb", 100) * 1024 * 1024;
+
+    // each entry is counted as taking up at least this much space, since even empty marker files
+    // take up a directory entry (and an inode on most file systems)
+    private static final long MIN_ENTRY_SIZE_BYTES = 1024;
+
+    private static final CachedWovenClass NO_WEAVING_NEEDED =
+            new CachedWovenClass(null, new byte[0], new String[0]);
+
+    private final File baseDir;
+    private final Supplier<List<Advice>> advisors;
+    private final ImmutableList<ShimType> shimTypes;
+    private final ImmutableList<MixinType> mixinTypes;
+    private final String version;
+    private final long maxSizeBytes;
+
+    // File.createTempFile() is not used inside of transform() since it initializes SecureRandom
+    // (which loads and initializes lots of jdk classes), so temporary file names are made unique by
+    // combining a per-jvm prefix (in case multiple jvms share the same cache directory) with a
+    // counter
+    private final String tmpFilePrefix;
+    private final AtomicInteger tmpFileCounter = new AtomicInteger();
+
+    // cloned for each use since MessageDigest is not thread safe, and MessageDigest.getInstance()
+    // is not used inside of transform() since it can trigger loading of security provider classes
+    private final MessageDigest messageDigest;
+
+    private volatile Fingerprint fingerprint;
+
+    private final AtomicBoolean loggedFull = new AtomicBoolean();
+
+    public WeavingCache(File baseDir, Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes)
+            throws NoSuchAlgorithmException, CloneNotSupportedException {
+        this(baseDir, advisors, shimTypes, mixinTypes, MAX_SIZE_BYTES);
+    }
+
+    @VisibleForTesting
+    WeavingCache(File baseDir, Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes, long maxSizeBytes)
+            throws NoSuchAlgorithmException, CloneNotSupportedException {
+        this.baseDir = baseDir;
+        this.maxSizeBytes = maxSizeBytes;
+        this.advisors = advisors;
+        this.shimTypes = ImmutableList.copyOf(shimTypes);
+        this.mixinTypes = ImmutableList.copyOf(mixinTypes);
+        version = Version.getVersion(WeavingCache.class);
+        tmpFilePrefix = Long.toHexString(System.nanoTime());
+        messageDigest = MessageDigest.getInstance("SHA-1");
+        // verify up front that the message digest can be cloned, see newMessageDigest()
+        messageDigest.clone();
+        fingerprint = createFingerprint(advisors.get());
+        deleteOtherFingerprintDirs(baseDir, fingerprint.dir);
+        long sizeBytes = getSizeBytes(fingerprint.dir);
+        if (sizeBytes >= maxSizeBytes) {
+            logger.info("clearing weaving cache since it has reached {} MB: {}",
+                    maxSizeBytes / (1024 * 1024), baseDir.getAbsolutePath());
+            deleteRecursively(fingerprint.dir);
+        } else {
+            fingerprint.sizeBytes.set(sizeBytes);
+        }
+    }
+
+    @Nullable
+    Key getKey(String className, byte[] classBytes, List<Advice> advisors) {
+        Fingerprint fingerprint = this.fingerprint;
+        if (fingerprint.advisors != advisors) {
+            // advice set has changed (or includes advisors from @Instrument annotations, see
+            // AnalyzedWorld.mergeInstrumentAnnotations())
+            if (advisors != this.advisors.get()) {
+                // @Instrument annotation advisors are derived from the class bytes, but this is
+                // rare enough that it is not worth caching
+                return null;
+            }
+            fingerprint = createFingerprint(advisors);
+            this.fingerprint = fingerprint;
+        }
+        MessageDigest digest = newMessageDigest();
+        digest.update(className.getBytes(UTF_8));
+        digest.update((byte) 0);
+        digest.update(classBytes);
+        return new Key(fingerprint, toHex(digest.digest()));
+    }
+
+    // must be called before method analysis, returns the marker (see isNoWeavingNeeded()) or the
+    // woven class, if there is an entry
+    @Nullable
+    CachedWovenClass get(Key key, ClassAnalyzer classAnalyzer) {
+        File file = new File(key.fingerprint.dir, getName(key, classAnalyzer));
+        long length = file.length();
+        if (length == 0) {
+            // file.length() returns 0 when the file does not exist, so need to check
+            return file.exists() ? NO_WEAVING_NEEDED : null;
+        }
+        try {
+            return readWovenClass(file, key.fingerprint);
+        } catch (IOException e) {
+            logger.warn("unable to read weaving cache file {}: {}", file, e.getMessage());
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    // must only be called when method analysis did not add anything to the analyzed class
+    void putNoWeavingNeeded(Key key, ClassAnalyzer classAnalyzer) {
+        write(key.fingerprint, getName(key, classAnalyzer), null, null, null);
+    }
+
+    void putWovenClass(Key key, ClassAnalyzer classAnalyzer, byte[] wovenBytes,
+            Collection<String> commonSuperClassLookups) {
+        AnalyzedClass analyzedClass = classAnalyzer.getAnalyzedClass();
+        if (!AnalyzedWorldSnapshot.isWritable(analyzedClass, key.fingerprint.indexes)) {
+            // references advice from @Instrument annotations in the super class hierarchy
+            return;
+        }
+        write(key.fingerprint, getName(key, classAnalyzer), analyzedClass, wovenBytes,
+                commonSuperClassLookups);
+    }
+
+    static boolean isNoWeavingNeeded(CachedWovenClass cachedWovenClass) {
+        return cachedWovenClass == NO_WEAVING_NEEDED;
+    }
+
+    private Fingerprint createFingerprint(List<Advice> advisors) {
+        String dirName = createFingerprint(newMessageDigest(), version, advisors, shimTypes,
+                mixinTypes);
+        return new Fingerprint(advisors, new File(baseDir, dirName),
+                AnalyzedWorldSnapshot.getIndexes(advisors, shimTypes, mixinTypes));
+    }
+
+    private MessageDigest newMessageDigest() {
+        try {
+            return (MessageDigest) messageDigest.clone();
+        } catch (CloneNotSupportedException e) {
+            // this has already been verified in the constructor
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void deleteOtherFingerprintDirs(File baseDir, File fingerprintDir) {
+        File[] dirs = baseDir.listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            if (!dir.equals(fingerprintDir)) {
+                deleteRecursively(dir);
+            }
+        }
+    }
+
+    // the result of method analysis (and so whether or not the class needs weaving, and the woven
+    // bytes) depends on the advice found in the super class hierarchy (e.g. a method that overrides
+    // a super class method that has advice), in addition to the class bytes
+    private String getName(Key key, ClassAnalyzer classAnalyzer) {
+        return key.name + "-"
+                + getHierarchyDigest(newMessageDigest(), classAnalyzer.getSuperAnalyzedClasses());
+    }
+
+    // also used by AnalyzedWorldSnapshot, to detect changes to super classes that live in other
+    // jar files
+    static String getHierarchyDigest(MessageDigest digest,
+            List<AnalyzedClass> superAnalyzedClasses) {
+        StringBuilder sb = new StringBuilder();
+        for (AnalyzedClass superAnalyzedClass : superAnalyzedClasses) {
+            sb.append(superAnalyzedClass.name());
+            sb.append('\n');
+            for (AnalyzedMethod analyzedMethod : superAnalyzedClass.analyzedMethods()) {
+                sb.append(analyzedMethod.name());
+                sb.append(analyzedMethod.parameterTypes());
+                sb.append(analyzedMethod.returnType());
+                sb.append(analyzedMethod.modifiers());
+                appendAdviceTypes(sb, analyzedMethod.advisors());
+                sb.append(" /");
+                appendAdviceTypes(sb, analyzedMethod.declaredOnlyAdvisors());
+                sb.append('\n');
+            }
+            for (ShimType shimType : superAnalyzedClass.shimTypes()) {
+                sb.append(shimType.iface().getInternalName());
+                sb.append('\n');
+            }
+            for (MixinType mixinType : superAnalyzedClass.mixinTypes()) {
+                sb.append(mixinType.implementation().getInternalName());
+                sb.append('\n');
+            }
+        }
+        return toHex(digest.digest(sb.toString().getBytes(UTF_8)));
+    }
+
+    // also used by AnalyzedWorldSnapshot, whose contents depend on the same inputs
+    static String createFingerprint(MessageDigest digest, String version, List<Advice> advisors,
+            List<ShimType> shimTypes, List<MixinType> mixinTypes) {
+        StringBuilder sb = new StringBuilder(version);
+        for (Advice advice : advisors) {
+            sb.append('\n');
+            sb.append(advice);
+        }
+        for (ShimType shimType : shimTypes) {
+            sb.append('\n');
+            sb.append(shimType);
+        }
+        for (MixinType mixinType : mixinTypes) {
+            sb.append('\n');
+            sb.append(mixinType);
+        }
+        return toHex(digest.digest(sb.toString().getBytes(UTF_8)));
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    private static void appendAdviceTypes(StringBuilder sb, List<Advice> advisors) {
+        for (Advice advice : advisors) {
+            sb.append(' ');
+            sb.append(advice.adviceType().getInternalName());
+        }
+    }
+
+    private CachedWovenClass readWovenClass(File file, Fingerprint fingerprint)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            int count = in.readInt();
+            String[] commonSuperClassLookups = new String[count];
+            for (int i = 0; i < count; i++) {
+                commonSuperClassLookups[i] = in.readUTF();
+            }
+            AnalyzedClass analyzedClass = AnalyzedWorldSnapshot.readAnalyzedClass(in,
+                    fingerprint.advisors, shimTypes, mixinTypes);
+            byte[] wovenBytes = new byte[in.readInt()];
+            in.readFully(wovenBytes);
+            return new CachedWovenClass(analyzedClass, wovenBytes, commonSuperClassLookups);
+        } finally {
+            in.close();
+        }
+    }
+
+    // writes to a temporary file first and then renames it, so that a partially written file is
+    // never read (e.g. from a concurrent transform() of the same class in a different class loader,
+    // or after the jvm is killed)
+    private void write(Fingerprint fingerprint, String name,
+            @Nullable AnalyzedClass analyzedClass, byte /*@Nullable*/[] wovenBytes,
+            @Nullable Collection<String> commonSuperClassLookups) {
+        if (fingerprint.sizeBytes.get() >= maxSizeBytes) {
+            if (!loggedFull.getAndSet(true)) {
+                logger.info("weaving cache has reached {} MB, no more entries will be added until"
+                        + " it is cleared on a future jvm restart: {}",
+                        maxSizeBytes / (1024 * 1024), baseDir.getAbsolutePath());
+            }
+            return;
+        }
+        File dir = fingerprint.dir;
+        try {
+            if (!dir.exists() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+            }
+            File tmpFile = new File(dir,
+                    name + "." + tmpFilePrefix + "-" + tmpFileCounter.getAndIncrement() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(tmpFile));
+            try {
+                if (analyzedClass != null && wovenBytes != null
+                        && commonSuperClassLookups != null) {
+                    out.writeInt(commonSuperClassLookups.size());
+                    for (String commonSuperClassLookup : commonSuperClassLookups) {
+                        out.writeUTF(commonSuperClassLookup);
+                    }
+                    AnalyzedWorldSnapshot.writeAnalyzedClass(out, analyzedClass,
+                            fingerprint.indexes);
+                    out.writeInt(wovenBytes.length);
+                    out.write(wovenBytes);
+                }
+            } finally {
+                out.close();
+            }
+            long entrySizeBytes = Math.max(tmpFile.length(), MIN_ENTRY_SIZE_BYTES);
+            if (tmpFile.renameTo(new File(dir, name))) {
+                fingerprint.sizeBytes.addAndGet(entrySizeBytes);
+            } else if (!tmpFile.delete()) {
+                logger.debug("unable to delete weaving cache file: {}", tmpFile);
+            }
+        } catch (IOException e) {
+            logger.warn("unable to write weaving cache file {}: {}", name, e.getMessage());
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    private static long getSizeBytes(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long sizeBytes = 0;
+        for (File file : files) {
+            sizeBytes += Math.max(file.length(), MIN_ENTRY_SIZE_BYTES);
+        }
+        return sizeBytes;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteRecursively(f);
+            }
+        }
+        if (!file.delete()) {
+            logger.warn("unable to delete file: {}", file);
+        }
+    }
+
+    static class Key {
+
+        private final Fingerprint fingerprint;
+        private final String name;
+
+        private Key(Fingerprint fingerprint, String name) {
+            this.fingerprint = fingerprint;
+            this.name = name;
+        }
+    }
+
+    static class CachedWovenClass {
+
+        private final @Nullable AnalyzedClass analyzedClass;
+        private final byte[] wovenBytes;
+        // each lookup is stored as "type1 type2 result"
+        private final String[] commonSuperClassLookups;
+
+        private CachedWovenClass(@Nullable AnalyzedClass analyzedClass, byte[] wovenBytes,
+                String[] commonSuperClassLookups) {
+            this.analyzedClass = analyzedClass;
+            this.wovenBytes = wovenBytes;
+            this.commonSuperClassLookups = commonSuperClassLookups;
+        }
+
+        // the analyzed class that method analysis produced (null for the no weaving marker)
+        @Nullable
+        AnalyzedClass getAnalyzedClass() {
+            return analyzedClass;
+        }
+
+        byte[] getWovenBytes() {
+            return wovenBytes;
+        }
+
+        String[] getCommonSuperClassLookups() {
+            return commonSuperClassLookups;
+        }
+    }
+
+    private static class Fingerprint {
+
+        private final List<Advice> advisors;
+        private final File dir;
+        // indexes of advice, shim types and mixin types, for storing analyzed classes
+        private final Map<Object, Integer> indexes;
+        // approximate size of the fingerprint directory
+        private final AtomicLong sizeBytes = new AtomicLong();
+
+        private Fingerprint(List<Advice> advisors, File dir, Map<Object, Integer> indexes) {
+            this.advisors = advisors;
+            this.dir = dir;
+            this.indexes = indexes;
+        }
+    }
+}
@@ -35,10 +35,12 @@ import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
 import org.objectweb.asm.commons.AdviceAdapter;
+import org.objectweb.asm.commons.AnalyzerAdapter;
 import org.objectweb.asm.commons.GeneratorAdapter;
 import org.objectweb.asm.commons.Method;
 import org.objectweb.asm.commons.RemappingMethodAdapter;
@@ -98,6 +100,8 @@ class WeavingClassVisitor extends ClassVisitor {
 
     private final AnalyzedWorld analyzedWorld;
 
+    private final boolean preserveFrames;
+
     private @MonotonicNonNull Type type;
 
     // these are for handling class and method metas
@@ -109,7 +113,8 @@ class WeavingClassVisitor extends ClassVisitor {
     public WeavingClassVisitor(ClassWriter cw, @Nullable ClassLoader loader,
             AnalyzedClass analyzedClass, List<AnalyzedMethod> methodsThatOnlyNowFulfillAdvice,
             List<ShimType> shimTypes, List<MixinType> mixinTypes,
-            Map<String, List<Advice>> methodAdvisors, AnalyzedWorld analyzedWorld) {
+            Map<String, List<Advice>> methodAdvisors, AnalyzedWorld analyzedWorld,
+            boolean preserveFrames) {
         super(ASM5, cw);
         this.cw = cw;
         this.loader = loader;
@@ -119,6 +124,7 @@ class WeavingClassVisitor extends ClassVisitor {
         this.mixinTypes = mixinTypes;
         this.methodAdvisors = methodAdvisors;
         this.analyzedWorld = analyzedWorld;
+        this.preserveFrames = preserveFrames;
     }
 
     @Override
@@ -387,8 +393,8 @@ class WeavingClassVisitor extends ClassVisitor {
                 break;
             }
         }
-        return new WeavingMethodVisitor(mv, access, name, desc, type, matchingAdvisors,
-                metaHolderInternalName, methodMetaUniqueNum, loader == null, null);
+        return newWeavingMethodVisitor(mv, access, name, desc, matchingAdvisors,
+                methodMetaUniqueNum);
     }
 
     @RequiresNonNull("type")
@@ -397,8 +403,21 @@ class WeavingClassVisitor extends ClassVisitor {
             Iterable<Advice> matchingAdvisors) {
         Integer methodMetaUniqueNum = collectMetasAtMethod(matchingAdvisors, name, desc);
         MethodVisitor mv = cw.visitMethod(access, name, desc, signature, exceptions);
+        return newWeavingMethodVisitor(mv, access, name, desc, matchingAdvisors,
+                methodMetaUniqueNum);
+    }
+
+    @RequiresNonNull("type")
+    private MethodVisitor newWeavingMethodVisitor(MethodVisitor mv, int access, String name,
+            String desc, Iterable<Advice> matchingAdvisors, @Nullable Integer methodMetaUniqueNum) {
+        AnalyzerAdapter frameAnalyzer = null;
+        if (preserveFrames) {
+            frameAnalyzer = new AnalyzerAdapter(type.getInternalName(), access, name, desc,
+                    new FrameDeduplicator(mv));
+            mv = frameAnalyzer;
+        }
         return new WeavingMethodVisitor(mv, access, name, desc, type, matchingAdvisors,
-                metaHolderInternalName, methodMetaUniqueNum, loader == null, null);
+                metaHolderInternalName, methodMetaUniqueNum, loader == null, null, frameAnalyzer);
     }
 
     private @Nullable Integer collectMetasAtMethod(Iterable<Advice> matchingAdvisors,
@@ -550,6 +569,126 @@ class WeavingClassVisitor extends ClassVisitor {
         }
     }
 
+    // a frame inserted at a branch target in the advice bytecode can end up at the same bytecode
+    // offset as another inserted frame, or as a frame from the original bytecode (e.g. when the
+    // original bytecode starts with a loop), and since the ClassWriter does not accept two frames
+    // at the same offset, the later frame wins (which is valid for both, as the advice bytecode
+    // only defines additional locals that are also defined in the original frames, see
+    // LocalVariablesSorter.visitFrame())
+    private static class FrameDeduplicator extends MethodVisitor {
+
+        private int pendingType;
+        private int pendingNumLocals;
+        private Object /*@Nullable*/[] pendingLocals;
+        private int pendingNumStack;
+        private Object /*@Nullable*/[] pendingStack;
+        private boolean pending;
+
+        private FrameDeduplicator(MethodVisitor mv) {
+            super(ASM5, mv);
+        }
+
+        @Override
+        public void visitFrame(int type, int nLocal, Object /*@Nullable*/[] local, int nStack,
+                Object /*@Nullable*/[] stack) {
+            pendingType = type;
+            pendingNumLocals = nLocal;
+            pendingNumStack = nStack;
+            // ClassReader reuses the arrays for the next frame
+            pendingLocals = local == null ? null : Arrays.copyOf(local, nLocal);
+            pendingStack = stack == null ? null : Arrays.copyOf(stack, nStack);
+            pending = true;
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            visitPendingFrame();
+            super.visitInsn(opcode);
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            visitPendingFrame();
+            super.visitIntInsn(opcode, operand);
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            visitPendingFrame();
+            super.visitVarInsn(opcode, var);
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            visitPendingFrame();
+            super.visitTypeInsn(opcode, type);
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+            visitPendingFrame();
+            super.visitFieldInsn(opcode, owner, name, desc);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc,
+                boolean itf) {
+            visitPendingFrame();
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String desc, Handle bsm,
+                Object... bsmArgs) {
+            visitPendingFrame();
+            super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            visitPendingFrame();
+            super.visitJumpInsn(opcode, label);
+        }
+
+        @Override
+        public void visitLdcInsn(Object cst) {
+            visitPendingFrame();
+            super.visitLdcInsn(cst);
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            visitPendingFrame();
+            super.visitIincInsn(var, increment);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            visitPendingFrame();
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            visitPendingFrame();
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String desc, int dims) {
+            visitPendingFrame();
+            super.visitMultiANewArrayInsn(desc, dims);
+        }
+
+        private void visitPendingFrame() {
+            if (pending) {
+                super.visitFrame(pendingType, pendingNumLocals, pendingLocals, pendingNumStack,
+                        pendingStack);
+                pending = false;
+            }
+        }
+    }
+
     @Value.Immutable
     interface MethodMetaGroup {
         String methodName();
@@ -36,6 +36,7 @@ import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AnalyzerAdapter;
 import org.objectweb.asm.commons.Method;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -99,6 +100,15 @@ class WeavingMethodVisitor extends AdviceAdapter {
     private final boolean needsOnThrow;
     private final @Nullable MethodVisitor outerMethodVisitor;
 
+    // non-null when the stack map frames of the original bytecode are preserved instead of being
+    // computed by the ClassWriter (see WeaverImpl), in which case it is also the next method
+    // visitor in the chain, and it is used to insert frames at the branch targets of the advice
+    // bytecode
+    private final @Nullable AnalyzerAdapter frameAnalyzer;
+    // frames captured at jumps in the advice bytecode, keyed by the (not yet visited) jump target
+    private final Map<Label, CapturedFrame> capturedFrames = Maps.newHashMap();
+    private final List<Integer> newLocals = Lists.newArrayList();
+
     private final Map<Advice, Integer> enabledLocals = Maps.newHashMap();
     private final Map<Advice, Integer> travelerLocals = Maps.newHashMap();
     private final Map<Advice, Integer> prevNestingGroupIdLocals = Maps.newHashMap();
@@ -122,7 +132,7 @@ class WeavingMethodVisitor extends AdviceAdapter {
     WeavingMethodVisitor(MethodVisitor mv, int access, String name, String desc, Type owner,
             Iterable<Advice> advisors, @Nullable String metaHolderInternalName,
             @Nullable Integer methodMetaGroupUniqueNum, boolean bootstrapClassLoader,
-            @Nullable MethodVisitor outerMethodVisitor) {
+            @Nullable MethodVisitor outerMethodVisitor, @Nullable AnalyzerAdapter frameAnalyzer) {
         super(ASM5, mv, access, name, desc);
         this.access = access;
         this.name = name;
@@ -151,6 +161,7 @@ class WeavingMethodVisitor extends AdviceAdapter {
         this.needsOnReturn = needsOnReturn;
         this.needsOnThrow = needsOnThrow;
         this.outerMethodVisitor = outerMethodVisitor;
+        this.frameAnalyzer = frameAnalyzer;
     }
 
     @Override
@@ -190,6 +201,35 @@ class WeavingMethodVisitor extends AdviceAdapter {
         }
     }
 
+    @Override
+    public void visitJumpInsn(int opcode, Label label) {
+        // stackFrameTracking is only false while visiting advice bytecode
+        if (frameAnalyzer != null && !stackFrameTracking && !capturedFrames.containsKey(label)) {
+            // the first jump to a label in the advice bytecode is always from the point with the
+            // fewest locals defined, so its frame is valid for the later jumps as well
+            capturedFrames.put(label, captureFrame(frameAnalyzer, opcode));
+        }
+        super.visitJumpInsn(opcode, label);
+    }
+
+    @Override
+    public void visitLabel(Label label) {
+        super.visitLabel(label);
+        if (frameAnalyzer != null) {
+            CapturedFrame capturedFrame = capturedFrames.remove(label);
+            if (capturedFrame != null) {
+                insertFrame(frameAnalyzer, capturedFrame.locals, capturedFrame.stack);
+            }
+        }
+    }
+
+    @Override
+    public int newLocal(Type type) {
+        int local = super.newLocal(type);
+        newLocals.add(local);
+        return local;
+    }
+
     @Override
     public void visitLocalVariable(String name, String desc, @Nullable String signature,
             Label start, Label end, int index) {
@@ -249,6 +289,13 @@ class WeavingMethodVisitor extends AdviceAdapter {
         if (needsOnReturn && returnOpcode != null) {
             checkNotNull(onReturnLabel, "Call to onMethodEnter() is required");
             visitLabel(onReturnLabel);
+            if (frameAnalyzer != null) {
+                List<Object> stack = Lists.newArrayList();
+                if (returnOpcode != RETURN) {
+                    addFrameType(stack, returnType);
+                }
+                insertFrame(frameAnalyzer, getMethodExitLocals(), stack);
+            }
             for (Advice advice : Lists.reverse(advisors)) {
                 visitOnReturnAdvice(advice, returnOpcode);
                 visitOnAfterAdvice(advice);
@@ -303,6 +350,7 @@ class WeavingMethodVisitor extends AdviceAdapter {
             visitTryCatchBlock(catchStartLabel, catchEndLabel, catchHandlerLabel,
                     "java/lang/Throwable");
             visitLabel(catchHandlerLabel);
+            visitCatchHandlerFrameIfNecessary();
             resetCurrentNestingGroupIfNecessary();
             visitInsn(ATHROW);
         } else {
@@ -311,6 +359,7 @@ class WeavingMethodVisitor extends AdviceAdapter {
                 visitTryCatchBlock(catchHandler.catchStartLabel(), catchEndLabel, catchHandlerLabel,
                         "java/lang/Throwable");
                 visitLabel(catchHandlerLabel);
+                visitCatchHandlerFrameIfNecessary();
                 for (Advice advice : Lists.reverse(catchHandler.advisors())) {
                     visitOnThrowAdvice(advice);
                 }
@@ -323,6 +372,105 @@ class WeavingMethodVisitor extends AdviceAdapter {
         }
     }
 
+    private void visitCatchHandlerFrameIfNecessary() {
+        if (frameAnalyzer != null) {
+            List<Object> stack = Lists.newArrayList();
+            stack.add("java/lang/Throwable");
+            insertFrame(frameAnalyzer, getMethodExitLocals(), stack);
+        }
+    }
+
+    // the code at method exit (@OnReturn, @OnThrow and @OnAfter) only uses the receiver and the
+    // locals defined in onMethodEnter(), which are defined before any of the original bytecode
+    // (other than the super constructor call), so any other locals can be left undefined in the
+    // frame, which also makes it valid for every point in the original bytecode that can reach
+    // the method exit
+    private List<Object> getMethodExitLocals() {
+        List<Object> locals = Lists.newArrayList();
+        if (!Modifier.isStatic(access)) {
+            locals.add(owner.getInternalName());
+        }
+        for (int local : newLocals) {
+            Type type = getLocalType(local);
+            while (locals.size() < local + type.getSize()) {
+                locals.add(TOP);
+            }
+            locals.set(local, getFrameType(type));
+        }
+        return locals;
+    }
+
+    // the locals stored in the advice bytecode are replaced with their declared type, since the
+    // value stored at the jump may be more specific (e.g. null) than the value stored on another
+    // path to the jump target
+    private CapturedFrame captureFrame(AnalyzerAdapter frameAnalyzer, int opcode) {
+        List<Object> locals = Lists.newArrayList(checkNotNull(frameAnalyzer.locals));
+        for (int local : newLocals) {
+            if (local < locals.size() && locals.get(local) != TOP) {
+                locals.set(local, getFrameType(getLocalType(local)));
+            }
+        }
+        List<Object> stack = Lists.newArrayList(checkNotNull(frameAnalyzer.stack));
+        int operandCount;
+        if (opcode == GOTO) {
+            operandCount = 0;
+        } else if (opcode >= IF_ICMPEQ && opcode <= IF_ACMPNE) {
+            operandCount = 2;
+        } else {
+            operandCount = 1;
+        }
+        stack.subList(stack.size() - operandCount, stack.size()).clear();
+        return new CapturedFrame(locals, stack);
+    }
+
+    // locals and stack are in AnalyzerAdapter form, where long and double take two entries
+    private static void insertFrame(AnalyzerAdapter frameAnalyzer, List<Object> locals,
+            List<Object> stack) {
+        Object[] frameLocals = toFrameTypes(locals);
+        Object[] frameStack = toFrameTypes(stack);
+        frameAnalyzer.visitFrame(F_NEW, frameLocals.length, frameLocals, frameStack.length,
+                frameStack);
+    }
+
+    private static Object[] toFrameTypes(List<Object> types) {
+        List<Object> frameTypes = Lists.newArrayList();
+        for (int i = 0; i < types.size(); i++) {
+            Object type = types.get(i);
+            frameTypes.add(type);
+            if (type == LONG || type == DOUBLE) {
+                i++;
+            }
+        }
+        return frameTypes.toArray();
+    }
+
+    private static void addFrameType(List<Object> types, Type type) {
+        types.add(getFrameType(type));
+        if (type.getSize() == 2) {
+            types.add(TOP);
+        }
+    }
+
+    private static Object getFrameType(Type type) {
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+            case Type.CHAR:
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.INT:
+                return INTEGER;
+            case Type.FLOAT:
+                return FLOAT;
+            case Type.LONG:
+                return LONG;
+            case Type.DOUBLE:
+                return DOUBLE;
+            default:
+                // internal name for object types, and descriptor for array types
+                return type.getInternalName();
+        }
+    }
+
     private void defineAndEvaluateEnabledLocalVar(Advice advice) {
         Integer enabledLocal = null;
         Method isEnabledAdvice = advice.isEnabledAdvice();
@@ -398,7 +546,8 @@ class WeavingMethodVisitor extends AdviceAdapter {
             }
             visitInsn(ICONST_1);
             Label endLabel = new Label();
-            goTo(endLabel);
+            // not using goTo() since that bypasses visitJumpInsn()
+            visitJumpInsn(GOTO, endLabel);
             visitLabel(disabledLabel);
             visitInsn(ICONST_0);
             visitLabel(endLabel);
@@ -998,6 +1147,17 @@ class WeavingMethodVisitor extends AdviceAdapter {
         return opcode >= IRETURN && opcode <= RETURN;
     }
 
+    private static class CapturedFrame {
+
+        private final List<Object> locals;
+        private final List<Object> stack;
+
+        private CapturedFrame(List<Object> locals, List<Object> stack) {
+            this.locals = locals;
+            this.stack = stack;
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     interface CatchHandler {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2015 the original author or authors.
+ * Copyright 2013-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,7 @@
  */
 package org.glowroot.agent.advicegen;
 
+import java.lang.reflect.InvocationTargetException;
 import java.util.Collections;
 import java.util.List;
 
@@ -22,6 +23,7 @@ import com.google.common.collect.Lists;
 import org.junit.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
 
 public class PathEvaluatorTest {
 
@@ -119,6 +121,38 @@ public class PathEvaluatorTest {
         assertThat(value).isEqualTo("eeeeee");
     }
 
+    @Test
+    public void shouldCallPublicMethodsViaGeneratedAccessor() throws Exception {
+        // given
+        PathEvaluator pathEvaluator = new PathEvaluator(PublicObject.class, "child.number");
+        // when
+        int value = (Integer) pathEvaluator.evaluateOnBase(new PublicObject());
+        // then
+        assertThat(AccessorGenerator.generate(PublicObject.class.getMethod("getChild")))
+                .isNotNull();
+        assertThat(AccessorGenerator.generate(PublicObject.class.getField("number"))).isNotNull();
+        assertThat(value).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldNotGenerateAccessorForNonPublicClass() throws Exception {
+        assertThat(AccessorGenerator.generate(SomeObject.class.getMethod("getOne"))).isNull();
+    }
+
+    @Test
+    public void shouldWrapExceptionFromGeneratedAccessor() throws Exception {
+        // given
+        PathEvaluator pathEvaluator = new PathEvaluator(PublicObject.class, "bad");
+        // when
+        try {
+            pathEvaluator.evaluateOnBase(new PublicObject());
+            fail("expected exception");
+        } catch (InvocationTargetException e) {
+            // then
+            assertThat(e.getCause()).hasMessage("bad");
+        }
+    }
+
     @SuppressWarnings("unused")
     private static class SomeObject {
 
@@ -178,4 +212,17 @@ public class PathEvaluatorTest {
     private static class E extends B {
         private final String eee = "eeeeee";
     }
+
+    public static class PublicObject {
+
+        public final int number = 5;
+
+        public PublicObject getChild() {
+            return new PublicObject();
+        }
+
+        public String getBad() {
+            throw new IllegalStateException("bad");
+        }
+    }
 }
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.CollectorServiceGrpc;
+import org.glowroot.wire.api.model.CollectorServiceGrpc.CollectorService;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.AggregateMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.InitMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.StreamAck;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.StreamMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceMessage;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class CollectStreamSenderTest {
+
+    private FakeCollectorService collectorService;
+    private Server server;
+    private ManagedChannel channel;
+    private CollectStreamSender collectStreamSender;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        collectorService = new FakeCollectorService();
+        server = InProcessServerBuilder.forName("collect-stream-sender-test")
+                .addService(CollectorServiceGrpc.bindService(collectorService))
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName("collect-stream-sender-test").build();
+        collectStreamSender = new CollectStreamSender(mock(CentralConnection.class),
+                CollectorServiceGrpc.newStub(channel), 1000);
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        collectStreamSender.close();
+        channel.shutdownNow();
+        server.shutdownNow();
+    }
+
+    @Test
+    public void shouldSendMessagesInOrderOverSingleStream() throws Exception {
+        // when
+        for (int i = 0; i < 250; i++) {
+            collectStreamSender.send(message(i));
+        }
+        // then
+        awaitStoredCount(250);
+        assertThat(collectorService.getStoredServerIds()).isEqualTo(serverIds(0, 250));
+        assertThat(collectorService.getStoredSequences()).isEqualTo(sequences(1, 250));
+        assertThat(collectorService.streamCount.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldNotSendMoreThanMaxUnacknowledgedMessages() throws Exception {
+        // given
+        collectorService.acknowledging = false;
+        // when
+        for (int i = 0; i < 150; i++) {
+            collectStreamSender.send(message(i));
+        }
+        // then
+        awaitStoredCount(100);
+        MILLISECONDS.sleep(200);
+        assertThat(collectorService.getStoredServerIds()).hasSize(100);
+        // and when
+        collectorService.acknowledging = true;
+        collectorService.acknowledge(100);
+        // then
+        awaitStoredCount(150);
+        assertThat(collectorService.getStoredServerIds()).isEqualTo(serverIds(0, 150));
+        assertThat(collectorService.streamCount.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldResendUnacknowledgedMessagesOnNewStreamAfterFailure() throws Exception {
+        // given
+        collectorService.failOnSequence = 3;
+        // when
+        for (int i = 0; i < 5; i++) {
+            collectStreamSender.send(message(i));
+        }
+        // then
+        awaitStoredCount(5);
+        // messages 1 and 2 were acknowledged before the failure, so only messages 3 through 5
+        // are re-sent on the new stream
+        assertThat(collectorService.getStoredServerIds()).isEqualTo(serverIds(0, 5));
+        assertThat(collectorService.streamCount.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldCompleteStreamOnClose() throws Exception {
+        // given
+        for (int i = 0; i < 3; i++) {
+            collectStreamSender.send(message(i));
+        }
+        awaitStoredCount(3);
+        // when
+        collectStreamSender.close();
+        // then
+        assertThat(collectorService.completedCount.get()).isEqualTo(1);
+        // and when
+        collectStreamSender.send(message(3));
+        MILLISECONDS.sleep(200);
+        // then
+        assertThat(collectorService.getStoredServerIds()).hasSize(3);
+    }
+
+    private void awaitStoredCount(int count) throws InterruptedException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (collectorService.getStoredServerIds().size() < count
+                && stopwatch.elapsed(SECONDS) < 10) {
+            MILLISECONDS.sleep(10);
+        }
+        assertThat(collectorService.getStoredServerIds()).hasSize(count);
+    }
+
+    private static StreamMessage message(int i) {
+        return StreamMessage.newBuilder()
+                .setGaugeValueMessage(GaugeValueMessage.newBuilder()
+                        .setServerId("s" + i))
+                .build();
+    }
+
+    private static List<String> serverIds(int from, int to) {
+        List<String> serverIds = Lists.newArrayList();
+        for (int i = from; i < to; i++) {
+            serverIds.add("s" + i);
+        }
+        return serverIds;
+    }
+
+    private static List<Long> sequences(long from, long to) {
+        List<Long> sequences = Lists.newArrayList();
+        for (long i = from; i <= to; i++) {
+            sequences.add(i);
+        }
+        return sequences;
+    }
+
+    private static class FakeCollectorService implements CollectorService {
+
+        private final List<StreamMessage> storedMessages = Lists.newArrayList();
+
+        private final AtomicInteger streamCount = new AtomicInteger();
+        private final AtomicInteger completedCount = new AtomicInteger();
+
+        private volatile long failOnSequence;
+        private volatile boolean acknowledging = true;
+
+        private volatile @Nullable StreamObserver<StreamAck> currResponseObserver;
+
+        @Override
+        public void collectInit(InitMessage request,
+                StreamObserver<EmptyMessage> responseObserver) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void collectAggregates(AggregateMessage request,
+                StreamObserver<EmptyMessage> responseObserver) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void collectGaugeValues(GaugeValueMessage request,
+                StreamObserver<EmptyMessage> responseObserver) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void collectTrace(TraceMessage request,
+                StreamObserver<EmptyMessage> responseObserver) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void log(LogMessage request, StreamObserver<EmptyMessage> responseObserver) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public StreamObserver<StreamMessage> collectStream(
+                final StreamObserver<StreamAck> responseObserver) {
+            streamCount.getAndIncrement();
+            currResponseObserver = responseObserver;
+            return new StreamObserver<StreamMessage>() {
+                private boolean failed;
+                @Override
+                public void onNext(StreamMessage message) {
+                    if (failed) {
+                        return;
+                    }
+                    if (message.getSequence() == failOnSequence) {
+                        failOnSequence = 0;
+                        failed = true;
+                        responseObserver.onError(new IllegalStateException("Simulated failure"));
+                        return;
+                    }
+                    synchronized (storedMessages) {
+                        storedMessages.add(message);
+                    }
+                    if (acknowledging) {
+                        acknowledge(message.getSequence());
+                    }
+                }
+                @Override
+                public void onError(Throwable t) {}
+                @Override
+                public void onCompleted() {
+                    completedCount.getAndIncrement();
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+
+        // the response observer is only called from the stream's serialized callbacks, except
+        // here where the test acknowledges messages after the stream has gone quiet
+        private void acknowledge(long sequence) {
+            StreamObserver<StreamAck> responseObserver = currResponseObserver;
+            if (responseObserver != null) {
+                responseObserver.onNext(StreamAck.newBuilder()
+                        .setSequence(sequence)
+                        .build());
+            }
+        }
+
+        private List<String> getStoredServerIds() {
+            List<String> serverIds = Lists.newArrayList();
+            synchronized (storedMessages) {
+                for (StreamMessage message : storedMessages) {
+                    serverIds.add(message.getGaugeValueMessage().getServerId());
+                }
+            }
+            return serverIds;
+        }
+
+        private List<Long> getStoredSequences() {
+            List<Long> sequences = Lists.newArrayList();
+            synchronized (storedMessages) {
+                for (StreamMessage message : storedMessages) {
+                    sequences.add(message.getSequence());
+                }
+            }
+            return sequences;
+        }
+    }
+}
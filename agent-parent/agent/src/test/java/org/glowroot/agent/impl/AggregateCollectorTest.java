@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.agent.model.CommonTimerImpl;
+import org.glowroot.agent.model.QueryData;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AggregateCollectorTest {
+
+    @Test
+    public void shouldMergeQueries() throws Exception {
+        // given
+        AggregateCollector aggregateCollector = new AggregateCollector(null, 100);
+        aggregateCollector.mergeQueries(ImmutableList.of(
+                createQueryData("select 1", 10, 1, 5), createQueryData("select 2", 20, 2, 0))
+                .iterator());
+        AggregateCollector toBeMergedAggregateCollector = new AggregateCollector(null, 100);
+        toBeMergedAggregateCollector.mergeQueries(
+                ImmutableList.of(createQueryData("select 1", 30, 3, 7)).iterator());
+        // when
+        aggregateCollector.merge(toBeMergedAggregateCollector);
+        // then
+        Aggregate aggregate = aggregateCollector.build(new ScratchBuffer());
+        assertThat(aggregate.getQueriesByTypeCount()).isEqualTo(1);
+        Aggregate.QueriesByType queriesByType = aggregate.getQueriesByType(0);
+        assertThat(queriesByType.getType()).isEqualTo("SQL");
+        assertThat(queriesByType.getQueryCount()).isEqualTo(2);
+        Aggregate.Query query = queriesByType.getQuery(0);
+        assertThat(query.getText()).isEqualTo("select 1");
+        assertThat(query.getTotalNanos()).isEqualTo(40);
+        assertThat(query.getExecutionCount()).isEqualTo(4);
+        assertThat(query.getTotalRows()).isEqualTo(12);
+        assertThat(queriesByType.getQuery(1).getText()).isEqualTo("select 2");
+    }
+
+    @Test
+    public void shouldMergeRootTimersByNameAndExtended() throws Exception {
+        // given
+        AggregateCollector aggregateCollector = new AggregateCollector(null, 100);
+        aggregateCollector.mergeAuxThreadRootTimer(createRootTimer("a", false, 10));
+        AggregateCollector toBeMergedAggregateCollector = new AggregateCollector(null, 100);
+        toBeMergedAggregateCollector.mergeAuxThreadRootTimer(createRootTimer("a", false, 20));
+        toBeMergedAggregateCollector.mergeAuxThreadRootTimer(createRootTimer("a", true, 30));
+        // when
+        aggregateCollector.merge(toBeMergedAggregateCollector);
+        // then
+        Aggregate aggregate = aggregateCollector.build(new ScratchBuffer());
+        assertThat(aggregate.getAuxThreadRootTimerCount()).isEqualTo(2);
+        Aggregate.Timer rootTimer = aggregate.getAuxThreadRootTimer(0);
+        assertThat(rootTimer.getName()).isEqualTo("a");
+        assertThat(rootTimer.getExtended()).isFalse();
+        assertThat(rootTimer.getTotalNanos()).isEqualTo(30);
+        assertThat(rootTimer.getCount()).isEqualTo(2);
+        Aggregate.Timer extendedRootTimer = aggregate.getAuxThreadRootTimer(1);
+        assertThat(extendedRootTimer.getName()).isEqualTo("a");
+        assertThat(extendedRootTimer.getExtended()).isTrue();
+        assertThat(extendedRootTimer.getTotalNanos()).isEqualTo(30);
+        assertThat(extendedRootTimer.getCount()).isEqualTo(1);
+    }
+
+    private static QueryData createQueryData(String queryText, long totalNanos,
+            long executionCount, long totalRows) {
+        QueryData queryData = mock(QueryData.class);
+        when(queryData.getQueryType()).thenReturn("SQL");
+        when(queryData.getQueryText()).thenReturn(queryText);
+        when(queryData.getTotalNanos()).thenReturn(totalNanos);
+        when(queryData.getExecutionCount()).thenReturn(executionCount);
+        when(queryData.getTotalRows()).thenReturn(totalRows);
+        return queryData;
+    }
+
+    private static CommonTimerImpl createRootTimer(String name, boolean extended,
+            long totalNanos) {
+        CommonTimerImpl rootTimer = mock(CommonTimerImpl.class);
+        when(rootTimer.getName()).thenReturn(name);
+        when(rootTimer.isExtended()).thenReturn(extended);
+        when(rootTimer.getTotalNanos()).thenReturn(totalNanos);
+        when(rootTimer.getCount()).thenReturn(1L);
+        doReturn(ImmutableList.<CommonTimerImpl>of().iterator()).when(rootTimer).getChildTimers();
+        return rootTimer;
+    }
+}
@@ -17,13 +17,16 @@ package org.glowroot.agent.impl;
 
 import java.util.List;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import org.junit.Test;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.model.CommonTimerImpl;
 import org.glowroot.agent.model.QueryData;
 import org.glowroot.agent.model.ThreadStats;
 import org.glowroot.agent.model.TimerImpl;
@@ -49,36 +52,66 @@ public class AggregatorTest {
 
     @Test
     public void shouldFlushWithTrace() throws InterruptedException {
+        shouldFlushWithTrace(1);
+    }
+
+    @Test
+    public void shouldFlushWithTraceWhenStriped() throws InterruptedException {
+        shouldFlushWithTrace(4);
+    }
+
+    @Test
+    public void shouldCombinePartialAggregatesWhenStriped() throws Exception {
         // given
-        ScheduledExecutorService scheduledExecutorService = mock(ScheduledExecutorService.class);
-        doAnswer(new Answer<Void>() {
+        MockCollector aggregateCollector = new MockCollector();
+        final AtomicLong currentTimeMillis = new AtomicLong(500);
+        Clock clock = new Clock() {
             @Override
-            public Void answer(InvocationOnMock invocation) throws Throwable {
-                Runnable runnable = (Runnable) invocation.getArguments()[0];
-                runnable.run();
-                return null;
+            public long currentTimeMillis() {
+                return currentTimeMillis.get();
             }
-        }).when(scheduledExecutorService).execute(any(Runnable.class));
-        MockCollector aggregateCollector = new MockCollector();
-        ConfigService configService = mock(ConfigService.class);
-        when(configService.getAdvancedConfig())
-                .thenReturn(ImmutableAdvancedConfig.builder().build());
-        Aggregator aggregator = new Aggregator(scheduledExecutorService, aggregateCollector,
-                configService, 1000, Clock.systemClock());
+        };
+        final Aggregator aggregator = new Aggregator(createScheduledExecutorService(),
+                aggregateCollector, createConfigService(), 1000, clock, 4, 10000);
+        final Transaction transaction = createTransaction();
+        // when
+        List<Thread> threads = Lists.newArrayList();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100; j++) {
+                        aggregator.add(transaction);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        currentTimeMillis.set(1500);
+        aggregator.add(transaction);
+        // then
+        // aggregation is done in a separate thread, so give it a little time to complete
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 5000) {
+            if (aggregateCollector.getTotalNanos() > 0) {
+                break;
+            }
+        }
+        assertThat(aggregateCollector.getTotalNanos()).isEqualTo(800 * 123 * 1000000.0);
+        aggregator.close();
+    }
 
-        Transaction transaction = mock(Transaction.class);
-        TimerImpl mainThreadRootTimer = mock(TimerImpl.class);
-        when(mainThreadRootTimer.getName()).thenReturn("mock timer");
-        when(mainThreadRootTimer.getChildTimers())
-                .thenReturn(ImmutableList.<TimerImpl>of().iterator());
-        when(transaction.getTransactionType()).thenReturn("a type");
-        when(transaction.getTransactionName()).thenReturn("a name");
-        when(transaction.getDurationNanos()).thenReturn(MILLISECONDS.toNanos(123));
-        when(transaction.getMainThreadRootTimer()).thenReturn(mainThreadRootTimer);
-        when(transaction.getQueries()).thenReturn(ImmutableList.<QueryData>of().iterator());
-        when(transaction.getMainThreadStats()).thenReturn(ThreadStats.NA);
-        when(transaction.getAuxThreadRootTimers()).thenReturn(ImmutableList.<TimerImpl>of());
-        when(transaction.getAuxThreadStats()).thenReturn(ImmutableList.<ThreadStats>of());
+    private static void shouldFlushWithTrace(int stripeCount) throws InterruptedException {
+        // given
+        MockCollector aggregateCollector = new MockCollector();
+        Aggregator aggregator = new Aggregator(createScheduledExecutorService(),
+                aggregateCollector, createConfigService(), 1000, Clock.systemClock(),
+                stripeCount, 10000);
+        Transaction transaction = createTransaction();
         // when
         int count = 0;
         long firstCaptureTime = aggregator.add(transaction);
@@ -103,6 +136,44 @@ public class AggregatorTest {
         aggregator.close();
     }
 
+    private static ScheduledExecutorService createScheduledExecutorService() {
+        ScheduledExecutorService scheduledExecutorService = mock(ScheduledExecutorService.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Runnable runnable = (Runnable) invocation.getArguments()[0];
+                runnable.run();
+                return null;
+            }
+        }).when(scheduledExecutorService).execute(any(Runnable.class));
+        return scheduledExecutorService;
+    }
+
+    private static ConfigService createConfigService() {
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        return configService;
+    }
+
+    private static Transaction createTransaction() {
+        Transaction transaction = mock(Transaction.class);
+        TimerImpl mainThreadRootTimer = mock(TimerImpl.class);
+        when(mainThreadRootTimer.getName()).thenReturn("mock timer");
+        when(mainThreadRootTimer.getChildTimers())
+                .thenReturn(ImmutableList.<TimerImpl>of().iterator());
+        when(transaction.getTransactionType()).thenReturn("a type");
+        when(transaction.getTransactionName()).thenReturn("a name");
+        when(transaction.getDurationNanos()).thenReturn(MILLISECONDS.toNanos(123));
+        when(transaction.getMainThreadRootTimer()).thenReturn(mainThreadRootTimer);
+        when(transaction.getQueries()).thenReturn(ImmutableList.<QueryData>of().iterator());
+        when(transaction.getMainThreadStats()).thenReturn(ThreadStats.NA);
+        when(transaction.getAuxThreadRootTimers())
+                .thenReturn(ImmutableList.<CommonTimerImpl>of());
+        when(transaction.getAuxThreadStats()).thenReturn(ImmutableList.<ThreadStats>of());
+        return transaction;
+    }
+
     private static class MockCollector implements Collector {
 
         // volatile needed for visibility from other thread
@@ -129,6 +200,9 @@ public class AggregatorTest {
         @Override
         public void collectTrace(Trace trace) {}
 
+        @Override
+        public void collectTraces(List<Trace> traces) {}
+
         @Override
         public void log(LogEvent logEvent) {}
     }
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
+import org.glowroot.agent.model.ThreadContextImpl;
+import org.glowroot.agent.model.Transaction;
+import org.glowroot.agent.model.Transaction.CompletionCallback;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.util.FastThreadLocal;
+import org.glowroot.wire.api.Collector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TraceStoragePipelineTest {
+
+    @Test
+    public void shouldDropSlowTraceWhenFull() throws Exception {
+        // given
+        TraceStoragePipeline pipeline = new TraceStoragePipeline(mock(Collector.class), 2, 0);
+        Transaction slow1 = mock(Transaction.class);
+        Transaction slow2 = mock(Transaction.class);
+        Transaction slow3 = mock(Transaction.class);
+        // when
+        pipeline.add(slow1, 0, true, false);
+        pipeline.add(slow2, 0, true, false);
+        boolean added = pipeline.add(slow3, 0, true, false);
+        // then
+        assertThat(added).isFalse();
+        assertThat(pipeline.getPendingTransactions()).containsOnly(slow1, slow2);
+        assertThat(pipeline.getQueueSize()).isEqualTo(2);
+        assertThat(pipeline.getDroppedSlowCount()).isEqualTo(1);
+        assertThat(pipeline.getEvictedCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldEvictSlowTraceInFavorOfErrorTrace() throws Exception {
+        // given
+        TraceStoragePipeline pipeline = new TraceStoragePipeline(mock(Collector.class), 2, 0);
+        Transaction slow1 = mock(Transaction.class);
+        Transaction slow2 = mock(Transaction.class);
+        Transaction error1 = mock(Transaction.class);
+        Transaction error2 = mock(Transaction.class);
+        Transaction error3 = mock(Transaction.class);
+        // when
+        pipeline.add(slow1, 0, true, false);
+        pipeline.add(slow2, 0, true, false);
+        pipeline.add(error1, 0, false, true);
+        pipeline.add(error2, 0, true, true);
+        boolean added = pipeline.add(error3, 0, false, true);
+        // then
+        assertThat(added).isFalse();
+        assertThat(pipeline.getPendingTransactions()).containsOnly(error1, error2);
+        assertThat(pipeline.getEvictedCount()).isEqualTo(2);
+        assertThat(pipeline.getDroppedErrorCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldEvictErrorTraceInFavorOfPartiallyStoredTrace() throws Exception {
+        // given
+        TraceStoragePipeline pipeline = new TraceStoragePipeline(mock(Collector.class), 1, 0);
+        Transaction error = mock(Transaction.class);
+        Transaction partiallyStored = mock(Transaction.class);
+        when(partiallyStored.isPartiallyStored()).thenReturn(true);
+        // when
+        pipeline.add(error, 0, false, true);
+        boolean added = pipeline.add(partiallyStored, 0, true, false);
+        // then
+        assertThat(added).isTrue();
+        assertThat(pipeline.getPendingTransactions()).containsOnly(partiallyStored);
+        assertThat(pipeline.getEvictedCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldCountDroppedPartiallyStoredTraceSeparately() throws Exception {
+        // given
+        TraceStoragePipeline pipeline = new TraceStoragePipeline(mock(Collector.class), 1, 0);
+        Transaction partiallyStored1 = mock(Transaction.class);
+        Transaction partiallyStored2 = mock(Transaction.class);
+        when(partiallyStored1.isPartiallyStored()).thenReturn(true);
+        when(partiallyStored2.isPartiallyStored()).thenReturn(true);
+        // when
+        pipeline.add(partiallyStored1, 0, true, false);
+        boolean added = pipeline.add(partiallyStored2, 0, true, false);
+        // then
+        assertThat(added).isFalse();
+        assertThat(pipeline.getDroppedPartiallyStoredCount()).isEqualTo(1);
+        assertThat(pipeline.getDroppedErrorCount()).isEqualTo(0);
+        assertThat(pipeline.getDroppedSlowCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldOnlyCompleteAdmittedTransactionsForStorage() throws Exception {
+        // given
+        TraceStoragePipeline pipeline = new TraceStoragePipeline(mock(Collector.class), 1, 0);
+        Transaction slow1 = mock(Transaction.class);
+        Transaction slow2 = mock(Transaction.class);
+        // when
+        pipeline.add(slow1, 123, true, false);
+        pipeline.add(slow2, 456, true, false);
+        // then
+        verify(slow1).onCompleteWillStoreTrace(123);
+        verify(slow2, never()).onCompleteWillStoreTrace(anyLong());
+    }
+
+    @Test
+    public void shouldIncludeTracesBeingStoredInBound() throws Exception {
+        // given
+        final CountDownLatch storing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        TraceStoragePipeline pipeline = new TraceStoragePipeline(mock(Collector.class), 1, 1);
+        Transaction slow1 = mock(Transaction.class);
+        Transaction slow2 = mock(Transaction.class);
+        // building the trace is the first step of storing it
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Exception {
+                storing.countDown();
+                release.await();
+                return ImmutableList.of();
+            }
+        }).when(slow1).getEntriesProtobuf(anyLong());
+        // when
+        pipeline.add(slow1, 0, true, false);
+        storing.await();
+        boolean added = pipeline.add(slow2, 0, true, false);
+        release.countDown();
+        // then
+        assertThat(added).isFalse();
+        assertThat(pipeline.getQueueSize()).isEqualTo(0);
+        assertThat(pipeline.getDroppedSlowCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldStoreWaitingTracesInBatch() throws Exception {
+        // given
+        final CountDownLatch storing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Collector collector = mock(Collector.class);
+        TraceStoragePipeline pipeline = new TraceStoragePipeline(collector, 10, 1);
+        Transaction slow1 = mock(Transaction.class);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Exception {
+                storing.countDown();
+                release.await();
+                return ImmutableList.of();
+            }
+        }).when(slow1).getEntriesProtobuf(anyLong());
+        // when
+        pipeline.add(slow1, 0, true, false);
+        storing.await();
+        for (int i = 0; i < 3; i++) {
+            pipeline.add(createTransaction(), 0, true, false);
+        }
+        release.countDown();
+        // then
+        long start = System.currentTimeMillis();
+        // pending transactions are removed after the batch is stored
+        while ((pipeline.getStoredCount() < 3 || !pipeline.getPendingTransactions().isEmpty())
+                && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(10);
+        }
+        // the first (mock) transaction is only there to hold up the worker thread, and its trace
+        // cannot be built
+        assertThat(pipeline.getFailedCount()).isEqualTo(1);
+        assertThat(pipeline.getStoredCount()).isEqualTo(3);
+        assertThat(pipeline.getBatchCount()).isEqualTo(1);
+        assertThat(pipeline.getPendingTransactions()).isEmpty();
+        ArgumentCaptor<List> traces = ArgumentCaptor.forClass(List.class);
+        verify(collector).collectTraces(traces.capture());
+        assertThat(traces.getValue()).hasSize(3);
+        pipeline.close();
+    }
+
+    private static Transaction createTransaction() {
+        return new Transaction(0, 0, "Test", "test", MessageSupplier.from("test"),
+                ImmutableTimerNameImpl.of("test", false), true, 100, 1, false, null,
+                mock(CompletionCallback.class), Ticker.systemTicker(),
+                mock(TransactionRegistry.class), mock(TransactionServiceImpl.class),
+                mock(ConfigService.class), mock(UserProfileScheduler.class),
+                new FastThreadLocal</*@Nullable*/ ThreadContextImpl>().getHolder());
+    }
+}
@@ -15,14 +15,17 @@
  */
 package org.glowroot.agent.model;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.junit.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class NestedTimerMapTest {
 
@@ -43,4 +46,68 @@ public class NestedTimerMapTest {
             assertThat(map.get(entry.getKey())).isEqualTo(entry.getValue());
         }
     }
+
+    @Test
+    public void testProbingOnSameHashCode() {
+        // given
+        NestedTimerMap map = new NestedTimerMap();
+        TimerNameImpl timerName1 = timerNameWithHashCode(0);
+        TimerNameImpl timerName2 = timerNameWithHashCode(0);
+        TimerNameImpl timerName3 = timerNameWithHashCode(4);
+        TimerNameImpl notAdded = timerNameWithHashCode(0);
+        TimerImpl timer1 = mock(TimerImpl.class);
+        TimerImpl timer2 = mock(TimerImpl.class);
+        TimerImpl timer3 = mock(TimerImpl.class);
+        // when
+        map.put(timerName1, timer1);
+        map.put(timerName2, timer2);
+        map.put(timerName3, timer3);
+        // then
+        assertThat(map.get(timerName1)).isEqualTo(timer1);
+        assertThat(map.get(timerName2)).isEqualTo(timer2);
+        assertThat(map.get(timerName3)).isEqualTo(timer3);
+        assertThat(map.get(notAdded)).isNull();
+    }
+
+    @Test
+    public void testGetAfterResize() {
+        // given
+        NestedTimerMap map = new NestedTimerMap();
+        List<TimerNameImpl> timerNames = Lists.newArrayList();
+        List<TimerImpl> timers = Lists.newArrayList();
+        // when
+        for (int i = 0; i < 100; i++) {
+            // hash codes that collide at every table size up to 64, and are then spread out
+            TimerNameImpl timerName = timerNameWithHashCode((i % 2) * 64 + i / 2);
+            TimerImpl timer = mock(TimerImpl.class);
+            map.put(timerName, timer);
+            timerNames.add(timerName);
+            timers.add(timer);
+            // then
+            for (int j = 0; j <= i; j++) {
+                assertThat(map.get(timerNames.get(j))).isEqualTo(timers.get(j));
+            }
+        }
+        assertThat(map.get(timerNameWithHashCode(0))).isNull();
+    }
+
+    @Test
+    public void testPutReplacesExistingEntry() {
+        // given
+        NestedTimerMap map = new NestedTimerMap();
+        TimerNameImpl timerName = timerNameWithHashCode(0);
+        TimerImpl timer1 = mock(TimerImpl.class);
+        TimerImpl timer2 = mock(TimerImpl.class);
+        // when
+        map.put(timerName, timer1);
+        map.put(timerName, timer2);
+        // then
+        assertThat(map.get(timerName)).isEqualTo(timer2);
+    }
+
+    private static TimerNameImpl timerNameWithHashCode(int specialHashCode) {
+        TimerNameImpl timerName = mock(TimerNameImpl.class);
+        when(timerName.specialHashCode()).thenReturn(specialHashCode);
+        return timerName;
+    }
 }
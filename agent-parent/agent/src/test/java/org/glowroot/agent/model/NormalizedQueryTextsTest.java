@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NormalizedQueryTextsTest {
+
+    @Test
+    public void shouldNormalizeSqlAndCql() {
+        assertThat(NormalizedQueryTexts.get("SQL", "select * from t where a = 'x' and b = 12"))
+                .isEqualTo("select * from t where a = ? and b = ?");
+        assertThat(NormalizedQueryTexts.get("CQL", "select * from t where a = 'x'"))
+                .isEqualTo("select * from t where a = ?");
+    }
+
+    @Test
+    public void shouldNotNormalizeOtherQueryTypes() {
+        // given
+        String queryText = "get key 'x' 12";
+        // when
+        String normalized = NormalizedQueryTexts.get("Redis", queryText);
+        // then
+        assertThat(normalized).isSameAs(queryText);
+    }
+
+    @Test
+    public void shouldNotNormalizeVeryLongQueryTexts() {
+        // given
+        String queryText = "insert into t (a) values ('x')"
+                + Strings.repeat(", ('x')", 10000 / 7);
+        // when
+        String normalized = NormalizedQueryTexts.get("SQL", queryText);
+        // then
+        assertThat(normalized).isSameAs(queryText);
+    }
+}
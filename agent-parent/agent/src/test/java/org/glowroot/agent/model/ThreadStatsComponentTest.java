@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ThreadStatsComponentTest {
+
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    private boolean contentionMonitoringEnabled;
+
+    @Before
+    public void beforeEachTest() {
+        Assume.assumeTrue(threadMXBean.isThreadContentionMonitoringSupported());
+        contentionMonitoringEnabled = threadMXBean.isThreadContentionMonitoringEnabled();
+        threadMXBean.setThreadContentionMonitoringEnabled(true);
+    }
+
+    @After
+    public void afterEachTest() {
+        threadMXBean.setThreadContentionMonitoringEnabled(contentionMonitoringEnabled);
+    }
+
+    @Test
+    public void shouldCaptureBlockedWaitedForOneOutOfEveryIntervalAuxContexts() throws Exception {
+        // given
+        List<ThreadStatsComponent> components = Lists.newArrayList();
+        for (int i = 0; i < 3; i++) {
+            components.add(new ThreadStatsComponent(null, true, 3));
+        }
+        // when
+        waitMillis(50);
+        List<ThreadStats> threadStats = Lists.newArrayList();
+        for (ThreadStatsComponent component : components) {
+            component.onComplete();
+            threadStats.add(component.getThreadStats());
+        }
+        // then
+        int sampledCount = 0;
+        for (ThreadStats stats : threadStats) {
+            if (stats.getTotalWaitedMillis() == 0) {
+                // not sampled
+                assertThat(stats.getTotalBlockedMillis()).isZero();
+            } else {
+                // sampled, and scaled up by the sampling interval
+                sampledCount++;
+                assertThat(stats.getTotalWaitedMillis()).isGreaterThanOrEqualTo(3 * 50);
+                assertThat(stats.getTotalWaitedMillis() % 3).isZero();
+                assertThat(stats.getTotalBlockedMillis() % 3).isZero();
+            }
+        }
+        assertThat(sampledCount).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldAlwaysCaptureBlockedWaitedForMainContext() throws Exception {
+        // given
+        ThreadStatsComponent component = new ThreadStatsComponent(null, false, 3);
+        // when
+        waitMillis(50);
+        component.onComplete();
+        // then
+        ThreadStats threadStats = component.getThreadStats();
+        assertThat(threadStats.getTotalWaitedMillis()).isGreaterThanOrEqualTo(50);
+        assertThat(threadStats.getTotalWaitedMillis()).isLessThan(3 * 50);
+    }
+
+    @Test
+    public void shouldOnlyCaptureOnComplete() throws Exception {
+        // given
+        ThreadStatsComponent component = new ThreadStatsComponent(null, false, 1);
+        component.onComplete();
+        ThreadStats threadStats = component.getThreadStats();
+        // when
+        waitMillis(50);
+        component.onComplete();
+        // then
+        assertThat(component.getThreadStats()).isSameAs(threadStats);
+    }
+
+    private static void waitMillis(long millis) throws InterruptedException {
+        Object monitor = new Object();
+        long endMillis = System.currentTimeMillis() + millis;
+        synchronized (monitor) {
+            long remainingMillis;
+            while ((remainingMillis = endMillis - System.currentTimeMillis()) > 0) {
+                monitor.wait(remainingMillis);
+            }
+        }
+    }
+}
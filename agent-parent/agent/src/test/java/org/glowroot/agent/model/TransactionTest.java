@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.TransactionRegistry;
+import org.glowroot.agent.impl.TransactionServiceImpl;
+import org.glowroot.agent.impl.UserProfileScheduler;
+import org.glowroot.agent.model.Transaction.CompletionCallback;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.TimerName;
+import org.glowroot.agent.plugin.api.util.FastThreadLocal;
+import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
+import org.glowroot.agent.util.Tickers;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class TransactionTest {
+
+    // this is the default value of glowroot.internal.auxThreadContextLimit
+    private static final int AUX_THREAD_CONTEXT_LIMIT = 1000;
+
+    private static final TimerName AUX_THREAD_TIMER_NAME =
+            ImmutableTimerNameImpl.of("auxiliary thread", false);
+
+    // trace entries and timers are ended using this ticker
+    private static final Ticker ticker = Tickers.getTicker();
+
+    private Transaction transaction;
+
+    @Before
+    public void beforeEachTest() {
+        // max aggregate queries per query type of 1 means hard limit of 10 queries overall
+        transaction = new Transaction(0, 0, "Test", "test", mock(MessageSupplier.class),
+                ImmutableTimerNameImpl.of("test", false), true, 100, 1, false, null,
+                mock(CompletionCallback.class), ticker, mock(TransactionRegistry.class),
+                mock(TransactionServiceImpl.class), mock(ConfigService.class),
+                mock(UserProfileScheduler.class),
+                new FastThreadLocal</*@Nullable*/ ThreadContextImpl>().getHolder());
+    }
+
+    @Test
+    public void shouldMergeAuxThreadContextsPastTheLimit() {
+        // given
+        for (int i = 0; i < AUX_THREAD_CONTEXT_LIMIT; i++) {
+            runAuxThreadContext(null);
+        }
+        // when
+        long startTick = ticker.read();
+        for (int i = 0; i < 5; i++) {
+            runAuxThreadContext(null);
+        }
+        long endTick = ticker.read();
+        // then
+        List<CommonTimerImpl> rootTimers =
+                ImmutableList.copyOf(transaction.getAuxThreadRootTimers());
+        assertThat(rootTimers).hasSize(AUX_THREAD_CONTEXT_LIMIT + 1);
+        for (CommonTimerImpl rootTimer : rootTimers.subList(0, AUX_THREAD_CONTEXT_LIMIT)) {
+            assertThat(rootTimer.getCount()).isEqualTo(1);
+        }
+        CommonTimerImpl aggregatedRootTimer = rootTimers.get(AUX_THREAD_CONTEXT_LIMIT);
+        assertThat(aggregatedRootTimer.getName()).isEqualTo("auxiliary thread");
+        assertThat(aggregatedRootTimer.getCount()).isEqualTo(5);
+        assertThat(aggregatedRootTimer.getTotalNanos()).isBetween(0L, endTick - startTick);
+
+        List<ThreadStats> threadStats = ImmutableList.copyOf(transaction.getAuxThreadStats());
+        assertThat(threadStats).hasSize(AUX_THREAD_CONTEXT_LIMIT + 1);
+        ThreadStats aggregatedThreadStats = threadStats.get(AUX_THREAD_CONTEXT_LIMIT);
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean.isCurrentThreadCpuTimeSupported()
+                && threadMXBean.isThreadCpuTimeEnabled()) {
+            assertThat(aggregatedThreadStats.getTotalCpuNanos()).isGreaterThanOrEqualTo(0);
+        }
+    }
+
+    @Test
+    public void shouldMergeQueriesOfAuxThreadContextsPastTheLimit() {
+        // given
+        for (int i = 0; i < AUX_THREAD_CONTEXT_LIMIT; i++) {
+            runAuxThreadContext(null);
+        }
+        // use up all but one of the aggregate query limit
+        for (int i = 0; i < 9; i++) {
+            assertThat(transaction.getMainThreadContext()
+                    .getOrCreateQueryDataIfPossible("SQL", "select " + i)).isNotNull();
+        }
+        // when
+        for (int i = 0; i < 5; i++) {
+            runAuxThreadContext("select x");
+        }
+        // then
+        List<QueryData> queries = Lists.newArrayList(transaction.getQueries());
+        assertThat(queries).hasSize(10);
+        QueryData aggregatedQueryData = Iterables.getLast(queries);
+        assertThat(aggregatedQueryData.getQueryText()).isEqualTo("select x");
+        // only the first one counted against the aggregate query limit, since the others were
+        // already contained in the aggregated auxiliary thread context
+        assertThat(aggregatedQueryData.getExecutionCount()).isEqualTo(5);
+        assertThat(aggregatedQueryData.getTotalNanos()).isEqualTo(25);
+        // but the limit still applies to new queries
+        assertThat(runAuxThreadContext("select y")).isFalse();
+    }
+
+    // returns whether the query was captured
+    private boolean runAuxThreadContext(@Nullable String queryText) {
+        Holder</*@Nullable*/ ThreadContextImpl> threadContextHolder =
+                new FastThreadLocal</*@Nullable*/ ThreadContextImpl>().getHolder();
+        TraceEntryImpl auxRootEntry = transaction.startAuxThreadContext(
+                transaction.getMainThreadContext().getRootEntry(), AUX_THREAD_TIMER_NAME,
+                ticker.read(),
+                threadContextHolder, null);
+        boolean captured = false;
+        if (queryText != null) {
+            ThreadContextImpl auxThreadContext = threadContextHolder.get();
+            QueryData queryData =
+                    auxThreadContext.getOrCreateQueryDataIfPossible("SQL", queryText);
+            if (queryData != null) {
+                queryData.start(0, 1);
+                queryData.end(5);
+                captured = true;
+            }
+        }
+        auxRootEntry.end();
+        return captured;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AppendOnlyChunkedListTest {
+
+    @Test
+    public void shouldBeEmpty() {
+        // given
+        AppendOnlyChunkedList<String> list = new AppendOnlyChunkedList<String>();
+        // then
+        assertThat(list.isEmpty()).isTrue();
+        assertThat(list.size()).isEqualTo(0);
+        assertThat(list.iterator().hasNext()).isFalse();
+    }
+
+    @Test
+    public void shouldIterateAcrossChunks() {
+        // given
+        AppendOnlyChunkedList<Integer> list = new AppendOnlyChunkedList<Integer>();
+        // when
+        for (int i = 0; i < 5000; i++) {
+            list.add(i);
+        }
+        // then
+        assertThat(list.isEmpty()).isFalse();
+        assertThat(list.size()).isEqualTo(5000);
+        List<Integer> elements = ImmutableList.copyOf(list);
+        assertThat(elements).hasSize(5000);
+        for (int i = 0; i < 5000; i++) {
+            assertThat(elements.get(i)).isEqualTo(i);
+        }
+    }
+
+    @Test
+    public void shouldOnlyIterateElementsAddedBeforeIteratorWasCreated() {
+        // given
+        AppendOnlyChunkedList<String> list = new AppendOnlyChunkedList<String>();
+        list.add("a");
+        list.add("b");
+        list.add("c");
+        list.add("d");
+        // when
+        Iterator<String> i = list.iterator();
+        list.add("e");
+        // then
+        assertThat(ImmutableList.copyOf(i)).containsExactly("a", "b", "c", "d");
+        assertThat(list).containsExactly("a", "b", "c", "d", "e");
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void shouldThrowNoSuchElementException() {
+        // given
+        AppendOnlyChunkedList<String> list = new AppendOnlyChunkedList<String>();
+        list.add("a");
+        Iterator<String> i = list.iterator();
+        i.next();
+        // when
+        i.next();
+    }
+}
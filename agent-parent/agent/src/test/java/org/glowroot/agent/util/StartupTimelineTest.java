@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.util;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import org.glowroot.common.live.StartupTimelineService;
+import org.glowroot.common.live.StartupTimelineService.StartupSpan;
+import org.glowroot.common.live.StartupTimelineService.WovenClass;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StartupTimelineTest {
+
+    @Test
+    public void shouldRecordNestedSpans() {
+        // given
+        StartupTimeline startupTimeline = new StartupTimeline("0.0", Ticker.systemTicker());
+        // when
+        StartupTimeline.Span outer = startupTimeline.startSpan("outer");
+        startupTimeline.startSpan("inner").end();
+        outer.end();
+        startupTimeline.startSpan("unfinished");
+        // then
+        StartupTimelineService.StartupTimeline timeline = startupTimeline.getStartupTimeline();
+        assertThat(timeline.spans()).hasSize(3);
+        StartupSpan outerSpan = timeline.spans().get(0);
+        StartupSpan innerSpan = timeline.spans().get(1);
+        StartupSpan unfinishedSpan = timeline.spans().get(2);
+        assertThat(outerSpan.name()).isEqualTo("outer");
+        assertThat(outerSpan.depth()).isEqualTo(0);
+        assertThat(innerSpan.name()).isEqualTo("inner");
+        assertThat(innerSpan.depth()).isEqualTo(1);
+        assertThat(innerSpan.durationNanos()).isLessThanOrEqualTo(outerSpan.durationNanos());
+        assertThat(unfinishedSpan.depth()).isEqualTo(0);
+        assertThat(unfinishedSpan.durationNanos()).isEqualTo(-1);
+    }
+
+    @Test
+    public void shouldRecordSequentialSpans() {
+        // given
+        StartupTimeline startupTimeline = new StartupTimeline("0.0", Ticker.systemTicker());
+        // when
+        StartupTimeline.Span outer = startupTimeline.startSpan("outer");
+        StartupTimeline.Span span = startupTimeline.startSpan("first");
+        span = span.next("second");
+        span.end();
+        outer.end();
+        // then
+        StartupTimelineService.StartupTimeline timeline = startupTimeline.getStartupTimeline();
+        assertThat(timeline.spans()).hasSize(3);
+        StartupSpan firstSpan = timeline.spans().get(1);
+        StartupSpan secondSpan = timeline.spans().get(2);
+        assertThat(firstSpan.name()).isEqualTo("first");
+        assertThat(firstSpan.depth()).isEqualTo(1);
+        assertThat(firstSpan.durationNanos()).isNotEqualTo(-1);
+        assertThat(secondSpan.name()).isEqualTo("second");
+        assertThat(secondSpan.depth()).isEqualTo(1);
+        assertThat(secondSpan.offsetNanos())
+                .isGreaterThanOrEqualTo(firstSpan.offsetNanos() + firstSpan.durationNanos());
+    }
+
+    @Test
+    public void shouldRecordWeaving() {
+        // given
+        StartupTimeline startupTimeline = new StartupTimeline("0.0", Ticker.systemTicker());
+        // when
+        for (int i = 1; i <= 100; i++) {
+            startupTimeline.recordWeaving(null, "org/a/Class" + i, i);
+        }
+        // then
+        StartupTimelineService.StartupTimeline timeline = startupTimeline.getStartupTimeline();
+        assertThat(timeline.classLoaderWeavings()).hasSize(1);
+        assertThat(timeline.classLoaderWeavings().get(0).classLoader()).isEqualTo("bootstrap");
+        assertThat(timeline.classLoaderWeavings().get(0).classCount()).isEqualTo(100);
+        assertThat(timeline.classLoaderWeavings().get(0).totalNanos()).isEqualTo(5050);
+        assertThat(timeline.slowestWovenClasses()).hasSize(20);
+        WovenClass slowest = timeline.slowestWovenClasses().get(0);
+        assertThat(slowest.className()).isEqualTo("org.a.Class100");
+        assertThat(slowest.nanos()).isEqualTo(100);
+        assertThat(timeline.slowestWovenClasses().get(19).nanos()).isEqualTo(81);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Type;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.SomeAspect.BasicAnnotationBasedAdvice;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdviceBloomFilterTest {
+
+    private static final String SUPER_BASIC_MISC = "org/glowroot/agent/weaving/SuperBasicMisc";
+    private static final String SUPER_BASIC = "org/glowroot/agent/weaving/SuperBasic";
+
+    @Test
+    public void shouldMatchExactClassName() throws Exception {
+        // given
+        AdviceBloomFilter filter =
+                newFilter(newAdvice("org.glowroot.agent.weaving.SuperBasicMisc", null));
+        // then
+        assertThat(mayMatchSuperBasicMisc(filter)).isTrue();
+    }
+
+    @Test
+    public void shouldMatchDirectSuperType() throws Exception {
+        // given
+        AdviceBloomFilter filter =
+                newFilter(newAdvice("org.glowroot.agent.weaving.SuperBasic", null));
+        // then
+        assertThat(mayMatchSuperBasicMisc(filter)).isTrue();
+    }
+
+    @Test
+    public void shouldMatchClassNamePrefix() throws Exception {
+        // given
+        AdviceBloomFilter filter = newFilter(
+                newAdvice("org.glowroot.agent.weaving.Super*", Pattern.compile(".*")));
+        // then
+        assertThat(mayMatchSuperBasicMisc(filter)).isTrue();
+    }
+
+    @Test
+    public void shouldNotMatchUnrelatedClass() throws Exception {
+        // given
+        AdviceBloomFilter filter = newFilter(newAdvice("org.a.Foo", null));
+        // then
+        assertThat(mayMatchSuperBasicMisc(filter)).isFalse();
+    }
+
+    @Test
+    public void shouldMatchCarrier() throws Exception {
+        // given
+        AdviceBloomFilter filter = newFilter(newAdvice("org.a.Foo", null));
+        // when
+        filter.addCarrier("org.glowroot.agent.weaving.SuperBasic");
+        // then
+        assertThat(mayMatchSuperBasicMisc(filter)).isTrue();
+    }
+
+    @Test
+    public void shouldMatchClassAnnotation() throws Exception {
+        // given
+        AdviceBloomFilter filter = newFilter(newAdvice(
+                BasicAnnotationBasedAdvice.class.getAnnotation(Pointcut.class), "", null));
+        ClassReader cr = new ClassReader(getClassBytes(BasicMisc.class));
+        // then
+        assertThat(filter.mayMatch(cr, cr.getClassName(), cr.getSuperName(),
+                cr.getInterfaces())).isTrue();
+        assertThat(mayMatchSuperBasicMisc(filter)).isFalse();
+    }
+
+    @Test
+    public void shouldMatchEverythingWhenUnindexed() throws Exception {
+        // given
+        AdviceBloomFilter filter = newFilter(newAdvice("*Service", Pattern.compile(".*")));
+        // then
+        assertThat(mayMatchSuperBasicMisc(filter)).isTrue();
+    }
+
+    private static boolean mayMatchSuperBasicMisc(AdviceBloomFilter filter) throws Exception {
+        ClassReader cr = new ClassReader(getClassBytes(SuperBasicMisc.class));
+        return filter.mayMatch(cr, SUPER_BASIC_MISC, "java/lang/Object",
+                new String[] {SUPER_BASIC});
+    }
+
+    private static AdviceBloomFilter newFilter(Advice advice) {
+        return AdviceBloomFilter.create(new AdviceIndex(ImmutableList.of(advice)),
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+    }
+
+    private static Advice newAdvice(String declaringClassName,
+            @Nullable Pattern declaringClassNamePattern) {
+        return newAdvice(BasicAdvice.class.getAnnotation(Pointcut.class), declaringClassName,
+                declaringClassNamePattern);
+    }
+
+    private static Advice newAdvice(Pointcut pointcut, String declaringClassName,
+            @Nullable Pattern declaringClassNamePattern) {
+        // the filter only looks at the declaring class name criteria (same as the advice index)
+        return ImmutableAdvice.builder()
+                .pointcut(pointcut)
+                .pointcutClassName(declaringClassName)
+                .pointcutMethodDeclaringClassName(declaringClassName)
+                .pointcutMethodDeclaringClassNamePattern(declaringClassNamePattern)
+                .adviceType(Type.getType(AdviceBloomFilterTest.class))
+                .reweavable(false)
+                .hasBindThreadContext(false)
+                .hasBindOptionalThreadContext(false)
+                .build();
+    }
+
+    private static byte[] getClassBytes(Class<?> clazz) throws Exception {
+        return Resources.toByteArray(clazz.getResource(clazz.getSimpleName() + ".class"));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+import org.objectweb.asm.Type;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.SomeAspect.BasicAnnotationBasedAdvice;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdviceIndexTest {
+
+    private static final String SOME_CLASS_ANNOTATION =
+            "Lorg/glowroot/agent/weaving/SomeAspect$SomeClass;";
+
+    private final Advice exactAdvice = newAdvice("org.a.Foo", false);
+    private final Advice prefixAdvice = newAdvice("org.a.b.*Service", true);
+    private final Advice alternationAdvice = newAdvice("org.x.*|com.y.Z*", true);
+    private final Advice noPackagePrefixAdvice = newAdvice("*Service", true);
+    private final Advice regexAdvice = newAdvice("/org\\.a\\..*/", true);
+    private final Advice annotationAdvice = newAnnotationAdvice();
+
+    private final AdviceIndex adviceIndex = new AdviceIndex(ImmutableList.of(exactAdvice,
+            prefixAdvice, alternationAdvice, noPackagePrefixAdvice, regexAdvice,
+            annotationAdvice));
+
+    @Test
+    public void shouldOnlyReturnUnindexedForUnrelatedClass() {
+        // when
+        List<Advice> candidates = getCandidates("com.example.Unrelated");
+        // then
+        assertThat(candidates).containsExactly(noPackagePrefixAdvice, regexAdvice);
+    }
+
+    @Test
+    public void shouldMatchExactClassName() {
+        assertThat(getCandidates("org.a.Foo")).contains(exactAdvice);
+        assertThat(getCandidates("org.a.Food")).doesNotContain(exactAdvice);
+        assertThat(getCandidates("org.a.b.Foo")).doesNotContain(exactAdvice);
+    }
+
+    @Test
+    public void shouldMatchClassNamePrefix() {
+        assertThat(getCandidates("org.a.b.MyService")).contains(prefixAdvice);
+        // sub-packages are candidates too since * matches '.'
+        assertThat(getCandidates("org.a.b.c.MyService")).contains(prefixAdvice);
+        assertThat(getCandidates("org.a.Foo")).doesNotContain(prefixAdvice);
+        assertThat(getCandidates("org.ab.Foo")).doesNotContain(prefixAdvice);
+    }
+
+    @Test
+    public void shouldMatchEachAlternation() {
+        assertThat(getCandidates("org.x.Anything")).containsOnlyOnce(alternationAdvice);
+        assertThat(getCandidates("com.y.Zebra")).containsOnlyOnce(alternationAdvice);
+        assertThat(getCandidates("com.z.Zebra")).doesNotContain(alternationAdvice);
+    }
+
+    @Test
+    public void shouldMatchClassAnnotation() {
+        assertThat(getCandidates("com.example.Unrelated", SOME_CLASS_ANNOTATION))
+                .contains(annotationAdvice);
+        assertThat(getCandidates("com.example.Unrelated")).doesNotContain(annotationAdvice);
+    }
+
+    @Test
+    public void shouldPreserveOriginalOrder() {
+        // when
+        List<Advice> candidates = getCandidates("org.a.Foo", SOME_CLASS_ANNOTATION);
+        // then
+        assertThat(candidates).containsExactly(exactAdvice, noPackagePrefixAdvice, regexAdvice,
+                annotationAdvice);
+    }
+
+    private List<Advice> getCandidates(String className, String... classAnnotations) {
+        return adviceIndex.getCandidates(className, ImmutableList.copyOf(classAnnotations));
+    }
+
+    private static Advice newAdvice(String declaringClassName, boolean pattern) {
+        return newAdvice(BasicAdvice.class.getAnnotation(Pointcut.class), declaringClassName,
+                pattern ? Pattern.compile(".*") : null);
+    }
+
+    private static Advice newAnnotationAdvice() {
+        return newAdvice(BasicAnnotationBasedAdvice.class.getAnnotation(Pointcut.class), "",
+                null);
+    }
+
+    private static Advice newAdvice(Pointcut pointcut, String declaringClassName,
+            @Nullable Pattern declaringClassNamePattern) {
+        // the index only looks at the declaring class name criteria, so the pattern itself does
+        // not need to be accurate
+        return ImmutableAdvice.builder()
+                .pointcut(pointcut)
+                .pointcutClassName(declaringClassName)
+                .pointcutMethodDeclaringClassName(declaringClassName)
+                .pointcutMethodDeclaringClassNamePattern(declaringClassNamePattern)
+                .adviceType(Type.getType(AdviceIndexTest.class))
+                .reweavable(false)
+                .hasBindThreadContext(false)
+                .hasBindOptionalThreadContext(false)
+                .build();
+    }
+}
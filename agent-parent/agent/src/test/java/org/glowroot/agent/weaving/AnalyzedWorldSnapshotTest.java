@@ -0,0 +1,266 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.weaving.AnalyzedWorldSnapshot.SuperAnalyzedClasses;
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.SomeAspect.SuperBasicAdvice;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AnalyzedWorldSnapshotTest {
+
+    private static final String MISC_CLASS_NAME = "org.glowroot.agent.weaving.Misc";
+
+    private static final SuperAnalyzedClasses NO_SUPER_CLASSES = superClasses();
+
+    private File tempDir;
+    private File snapshotDir;
+    private URL miscUrl;
+    private URLClassLoader loader;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        tempDir = Files.createTempDir();
+        snapshotDir = new File(tempDir, "snapshot");
+        File jarFile = new File(tempDir, "misc.jar");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jarFile));
+        out.putNextEntry(new JarEntry("org/glowroot/agent/weaving/Misc.class"));
+        out.write(Resources.toByteArray(Misc.class.getResource("Misc.class")));
+        out.close();
+        // null parent so that the class is read from the jar file
+        loader = new URLClassLoader(new URL[] {jarFile.toURI().toURL()}, null);
+        miscUrl = loader.getResource("org/glowroot/agent/weaving/Misc.class");
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        deleteRecursively(tempDir);
+    }
+
+    @Test
+    public void shouldRestoreAnalyzedClassAfterRestart() throws Exception {
+        // given
+        Supplier<List<Advice>> advisors = newAdvisorsSupplier(BasicAdvice.class);
+        AnalyzedWorldSnapshot snapshot = newSnapshot(advisors);
+        AnalyzedClass analyzedClass = newAnalyzedWorld(advisors, snapshot)
+                .getAnalyzedClass(MISC_CLASS_NAME, loader);
+        snapshot.write();
+        // when
+        AnalyzedClass restoredAnalyzedClass = newSnapshot(advisors)
+                .getAnalyzedClass(MISC_CLASS_NAME, miscUrl, advisors.get(), NO_SUPER_CLASSES);
+        // then
+        assertThat(analyzedClass.analyzedMethods()).hasSize(1);
+        assertThat(restoredAnalyzedClass).isEqualTo(analyzedClass);
+        assertThat(restoredAnalyzedClass.analyzedMethods().get(0).advisors().get(0))
+                .isSameAs(advisors.get().get(0));
+    }
+
+    @Test
+    public void shouldNotRestoreAfterAdviceChanges() throws Exception {
+        // given
+        Supplier<List<Advice>> advisors = newAdvisorsSupplier(BasicAdvice.class);
+        AnalyzedWorldSnapshot snapshot = newSnapshot(advisors);
+        newAnalyzedWorld(advisors, snapshot).getAnalyzedClass(MISC_CLASS_NAME, loader);
+        snapshot.write();
+        Supplier<List<Advice>> otherAdvisors =
+                newAdvisorsSupplier(BasicAdvice.class, SuperBasicAdvice.class);
+        // when
+        AnalyzedClass restoredAnalyzedClass = newSnapshot(otherAdvisors)
+                .getAnalyzedClass(MISC_CLASS_NAME, miscUrl, otherAdvisors.get(),
+                        NO_SUPER_CLASSES);
+        // then
+        assertThat(restoredAnalyzedClass).isNull();
+    }
+
+    @Test
+    public void shouldReleaseAnalyzedClassOnceLookedUp() throws Exception {
+        // given
+        Supplier<List<Advice>> advisors = newAdvisorsSupplier(BasicAdvice.class);
+        AnalyzedWorldSnapshot snapshot = newSnapshot(advisors);
+        newAnalyzedWorld(advisors, snapshot).getAnalyzedClass(MISC_CLASS_NAME, loader);
+        snapshot.write();
+        AnalyzedWorldSnapshot restoredSnapshot = newSnapshot(advisors);
+        // when
+        AnalyzedClass restoredAnalyzedClass = restoredSnapshot.getAnalyzedClass(MISC_CLASS_NAME,
+                miscUrl, advisors.get(), NO_SUPER_CLASSES);
+        AnalyzedClass releasedAnalyzedClass = restoredSnapshot.getAnalyzedClass(MISC_CLASS_NAME,
+                miscUrl, advisors.get(), NO_SUPER_CLASSES);
+        // then
+        assertThat(restoredAnalyzedClass).isNotNull();
+        assertThat(releasedAnalyzedClass).isNull();
+        // releasing does not remove it from the snapshot file
+        assertThat(newSnapshot(advisors).getAnalyzedClass(MISC_CLASS_NAME, miscUrl,
+                advisors.get(), NO_SUPER_CLASSES)).isNotNull();
+    }
+
+    @Test
+    public void shouldNotRestoreAfterSuperClassChanges() throws Exception {
+        // given
+        Supplier<List<Advice>> advisors = newAdvisorsSupplier(BasicAdvice.class);
+        AnalyzedClass analyzedClass = newAnalyzedWorld(advisors, null)
+                .getAnalyzedClass(MISC_CLASS_NAME, loader);
+        AnalyzedWorldSnapshot snapshot = newSnapshot(advisors);
+        snapshot.putAnalyzedClass(analyzedClass, miscUrl, advisors.get(),
+                ImmutableList.of(newSuperClass(Modifier.PUBLIC)));
+        snapshot.write();
+        // when
+        AnalyzedClass changedSuperClassAnalyzedClass =
+                newSnapshot(advisors).getAnalyzedClass(MISC_CLASS_NAME, miscUrl, advisors.get(),
+                        superClasses(newSuperClass(Modifier.PUBLIC), newSuperClass(0)));
+        AnalyzedClass sameSuperClassAnalyzedClass =
+                newSnapshot(advisors).getAnalyzedClass(MISC_CLASS_NAME, miscUrl, advisors.get(),
+                        superClasses(newSuperClass(Modifier.PUBLIC)));
+        // then
+        assertThat(changedSuperClassAnalyzedClass).isNull();
+        assertThat(sameSuperClassAnalyzedClass).isEqualTo(analyzedClass);
+    }
+
+    @Test
+    public void shouldDeletePreviousAdviceSetAfterReweave() throws Exception {
+        // given
+        final AtomicReference<List<Advice>> currentAdvisors = new AtomicReference<List<Advice>>(
+                newAdvisorsSupplier(BasicAdvice.class).get());
+        Supplier<List<Advice>> advisors = new Supplier<List<Advice>>() {
+            @Override
+            public List<Advice> get() {
+                return currentAdvisors.get();
+            }
+        };
+        AnalyzedWorldSnapshot snapshot = newSnapshot(advisors);
+        newAnalyzedWorld(advisors, snapshot).getAnalyzedClass(MISC_CLASS_NAME, loader);
+        snapshot.write();
+        File[] previousGenerationDirs = snapshotDir.listFiles();
+        // when
+        // simulate a reweave (see LiveWeavingServiceImpl.reweave())
+        currentAdvisors.set(newAdvisorsSupplier(BasicAdvice.class, SuperBasicAdvice.class).get());
+        newAnalyzedWorld(advisors, snapshot).getAnalyzedClass(MISC_CLASS_NAME, loader);
+        snapshot.write();
+        // then
+        assertThat(previousGenerationDirs).hasSize(1);
+        File[] generationDirs = snapshotDir.listFiles();
+        assertThat(generationDirs).hasSize(1);
+        assertThat(generationDirs[0]).isNotEqualTo(previousGenerationDirs[0]);
+    }
+
+    @Test
+    public void shouldDeleteSnapshotFileForPreviousVersionOfJarFile() throws Exception {
+        // given
+        Supplier<List<Advice>> advisors = newAdvisorsSupplier(BasicAdvice.class);
+        AnalyzedWorldSnapshot snapshot = newSnapshot(advisors);
+        newAnalyzedWorld(advisors, snapshot).getAnalyzedClass(MISC_CLASS_NAME, loader);
+        snapshot.write();
+        File[] generationDirs = snapshotDir.listFiles();
+        assertThat(generationDirs).hasSize(1);
+        File generationDir = generationDirs[0];
+        String[] previousFileNames = generationDir.list();
+        assertThat(previousFileNames).hasSize(1);
+        // simulate the jar file being replaced
+        File jarFile = new File(tempDir, "misc.jar");
+        jarFile.setLastModified(jarFile.lastModified() - 60000);
+        // when
+        snapshot = newSnapshot(advisors);
+        newAnalyzedWorld(advisors, snapshot).getAnalyzedClass(MISC_CLASS_NAME, loader);
+        snapshot.write();
+        // then
+        String[] fileNames = generationDir.list();
+        assertThat(fileNames).hasSize(1);
+        assertThat(fileNames[0]).isNotEqualTo(previousFileNames[0]);
+    }
+
+    @Test
+    public void shouldNotStoreClassFromDirectory() throws Exception {
+        // given
+        Supplier<List<Advice>> advisors = newAdvisorsSupplier(BasicAdvice.class);
+        AnalyzedWorldSnapshot snapshot = newSnapshot(advisors);
+        newAnalyzedWorld(advisors, snapshot).getAnalyzedClass(MISC_CLASS_NAME,
+                getClass().getClassLoader());
+        // when
+        snapshot.write();
+        // then
+        assertThat(snapshotDir.exists()).isFalse();
+    }
+
+    private AnalyzedWorldSnapshot newSnapshot(Supplier<List<Advice>> advisors)
+            throws Exception {
+        return new AnalyzedWorldSnapshot(snapshotDir, advisors, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of());
+    }
+
+    private static AnalyzedWorld newAnalyzedWorld(Supplier<List<Advice>> advisors,
+            @Nullable AnalyzedWorldSnapshot snapshot) {
+        return new AnalyzedWorld(advisors, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of(), null, snapshot, null);
+    }
+
+    private static Supplier<List<Advice>> newAdvisorsSupplier(Class<?>... adviceClasses)
+            throws Exception {
+        ImmutableList.Builder<Advice> advisors = ImmutableList.builder();
+        for (Class<?> adviceClass : adviceClasses) {
+            advisors.add(new AdviceBuilder(adviceClass).build());
+        }
+        return Suppliers.<List<Advice>>ofInstance(advisors.build());
+    }
+
+    private static AnalyzedClass newSuperClass(int modifiers) {
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(modifiers)
+                .name("org.glowroot.agent.weaving.SuperMisc")
+                .superName("java.lang.Object")
+                .build();
+    }
+
+    private static SuperAnalyzedClasses superClasses(AnalyzedClass... superAnalyzedClasses) {
+        final List<AnalyzedClass> list = ImmutableList.copyOf(superAnalyzedClasses);
+        return new SuperAnalyzedClasses() {
+            @Override
+            public List<AnalyzedClass> get(AnalyzedClass analyzedClass) {
+                return list;
+            }
+        };
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteRecursively(f);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import org.glowroot.agent.plugin.api.weaving.OnBefore;
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AspectTargetsTest {
+
+    private final ClassLoader loader = AspectTargetsTest.class.getClassLoader();
+
+    @Test
+    public void shouldReadExactClassName() throws Exception {
+        // when
+        AspectTargets aspectTargets =
+                AspectTargets.read(WeavingJDK14BytecodeAspect.class.getName(), loader);
+        // then
+        assertThat(aspectTargets).isNotNull();
+        assertThat(aspectTargets.getClassNames())
+                .containsExactly("org.apache.commons.lang.StringUtils");
+        assertThat(aspectTargets.getClassNamePatterns()).isEmpty();
+    }
+
+    @Test
+    public void shouldReadClassNamePattern() throws Exception {
+        // when
+        AspectTargets aspectTargets = AspectTargets.read(PatternAspect.class.getName(), loader);
+        // then
+        assertThat(aspectTargets).isNotNull();
+        assertThat(aspectTargets.getClassNames()).containsExactly("org.a.Foo");
+        assertThat(aspectTargets.getClassNamePatterns()).hasSize(1);
+        Pattern pattern = aspectTargets.getClassNamePatterns().get(0);
+        assertThat(pattern.matcher("org.b.SomeService").matches()).isTrue();
+        assertThat(pattern.matcher("org.b.SomeDao").matches()).isFalse();
+    }
+
+    @Test
+    public void shouldNotReadAspectWithShimsOrMixins() throws Exception {
+        assertThat(AspectTargets.read(SomeAspect.class.getName(), loader)).isNull();
+    }
+
+    @Test
+    public void shouldNotReadAspectWithMethodDeclaringClassName() throws Exception {
+        assertThat(AspectTargets.read(MethodDeclaringClassNameAspect.class.getName(), loader))
+                .isNull();
+    }
+
+    @Test
+    public void shouldNotReadMissingAspect() throws Exception {
+        assertThat(AspectTargets.read("org.glowroot.agent.weaving.NoSuchAspect", loader))
+                .isNull();
+    }
+
+    public static class PatternAspect {
+
+        @Pointcut(className = "org.a.Foo", methodName = "execute", methodParameterTypes = {})
+        public static class ExactAdvice {
+            @OnBefore
+            public static void onBefore() {}
+        }
+
+        @Pointcut(className = "org.b.*Service", methodName = "execute",
+                methodParameterTypes = {})
+        public static class PatternAdvice {
+            @OnBefore
+            public static void onBefore() {}
+        }
+    }
+
+    public static class MethodDeclaringClassNameAspect {
+
+        @Pointcut(className = "org.a.Foo", methodDeclaringClassName = "java.lang.Object",
+                methodName = "toString", methodParameterTypes = {})
+        public static class ToStringAdvice {
+            @OnBefore
+            public static void onBefore() {}
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2013-2015 the original author or authors.
+ * Copyright 2013-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -36,7 +36,7 @@ public class ComputeFramesClassWriterTest {
         Supplier<List<Advice>> advisors =
                 Suppliers.<List<Advice>>ofInstance(ImmutableList.<Advice>of());
         AnalyzedWorld analyzedWorld = new AnalyzedWorld(advisors, ImmutableList.<ShimType>of(),
-                ImmutableList.<MixinType>of(), null);
+                ImmutableList.<MixinType>of(), null, null, null);
         cw = new ComputeFramesClassWriter(0, analyzedWorld, getClass().getClassLoader(), null,
                 ComputeFramesClassWriterTest.class.getName());
     }
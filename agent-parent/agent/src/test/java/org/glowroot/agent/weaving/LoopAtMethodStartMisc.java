@@ -0,0 +1,38 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+// the first instruction of execute1() is a jump target with a stack map frame, which ends up at the
+// same bytecode offset as the frame inserted at the end of the @IsEnabled / @OnBefore bytecode
+public class LoopAtMethodStartMisc implements Misc {
+
+    private int count;
+
+    @Override
+    public void execute1() {
+        while (count < 3) {
+            count++;
+        }
+    }
+
+    @Override
+    public String executeWithReturn() {
+        return "xyz";
+    }
+
+    @Override
+    public void executeWithArgs(String one, int two) {}
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2015 the original author or authors.
+ * Copyright 2012-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -41,7 +41,9 @@ public class PreInitializeWeavingClassesTest {
         globalCollector.processMethodFailIfNotFound(
                 ReferencedMethod.from("org/glowroot/agent/weaving/AnalyzedWorld", "<init>",
                         "(L" + getGuavaSupplierInternalName() + ";Ljava/util/List;Ljava/util/List;"
-                                + "Lorg/glowroot/agent/weaving/ExtraBootResourceFinder;)V"));
+                                + "Lorg/glowroot/agent/weaving/ExtraBootResourceFinder;"
+                                + "Lorg/glowroot/agent/weaving/AnalyzedWorldSnapshot;"
+                                + "Lorg/glowroot/agent/weaving/LazyAdvisors;)V"));
         // "call" WeavingClassFileTransformer constructor
         globalCollector.processMethodFailIfNotFound(ReferencedMethod.from(
                 "org/glowroot/agent/weaving/WeavingClassFileTransformer", "<init>",
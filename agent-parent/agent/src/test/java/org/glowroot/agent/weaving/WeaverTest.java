@@ -113,6 +113,10 @@ import static org.assertj.core.api.Assertions.assertThat;
 
 public class WeaverTest {
 
+    // the weaver tests are run a second time with frame preservation enabled, see
+    // WeaverPreserveFramesTest
+    static volatile boolean preserveFrames;
+
     @Before
     public void before() {
         SomeAspectThreadLocals.resetThreadLocals();
@@ -842,9 +846,10 @@ public class WeaverTest {
         Supplier<List<Advice>> advisorsSupplier =
                 Suppliers.<List<Advice>>ofInstance(ImmutableList.copyOf(advisors));
         AnalyzedWorld analyzedWorld = new AnalyzedWorld(advisorsSupplier,
-                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), null);
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), null, null, null);
         WeaverImpl weaver = new WeaverImpl(advisorsSupplier, ImmutableList.<ShimType>of(),
-                ImmutableList.<MixinType>of(), analyzedWorld, NopWeavingTimerService.INSTANCE);
+                ImmutableList.<MixinType>of(), analyzedWorld, NopWeavingTimerService.INSTANCE,
+                null, null, preserveFrames);
         isolatedWeavingClassLoader.setWeaver(weaver);
         Misc test = isolatedWeavingClassLoader.newInstance(BasicMisc.class, Misc.class);
         // when
@@ -1316,6 +1321,19 @@ public class WeaverTest {
         assertThat(SomeAspectThreadLocals.onBeforeCount.get()).isEqualTo(1);
     }
 
+    @Test
+    public void shouldWeaveMethodStartingWithLoop() throws Exception {
+        // given
+        Misc test = newWovenObject(LoopAtMethodStartMisc.class, Misc.class, BasicAdvice.class);
+        // when
+        test.execute1();
+        // then
+        assertThat(SomeAspectThreadLocals.onBeforeCount.get()).isEqualTo(1);
+        assertThat(SomeAspectThreadLocals.onReturnCount.get()).isEqualTo(1);
+        assertThat(SomeAspectThreadLocals.onThrowCount.get()).isEqualTo(0);
+        assertThat(SomeAspectThreadLocals.onAfterCount.get()).isEqualTo(1);
+    }
+
     @Test
     // test weaving against jdk 1.7 bytecode with stack frames
     public void shouldWeaveBytecodeWithStackFrames() throws Exception {
@@ -1468,9 +1486,9 @@ public class WeaverTest {
         Supplier<List<Advice>> advisorsSupplier =
                 Suppliers.<List<Advice>>ofInstance(ImmutableList.copyOf(advisors));
         AnalyzedWorld analyzedWorld =
-                new AnalyzedWorld(advisorsSupplier, shimTypes, mixinTypes, null);
+                new AnalyzedWorld(advisorsSupplier, shimTypes, mixinTypes, null, null, null);
         WeaverImpl weaver = new WeaverImpl(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld,
-                NopWeavingTimerService.INSTANCE);
+                NopWeavingTimerService.INSTANCE, null, null, preserveFrames);
         isolatedWeavingClassLoader.setWeaver(weaver);
         return isolatedWeavingClassLoader.newInstance(implClass, bridgeClass);
     }
@@ -1504,9 +1522,9 @@ public class WeaverTest {
         Supplier<List<Advice>> advisorsSupplier =
                 Suppliers.<List<Advice>>ofInstance(ImmutableList.copyOf(advisors));
         AnalyzedWorld analyzedWorld =
-                new AnalyzedWorld(advisorsSupplier, shimTypes, mixinTypes, null);
+                new AnalyzedWorld(advisorsSupplier, shimTypes, mixinTypes, null, null, null);
         WeaverImpl weaver = new WeaverImpl(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld,
-                NopWeavingTimerService.INSTANCE);
+                NopWeavingTimerService.INSTANCE, null, null, preserveFrames);
         isolatedWeavingClassLoader.setWeaver(weaver);
 
         String className = toBeDefinedImplClass.type().getClassName();
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.SomeAspect.SuperBasicAdvice;
+import org.glowroot.agent.weaving.WeavingTimerService.WeavingTimer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+public class WeavingCacheTest {
+
+    private static final long DEFAULT_MAX_SIZE_BYTES = 1024 * 1024;
+
+    private File cacheDir;
+
+    @Before
+    public void beforeEachTest() {
+        cacheDir = Files.createTempDir();
+    }
+
+    @After
+    public void afterEachTest() {
+        deleteRecursively(cacheDir);
+    }
+
+    @Test
+    public void shouldReuseWovenBytesAfterRestart() throws Exception {
+        // given
+        Supplier<List<Advice>> advisors = newAdvisorsSupplier(BasicAdvice.class);
+        byte[] classBytes = getClassBytes(BasicMisc.class);
+        byte[] wovenBytes = newWeaver(advisors).weave(classBytes,
+                "org/glowroot/agent/weaving/BasicMisc", null, getClass().getClassLoader());
+        // when
+        byte[] cachedWovenBytes = newWeaver(advisors).weave(classBytes,
+                "org/glowroot/agent/weaving/BasicMisc", null, getClass().getClassLoader());
+        // then
+        assertThat(wovenBytes).isNotNull();
+        assertThat(cachedWovenBytes).isEqualTo(wovenBytes);
+        assertThat(getCacheFiles()).hasSize(1);
+    }
+
+    @Test
+    public void shouldMarkClassThatDoesNotNeedWeaving() throws Exception {
+        // given
+        Supplier<List<Advice>> advisors = newAdvisorsSupplier(BasicAdvice.class);
+        // has advice in its super class hierarchy (so it is not rejected before method analysis)
+        // but none of its own methods match
+        byte[] classBytes = getClassBytes(SubBasicMisc.class);
+        newWeaver(advisors).weave(classBytes, "org/glowroot/agent/weaving/SubBasicMisc", null,
+                getClass().getClassLoader());
+        // when
+        byte[] wovenBytes = newWeaver(advisors).weave(classBytes,
+                "org/glowroot/agent/weaving/SubBasicMisc", null, getClass().getClassLoader());
+        // then
+        assertThat(wovenBytes).isNull();
+        List<File> cacheFiles = getCacheFiles();
+        assertThat(cacheFiles).hasSize(1);
+        assertThat(cacheFiles.get(0).length()).isZero();
+    }
+
+    @Test
+    public void shouldAddMarkedClassToAnalyzedWorld() throws Exception {
+        // given
+        Supplier<List<Advice>> advisors = newAdvisorsSupplier(BasicAdvice.class);
+        byte[] classBytes = getClassBytes(SubBasicMisc.class);
+        ClassLoader loader = getClass().getClassLoader();
+        newWeaver(advisors).weave(classBytes, "org/glowroot/agent/weaving/SubBasicMisc", null,
+                loader);
+        AnalyzedWorld analyzedWorld = spy(newAnalyzedWorld(advisors));
+        // when
+        newWeaver(advisors, analyzedWorld, DEFAULT_MAX_SIZE_BYTES).weave(classBytes,
+                "org/glowroot/agent/weaving/SubBasicMisc", null, loader);
+        // then
+        ArgumentCaptor<AnalyzedClass> captor = ArgumentCaptor.forClass(AnalyzedClass.class);
+        verify(analyzedWorld).add(captor.capture(), eq(loader));
+        assertThat(captor.getValue().name()).isEqualTo("org.glowroot.agent.weaving.SubBasicMisc");
+        assertThat(captor.getValue().analyzedMethods()).isEmpty();
+    }
+
+    @Test
+    public void shouldAddCachedWovenClassToAnalyzedWorld() throws Exception {
+        // given
+        Supplier<List<Advice>> advisors = newAdvisorsSupplier(BasicAdvice.class);
+        byte[] classBytes = getClassBytes(BasicMisc.class);
+        ClassLoader loader = getClass().getClassLoader();
+        AnalyzedWorld analyzedWorld = spy(newAnalyzedWorld(advisors));
+        newWeaver(advisors, analyzedWorld, DEFAULT_MAX_SIZE_BYTES).weave(classBytes,
+                "org/glowroot/agent/weaving/BasicMisc", null, loader);
+        ArgumentCaptor<AnalyzedClass> captor = ArgumentCaptor.forClass(AnalyzedClass.class);
+        verify(analyzedWorld).add(captor.capture(), eq(loader));
+        AnalyzedClass analyzedClass = captor.getValue();
+        AnalyzedWorld restartedAnalyzedWorld = spy(newAnalyzedWorld(advisors));
+        // when
+        newWeaver(advisors, restartedAnalyzedWorld, DEFAULT_MAX_SIZE_BYTES).weave(classBytes,
+                "org/glowroot/agent/weaving/BasicMisc", null, loader);
+        // then
+        ArgumentCaptor<AnalyzedClass> restartedCaptor =
+                ArgumentCaptor.forClass(AnalyzedClass.class);
+        verify(restartedAnalyzedWorld).add(restartedCaptor.capture(), eq(loader));
+        assertThat(analyzedClass.analyzedMethods()).isNotEmpty();
+        assertThat(restartedCaptor.getValue()).isEqualTo(analyzedClass);
+    }
+
+    @Test
+    public void shouldNotAddEntriesPastMaxSize() throws Exception {
+        // given
+        Supplier<List<Advice>> advisors = newAdvisorsSupplier(BasicAdvice.class);
+        WeaverImpl weaver = newWeaver(advisors, newAnalyzedWorld(advisors), 1);
+        // when
+        weaver.weave(getClassBytes(BasicMisc.class), "org/glowroot/agent/weaving/BasicMisc", null,
+                getClass().getClassLoader());
+        weaver.weave(getClassBytes(SubBasicMisc.class), "org/glowroot/agent/weaving/SubBasicMisc",
+                null, getClass().getClassLoader());
+        // then
+        assertThat(getCacheFiles()).hasSize(1);
+    }
+
+    @Test
+    public void shouldClearCacheThatHasGrownPastMaxSizeOnRestart() throws Exception {
+        // given
+        Supplier<List<Advice>> advisors = newAdvisorsSupplier(BasicAdvice.class);
+        newWeaver(advisors).weave(getClassBytes(BasicMisc.class),
+                "org/glowroot/agent/weaving/BasicMisc", null, getClass().getClassLoader());
+        assertThat(getCacheFiles()).hasSize(1);
+        // when
+        newWeaver(advisors, newAnalyzedWorld(advisors), 1);
+        // then
+        assertThat(getCacheFiles()).isEmpty();
+    }
+
+    @Test
+    public void shouldInvalidateWhenAdviceChanges() throws Exception {
+        // given
+        byte[] classBytes = getClassBytes(BasicMisc.class);
+        newWeaver(newAdvisorsSupplier(BasicAdvice.class)).weave(classBytes,
+                "org/glowroot/agent/weaving/BasicMisc", null, getClass().getClassLoader());
+        File[] priorFingerprintDirs = cacheDir.listFiles();
+        // when
+        newWeaver(newAdvisorsSupplier(BasicAdvice.class, SuperBasicAdvice.class)).weave(classBytes,
+                "org/glowroot/agent/weaving/BasicMisc", null, getClass().getClassLoader());
+        // then
+        assertThat(priorFingerprintDirs).hasSize(1);
+        File[] fingerprintDirs = cacheDir.listFiles();
+        assertThat(fingerprintDirs).hasSize(1);
+        assertThat(fingerprintDirs[0]).isNotEqualTo(priorFingerprintDirs[0]);
+    }
+
+    private WeaverImpl newWeaver(Supplier<List<Advice>> advisors) throws Exception {
+        // new AnalyzedWorld each time to simulate jvm restart
+        return newWeaver(advisors, newAnalyzedWorld(advisors), DEFAULT_MAX_SIZE_BYTES);
+    }
+
+    private WeaverImpl newWeaver(Supplier<List<Advice>> advisors, AnalyzedWorld analyzedWorld,
+            long maxSizeBytes) throws Exception {
+        WeavingCache weavingCache = new WeavingCache(cacheDir, advisors,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), maxSizeBytes);
+        return new WeaverImpl(advisors, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of(), analyzedWorld, new NopWeavingTimerService(),
+                weavingCache, null);
+    }
+
+    private static AnalyzedWorld newAnalyzedWorld(Supplier<List<Advice>> advisors) {
+        return new AnalyzedWorld(advisors, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of(), null, null, null);
+    }
+
+    private List<File> getCacheFiles() {
+        List<File> files = Lists.newArrayList();
+        for (File fingerprintDir : cacheDir.listFiles()) {
+            files.addAll(Arrays.asList(fingerprintDir.listFiles()));
+        }
+        return files;
+    }
+
+    private static Supplier<List<Advice>> newAdvisorsSupplier(Class<?>... adviceClasses)
+            throws Exception {
+        List<Advice> advisors = Lists.newArrayList();
+        for (Class<?> adviceClass : adviceClasses) {
+            advisors.add(new AdviceBuilder(adviceClass).build());
+        }
+        return Suppliers.<List<Advice>>ofInstance(ImmutableList.copyOf(advisors));
+    }
+
+    private static byte[] getClassBytes(Class<?> clazz) throws Exception {
+        return Resources.toByteArray(clazz.getResource(clazz.getSimpleName() + ".class"));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteRecursively(f);
+            }
+        }
+        file.delete();
+    }
+
+    private static class NopWeavingTimerService implements WeavingTimerService {
+        @Override
+        public WeavingTimer start() {
+            return new WeavingTimer() {
+                @Override
+                public void stop() {}
+            };
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.microbenchmarks.support.ForkJoinTransactionWorthy;
+
+// measures the per task cost of fork join tasks, which capture and start an auxiliary thread
+// context for each task when run inside of a transaction, compare results with and without the
+// executor plugin jar in the plugins directory next to glowroot.jar
+//
+// executeWithoutTransaction() measures the per task cost outside of any transaction, which should
+// be close to the per task cost without the executor plugin
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ForkJoinBenchmark {
+
+    @Param
+    private PointcutType pointcutType;
+
+    private ForkJoinPool pool;
+
+    private ForkJoinTransactionWorthy transactionWorthy;
+
+    @Setup
+    public void setup() {
+        pool = new ForkJoinPool();
+        transactionWorthy = new ForkJoinTransactionWorthy(pool);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ForkJoinTransactionWorthy.FORKED_TASKS_PER_TRANSACTION)
+    public void execute() throws Exception {
+        switch (pointcutType) {
+            case API:
+                transactionWorthy.doSomethingTransactionWorthy();
+                break;
+            case CONFIG:
+                transactionWorthy.doSomethingTransactionWorthy2();
+                break;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ForkJoinTransactionWorthy.FORKED_TASKS_PER_TRANSACTION)
+    public void executeWithoutTransaction() {
+        transactionWorthy.forkJoin();
+    }
+}
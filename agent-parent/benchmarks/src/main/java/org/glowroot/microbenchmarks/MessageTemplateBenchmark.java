@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.microbenchmarks.support.MessageTemplateWorthy;
+import org.glowroot.microbenchmarks.support.MessageTemplateWorthy.NonPublicGetters;
+import org.glowroot.microbenchmarks.support.MessageTemplateWorthy.PublicGetters;
+import org.glowroot.microbenchmarks.support.TransactionWorthy;
+
+// compares trace entry message templates that are rendered via generated accessors (public
+// getters) with ones that are rendered via reflection (non-public getters)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MessageTemplateBenchmark extends TransactionWorthy {
+
+    @Param
+    private GetterType getterType;
+
+    private MessageTemplateWorthy messageTemplateWorthy;
+    private PublicGetters publicGetters;
+    private NonPublicGetters nonPublicGetters;
+
+    @Setup
+    public void setup() {
+        messageTemplateWorthy = new MessageTemplateWorthy();
+        publicGetters = new PublicGetters();
+        nonPublicGetters = new NonPublicGetters();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2000)
+    public void execute() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() throws Exception {
+        switch (getterType) {
+            case PUBLIC:
+                for (int i = 0; i < 2000; i++) {
+                    messageTemplateWorthy.doSomethingMessageTemplateWorthy(publicGetters);
+                }
+                break;
+            case NON_PUBLIC:
+                for (int i = 0; i < 2000; i++) {
+                    messageTemplateWorthy.doSomethingMessageTemplateWorthy(nonPublicGetters);
+                }
+                break;
+        }
+    }
+
+    public enum GetterType {
+        PUBLIC, NON_PUBLIC
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// simulates the UI merging many stored aggregate profiles (e.g. a week of hourly rollups)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class ProfileMergeBenchmark {
+
+    private static final int DISTINCT_STACK_TRACES = 1000;
+    private static final int STACK_TRACES_PER_PROFILE = 200;
+    private static final int MIN_STACK_DEPTH = 20;
+    private static final int MAX_STACK_DEPTH = 60;
+
+    @Param({"24", "168"})
+    private int profileCount;
+
+    private List<Profile> profiles;
+    private List<List<StackTraceElement>> stackTraces;
+
+    @Setup
+    public void setup() {
+        // fixed seed so that results are comparable across runs
+        Random random = new Random(0);
+        StackTraceElement[] frames = createFrames(random, 2000);
+        List<List<StackTraceElement>> distinctStackTraces = Lists.newArrayList();
+        for (int i = 0; i < DISTINCT_STACK_TRACES; i++) {
+            distinctStackTraces.add(createStackTrace(random, frames));
+        }
+        profiles = Lists.newArrayList();
+        stackTraces = Lists.newArrayList();
+        for (int i = 0; i < profileCount; i++) {
+            MutableProfile profile = new MutableProfile();
+            for (int j = 0; j < STACK_TRACES_PER_PROFILE; j++) {
+                List<StackTraceElement> stackTrace =
+                        distinctStackTraces.get(random.nextInt(DISTINCT_STACK_TRACES));
+                profile.merge(stackTrace, Thread.State.RUNNABLE);
+                stackTraces.add(stackTrace);
+            }
+            profiles.add(profile.toProto());
+        }
+    }
+
+    @Benchmark
+    public Profile mergeProfiles() {
+        MutableProfile profile = new MutableProfile();
+        for (Profile toBeMerged : profiles) {
+            profile.merge(toBeMerged);
+        }
+        return profile.toProto();
+    }
+
+    @Benchmark
+    public long mergeStackTraces() {
+        MutableProfile profile = new MutableProfile();
+        for (List<StackTraceElement> stackTrace : stackTraces) {
+            profile.merge(stackTrace, Thread.State.RUNNABLE);
+        }
+        return profile.getSampleCount();
+    }
+
+    private static StackTraceElement[] createFrames(Random random, int count) {
+        StackTraceElement[] frames = new StackTraceElement[count];
+        for (int i = 0; i < count; i++) {
+            int classNum = random.nextInt(count / 4);
+            String className = "org.example.pkg" + classNum % 20 + ".Class" + classNum;
+            frames[i] = new StackTraceElement(className, "method" + random.nextInt(10),
+                    "Class" + classNum + ".java", random.nextInt(1000));
+        }
+        return frames;
+    }
+
+    // stack traces share a small number of common entry points (like real request threads), and
+    // then diverge with increasing depth
+    private static List<StackTraceElement> createStackTrace(Random random,
+            StackTraceElement[] frames) {
+        int depth = MIN_STACK_DEPTH + random.nextInt(MAX_STACK_DEPTH - MIN_STACK_DEPTH);
+        List<StackTraceElement> stackTrace = Lists.newArrayListWithCapacity(depth);
+        for (int i = 0; i < depth; i++) {
+            int spread = Math.min(frames.length, 2 + i * 4);
+            stackTrace.add(frames[random.nextInt(spread)]);
+        }
+        // stack traces are leaf first
+        return Lists.reverse(stackTrace);
+    }
+}
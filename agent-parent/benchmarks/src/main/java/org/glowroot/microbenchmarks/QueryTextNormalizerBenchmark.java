@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.util.QueryTextNormalizer;
+
+// measures query text normalization (see AdvancedConfig.normalizeQueryLiterals())
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class QueryTextNormalizerBenchmark {
+
+    @Param
+    private QueryTextType queryTextType;
+
+    private String queryText;
+
+    @Setup
+    public void setup() {
+        queryText = queryTextType.queryText;
+    }
+
+    @Benchmark
+    public String normalize() {
+        return QueryTextNormalizer.normalize(queryText);
+    }
+
+    public enum QueryTextType {
+
+        BIND_PARAMETERS("select o.id, o.customer_id, o.status, o.total from orders o"
+                + " join customers c on c.id = o.customer_id where c.region = ? and o.status = ?"
+                + " and o.created_at > ? order by o.created_at desc"),
+        INLINED_LITERALS("select o.id, o.customer_id, o.status, o.total from orders o"
+                + " join customers c on c.id = o.customer_id where c.region = 'EMEA'"
+                + " and o.status = 'SHIPPED' and o.created_at > 1467331200 and o.id in (12, 345,"
+                + " 6789) order by o.created_at desc limit 100");
+
+        private final String queryText;
+
+        private QueryTextType(String queryText) {
+            this.queryText = queryText;
+        }
+    }
+}
@@ -17,6 +17,8 @@ package org.glowroot.microbenchmarks;
 
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
 import org.openjdk.jmh.annotations.Mode;
@@ -27,6 +29,9 @@ import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
 
+import org.glowroot.agent.plugin.api.TimerName;
+import org.glowroot.microbenchmarks.support.NestedTimerWorthy;
+import org.glowroot.microbenchmarks.support.TimerNames;
 import org.glowroot.microbenchmarks.support.TraceEntryWorthy;
 import org.glowroot.microbenchmarks.support.TransactionWorthy;
 
@@ -39,31 +44,86 @@ public class TraceEntryBenchmark extends TransactionWorthy {
     private PointcutType pointcutType;
 
     private TraceEntryWorthy traceEntryWorthy;
+    private NestedTimerWorthy nestedTimerWorthy;
+
+    // non-null only while running executeWithNestedTimers()
+    private @Nullable TimerName[] nestedTimerNames;
 
     @Setup
     public void setup() {
         traceEntryWorthy = new TraceEntryWorthy();
+        nestedTimerWorthy = new NestedTimerWorthy();
     }
 
     @Benchmark
     @OperationsPerInvocation(2000)
     public void execute() throws Exception {
+        nestedTimerNames = null;
+        doSomethingTransactionWorthy();
+    }
+
+    // each operation is a trace entry followed by a nested timer (cycling through the distinct
+    // nested timer names), so the nested timer cost is the difference from execute()
+    @Benchmark
+    @OperationsPerInvocation(2000)
+    public void executeWithNestedTimers(NestedTimerState state) throws Exception {
+        nestedTimerNames = state.timerNames;
         doSomethingTransactionWorthy();
     }
 
     @Override
     public void doSomethingTransactionWorthy() throws Exception {
+        TimerName[] nestedTimerNames = this.nestedTimerNames;
+        if (nestedTimerNames != null) {
+            doSomethingTraceEntryWorthyWithNestedTimers(nestedTimerNames);
+            return;
+        }
+        switch (pointcutType) {
+            case API:
+                for (int i = 0; i < 2000; i++) {
+                    traceEntryWorthy.doSomethingTraceEntryWorthy();
+                }
+                break;
+            case CONFIG:
+                for (int i = 0; i < 2000; i++) {
+                    traceEntryWorthy.doSomethingTraceEntryWorthy2();
+                }
+                break;
+        }
+    }
+
+    private void doSomethingTraceEntryWorthyWithNestedTimers(TimerName[] nestedTimerNames) {
         switch (pointcutType) {
             case API:
                 for (int i = 0; i < 2000; i++) {
                     traceEntryWorthy.doSomethingTraceEntryWorthy();
+                    nestedTimerWorthy.doSomethingNestedTimerWorthy(
+                            nestedTimerNames[i % nestedTimerNames.length]);
                 }
                 break;
             case CONFIG:
                 for (int i = 0; i < 2000; i++) {
                     traceEntryWorthy.doSomethingTraceEntryWorthy2();
+                    nestedTimerWorthy.doSomethingNestedTimerWorthy(
+                            nestedTimerNames[i % nestedTimerNames.length]);
                 }
                 break;
         }
     }
+
+    // separate state so that the number of distinct nested timer names only multiplies the
+    // nested timer benchmark
+    @State(Scope.Thread)
+    public static class NestedTimerState {
+
+        @Param({"1", "16", "200"})
+        private int distinctTimerNames;
+
+        private TimerName[] timerNames;
+
+        @Setup
+        public void setup() throws Exception {
+            timerNames = TimerNames.create("nested timer", distinctTimerNames);
+        }
+    }
 }
@@ -26,6 +26,9 @@ import org.openjdk.jmh.annotations.Scope;
 import org.openjdk.jmh.annotations.Setup;
 import org.openjdk.jmh.annotations.State;
 
+import org.glowroot.microbenchmarks.support.AuxThreadContextTransactionWorthy;
+import org.glowroot.microbenchmarks.support.NestedTimerTransactionWorthy;
+import org.glowroot.microbenchmarks.support.TimerNames;
 import org.glowroot.microbenchmarks.support.TransactionWorthy;
 
 @BenchmarkMode(Mode.AverageTime)
@@ -54,4 +57,61 @@ public class TransactionBenchmark {
                 break;
         }
     }
+
+    @Benchmark
+    public void executeWithNestedTimers(NestedTimerState state) throws Exception {
+        switch (pointcutType) {
+            case API:
+                state.transactionWorthy.doSomethingTransactionWorthy();
+                break;
+            case CONFIG:
+                state.transactionWorthy.doSomethingTransactionWorthy2();
+                break;
+        }
+    }
+
+    @Benchmark
+    public void executeWithAuxThreadContexts(AuxThreadContextState state) throws Exception {
+        switch (pointcutType) {
+            case API:
+                state.transactionWorthy.doSomethingTransactionWorthy();
+                break;
+            case CONFIG:
+                state.transactionWorthy.doSomethingTransactionWorthy2();
+                break;
+        }
+        state.transactionWorthy.runAuxThreadContexts();
+    }
+
+    // separate state so that the number of distinct nested timer names only multiplies the
+    // nested timer benchmark
+    @State(Scope.Thread)
+    public static class NestedTimerState {
+
+        @Param({"1", "16", "200"})
+        private int distinctTimerNames;
+
+        private TransactionWorthy transactionWorthy;
+
+        @Setup
+        public void setup() throws Exception {
+            transactionWorthy = new NestedTimerTransactionWorthy(
+                    TimerNames.create("nested timer", distinctTimerNames));
+        }
+    }
+
+    // measures the overhead of auxiliary thread contexts (including their thread stats), compare
+    // results with and without (which captures exact blocked and waited times for every auxiliary
+    // thread context) -Dglowroot.internal.auxThreadStats.blockedWaitedSamplingInterval=1
+    // appended to -jvmArgs
+    @State(Scope.Thread)
+    public static class AuxThreadContextState {
+
+        private AuxThreadContextTransactionWorthy transactionWorthy;
+
+        @Setup
+        public void setup() {
+            transactionWorthy = new AuxThreadContextTransactionWorthy();
+        }
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2015 the original author or authors.
+ * Copyright 2014-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,7 @@
  */
 package org.glowroot.microbenchmarks;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Enumeration;
 import java.util.HashSet;
@@ -24,8 +25,10 @@ import java.util.concurrent.TimeUnit;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Splitter;
 import com.google.common.base.StandardSystemProperty;
+import com.google.common.io.Files;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
 import org.openjdk.jmh.annotations.Measurement;
@@ -37,6 +40,20 @@ import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.TearDown;
 import org.openjdk.jmh.annotations.Warmup;
 
+// to measure the advice matching overhead of a large number of instrumentation configs, first run
+// main() to write a standalone plugin descriptor into the glowroot plugins directory, e.g.
+//
+// java -cp benchmarks.jar org.glowroot.microbenchmarks.WeavingBenchmark path/to/plugins 300
+//
+// and then run this benchmark as usual (and delete the descriptor afterwards)
+//
+// to measure the cost of weaving itself instead, pass "woven" as an additional argument, which
+// generates instrumentation configs that match every method of the loaded classes, e.g.
+//
+// java -cp benchmarks.jar org.glowroot.microbenchmarks.WeavingBenchmark path/to/plugins 1 woven
+//
+// and compare runs with and without -Dglowroot.internal.weaving.preserveFrames=true (which
+// preserves the original stack map frames of woven classes instead of recomputing all of them)
 @BenchmarkMode(Mode.SingleShotTime)
 @Warmup(iterations = 0)
 @Measurement(iterations = 1)
@@ -87,6 +104,54 @@ public class WeavingBenchmark {
         }
     }
 
+    public static void main(String[] args) throws IOException {
+        File pluginsDir = new File(args[0]);
+        int count = Integer.parseInt(args[1]);
+        boolean woven = args.length > 2 && args[2].equals("woven");
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"name\": \"Weaving Benchmark Plugin\",\n");
+        sb.append("  \"id\": \"weaving-benchmark\",\n");
+        sb.append("  \"instrumentation\": [\n");
+        for (int i = 0; i < count; i++) {
+            sb.append("    {\n");
+            if (woven) {
+                appendProperty(sb, "className", "org.springframework.*");
+                appendProperty(sb, "methodName", "*");
+                sb.append("      \"methodParameterTypes\": [ \"..\" ],\n");
+                appendProperty(sb, "captureKind", "timer");
+                sb.append("      \"timerName\": \"generated ").append(i).append("\"\n");
+                sb.append(i == count - 1 ? "    }\n" : "    },\n");
+                continue;
+            }
+            // spread across exact class names, class name patterns and class annotations, none of
+            // which match the classes loaded by the benchmark
+            switch (i % 3) {
+                case 0:
+                    appendProperty(sb, "className", "com.example.pkg" + i + ".Service" + i);
+                    break;
+                case 1:
+                    appendProperty(sb, "className", "com.example.pkg" + i + ".*Repository");
+                    break;
+                default:
+                    appendProperty(sb, "classAnnotation", "com.example.Annotation" + i);
+                    break;
+            }
+            appendProperty(sb, "methodName", "execute");
+            sb.append("      \"methodParameterTypes\": [ \"..\" ],\n");
+            appendProperty(sb, "captureKind", "timer");
+            sb.append("      \"timerName\": \"generated ").append(i).append("\"\n");
+            sb.append(i == count - 1 ? "    }\n" : "    },\n");
+        }
+        sb.append("  ]\n");
+        sb.append("}\n");
+        Files.write(sb, new File(pluginsDir, "weaving-benchmark.json"), Charsets.UTF_8);
+    }
+
+    private static void appendProperty(StringBuilder sb, String name, String value) {
+        sb.append("      \"").append(name).append("\": \"").append(value).append("\",\n");
+    }
+
     private static List<String> getClassPath() {
         String classPath = StandardSystemProperty.JAVA_CLASS_PATH.value();
         return Splitter.on(StandardSystemProperty.PATH_SEPARATOR.value()).splitToList(classPath);
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+// captures an auxiliary thread context inside each transaction, and then runs a fixed number of
+// auxiliary thread contexts on the same thread after the transaction has completed (same as tasks
+// that outlive the transaction that submitted them), which avoids measuring thread hand off
+public class AuxThreadContextTransactionWorthy extends TransactionWorthy {
+
+    private static final int AUX_THREAD_CONTEXTS_PER_TRANSACTION = 20;
+
+    private final AuxThreadContextWorthy auxThreadContextWorthy = new AuxThreadContextWorthy();
+
+    @Override
+    public void doSomethingTransactionWorthy() {
+        auxThreadContextWorthy.doSomethingAuxThreadContextWorthy();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy2() {
+        auxThreadContextWorthy.doSomethingAuxThreadContextWorthy();
+    }
+
+    public void runAuxThreadContexts() {
+        for (int i = 0; i < AUX_THREAD_CONTEXTS_PER_TRANSACTION; i++) {
+            auxThreadContextWorthy.runInAuxThreadContext();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+import org.glowroot.agent.plugin.api.AuxThreadContext;
+import org.glowroot.agent.plugin.api.TraceEntry;
+
+// the auxiliary thread context is captured inside the transaction (see
+// AuxThreadContextWorthyAspect) and can then be started any number of times, on any thread that
+// is not already inside a transaction
+public class AuxThreadContextWorthy {
+
+    private volatile AuxThreadContext auxThreadContext;
+
+    public void doSomethingAuxThreadContextWorthy() {}
+
+    public void setAuxThreadContext(AuxThreadContext auxThreadContext) {
+        this.auxThreadContext = auxThreadContext;
+    }
+
+    public void runInAuxThreadContext() {
+        TraceEntry traceEntry = auxThreadContext.start();
+        traceEntry.end();
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+import org.glowroot.agent.plugin.api.ThreadContext;
+import org.glowroot.agent.plugin.api.weaving.BindReceiver;
+import org.glowroot.agent.plugin.api.weaving.OnBefore;
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+public class AuxThreadContextWorthyAspect {
+
+    @Pointcut(className = "org.glowroot.microbenchmarks.support.AuxThreadContextWorthy",
+            methodName = "doSomethingAuxThreadContextWorthy", methodParameterTypes = {})
+    public static class AuxThreadContextWorthyAdvice {
+
+        @OnBefore
+        public static void onBefore(ThreadContext context,
+                @BindReceiver AuxThreadContextWorthy auxThreadContextWorthy) {
+            auxThreadContextWorthy.setAuxThreadContext(context.createAuxThreadContext());
+        }
+    }
+}
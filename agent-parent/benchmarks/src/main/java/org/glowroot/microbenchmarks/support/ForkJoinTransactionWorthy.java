@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// forks a fixed number of (empty) fork join tasks from a single fork join task, so that each
+// forked task captures an auxiliary thread context when forked inside of a transaction (this
+// requires the executor plugin jar in the plugins directory next to glowroot.jar)
+//
+// forked tasks that end up being joined by the thread that forked them run inside of that thread's
+// context, while forked tasks that are stolen by other worker threads start their own auxiliary
+// thread context
+public class ForkJoinTransactionWorthy extends TransactionWorthy {
+
+    public static final int FORKED_TASKS_PER_TRANSACTION = 100;
+
+    private final ForkJoinPool pool;
+
+    public ForkJoinTransactionWorthy(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() {
+        forkJoin();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy2() {
+        forkJoin();
+    }
+
+    public void forkJoin() {
+        pool.invoke(new ForkingAction());
+    }
+
+    @SuppressWarnings("serial")
+    private static class ForkingAction extends RecursiveAction {
+
+        @Override
+        protected void compute() {
+            EmptyAction[] actions = new EmptyAction[FORKED_TASKS_PER_TRANSACTION];
+            for (int i = 0; i < actions.length; i++) {
+                actions[i] = new EmptyAction();
+                actions[i].fork();
+            }
+            for (EmptyAction action : actions) {
+                action.join();
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class EmptyAction extends RecursiveAction {
+        @Override
+        protected void compute() {}
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+public class MessageTemplateWorthy {
+
+    public void doSomethingMessageTemplateWorthy(PublicGetters arg) {}
+
+    public void doSomethingMessageTemplateWorthy(NonPublicGetters arg) {}
+
+    // evaluated via generated accessors
+    public static class PublicGetters {
+
+        public String getName() {
+            return "the name";
+        }
+
+        public int getCount() {
+            return 5;
+        }
+    }
+
+    // evaluated via reflection, since generated accessors can only access public members
+    public static class NonPublicGetters {
+
+        String getName() {
+            return "the name";
+        }
+
+        int getCount() {
+            return 5;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+import org.glowroot.agent.plugin.api.TimerName;
+
+// starts and stops a fixed number of nested timers inside each transaction, cycling through the
+// given timer names, so that results are comparable across different numbers of distinct names
+public class NestedTimerTransactionWorthy extends TransactionWorthy {
+
+    private static final int NESTED_TIMERS_PER_TRANSACTION = 200;
+
+    private final NestedTimerWorthy nestedTimerWorthy = new NestedTimerWorthy();
+    private final TimerName[] timerNames;
+
+    public NestedTimerTransactionWorthy(TimerName[] timerNames) {
+        this.timerNames = timerNames;
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy() {
+        startNestedTimers();
+    }
+
+    @Override
+    public void doSomethingTransactionWorthy2() {
+        startNestedTimers();
+    }
+
+    private void startNestedTimers() {
+        for (int i = 0; i < NESTED_TIMERS_PER_TRANSACTION; i++) {
+            nestedTimerWorthy.doSomethingNestedTimerWorthy(timerNames[i % timerNames.length]);
+        }
+    }
+}
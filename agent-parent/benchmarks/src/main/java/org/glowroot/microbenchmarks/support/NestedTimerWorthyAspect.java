@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+import org.glowroot.agent.plugin.api.ThreadContext;
+import org.glowroot.agent.plugin.api.Timer;
+import org.glowroot.agent.plugin.api.TimerName;
+import org.glowroot.agent.plugin.api.weaving.BindParameter;
+import org.glowroot.agent.plugin.api.weaving.BindTraveler;
+import org.glowroot.agent.plugin.api.weaving.OnAfter;
+import org.glowroot.agent.plugin.api.weaving.OnBefore;
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+public class NestedTimerWorthyAspect {
+
+    // the timer name is passed in by the benchmark so that it can vary the number of distinct
+    // nested timer names
+    @Pointcut(className = "org.glowroot.microbenchmarks.support.NestedTimerWorthy",
+            methodName = "doSomethingNestedTimerWorthy",
+            methodParameterTypes = {"org.glowroot.agent.plugin.api.TimerName"},
+            timerName = "nested timer worthy")
+    public static class NestedTimerWorthyAdvice {
+
+        @OnBefore
+        public static Timer onBefore(ThreadContext context, @BindParameter TimerName timerName) {
+            return context.startTimer(timerName);
+        }
+
+        @OnAfter
+        public static void onAfter(@BindTraveler Timer timer) {
+            timer.stop();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks.support;
+
+import java.lang.reflect.Method;
+
+import org.glowroot.agent.plugin.api.TimerName;
+
+public class TimerNames {
+
+    private TimerNames() {}
+
+    // the plugin api only hands out timer names via @Pointcut annotated classes, so in order to
+    // create an arbitrary number of distinct timer names this reaches into the agent directly
+    public static TimerName[] create(String prefix, int count) throws Exception {
+        Class<?> timerNameClass =
+                Class.forName("org.glowroot.agent.model.ImmutableTimerNameImpl");
+        Method ofMethod = timerNameClass.getMethod("of", String.class, boolean.class);
+        TimerName[] timerNames = new TimerName[count];
+        for (int i = 0; i < count; i++) {
+            timerNames[i] = (TimerName) ofMethod.invoke(null, prefix + " " + i, false);
+        }
+        return timerNames;
+    }
+}
@@ -66,6 +66,37 @@ public class ReweaveCountIT {
         assertThat(reweaveCount).isEqualTo(2);
     }
 
+    @Test
+    public void shouldOnlyReweaveClassesAffectedByChangedConfigs() throws Exception {
+        container.executeNoExpectedTrace(ShouldLoadClassesForWeaving.class);
+        InstrumentationConfig config = InstrumentationConfig.newBuilder()
+                .setClassName("org.glowroot.agent.tests.javaagent.ReweaveCountIT$AAA")
+                .setMethodName("x")
+                .setMethodReturnType("")
+                .setCaptureKind(CaptureKind.TIMER)
+                .setTimerName("x")
+                .build();
+        InstrumentationConfig config2 = InstrumentationConfig.newBuilder()
+                .setClassName("org.glowroot.agent.tests.javaagent.ReweaveCountIT$CCC")
+                .setMethodName("y")
+                .setMethodReturnType("")
+                .setCaptureKind(CaptureKind.TIMER)
+                .setTimerName("y")
+                .build();
+        int reweaveCount =
+                container.getConfigService().updateInstrumentationConfigs(ImmutableList.of(config));
+        assertThat(reweaveCount).isEqualTo(2);
+        reweaveCount = container.getConfigService()
+                .updateInstrumentationConfigs(ImmutableList.of(config, config2));
+        assertThat(reweaveCount).isEqualTo(1);
+        reweaveCount = container.getConfigService()
+                .updateInstrumentationConfigs(ImmutableList.of(config2));
+        assertThat(reweaveCount).isEqualTo(2);
+        reweaveCount = container.getConfigService()
+                .updateInstrumentationConfigs(ImmutableList.<InstrumentationConfig>of());
+        assertThat(reweaveCount).isEqualTo(1);
+    }
+
     public static class ShouldLoadClassesForWeaving implements AppUnderTest {
         @Override
         public void executeApp() {
@@ -84,5 +115,8 @@ public class ReweaveCountIT {
         protected void x() {}
     }
 
-    private static class CCC extends AAA {}
+    private static class CCC extends AAA {
+        @SuppressWarnings("unused")
+        void y() {}
+    }
 }
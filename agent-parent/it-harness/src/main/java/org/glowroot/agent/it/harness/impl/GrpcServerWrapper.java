@@ -41,6 +41,8 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.EmptyMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.InitMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.StreamAck;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.StreamMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceMessage;
 import org.glowroot.wire.api.model.DownstreamServiceGrpc;
 import org.glowroot.wire.api.model.DownstreamServiceGrpc.DownstreamService;
@@ -179,6 +181,57 @@ public class GrpcServerWrapper {
             responseObserver.onNext(EmptyMessage.getDefaultInstance());
             responseObserver.onCompleted();
         }
+
+        @Override
+        public StreamObserver<StreamMessage> collectStream(
+                final StreamObserver<StreamAck> responseObserver) {
+            return new StreamObserver<StreamMessage>() {
+                private volatile boolean failed;
+                @Override
+                public void onNext(StreamMessage message) {
+                    if (failed) {
+                        return;
+                    }
+                    try {
+                        switch (message.getMessageCase()) {
+                            case AGGREGATE_MESSAGE:
+                                AggregateMessage aggregateMessage = message.getAggregateMessage();
+                                collector.collectAggregates(aggregateMessage.getCaptureTime(),
+                                        aggregateMessage.getAggregatesByTypeList());
+                                break;
+                            case GAUGE_VALUE_MESSAGE:
+                                collector.collectGaugeValues(
+                                        message.getGaugeValueMessage().getGaugeValuesList());
+                                break;
+                            case TRACE_MESSAGE:
+                                collector.collectTrace(message.getTraceMessage().getTrace());
+                                break;
+                            default:
+                                throw new IllegalStateException(
+                                        "Unexpected message type: " + message.getMessageCase());
+                        }
+                    } catch (Throwable t) {
+                        failed = true;
+                        responseObserver.onError(t);
+                        return;
+                    }
+                    responseObserver.onNext(StreamAck.newBuilder()
+                            .setSequence(message.getSequence())
+                            .build());
+                }
+                @Override
+                public void onError(Throwable t) {
+                    logger.debug(t.getMessage(), t);
+                }
+                @Override
+                public void onCompleted() {
+                    if (failed) {
+                        return;
+                    }
+                    responseObserver.onCompleted();
+                }
+            };
+        }
     }
 
     private static class DownstreamServiceImpl implements DownstreamService {
@@ -116,6 +116,13 @@ class TraceCollector implements Collector {
         this.trace = trace;
     }
 
+    @Override
+    public void collectTraces(List<Trace> traces) {
+        for (Trace trace : traces) {
+            collectTrace(trace);
+        }
+    }
+
     @Override
     public void log(LogEvent logEvent) {
         if (isExpected(logEvent)) {
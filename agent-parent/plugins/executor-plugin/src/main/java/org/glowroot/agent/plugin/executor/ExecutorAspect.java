@@ -28,6 +28,7 @@ import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.TraceEntry;
 import org.glowroot.agent.plugin.api.weaving.BindParameter;
 import org.glowroot.agent.plugin.api.weaving.BindReceiver;
+import org.glowroot.agent.plugin.api.weaving.BindReturn;
 import org.glowroot.agent.plugin.api.weaving.BindThrowable;
 import org.glowroot.agent.plugin.api.weaving.BindTraveler;
 import org.glowroot.agent.plugin.api.weaving.IsEnabled;
@@ -41,9 +42,12 @@ import org.glowroot.agent.plugin.api.weaving.Pointcut;
 public class ExecutorAspect {
 
     // the field and method names are verbose to avoid conflict since they will become fields
-    // and methods in all classes that extend java.lang.Runnable and/or
-    // java.util.concurrent.Callable
-    @Mixin({"java.lang.Runnable", "java.util.concurrent.Callable"})
+    // and methods in all classes that extend java.lang.Runnable, java.util.concurrent.Callable
+    // and/or java.util.concurrent.ForkJoinTask
+    //
+    // java.util.concurrent.ForkJoinTask is referenced by name since it is not available in java 6
+    @Mixin({"java.lang.Runnable", "java.util.concurrent.Callable",
+            "java.util.concurrent.ForkJoinTask"})
     public abstract static class RunnableImpl implements RunnableCallableMixin {
 
         private volatile @Nullable AuxThreadContext glowroot$auxThreadContext;
@@ -78,6 +82,11 @@ public class ExecutorAspect {
         }
     }
 
+    // this is only a marker so that advice can recognize fork join tasks without referencing
+    // java.util.concurrent.ForkJoinTask, which is not available in java 6
+    @Mixin({"java.util.concurrent.ForkJoinTask"})
+    public abstract static class ForkJoinTaskImpl implements ForkJoinTaskMixin {}
+
     // the method names are verbose to avoid conflict since they will become methods in all classes
     // that extend java.lang.Runnable and/or java.util.concurrent.Callable
     public interface RunnableCallableMixin {
@@ -99,6 +108,40 @@ public class ExecutorAspect {
                 @Nullable RunnableCallableMixin runnableCallableMixin);
     }
 
+    public interface ForkJoinTaskMixin {}
+
+    // the field and method names are verbose to avoid conflict since they will become fields
+    // and methods in all classes that extend java.util.concurrent.CompletableFuture$UniCompletion
+    //
+    // this holds the trace entry of the auxiliary thread context from the time that the dependent
+    // stage is claimed by the current thread until tryFire() returns, and so it is only accessed
+    // by the thread that runs the dependent stage
+    @Mixin({"java.util.concurrent.CompletableFuture$UniCompletion"})
+    public abstract static class UniCompletionImpl implements UniCompletionMixin {
+
+        private @Nullable TraceEntry glowroot$traceEntry;
+
+        @Override
+        public @Nullable TraceEntry glowroot$getTraceEntry() {
+            return glowroot$traceEntry;
+        }
+
+        @Override
+        public void glowroot$setTraceEntry(@Nullable TraceEntry traceEntry) {
+            this.glowroot$traceEntry = traceEntry;
+        }
+    }
+
+    // the method names are verbose to avoid conflict since they will become methods in all classes
+    // that extend java.util.concurrent.CompletableFuture$UniCompletion
+    public interface UniCompletionMixin {
+
+        @Nullable
+        TraceEntry glowroot$getTraceEntry();
+
+        void glowroot$setTraceEntry(@Nullable TraceEntry traceEntry);
+    }
+
     // ignore self nested is important for cases with wrapping ExecutorServices so that the outer
     // Runnable/Callable is the one used
     @Pointcut(className = "java.util.concurrent.ExecutorService", methodName = "submit",
@@ -151,21 +194,85 @@ public class ExecutorAspect {
     public static class ExecuteAdvice {
         @IsEnabled
         public static boolean isEnabled(@BindParameter Object runnableCallable) {
-            // only capture execute if called on FutureTask
-            return runnableCallable instanceof FutureTaskMixin;
+            // only capture execute if called on FutureTask or ForkJoinTask (the latter is how
+            // CompletableFuture runs async tasks, e.g. supplyAsync(), runAsync() and
+            // thenApplyAsync(), which are commonly executed on the common ForkJoinPool)
+            return runnableCallable instanceof FutureTaskMixin
+                    || runnableCallable instanceof ForkJoinTaskMixin;
         }
         @OnBefore
         public static void onBefore(ThreadContext context, @BindParameter Object runnableCallable) {
+            if (runnableCallable instanceof ForkJoinTaskMixin) {
+                RunnableCallableMixin forkJoinTask = (RunnableCallableMixin) runnableCallable;
+                // CompletableFuture *Async dependent stages already captured the auxiliary thread
+                // context when they were created (see UniCompletionInitAdvice)
+                if (forkJoinTask.glowroot$getAuxThreadContext() == null) {
+                    forkJoinTask.glowroot$setAuxAsyncContext(context.createAuxThreadContext());
+                }
+                return;
+            }
             FutureTaskMixin futureTaskMixin = (FutureTaskMixin) runnableCallable;
-            AuxThreadContext asyncContext = context.createAuxThreadContext();
             RunnableCallableMixin innerRunnableCallable =
                     futureTaskMixin.glowroot$getInnerRunnableCallable();
             if (innerRunnableCallable != null) {
+                AuxThreadContext asyncContext = context.createAuxThreadContext();
                 innerRunnableCallable.glowroot$setAuxAsyncContext(asyncContext);
             }
         }
     }
 
+    // these are the ForkJoinPool methods that take ForkJoinTask (as opposed to Runnable or
+    // Callable)
+    @Pointcut(className = "java.util.concurrent.ForkJoinPool",
+            methodName = "execute|invoke|submit",
+            methodParameterTypes = {"java.util.concurrent.ForkJoinTask"},
+            nestingGroup = "executor")
+    public static class ForkJoinPoolExecuteAdvice {
+        @IsEnabled
+        public static boolean isEnabled(@BindParameter Object forkJoinTask) {
+            // this class may have been loaded before class file transformer was added to jvm
+            return forkJoinTask instanceof RunnableCallableMixin;
+        }
+        @OnBefore
+        public static void onBefore(ThreadContext context, @BindParameter Object forkJoinTask) {
+            SubmitAdvice.onBefore(context, forkJoinTask);
+        }
+    }
+
+    // this covers sub tasks forked by other fork join tasks, e.g. parallel streams, as long as the
+    // outer fork join task runs inside of the transaction or inside of an auxiliary thread context
+    @Pointcut(className = "java.util.concurrent.ForkJoinTask", methodName = "fork",
+            methodParameterTypes = {}, nestingGroup = "executor")
+    public static class ForkAdvice {
+        @IsEnabled
+        public static boolean isEnabled(@BindReceiver Object forkJoinTask) {
+            // this class may have been loaded before class file transformer was added to jvm
+            return forkJoinTask instanceof RunnableCallableMixin;
+        }
+        @OnBefore
+        public static void onBefore(ThreadContext context, @BindReceiver Object forkJoinTask) {
+            SubmitAdvice.onBefore(context, forkJoinTask);
+        }
+    }
+
+    // CompletableFuture dependent stages (e.g. thenApply() and thenApplyAsync()) are run by
+    // whichever thread completes the prior stage (or by its executor), which is often a thread that
+    // is not part of the transaction, so the auxiliary thread context needs to be captured when the
+    // dependent stage is created
+    @Pointcut(className = "java.util.concurrent.CompletableFuture$UniCompletion",
+            methodName = "<init>", methodParameterTypes = {".."})
+    public static class UniCompletionInitAdvice {
+        @OnBefore
+        public static void onBefore(ThreadContext context, @BindReceiver Object completion) {
+            if (!(completion instanceof RunnableCallableMixin)) {
+                // this class was loaded before class file transformer was added to jvm
+                return;
+            }
+            AuxThreadContext asyncContext = context.createAuxThreadContext();
+            ((RunnableCallableMixin) completion).glowroot$setAuxAsyncContext(asyncContext);
+        }
+    }
+
     // this method uses submit() and returns Future, but none of the callers use/wait on the Future
     @Pointcut(className = "net.sf.ehcache.store.disk.DiskStorageFactory", methodName = "schedule",
             methodParameterTypes = {"java.util.concurrent.Callable"}, nestingGroup = "executor")
@@ -194,7 +301,7 @@ public class ExecutorAspect {
     @Pointcut(className = "java.lang.Runnable", methodName = "run", methodParameterTypes = {})
     public static class RunnableAdvice {
         @OnBefore
-        public static @Nullable TraceEntry onBefore(@BindReceiver Runnable runnable) {
+        public static @Nullable TraceEntry onBefore(@BindReceiver Object runnable) {
             if (!(runnable instanceof RunnableCallableMixin)) {
                 // this class was loaded before class file transformer was added to jvm
                 return null;
@@ -220,7 +327,7 @@ public class ExecutorAspect {
             }
         }
         @OnAfter
-        public static void onAfter(@BindReceiver Runnable runnable) {
+        public static void onAfter(@BindReceiver Object runnable) {
             if (!(runnable instanceof RunnableCallableMixin)) {
                 // this class was loaded before class file transformer was added to jvm
                 return;
@@ -230,6 +337,99 @@ public class ExecutorAspect {
         }
     }
 
+    // exec() is the method that all fork join tasks are run through, including those that are not
+    // Runnable, e.g. RecursiveTask, RecursiveAction and CountedCompleter
+    //
+    // this is used instead of doExec() because doExec() signals completion of the task (which can
+    // then be joined) before returning, which would then end the auxiliary thread context after
+    // the transaction has potentially already completed
+    @Pointcut(className = "java.util.concurrent.ForkJoinTask", methodName = "exec",
+            methodParameterTypes = {})
+    public static class ForkJoinTaskAdvice {
+        @OnBefore
+        public static @Nullable TraceEntry onBefore(@BindReceiver Object forkJoinTask) {
+            return RunnableAdvice.onBefore(forkJoinTask);
+        }
+        @OnReturn
+        public static void onReturn(@BindTraveler @Nullable TraceEntry traceEntry) {
+            RunnableAdvice.onReturn(traceEntry);
+        }
+        @OnThrow
+        public static void onThrow(@BindThrowable Throwable t,
+                @BindTraveler @Nullable TraceEntry traceEntry) {
+            RunnableAdvice.onThrow(t, traceEntry);
+        }
+        @OnAfter
+        public static void onAfter(@BindReceiver Object forkJoinTask) {
+            RunnableAdvice.onAfter(forkJoinTask);
+        }
+    }
+
+    // this covers CompletableFuture dependent stages that are run synchronously by the thread that
+    // completes the prior stage (dependent stages that are run asynchronously are covered by
+    // ForkJoinTaskAdvice or RunnableAdvice)
+    //
+    // tryFire() is also called when the dependent stage is not going to be run (e.g. by the thread
+    // that creates the dependent stage, if the prior stage has not completed yet), and when it is
+    // going to be handed off to the dependent stage's executor, so the auxiliary thread context is
+    // only started once claim() returns true, which is when the current thread is going to run the
+    // dependent stage
+    @Pointcut(className = "java.util.concurrent.CompletableFuture$UniCompletion",
+            methodName = "claim", methodParameterTypes = {})
+    public static class UniCompletionClaimAdvice {
+        @OnReturn
+        public static void onReturn(@BindReturn boolean claimed,
+                @BindReceiver Object completion) {
+            if (!claimed || !(completion instanceof UniCompletionMixin)) {
+                // the second condition is when this class was loaded before class file transformer
+                // was added to jvm
+                return;
+            }
+            AuxThreadContext asyncContext =
+                    ((RunnableCallableMixin) completion).glowroot$getAuxThreadContext();
+            if (asyncContext != null) {
+                ((UniCompletionMixin) completion).glowroot$setTraceEntry(asyncContext.start());
+            }
+        }
+    }
+
+    // the auxiliary thread context is only cleared once tryFire() has actually run the dependent
+    // stage
+    @Pointcut(className = "java.util.concurrent.CompletableFuture$Completion",
+            methodName = "tryFire", methodParameterTypes = {"int"})
+    public static class CompletionTryFireAdvice {
+        @OnReturn
+        public static void onReturn(@BindReceiver Object completion) {
+            TraceEntry traceEntry = takeTraceEntry(completion);
+            if (traceEntry != null) {
+                traceEntry.end();
+            }
+        }
+        @OnThrow
+        public static void onThrow(@BindThrowable Throwable t, @BindReceiver Object completion) {
+            TraceEntry traceEntry = takeTraceEntry(completion);
+            if (traceEntry != null) {
+                traceEntry.endWithError(t);
+            }
+        }
+        private static @Nullable TraceEntry takeTraceEntry(Object completion) {
+            if (!(completion instanceof UniCompletionMixin)) {
+                // e.g. CompletableFuture$CoCompletion, which delegates to a UniCompletion, or this
+                // class was loaded before class file transformer was added to jvm
+                return null;
+            }
+            UniCompletionMixin completionMixin = (UniCompletionMixin) completion;
+            TraceEntry traceEntry = completionMixin.glowroot$getTraceEntry();
+            if (traceEntry == null) {
+                // the dependent stage was not run by the current thread
+                return null;
+            }
+            completionMixin.glowroot$setTraceEntry(null);
+            ((RunnableCallableMixin) completion).glowroot$setAuxAsyncContext(null);
+            return traceEntry;
+        }
+    }
+
     @Pointcut(className = "java.util.concurrent.Callable", methodName = "call",
             methodParameterTypes = {})
     public static class CallableAdvice {
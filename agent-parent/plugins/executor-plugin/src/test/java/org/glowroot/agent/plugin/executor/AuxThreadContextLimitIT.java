@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.executor;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.agent.it.harness.AppUnderTest;
+import org.glowroot.agent.it.harness.Container;
+import org.glowroot.agent.it.harness.TransactionMarker;
+import org.glowroot.agent.it.harness.impl.JavaagentContainer;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AuxThreadContextLimitIT {
+
+    private static final int AUX_THREAD_CONTEXT_LIMIT = 2;
+
+    private static Container container;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        // tests only work with javaagent container because they need to weave bootstrap classes
+        // that implement Executor and ExecutorService and that extend ForkJoinTask
+        container = JavaagentContainer.createWithExtraJvmArgs(Collections.singletonList(
+                "-Dglowroot.internal.auxThreadContextLimit=" + AUX_THREAD_CONTEXT_LIMIT));
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        container.close();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        container.checkAndReset();
+    }
+
+    @Test
+    public void shouldCapAuxThreadContextsForExecutorService() throws Exception {
+        // given
+        // when
+        Trace trace = container.execute(DoSomeExecutorServiceWork.class);
+        // then
+        checkTrace(trace);
+    }
+
+    @Test
+    public void shouldCapAuxThreadContextsForForkJoinTasks() throws Exception {
+        // given
+        // when
+        Trace trace = container.execute(DoSomeForkJoinWork.class);
+        // then
+        checkTrace(trace);
+    }
+
+    private static void checkTrace(Trace trace) {
+        Trace.Header header = trace.getHeader();
+        assertThat(header.getAuxThreadRootTimerCount()).isEqualTo(1);
+        assertThat(header.getAuxThreadRootTimer(0).getName()).isEqualTo("auxiliary thread");
+        // auxiliary thread contexts past the limit are still captured in the timers
+        assertThat(header.getAuxThreadRootTimer(0).getCount()).isEqualTo(5);
+        assertThat(header.getAuxThreadRootTimer(0).getChildTimerCount()).isEqualTo(1);
+        assertThat(header.getAuxThreadRootTimer(0).getChildTimer(0).getName())
+                .isEqualTo("mock trace marker");
+        assertThat(header.getAuxThreadRootTimer(0).getChildTimer(0).getCount()).isEqualTo(5);
+        // but not in the trace entries
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(entries).hasSize(AUX_THREAD_CONTEXT_LIMIT);
+        for (Trace.Entry entry : entries) {
+            assertThat(entry.getMessage()).isEqualTo("auxiliary thread");
+            assertThat(entry.getChildEntryCount()).isEqualTo(1);
+            assertThat(entry.getChildEntry(0).getMessage())
+                    .isEqualTo("trace marker / CreateTraceEntry");
+        }
+    }
+
+    public static class DoSomeExecutorServiceWork implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            for (int i = 0; i < 5; i++) {
+                executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        new CreateTraceEntry().transactionMarker();
+                    }
+                }).get();
+            }
+            // wait for the auxiliary thread contexts to end, since get() returns as soon as the
+            // task is completed
+            executor.shutdown();
+            executor.awaitTermination(10, SECONDS);
+        }
+    }
+
+    public static class DoSomeForkJoinWork implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            ForkJoinPool pool = new ForkJoinPool();
+            for (int i = 0; i < 5; i++) {
+                ForkJoinTask<?> task = pool.submit(new CreateTraceEntryAction());
+                task.join();
+            }
+            // wait for the auxiliary thread contexts to end, since join() returns as soon as the
+            // task is completed
+            pool.shutdown();
+            pool.awaitTermination(10, SECONDS);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class CreateTraceEntryAction extends RecursiveAction {
+
+        @Override
+        protected void compute() {
+            new CreateTraceEntry().transactionMarker();
+        }
+    }
+
+    private static class CreateTraceEntry implements TransactionMarker {
+
+        @Override
+        public void transactionMarker() {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+}
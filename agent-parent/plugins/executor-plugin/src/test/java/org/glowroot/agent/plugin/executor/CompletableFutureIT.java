@@ -0,0 +1,289 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.executor;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.agent.it.harness.AppUnderTest;
+import org.glowroot.agent.it.harness.Container;
+import org.glowroot.agent.it.harness.Containers;
+import org.glowroot.agent.it.harness.TransactionMarker;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+// CompletableFuture is only available in java 8+, and the build needs to compile on java 7, so the
+// tests are skipped on java 7 and CompletableFuture (and the java.util.function interfaces) are
+// only referenced via reflection
+public class CompletableFutureIT {
+
+    private static Container container;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Assume.assumeTrue(isCompletableFutureAvailable());
+        // tests only work with javaagent container because they need to weave bootstrap classes
+        // that extend ForkJoinTask
+        container = Containers.createJavaagent();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        if (container != null) {
+            container.close();
+        }
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        container.checkAndReset();
+    }
+
+    @Test
+    public void shouldCaptureSupplyAsync() throws Exception {
+        // given
+        // when
+        Trace trace = container.execute(DoSupplyAsync.class);
+        // then
+        checkTrace(trace);
+    }
+
+    @Test
+    public void shouldCaptureDependentStageCompletedByOtherThread() throws Exception {
+        // given
+        // when
+        Trace trace = container.execute(DoThenApplyCompletedByOtherThread.class);
+        // then
+        checkTrace(trace);
+    }
+
+    @Test
+    public void shouldCaptureAsyncDependentStageCompletedByOtherThread() throws Exception {
+        // given
+        // when
+        Trace trace = container.execute(DoThenApplyAsyncCompletedByOtherThread.class);
+        // then
+        checkTrace(trace);
+    }
+
+    @Test
+    public void shouldCaptureAsyncDependentStageOfCompletedFuture() throws Exception {
+        // given
+        // when
+        Trace trace = container.execute(DoThenApplyAsyncOfCompletedFuture.class);
+        // then
+        checkTrace(trace);
+    }
+
+    private static void checkTrace(Trace trace) {
+        Trace.Header header = trace.getHeader();
+        assertThat(header.getAuxThreadRootTimerCount()).isEqualTo(1);
+        assertThat(header.getAuxThreadRootTimer(0).getName()).isEqualTo("auxiliary thread");
+        assertThat(header.getAuxThreadRootTimer(0).getCount()).isEqualTo(1);
+        assertThat(header.getAuxThreadRootTimer(0).getChildTimerCount()).isEqualTo(1);
+        assertThat(header.getAuxThreadRootTimer(0).getChildTimer(0).getName())
+                .isEqualTo("mock trace marker");
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(entries).hasSize(1);
+        assertThat(entries.get(0).getMessage()).isEqualTo("auxiliary thread");
+        assertThat(entries.get(0).getChildEntryCount()).isEqualTo(1);
+        assertThat(entries.get(0).getChildEntry(0).getMessage())
+                .isEqualTo("trace marker / CreateTraceEntry");
+    }
+
+    private static boolean isCompletableFutureAvailable() {
+        try {
+            Class.forName("java.util.concurrent.CompletableFuture");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    public static class DoSupplyAsync implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            Object future = CompletableFutures.supplyAsync(executor);
+            CompletableFutures.join(future);
+            // wait for the auxiliary thread context to end, since join() returns as soon as the
+            // future is completed
+            executor.shutdown();
+            executor.awaitTermination(10, SECONDS);
+        }
+    }
+
+    public static class DoThenApplyCompletedByOtherThread
+            implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            Object future = CompletableFutures.newIncompleteFuture();
+            Object dependent = CompletableFutures.thenApply(future);
+            // the dependent stage is run synchronously by the thread that completes the future,
+            // which is not part of the transaction
+            Thread thread = CompletableFutures.completeInNewThread(future);
+            CompletableFutures.join(dependent);
+            thread.join();
+        }
+    }
+
+    public static class DoThenApplyAsyncCompletedByOtherThread
+            implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            Object future = CompletableFutures.newIncompleteFuture();
+            Object dependent = CompletableFutures.thenApplyAsync(future, executor);
+            // the thread that completes the future (which is not part of the transaction) hands
+            // the dependent stage off to the executor without running it
+            Thread thread = CompletableFutures.completeInNewThread(future);
+            CompletableFutures.join(dependent);
+            thread.join();
+            executor.shutdown();
+            executor.awaitTermination(10, SECONDS);
+        }
+    }
+
+    public static class DoThenApplyAsyncOfCompletedFuture
+            implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            Object future = CompletableFutures.newIncompleteFuture();
+            CompletableFutures.complete(future);
+            // the dependent stage is handed off to the executor by the transaction thread
+            Object dependent = CompletableFutures.thenApplyAsync(future, executor);
+            CompletableFutures.join(dependent);
+            executor.shutdown();
+            executor.awaitTermination(10, SECONDS);
+        }
+    }
+
+    private static class CompletableFutures {
+
+        private static Class<?> completableFutureClass() throws Exception {
+            return Class.forName("java.util.concurrent.CompletableFuture");
+        }
+
+        private static Object newIncompleteFuture() throws Exception {
+            return completableFutureClass().newInstance();
+        }
+
+        private static Object supplyAsync(Executor executor) throws Exception {
+            Class<?> supplierClass = Class.forName("java.util.function.Supplier");
+            Method method = completableFutureClass().getMethod("supplyAsync", supplierClass,
+                    Executor.class);
+            return method.invoke(null, createTraceEntryProxy(supplierClass), executor);
+        }
+
+        private static Object thenApply(Object future) throws Exception {
+            Class<?> functionClass = Class.forName("java.util.function.Function");
+            Method method = completableFutureClass().getMethod("thenApply", functionClass);
+            return method.invoke(future, createTraceEntryProxy(functionClass));
+        }
+
+        private static Object thenApplyAsync(Object future, Executor executor) throws Exception {
+            Class<?> functionClass = Class.forName("java.util.function.Function");
+            Method method = completableFutureClass().getMethod("thenApplyAsync", functionClass,
+                    Executor.class);
+            return method.invoke(future, createTraceEntryProxy(functionClass), executor);
+        }
+
+        private static void complete(Object future) throws Exception {
+            completableFutureClass().getMethod("complete", Object.class).invoke(future, "x");
+        }
+
+        private static Object join(Object future) throws Exception {
+            return completableFutureClass().getMethod("join").invoke(future);
+        }
+
+        private static Thread completeInNewThread(final Object future) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(100);
+                        complete(future);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            thread.start();
+            return thread;
+        }
+
+        // the supplier/function creates a trace entry and returns null
+        private static Object createTraceEntryProxy(Class<?> functionalInterface) {
+            return Proxy.newProxyInstance(functionalInterface.getClassLoader(),
+                    new Class<?>[] {functionalInterface}, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            new CreateTraceEntry().transactionMarker();
+                            return null;
+                        }
+                    });
+        }
+    }
+
+    private static class CreateTraceEntry implements TransactionMarker {
+
+        @Override
+        public void transactionMarker() {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+}
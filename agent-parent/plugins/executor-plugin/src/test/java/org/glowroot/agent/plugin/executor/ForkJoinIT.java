@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.executor;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.agent.it.harness.AppUnderTest;
+import org.glowroot.agent.it.harness.Container;
+import org.glowroot.agent.it.harness.Containers;
+import org.glowroot.agent.it.harness.TransactionMarker;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ForkJoinIT {
+
+    private static Container container;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        // tests only work with javaagent container because they need to weave bootstrap classes
+        // that extend ForkJoinTask
+        container = Containers.createJavaagent();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        container.close();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        container.checkAndReset();
+    }
+
+    @Test
+    public void shouldCaptureSubmittedForkJoinTasks() throws Exception {
+        // given
+        // when
+        Trace trace = container.execute(DoSomeSubmittedForkJoinWork.class);
+        // then
+        Trace.Header header = trace.getHeader();
+        assertThat(header.getAuxThreadRootTimerCount()).isEqualTo(1);
+        assertThat(header.getAuxThreadRootTimer(0).getName()).isEqualTo("auxiliary thread");
+        assertThat(header.getAuxThreadRootTimer(0).getCount()).isEqualTo(3);
+        assertThat(header.getAuxThreadRootTimer(0).getChildTimerCount()).isEqualTo(1);
+        assertThat(header.getAuxThreadRootTimer(0).getChildTimer(0).getName())
+                .isEqualTo("mock trace marker");
+        List<Trace.Entry> entries = trace.getEntryList();
+        assertThat(entries).hasSize(3);
+        for (Trace.Entry entry : entries) {
+            assertThat(entry.getMessage()).isEqualTo("auxiliary thread");
+            assertThat(entry.getChildEntryCount()).isEqualTo(1);
+            assertThat(entry.getChildEntry(0).getMessage())
+                    .isEqualTo("trace marker / CreateTraceEntry");
+        }
+    }
+
+    @Test
+    public void shouldCaptureForkedForkJoinTasks() throws Exception {
+        // given
+        // when
+        Trace trace = container.execute(DoSomeForkedForkJoinWork.class);
+        // then
+        Trace.Header header = trace.getHeader();
+        assertThat(header.getAuxThreadRootTimerCount()).isEqualTo(1);
+        assertThat(header.getAuxThreadRootTimer(0).getName()).isEqualTo("auxiliary thread");
+        // forked tasks that end up being run by the thread that forked them are run inside of
+        // that thread's auxiliary thread context
+        assertThat(header.getAuxThreadRootTimer(0).getCount()).isBetween(1L, 4L);
+        assertThat(getTraceMarkerEntryCount(trace.getEntryList())).isEqualTo(4);
+    }
+
+    private static int getTraceMarkerEntryCount(List<Trace.Entry> entries) {
+        int count = 0;
+        for (Trace.Entry entry : entries) {
+            if (entry.getMessage().equals("trace marker / CreateTraceEntry")) {
+                count++;
+            }
+            count += getTraceMarkerEntryCount(entry.getChildEntryList());
+        }
+        return count;
+    }
+
+    public static class DoSomeSubmittedForkJoinWork implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            ForkJoinPool pool = new ForkJoinPool();
+            ForkJoinTask<?> task1 = pool.submit(new CreateTraceEntryAction());
+            ForkJoinTask<?> task2 = new CreateTraceEntryAction();
+            pool.execute(task2);
+            pool.invoke(new CreateTraceEntryAction());
+            task1.join();
+            task2.join();
+            pool.shutdown();
+        }
+    }
+
+    public static class DoSomeForkedForkJoinWork implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            ForkJoinPool pool = new ForkJoinPool();
+            pool.invoke(new SplittingAction(4));
+            pool.shutdown();
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class CreateTraceEntryAction extends RecursiveAction {
+
+        @Override
+        protected void compute() {
+            new CreateTraceEntry().transactionMarker();
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class SplittingAction extends RecursiveAction {
+
+        private final int count;
+
+        private SplittingAction(int count) {
+            this.count = count;
+        }
+
+        @Override
+        protected void compute() {
+            if (count == 1) {
+                new CreateTraceEntry().transactionMarker();
+                return;
+            }
+            SplittingAction left = new SplittingAction(count / 2);
+            SplittingAction right = new SplittingAction(count - count / 2);
+            left.fork();
+            right.compute();
+            left.join();
+        }
+    }
+
+    private static class CreateTraceEntry implements TransactionMarker {
+
+        @Override
+        public void transactionMarker() {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.StreamAck;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.StreamMessage;
+
+// messages are stored synchronously as they arrive and each one is acknowledged (by sequence
+// number) once it has been stored, since the next message is not requested from the transport
+// until onNext returns, this also pushes back on the agent through the underlying http/2 flow
+// control
+//
+// on the first storage failure the stream is failed, and the agent re-sends all unacknowledged
+// messages on a new stream
+class CollectStreamObserver implements StreamObserver<StreamMessage> {
+
+    private static final Logger logger = LoggerFactory.getLogger(CollectStreamObserver.class);
+
+    private final MessageStore messageStore;
+    private final StreamObserver<StreamAck> responseObserver;
+
+    private volatile boolean failed;
+
+    CollectStreamObserver(MessageStore messageStore, StreamObserver<StreamAck> responseObserver) {
+        this.messageStore = messageStore;
+        this.responseObserver = responseObserver;
+    }
+
+    @Override
+    public void onNext(StreamMessage message) {
+        if (failed) {
+            // the agent will re-send all unacknowledged messages on a new stream
+            return;
+        }
+        try {
+            messageStore.store(message);
+        } catch (Throwable t) {
+            logger.error(t.getMessage(), t);
+            failed = true;
+            responseObserver.onError(t);
+            return;
+        }
+        responseObserver.onNext(StreamAck.newBuilder()
+                .setSequence(message.getSequence())
+                .build());
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        logger.debug(t.getMessage(), t);
+    }
+
+    @Override
+    public void onCompleted() {
+        if (failed) {
+            return;
+        }
+        responseObserver.onCompleted();
+    }
+
+    interface MessageStore {
+        void store(StreamMessage message) throws Exception;
+    }
+}
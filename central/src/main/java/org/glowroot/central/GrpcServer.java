@@ -17,12 +17,17 @@ package org.glowroot.central;
 
 import java.io.IOException;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import io.grpc.netty.NettyServerBuilder;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import org.glowroot.storage.repo.AggregateRepository;
+import org.glowroot.central.CollectStreamObserver.MessageStore;
+import org.glowroot.central.storage.AsyncAggregateRepository;
 import org.glowroot.storage.repo.GaugeValueRepository;
 import org.glowroot.storage.repo.ServerRepository;
 import org.glowroot.storage.repo.TraceRepository;
@@ -34,6 +39,8 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.InitMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogEvent;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.StreamAck;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.StreamMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceMessage;
 import org.glowroot.wire.api.model.DownstreamServiceGrpc;
 import org.glowroot.wire.api.model.Proto;
@@ -43,14 +50,14 @@ public class GrpcServer {
     private static final Logger logger = LoggerFactory.getLogger(GrpcServer.class);
 
     private final ServerRepository serverRepository;
-    private final AggregateRepository aggregateRepository;
+    private final AsyncAggregateRepository aggregateRepository;
     private final GaugeValueRepository gaugeValueRepository;
     private final TraceRepository traceRepository;
 
     private final DownstreamServiceImpl downstreamService;
 
     public GrpcServer(int port, ServerRepository serverRepository,
-            AggregateRepository aggregateRepository, GaugeValueRepository gaugeValueRepository,
+            AsyncAggregateRepository aggregateRepository, GaugeValueRepository gaugeValueRepository,
             TraceRepository traceRepository) throws IOException {
 
         this.serverRepository = serverRepository;
@@ -90,24 +97,37 @@ public class GrpcServer {
 
         @Override
         public void collectAggregates(AggregateMessage request,
-                StreamObserver<EmptyMessage> responseObserver) {
+                final StreamObserver<EmptyMessage> responseObserver) {
+            ListenableFuture<?> future;
             try {
-                aggregateRepository.store(request.getServerId(), request.getCaptureTime(),
-                        request.getAggregatesByTypeList());
+                future = aggregateRepository.storeAsync(request.getServerId(),
+                        request.getCaptureTime(), request.getAggregatesByTypeList());
             } catch (Throwable t) {
                 logger.error(t.getMessage(), t);
                 responseObserver.onError(t);
                 return;
             }
-            responseObserver.onNext(EmptyMessage.getDefaultInstance());
-            responseObserver.onCompleted();
+            // respond once the asynchronous writes have completed, without holding onto the grpc
+            // thread in the meantime
+            Futures.addCallback(future, new FutureCallback<Object>() {
+                @Override
+                public void onSuccess(Object result) {
+                    responseObserver.onNext(EmptyMessage.getDefaultInstance());
+                    responseObserver.onCompleted();
+                }
+                @Override
+                public void onFailure(Throwable t) {
+                    logger.error(t.getMessage(), t);
+                    responseObserver.onError(t);
+                }
+            }, MoreExecutors.directExecutor());
         }
 
         @Override
         public void collectGaugeValues(GaugeValueMessage request,
                 StreamObserver<EmptyMessage> responseObserver) {
             try {
-                gaugeValueRepository.store(request.getServerId(), request.getGaugeValuesList());
+                storeGaugeValues(request);
             } catch (Throwable t) {
                 logger.error(t.getMessage(), t);
                 responseObserver.onError(t);
@@ -121,7 +141,7 @@ public class GrpcServer {
         public void collectTrace(TraceMessage request,
                 StreamObserver<EmptyMessage> responseObserver) {
             try {
-                traceRepository.collect(request.getServerId(), request.getTrace());
+                storeTrace(request);
             } catch (Throwable t) {
                 logger.error(t.getMessage(), t);
                 responseObserver.onError(t);
@@ -152,5 +172,46 @@ public class GrpcServer {
             responseObserver.onNext(EmptyMessage.getDefaultInstance());
             responseObserver.onCompleted();
         }
+
+        @Override
+        public StreamObserver<StreamMessage> collectStream(
+                StreamObserver<StreamAck> responseObserver) {
+            return new CollectStreamObserver(new MessageStore() {
+                @Override
+                public void store(StreamMessage message) throws Exception {
+                    storeStreamMessage(message);
+                }
+            }, responseObserver);
+        }
+
+        private void storeAggregates(AggregateMessage request) throws Exception {
+            aggregateRepository.store(request.getServerId(), request.getCaptureTime(),
+                    request.getAggregatesByTypeList());
+        }
+
+        private void storeGaugeValues(GaugeValueMessage request) throws Exception {
+            gaugeValueRepository.store(request.getServerId(), request.getGaugeValuesList());
+        }
+
+        private void storeTrace(TraceMessage request) throws Exception {
+            traceRepository.collect(request.getServerId(), request.getTrace());
+        }
+
+        private void storeStreamMessage(StreamMessage message) throws Exception {
+            switch (message.getMessageCase()) {
+                case AGGREGATE_MESSAGE:
+                    storeAggregates(message.getAggregateMessage());
+                    break;
+                case GAUGE_VALUE_MESSAGE:
+                    storeGaugeValues(message.getGaugeValueMessage());
+                    break;
+                case TRACE_MESSAGE:
+                    storeTrace(message.getTraceMessage());
+                    break;
+                default:
+                    throw new IllegalStateException(
+                            "Unexpected message type: " + message.getMessageCase());
+            }
+        }
     }
 }
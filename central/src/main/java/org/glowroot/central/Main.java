@@ -30,7 +30,6 @@ import org.glowroot.central.storage.TransactionTypeDao;
 import org.glowroot.common.live.LiveTraceRepository.LiveTraceRepositoryNop;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.Version;
-import org.glowroot.storage.repo.AggregateRepository;
 import org.glowroot.storage.repo.ConfigRepository;
 import org.glowroot.storage.repo.GaugeValueRepository;
 import org.glowroot.storage.repo.RepoAdmin;
@@ -67,13 +66,13 @@ public class Main {
         ServerDao serverDao = new ServerDao(session);
         TransactionTypeDao transactionTypeDao = new TransactionTypeDao(session);
 
-        AggregateRepository aggregateRepository =
+        AggregateDao aggregateDao =
                 new AggregateDao(session, serverDao, transactionTypeDao, configRepository);
         TraceRepository traceRepository = new TraceDao(session, serverDao, transactionTypeDao);
         GaugeValueRepository gaugeValueRepository =
                 new GaugeValueDao(session, serverDao, configRepository);
 
-        GrpcServer server = new GrpcServer(8181, serverDao, aggregateRepository,
+        GrpcServer server = new GrpcServer(8181, serverDao, aggregateDao,
                 gaugeValueRepository, traceRepository);
 
         RollupLevelService rollupLevelService = new RollupLevelService(configRepository, clock);
@@ -86,12 +85,13 @@ public class Main {
                 .serverRepository(serverDao)
                 .transactionTypeRepository(transactionTypeDao)
                 .traceRepository(traceRepository)
-                .aggregateRepository(aggregateRepository)
+                .aggregateRepository(aggregateDao)
                 .gaugeValueRepository(gaugeValueRepository)
                 .repoAdmin(new NopRepoAdmin())
                 .rollupLevelService(rollupLevelService)
                 .liveTraceRepository(new LiveTraceRepositoryNop())
                 .liveWeavingService(null)
+                .startupTimelineService(null)
                 .bindAddress("0.0.0.0")
                 .numWorkerThreads(50)
                 .version(version)
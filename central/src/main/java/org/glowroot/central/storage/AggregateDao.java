@@ -22,6 +22,7 @@ import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
@@ -30,20 +31,22 @@ import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.utils.UUIDs;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Parser;
 import org.immutables.value.Value;
 
+import org.glowroot.central.storage.AsyncBatchWriter.Writes;
 import org.glowroot.central.util.ByteBufferInputStream;
 import org.glowroot.central.util.Messages;
 import org.glowroot.common.model.QueryCollector;
 import org.glowroot.common.util.Styles;
-import org.glowroot.storage.repo.AggregateRepository;
 import org.glowroot.storage.repo.ConfigRepository;
 import org.glowroot.storage.repo.ConfigRepository.RollupConfig;
 import org.glowroot.storage.repo.ImmutableOverallErrorSummary;
@@ -63,7 +66,7 @@ import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-public class AggregateDao implements AggregateRepository {
+public class AggregateDao implements AsyncAggregateRepository {
 
     private static final Table summaryTable = ImmutableTable.builder()
             .partialName("summary")
@@ -131,11 +134,16 @@ public class AggregateDao implements AggregateRepository {
             .fromInclusive(false)
             .build();
 
+    private static final int MAX_IN_FLIGHT_WRITES =
+            Integer.getInteger("glowroot.central.aggregateMaxInFlightWrites", 256);
+
     private final Session session;
     private final ServerDao serverDao;
     private final TransactionTypeDao transactionTypeDao;
     private final ConfigRepository configRepository;
 
+    private final AsyncBatchWriter asyncBatchWriter;
+
     // list index is rollupLevel
     private final Map<Table, List<PreparedStatement>> insertOverallPS;
     private final Map<Table, List<PreparedStatement>> insertTransactionPS;
@@ -154,6 +162,7 @@ public class AggregateDao implements AggregateRepository {
         this.serverDao = serverDao;
         this.transactionTypeDao = transactionTypeDao;
         this.configRepository = configRepository;
+        asyncBatchWriter = new AsyncBatchWriter(session, MAX_IN_FLIGHT_WRITES);
 
         int count = configRepository.getRollupConfigs().size();
 
@@ -227,14 +236,28 @@ public class AggregateDao implements AggregateRepository {
 
     @Override
     public void store(String serverId, long captureTime,
-            List<AggregatesByType> aggregatesByTypeList) throws IOException {
+            List<AggregatesByType> aggregatesByTypeList) throws Exception {
+        try {
+            storeAsync(serverId, captureTime, aggregatesByTypeList).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            Throwables.propagateIfPossible(cause, Exception.class);
+            throw e;
+        }
+    }
+
+    @Override
+    public ListenableFuture<?> storeAsync(String serverId, long captureTime,
+            List<AggregatesByType> aggregatesByTypeList) throws Exception {
+        Writes writes = asyncBatchWriter.newWrites();
         for (AggregatesByType aggregatesByType : aggregatesByTypeList) {
             String transactionType = aggregatesByType.getTransactionType();
             Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
-            storeOverallAggregate(0, serverId, transactionType, captureTime, overallAggregate);
+            storeOverallAggregate(writes, 0, serverId, transactionType, captureTime,
+                    overallAggregate);
             for (TransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
-                storeTransactionAggregate(0, serverId, transactionType,
+                storeTransactionAggregate(writes, 0, serverId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
                         transactionAggregate.getAggregate());
             }
@@ -250,10 +273,11 @@ public class AggregateDao implements AggregateRepository {
                 boundStatement.setString(1, transactionType);
                 boundStatement.setTimestamp(2, new Date(rollupCaptureTime));
                 boundStatement.setUUID(3, UUIDs.timeBased());
-                session.execute(boundStatement);
+                writes.addUnbatched(boundStatement);
             }
         }
         serverDao.updateLastCaptureTime(serverId, true);
+        return writes.execute();
     }
 
     @Override
@@ -496,16 +520,19 @@ public class AggregateDao implements AggregateRepository {
         throw new UnsupportedOperationException();
     }
 
-    private void storeOverallAggregate(int rollupLevel, String serverRollup,
+    private void storeOverallAggregate(Writes writes, int rollupLevel, String serverRollup,
             String transactionType, long captureTime, Aggregate aggregate) throws IOException {
 
+        // summary tables share the same partition key as the other overall tables
+        Object partitionKey = ImmutableList.of(serverRollup, transactionType);
+
         BoundStatement boundStatement = getInsertOverallPS(summaryTable, rollupLevel).bind();
         boundStatement.setString(0, serverRollup);
         boundStatement.setString(1, transactionType);
         boundStatement.setTimestamp(2, new Date(captureTime));
         boundStatement.setDouble(3, aggregate.getTotalDurationNanos());
         boundStatement.setLong(4, aggregate.getTransactionCount());
-        session.execute(boundStatement);
+        writes.add(partitionKey, boundStatement);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertOverallPS(errorSummaryTable, rollupLevel).bind();
@@ -514,7 +541,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(2, new Date(captureTime));
             boundStatement.setLong(3, aggregate.getErrorCount());
             boundStatement.setLong(4, aggregate.getTransactionCount());
-            session.execute(boundStatement);
+            writes.add(partitionKey, boundStatement);
         }
 
         boundStatement = getInsertOverallPS(overviewTable, rollupLevel).bind();
@@ -522,7 +549,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setString(1, transactionType);
         boundStatement.setTimestamp(2, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, 3);
-        session.execute(boundStatement);
+        writes.add(partitionKey, boundStatement);
 
         boundStatement = getInsertOverallPS(histogramTable, rollupLevel).bind();
         boundStatement.setString(0, serverRollup);
@@ -532,14 +559,14 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(4, aggregate.getTransactionCount());
         boundStatement.setBytes(5,
                 aggregate.getTotalNanosHistogram().toByteString().asReadOnlyByteBuffer());
-        session.execute(boundStatement);
+        writes.add(partitionKey, boundStatement);
 
         boundStatement = getInsertOverallPS(throughputTable, rollupLevel).bind();
         boundStatement.setString(0, serverRollup);
         boundStatement.setString(1, transactionType);
         boundStatement.setTimestamp(2, new Date(captureTime));
         boundStatement.setLong(3, aggregate.getTransactionCount());
-        session.execute(boundStatement);
+        writes.add(partitionKey, boundStatement);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -548,7 +575,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setString(1, transactionType);
             boundStatement.setTimestamp(2, new Date(captureTime));
             boundStatement.setBytes(3, profile.toByteString().asReadOnlyByteBuffer());
-            session.execute(boundStatement);
+            writes.addUnbatched(boundStatement);
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -557,7 +584,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setString(1, transactionType);
             boundStatement.setTimestamp(2, new Date(captureTime));
             boundStatement.setBytes(3, profile.toByteString().asReadOnlyByteBuffer());
-            session.execute(boundStatement);
+            writes.addUnbatched(boundStatement);
         }
         List<QueriesByType> queriesByTypeList = aggregate.getQueriesByTypeList();
         if (!queriesByTypeList.isEmpty()) {
@@ -571,14 +598,19 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setString(1, transactionType);
             boundStatement.setTimestamp(2, new Date(captureTime));
             boundStatement.setBytes(3, ByteBuffer.wrap(output.toByteArray()));
-            session.execute(boundStatement);
+            writes.addUnbatched(boundStatement);
         }
     }
 
-    private void storeTransactionAggregate(int rollupLevel, String serverRollup,
+    private void storeTransactionAggregate(Writes writes, int rollupLevel, String serverRollup,
             String transactionType, String transactionName, long captureTime, Aggregate aggregate)
                     throws IOException {
 
+        // summary tables are partitioned by transaction type only, so that all of the transaction
+        // summaries for a given interval end up in the same batches
+        Object summaryPartitionKey = ImmutableList.of(serverRollup, transactionType);
+        Object partitionKey = ImmutableList.of(serverRollup, transactionType, transactionName);
+
         BoundStatement boundStatement = getInsertTransactionPS(summaryTable, rollupLevel).bind();
         boundStatement.setString(0, serverRollup);
         boundStatement.setString(1, transactionType);
@@ -586,7 +618,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setString(3, transactionName);
         boundStatement.setDouble(4, aggregate.getTotalDurationNanos());
         boundStatement.setLong(5, aggregate.getTransactionCount());
-        session.execute(boundStatement);
+        writes.add(summaryPartitionKey, boundStatement);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertTransactionPS(errorSummaryTable, rollupLevel).bind();
@@ -596,7 +628,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setString(3, transactionName);
             boundStatement.setLong(4, aggregate.getErrorCount());
             boundStatement.setLong(5, aggregate.getTransactionCount());
-            session.execute(boundStatement);
+            writes.add(summaryPartitionKey, boundStatement);
         }
 
         boundStatement = getInsertTransactionPS(overviewTable, rollupLevel).bind();
@@ -605,7 +637,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setString(2, transactionName);
         boundStatement.setTimestamp(3, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, 4);
-        session.execute(boundStatement);
+        writes.add(partitionKey, boundStatement);
 
         boundStatement = getInsertTransactionPS(histogramTable, rollupLevel).bind();
         boundStatement.setString(0, serverRollup);
@@ -616,7 +648,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(5, aggregate.getTransactionCount());
         boundStatement.setBytes(6,
                 aggregate.getTotalNanosHistogram().toByteString().asReadOnlyByteBuffer());
-        session.execute(boundStatement);
+        writes.add(partitionKey, boundStatement);
 
         boundStatement = getInsertTransactionPS(throughputTable, rollupLevel).bind();
         boundStatement.setString(0, serverRollup);
@@ -624,7 +656,7 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setString(2, transactionName);
         boundStatement.setTimestamp(3, new Date(captureTime));
         boundStatement.setLong(4, aggregate.getTransactionCount());
-        session.execute(boundStatement);
+        writes.add(partitionKey, boundStatement);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -634,7 +666,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setString(2, transactionName);
             boundStatement.setTimestamp(3, new Date(captureTime));
             boundStatement.setBytes(4, profile.toByteString().asReadOnlyByteBuffer());
-            session.execute(boundStatement);
+            writes.addUnbatched(boundStatement);
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -644,7 +676,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setString(2, transactionName);
             boundStatement.setTimestamp(3, new Date(captureTime));
             boundStatement.setBytes(4, profile.toByteString().asReadOnlyByteBuffer());
-            session.execute(boundStatement);
+            writes.addUnbatched(boundStatement);
         }
         List<QueriesByType> queriesByTypeList = aggregate.getQueriesByTypeList();
         if (!queriesByTypeList.isEmpty()) {
@@ -659,7 +691,7 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setString(2, transactionName);
             boundStatement.setTimestamp(3, new Date(captureTime));
             boundStatement.setBytes(4, ByteBuffer.wrap(output.toByteArray()));
-            session.execute(boundStatement);
+            writes.addUnbatched(boundStatement);
         }
     }
 
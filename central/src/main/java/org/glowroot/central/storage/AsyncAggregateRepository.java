@@ -0,0 +1,31 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.storage;
+
+import java.util.List;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.glowroot.storage.repo.AggregateRepository;
+import org.glowroot.wire.api.model.AggregateOuterClass.AggregatesByType;
+
+// aggregate repository that can store without blocking the caller until the writes complete
+public interface AsyncAggregateRepository extends AggregateRepository {
+
+    // the returned future completes once all of the writes have completed
+    ListenableFuture<?> storeAsync(String serverId, long captureTime,
+            List<AggregatesByType> aggregatesByTypeList) throws Exception;
+}
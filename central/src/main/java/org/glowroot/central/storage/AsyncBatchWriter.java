@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.storage;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+// issues writes asynchronously, bounding the number of in-flight requests across all callers
+//
+// statements that share the same partition key are grouped into unlogged batches, which are sent
+// as a single request to the replicas owning that partition (unlike multi-partition batches which
+// just shift the coordination work to the coordinator)
+class AsyncBatchWriter {
+
+    // keep batches well under cassandra's default batch_size_warn_threshold_in_kb
+    private static final int MAX_STATEMENTS_PER_BATCH = 20;
+
+    private final Session session;
+    private final Semaphore inFlightPermits;
+
+    AsyncBatchWriter(Session session, int maxInFlight) {
+        this.session = session;
+        inFlightPermits = new Semaphore(maxInFlight);
+    }
+
+    Writes newWrites() {
+        return new Writes();
+    }
+
+    private ResultSetFuture executeAsync(Statement statement) throws InterruptedException {
+        // blocking here pushes back on the caller once too many requests are in flight
+        inFlightPermits.acquire();
+        ResultSetFuture future;
+        try {
+            future = session.executeAsync(statement);
+        } catch (RuntimeException e) {
+            inFlightPermits.release();
+            throw e;
+        }
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet result) {
+                inFlightPermits.release();
+            }
+            @Override
+            public void onFailure(Throwable t) {
+                inFlightPermits.release();
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    // not thread safe, statements are collected by a single caller and then executed together
+    class Writes {
+
+        // linked hash map to preserve statement order (at least within a partition)
+        private final Map<Object, List<Statement>> batchable = Maps.newLinkedHashMap();
+        private final List<Statement> unbatchable = Lists.newArrayList();
+
+        private Writes() {}
+
+        // partition key must implement equals/hashCode over the partition key column values
+        void add(Object partitionKey, Statement statement) {
+            List<Statement> statements = batchable.get(partitionKey);
+            if (statements == null) {
+                statements = Lists.newArrayList();
+                batchable.put(partitionKey, statements);
+            }
+            statements.add(statement);
+        }
+
+        // used for statements binding potentially large blobs, which should not be batched
+        void addUnbatched(Statement statement) {
+            unbatchable.add(statement);
+        }
+
+        ListenableFuture<?> execute() throws InterruptedException {
+            List<ListenableFuture<ResultSet>> futures = Lists.newArrayList();
+            for (List<Statement> statements : batchable.values()) {
+                if (statements.size() == 1) {
+                    futures.add(executeAsync(statements.get(0)));
+                    continue;
+                }
+                for (List<Statement> partition : Lists.partition(statements,
+                        MAX_STATEMENTS_PER_BATCH)) {
+                    BatchStatement batchStatement =
+                            new BatchStatement(BatchStatement.Type.UNLOGGED);
+                    batchStatement.addAll(partition);
+                    futures.add(executeAsync(batchStatement));
+                }
+            }
+            for (Statement statement : unbatchable) {
+                futures.add(executeAsync(statement));
+            }
+            return Futures.allAsList(futures);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+import io.grpc.stub.StreamObserver;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.CollectStreamObserver.MessageStore;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValueMessage;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.StreamAck;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.StreamMessage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CollectStreamObserverTest {
+
+    private List<String> storedServerIds;
+    private RecordingResponseObserver responseObserver;
+    private CollectStreamObserver collectStreamObserver;
+
+    @Before
+    public void beforeEachTest() {
+        storedServerIds = Lists.newArrayList();
+        responseObserver = new RecordingResponseObserver();
+        collectStreamObserver = new CollectStreamObserver(new MessageStore() {
+            @Override
+            public void store(StreamMessage message) throws Exception {
+                String serverId = message.getGaugeValueMessage().getServerId();
+                if (serverId.equals("fail")) {
+                    throw new Exception("Simulated failure");
+                }
+                storedServerIds.add(serverId);
+            }
+        }, responseObserver);
+    }
+
+    @Test
+    public void shouldAcknowledgeEachMessageInOrderAfterStoringIt() {
+        // when
+        collectStreamObserver.onNext(message(1, "a"));
+        collectStreamObserver.onNext(message(2, "b"));
+        collectStreamObserver.onNext(message(3, "c"));
+        collectStreamObserver.onCompleted();
+        // then
+        assertThat(storedServerIds).containsExactly("a", "b", "c");
+        assertThat(responseObserver.ackedSequences).containsExactly(1L, 2L, 3L);
+        assertThat(responseObserver.error).isNull();
+        assertThat(responseObserver.completed).isTrue();
+    }
+
+    @Test
+    public void shouldFailStreamOnStorageFailure() {
+        // when
+        collectStreamObserver.onNext(message(1, "a"));
+        collectStreamObserver.onNext(message(2, "fail"));
+        collectStreamObserver.onNext(message(3, "c"));
+        collectStreamObserver.onCompleted();
+        // then
+        assertThat(storedServerIds).containsExactly("a");
+        assertThat(responseObserver.ackedSequences).containsExactly(1L);
+        assertThat(responseObserver.error).hasMessage("Simulated failure");
+        assertThat(responseObserver.completed).isFalse();
+    }
+
+    private static StreamMessage message(long sequence, String serverId) {
+        return StreamMessage.newBuilder()
+                .setGaugeValueMessage(GaugeValueMessage.newBuilder()
+                        .setServerId(serverId))
+                .setSequence(sequence)
+                .build();
+    }
+
+    private static class RecordingResponseObserver implements StreamObserver<StreamAck> {
+
+        private final List<Long> ackedSequences = Lists.newArrayList();
+        private @Nullable Throwable error;
+        private boolean completed;
+
+        @Override
+        public void onNext(StreamAck ack) {
+            ackedSequences.add(ack.getSequence());
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onCompleted() {
+            completed = true;
+        }
+    }
+}
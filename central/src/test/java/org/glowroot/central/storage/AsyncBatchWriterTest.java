@@ -0,0 +1,200 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.storage;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.central.storage.AsyncBatchWriter.Writes;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AsyncBatchWriterTest {
+
+    private Session session;
+    private List<Statement> executedStatements;
+    private List<TestResultSetFuture> futures;
+
+    @Before
+    public void beforeEachTest() {
+        session = mock(Session.class);
+        executedStatements = Lists.newArrayList();
+        futures = Lists.newArrayList();
+        when(session.executeAsync(any(Statement.class))).thenAnswer(new Answer<ResultSetFuture>() {
+            @Override
+            public ResultSetFuture answer(InvocationOnMock invocation) {
+                executedStatements.add((Statement) invocation.getArguments()[0]);
+                TestResultSetFuture future = new TestResultSetFuture();
+                futures.add(future);
+                return future;
+            }
+        });
+    }
+
+    @Test
+    public void shouldBatchStatementsByPartitionKey() throws Exception {
+        // given
+        AsyncBatchWriter asyncBatchWriter = new AsyncBatchWriter(session, 10);
+        Writes writes = asyncBatchWriter.newWrites();
+        Statement a1 = new SimpleStatement("a1");
+        Statement b1 = new SimpleStatement("b1");
+        Statement a2 = new SimpleStatement("a2");
+        Statement c1 = new SimpleStatement("c1");
+        Statement a3 = new SimpleStatement("a3");
+        Statement unbatched = new SimpleStatement("unbatched");
+        // when
+        writes.add("a", a1);
+        writes.add("b", b1);
+        writes.addUnbatched(unbatched);
+        writes.add("a", a2);
+        writes.add("c", c1);
+        writes.add("a", a3);
+        writes.execute();
+        // then
+        assertThat(executedStatements).hasSize(4);
+        assertThat(executedStatements.get(0)).isInstanceOf(BatchStatement.class);
+        assertThat(((BatchStatement) executedStatements.get(0)).getStatements())
+                .containsExactly(a1, a2, a3);
+        // single statement partitions are not wrapped in a batch
+        assertThat(executedStatements.get(1)).isSameAs(b1);
+        assertThat(executedStatements.get(2)).isSameAs(c1);
+        assertThat(executedStatements.get(3)).isSameAs(unbatched);
+    }
+
+    @Test
+    public void shouldSplitLargePartitionIntoMultipleBatches() throws Exception {
+        // given
+        AsyncBatchWriter asyncBatchWriter = new AsyncBatchWriter(session, 10);
+        Writes writes = asyncBatchWriter.newWrites();
+        List<Statement> statements = Lists.newArrayList();
+        for (int i = 0; i < 45; i++) {
+            Statement statement = new SimpleStatement("a" + i);
+            statements.add(statement);
+            writes.add("a", statement);
+        }
+        // when
+        writes.execute();
+        // then
+        assertThat(executedStatements).hasSize(3);
+        assertThat(((BatchStatement) executedStatements.get(0)).getStatements())
+                .containsExactlyElementsOf(statements.subList(0, 20));
+        assertThat(((BatchStatement) executedStatements.get(1)).getStatements())
+                .containsExactlyElementsOf(statements.subList(20, 40));
+        assertThat(((BatchStatement) executedStatements.get(2)).getStatements())
+                .containsExactlyElementsOf(statements.subList(40, 45));
+    }
+
+    @Test
+    public void shouldCompleteOnlyAfterAllWritesComplete() throws Exception {
+        // given
+        AsyncBatchWriter asyncBatchWriter = new AsyncBatchWriter(session, 10);
+        Writes writes = asyncBatchWriter.newWrites();
+        writes.add("a", new SimpleStatement("a1"));
+        writes.add("b", new SimpleStatement("b1"));
+        // when
+        ListenableFuture<?> future = writes.execute();
+        futures.get(0).set(null);
+        // then
+        assertThat(future.isDone()).isFalse();
+        // and when
+        futures.get(1).set(null);
+        // then
+        assertThat(future.isDone()).isTrue();
+        future.get();
+    }
+
+    @Test
+    public void shouldPropagateWriteFailure() throws Exception {
+        // given
+        AsyncBatchWriter asyncBatchWriter = new AsyncBatchWriter(session, 10);
+        Writes writes = asyncBatchWriter.newWrites();
+        writes.add("a", new SimpleStatement("a1"));
+        writes.add("b", new SimpleStatement("b1"));
+        // when
+        ListenableFuture<?> future = writes.execute();
+        futures.get(0).set(null);
+        futures.get(1).setException(new IllegalStateException("Simulated failure"));
+        // then
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).hasMessage("Simulated failure");
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void shouldReleaseInFlightPermitsOnCompletionAndFailure() throws Exception {
+        // given
+        AsyncBatchWriter asyncBatchWriter = new AsyncBatchWriter(session, 2);
+        Writes writes = asyncBatchWriter.newWrites();
+        writes.add("a", new SimpleStatement("a1"));
+        writes.add("b", new SimpleStatement("b1"));
+        writes.execute();
+        futures.get(0).set(null);
+        futures.get(1).setException(new IllegalStateException("Simulated failure"));
+        // when
+        writes = asyncBatchWriter.newWrites();
+        writes.add("c", new SimpleStatement("c1"));
+        writes.add("d", new SimpleStatement("d1"));
+        // then (would block if permits had not been released)
+        writes.execute();
+        assertThat(executedStatements).hasSize(4);
+    }
+
+    private static class TestResultSetFuture extends AbstractFuture<ResultSet>
+            implements ResultSetFuture {
+
+        @Override
+        public boolean set(ResultSet value) {
+            return super.set(value);
+        }
+
+        @Override
+        public boolean setException(Throwable throwable) {
+            return super.setException(throwable);
+        }
+
+        @Override
+        public ResultSet getUninterruptibly() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ResultSet getUninterruptibly(long timeout, TimeUnit unit) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
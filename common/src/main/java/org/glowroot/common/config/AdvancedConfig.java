@@ -67,6 +67,13 @@ public abstract class AdvancedConfig {
         return 60;
     }
 
+    // literals are normalized out of sql and cql query texts that are used to aggregate queries
+    @Value.Default
+    @JsonInclude(value = Include.NON_EMPTY)
+    public boolean normalizeQueryLiterals() {
+        return false;
+    }
+
     @Value.Derived
     @JsonIgnore
     public String version() {
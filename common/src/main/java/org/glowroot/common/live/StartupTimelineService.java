@@ -0,0 +1,60 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.live;
+
+import java.util.List;
+
+import org.immutables.value.Value;
+
+public interface StartupTimelineService {
+
+    StartupTimeline getStartupTimeline();
+
+    @Value.Immutable
+    public interface StartupTimeline {
+        String agentVersion();
+        // jvm uptime when the agent started recording
+        long jvmUptimeAtStartMillis();
+        List<StartupSpan> spans();
+        List<ClassLoaderWeaving> classLoaderWeavings();
+        List<WovenClass> slowestWovenClasses();
+    }
+
+    @Value.Immutable
+    public interface StartupSpan {
+        String name();
+        // nesting depth, 0 for top level spans
+        int depth();
+        // relative to when the agent started recording
+        long offsetNanos();
+        // -1 if the span has not ended yet
+        long durationNanos();
+    }
+
+    @Value.Immutable
+    public interface ClassLoaderWeaving {
+        String classLoader();
+        long classCount();
+        long totalNanos();
+    }
+
+    @Value.Immutable
+    public interface WovenClass {
+        String className();
+        String classLoader();
+        long nanos();
+    }
+}
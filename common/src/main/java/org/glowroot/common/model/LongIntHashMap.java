@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+// open addressing hash map (linear probing) from long keys to non-zero int values
+//
+// zero is reserved to mark empty slots, and there is no removal
+//
+// keys and values are interleaved in a single array so that a lookup typically touches a single
+// cache line
+class LongIntHashMap {
+
+    private long[] table;
+    private int mask;
+    private int size;
+
+    LongIntHashMap() {
+        this(64);
+    }
+
+    // capacity must be a power of 2
+    LongIntHashMap(int capacity) {
+        table = new long[capacity * 2];
+        mask = capacity - 1;
+    }
+
+    // returns 0 if not found
+    int get(long key) {
+        int slot = mix(key) & mask;
+        while (true) {
+            int value = (int) table[slot * 2 + 1];
+            if (value == 0 || table[slot * 2] == key) {
+                return value;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    void put(long key, int value) {
+        int slot = mix(key) & mask;
+        while (true) {
+            if (table[slot * 2 + 1] == 0) {
+                table[slot * 2] = key;
+                table[slot * 2 + 1] = value;
+                // keep load factor at or below 0.5 so that probe sequences stay short
+                if (++size * 2 > mask + 1) {
+                    rehash((mask + 1) * 2);
+                }
+                return;
+            }
+            if (table[slot * 2] == key) {
+                table[slot * 2 + 1] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldTable = table;
+        table = new long[newCapacity * 2];
+        mask = newCapacity - 1;
+        for (int i = 0; i < oldTable.length; i += 2) {
+            long value = oldTable[i + 1];
+            if (value != 0) {
+                int slot = mix(oldTable[i]) & mask;
+                while (table[slot * 2 + 1] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot * 2] = oldTable[i];
+                table[slot * 2 + 1] = value;
+            }
+        }
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -16,30 +16,22 @@
 package org.glowroot.common.model;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Locale;
-import java.util.Map;
 
 import javax.annotation.Nullable;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Strings;
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
-import com.google.common.collect.PeekingIterator;
-import com.google.common.collect.Queues;
 import com.google.common.io.CharStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.util.ObjectMappers;
-import org.glowroot.common.util.Traverser;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
 public class MutableProfile {
@@ -47,22 +39,90 @@ public class MutableProfile {
     private static final Logger logger = LoggerFactory.getLogger(MutableProfile.class);
     private static final ObjectMapper mapper = ObjectMappers.create();
 
-    // TODO use primitive maps, e.g. from GS collections
-    private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
-    private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
-    private final Map<String, Integer> methodNameIndexes = Maps.newHashMap();
-    private final Map<String, Integer> fileNameIndexes = Maps.newHashMap();
-
-    private final List<String> packageNames = Lists.newArrayList();
-    private final List<String> classNames = Lists.newArrayList();
-    private final List<String> methodNames = Lists.newArrayList();
-    private final List<String> fileNames = Lists.newArrayList();
-
-    private final List<ProfileNode> rootNodes = Lists.newArrayList();
+    private static final int NONE = -1;
+
+    // node 0 is a synthetic node whose children are the root nodes of the profile
+    private static final int ROOT = 0;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final int MAX_CHILD_NODES_SCANNED = 8;
+
+    private static final String ELLIPSIS_METHOD_NAME = "...";
+
+    private static final int FRAME_SIZE = 6;
+    private static final int PACKAGE_NAME_INDEX = 0;
+    private static final int CLASS_NAME_INDEX = 1;
+    private static final int METHOD_NAME_INDEX = 2;
+    private static final int FILE_NAME_INDEX = 3;
+    private static final int LINE_NUMBER = 4;
+    private static final int LEAF_THREAD_STATE = 5;
+
+    private static final Profile.LeafThreadState[] LEAF_THREAD_STATES =
+            Profile.LeafThreadState.values();
+
+    private final NameIndexTable packageNames = new NameIndexTable();
+    private final NameIndexTable classNames = new NameIndexTable();
+    private final NameIndexTable methodNames = new NameIndexTable();
+    private final NameIndexTable fileNames = new NameIndexTable();
+
+    // only used when merging stack traces, to avoid splitting the same class names (allocating
+    // package name and class name substrings) over and over
+    private final NameIndexTable fullClassNames = new NameIndexTable();
+    private int fullClassNameCount;
+    private int[] fullClassNamePackageNameIndexes = new int[INITIAL_CAPACITY];
+    private int[] fullClassNameClassNameIndexes = new int[INITIAL_CAPACITY];
+
+    // a frame is a distinct stack trace element + leaf thread state, many nodes typically share the
+    // same frame, e.g. the same method called from different paths
+    //
+    // frames and nodes are stored in primitive arrays (instead of an object per frame/node) in
+    // order to keep the heap small and flat when merging many large profiles, the fields of each
+    // frame are stored next to each other (FRAME_SIZE ints per frame) since they are always read
+    // together when looking up a frame
+    private int frameCount;
+    private int[] frames = new int[INITIAL_CAPACITY * FRAME_SIZE];
+
+    // open addressing hash table (linear probing) of frame ids
+    private int[] frameSlots = newFrameSlots(INITIAL_CAPACITY * 2);
+
+    // these are only used for filtering and json, and so are populated lazily
+    private /*@Nullable*/ String[] frameTexts = new String[0];
+    private /*@Nullable*/ String[] frameTextUppers = new String[0];
+
+    private int nodeCount;
+    private int[] nodeFrames = new int[INITIAL_CAPACITY];
+    // parent is set to NONE when a node is removed by filtering or truncating
+    private int[] nodeParents = new int[INITIAL_CAPACITY];
+    private int[] nodeFirstChilds = new int[INITIAL_CAPACITY];
+    // last child is tracked so that new child nodes can be appended, preserving the order
+    private int[] nodeLastChilds = new int[INITIAL_CAPACITY];
+    private int[] nodeNextSiblings = new int[INITIAL_CAPACITY];
+    private int[] nodeChildCounts = new int[INITIAL_CAPACITY];
+    private long[] nodeSampleCounts = new long[INITIAL_CAPACITY];
+
+    // these are only used for filtering and truncating
+    private long[] nodeEllipsedSampleCounts = new long[INITIAL_CAPACITY];
+    private boolean[] nodeMatched = new boolean[INITIAL_CAPACITY];
+
+    // frame of the synthetic child node that carries a node's ellipsed sample count in the
+    // protobuf, lazily added on first truncation
+    private int ellipsisFrame = NONE;
+
+    // (parent node, frame) -> child node, so that the child node to merge into can be found without
+    // scanning all of the parent's child nodes
+    //
+    // only nodes with more than MAX_CHILD_NODES_SCANNED child nodes are indexed, since most nodes
+    // have very few child nodes, and for those a scan is faster than a (cache missing) hash lookup
+    private final LongIntHashMap childNodeIndex = new LongIntHashMap();
 
     // retain original sample count for in case of filtered profile
     private long unfilteredSampleCount = -1;
 
+    public MutableProfile() {
+        addNode(NONE, NONE);
+    }
+
     // this method is not used that often (only for traces with > 20 stack trace samples) so ok
     // that it does not have most optimal implementation (converts unnecessarily to profile tree)
     public void merge(MutableProfile profile) {
@@ -70,8 +130,30 @@ public class MutableProfile {
     }
 
     public void merge(Profile profile) {
-        Merger merger = new Merger(profile);
-        merger.merge(profile.getNodeList(), rootNodes);
+        int[] packageNameIndexMapping =
+                makeIndexMapping(profile.getPackageNameList(), packageNames);
+        int[] classNameIndexMapping = makeIndexMapping(profile.getClassNameList(), classNames);
+        int[] methodNameIndexMapping = makeIndexMapping(profile.getMethodNameList(), methodNames);
+        int[] fileNameIndexMapping = makeIndexMapping(profile.getFileNameList(), fileNames);
+        // destination parent node for each depth of the profile being merged
+        int[] destinationParentNodes = new int[32];
+        destinationParentNodes[0] = ROOT;
+        for (Profile.ProfileNode toBeMergedNode : profile.getNodeList()) {
+            int depth = toBeMergedNode.getDepth();
+            int frame = getOrAddFrame(
+                    packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()],
+                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()],
+                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()],
+                    fileNameIndexMapping[toBeMergedNode.getFileNameIndex()],
+                    toBeMergedNode.getLineNumber(), toBeMergedNode.getLeafThreadState());
+            int destinationNode = getOrAddChildNode(destinationParentNodes[depth], frame);
+            nodeSampleCounts[destinationNode] += toBeMergedNode.getSampleCount();
+            if (depth + 1 == destinationParentNodes.length) {
+                destinationParentNodes =
+                        Arrays.copyOf(destinationParentNodes, destinationParentNodes.length * 2);
+            }
+            destinationParentNodes[depth + 1] = destinationNode;
+        }
     }
 
     public void merge(List<StackTraceElement> stackTraceElements, Thread.State threadState) {
@@ -83,108 +165,96 @@ public class MutableProfile {
                 return;
             }
         }
-        PeekingIterator<StackTraceElement> i =
-                Iterators.peekingIterator(Lists.reverse(stackTraceElements).iterator());
-        ProfileNode lastMatchedNode = null;
-        List<ProfileNode> mergeIntoNodes = rootNodes;
-
-        boolean lookingForMatch = true;
-        while (i.hasNext()) {
-            StackTraceElement stackTraceElement = i.next();
-            String fullClassName = stackTraceElement.getClassName();
-            int index = fullClassName.lastIndexOf('.');
-            String packageName;
-            String className;
-            if (index == -1) {
-                packageName = "";
-                className = fullClassName;
-            } else {
-                packageName = fullClassName.substring(0, index);
-                className = fullClassName.substring(index + 1);
-            }
-            int packageNameIndex = getNameIndex(packageName, packageNameIndexes, packageNames);
-            int classNameIndex = getNameIndex(className, classNameIndexes, classNames);
+        ListIterator<StackTraceElement> i =
+                stackTraceElements.listIterator(stackTraceElements.size());
+        int node = ROOT;
+        while (i.hasPrevious()) {
+            StackTraceElement stackTraceElement = i.previous();
+            int fullClassNameIndex = getFullClassNameIndex(stackTraceElement.getClassName());
+            int packageNameIndex = fullClassNamePackageNameIndexes[fullClassNameIndex];
+            int classNameIndex = fullClassNameClassNameIndexes[fullClassNameIndex];
             int methodNameIndex =
-                    getNameIndex(Strings.nullToEmpty(stackTraceElement.getMethodName()),
-                            methodNameIndexes, methodNames);
-            int fileNameIndex = getNameIndex(Strings.nullToEmpty(stackTraceElement.getFileName()),
-                    fileNameIndexes, fileNames);
+                    methodNames.getOrAdd(Strings.nullToEmpty(stackTraceElement.getMethodName()));
+            int fileNameIndex =
+                    fileNames.getOrAdd(Strings.nullToEmpty(stackTraceElement.getFileName()));
             int lineNumber = stackTraceElement.getLineNumber();
             Profile.LeafThreadState leafThreadState =
-                    i.hasNext() ? Profile.LeafThreadState.NONE : getThreadState(threadState);
-
-            ProfileNode node = null;
-            if (lookingForMatch) {
-                for (ProfileNode childNode : mergeIntoNodes) {
-                    if (isMatch(childNode, packageNameIndex, classNameIndex, methodNameIndex,
-                            fileNameIndex, lineNumber, leafThreadState)) {
-                        node = childNode;
-                        break;
-                    }
-                }
-            }
-            if (node == null) {
-                lookingForMatch = false;
-                node = new ProfileNode(packageNameIndex, classNameIndex, methodNameIndex,
-                        fileNameIndex, lineNumber, leafThreadState);
-                mergeIntoNodes.add(node);
-            }
-            node.sampleCount++;
-            lastMatchedNode = node;
-            mergeIntoNodes = lastMatchedNode.childNodes;
+                    i.hasPrevious() ? Profile.LeafThreadState.NONE : getThreadState(threadState);
+
+            int frame = getOrAddFrame(packageNameIndex, classNameIndex, methodNameIndex,
+                    fileNameIndex, lineNumber, leafThreadState);
+            node = getOrAddChildNode(node, frame);
+            nodeSampleCounts[node]++;
         }
     }
 
     public void filter(List<String> includes, List<String> excludes) {
         unfilteredSampleCount = getSampleCount();
+        ProfileResetMatches profileResetMatches = new ProfileResetMatches();
         for (String include : includes) {
-            for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
-                ProfileNode rootNode = i.next();
-                new ProfileFilterer(rootNode, include, false).traverse();
-                if (rootNode.matched) {
-                    new ProfileResetMatches(rootNode).traverse();
+            ProfileFilterer profileFilterer = new ProfileFilterer(include, false);
+            int prevRootNode = NONE;
+            int rootNode = nodeFirstChilds[ROOT];
+            while (rootNode != NONE) {
+                int nextRootNode = nodeNextSiblings[rootNode];
+                profileFilterer.traverse(rootNode);
+                if (nodeMatched[rootNode]) {
+                    profileResetMatches.traverse(rootNode);
+                    prevRootNode = rootNode;
                 } else {
-                    i.remove();
+                    removeChildNode(ROOT, prevRootNode, rootNode);
                 }
+                rootNode = nextRootNode;
             }
         }
         for (String exclude : excludes) {
-            for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
-                ProfileNode rootNode = i.next();
-                new ProfileFilterer(rootNode, exclude, true).traverse();
-                if (rootNode.matched) {
-                    i.remove();
+            ProfileFilterer profileFilterer = new ProfileFilterer(exclude, true);
+            int prevRootNode = NONE;
+            int rootNode = nodeFirstChilds[ROOT];
+            while (rootNode != NONE) {
+                int nextRootNode = nodeNextSiblings[rootNode];
+                profileFilterer.traverse(rootNode);
+                if (nodeMatched[rootNode]) {
+                    removeChildNode(ROOT, prevRootNode, rootNode);
+                } else {
+                    prevRootNode = rootNode;
                 }
+                rootNode = nextRootNode;
             }
         }
     }
 
     public void truncateBranches(int minSamples) {
-        Deque<ProfileNode> toBeVisited = new ArrayDeque<ProfileNode>();
-        for (ProfileNode rootNode : rootNodes) {
-            toBeVisited.add(rootNode);
-        }
-        ProfileNode node;
-        while ((node = toBeVisited.poll()) != null) {
-            for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
-                ProfileNode childNode = i.next();
-                if (childNode.sampleCount < minSamples) {
-                    i.remove();
-                    // TODO capture sampleCount per timerName of non-ellipsed structure
-                    // and use this in UI dropdown filter of timer names
-                    // (currently sampleCount per timerName of ellipsed structure is used)
-                    node.ellipsedSampleCount += childNode.sampleCount;
-                } else {
-                    toBeVisited.add(childNode);
-                }
-            }
-        }
+        truncateBranches((long) minSamples);
+    }
+
+    // truncates the least sampled branches so that at most maxNodes nodes remain (root nodes are
+    // never truncated though, same as truncateBranches()), not counting the synthetic ellipsis
+    // nodes that carry the truncated samples in the protobuf
+    public void truncateToMaxNodes(int maxNodes) {
+        int rootNodeCount = nodeChildCounts[ROOT];
+        long[] sampleCounts = getNonRootSampleCounts();
+        int maxNonRootNodes = Math.max(maxNodes - rootNodeCount, 0);
+        if (sampleCounts.length <= maxNonRootNodes) {
+            return;
+        }
+        Arrays.sort(sampleCounts);
+        // sample counts never increase going down the tree, so truncating everything at or below
+        // the (maxNonRootNodes + 1)th highest sample count leaves at most maxNonRootNodes nodes
+        truncateBranches(sampleCounts[sampleCounts.length - maxNonRootNodes - 1] + 1);
+    }
+
+    // this is an upper bound on the number of (non-synthetic) nodes, since nodes removed by
+    // filtering or truncating are still counted
+    public int getNodeCount() {
+        return nodeCount - 1;
     }
 
     public long getSampleCount() {
         long sampleCount = 0;
-        for (ProfileNode rootNode : rootNodes) {
-            sampleCount += rootNode.sampleCount;
+        for (int rootNode = nodeFirstChilds[ROOT]; rootNode != NONE;
+                rootNode = nodeNextSiblings[rootNode]) {
+            sampleCount += nodeSampleCounts[rootNode];
         }
         return sampleCount;
     }
@@ -199,14 +269,16 @@ public class MutableProfile {
 
     public Profile toProto() {
         List<Profile.ProfileNode> nodes = Lists.newArrayList();
-        for (ProfileNode rootNode : rootNodes) {
-            new ProfileNodeCollector(rootNode, nodes).traverse();
+        ProfileNodeCollector profileNodeCollector = new ProfileNodeCollector(nodes);
+        for (int rootNode = nodeFirstChilds[ROOT]; rootNode != NONE;
+                rootNode = nodeNextSiblings[rootNode]) {
+            profileNodeCollector.traverse(rootNode);
         }
         return Profile.newBuilder()
-                .addAllPackageName(packageNames)
-                .addAllClassName(classNames)
-                .addAllMethodName(methodNames)
-                .addAllFileName(fileNames)
+                .addAllPackageName(packageNames.asList())
+                .addAllClassName(classNames.asList())
+                .addAllMethodName(methodNames.asList())
+                .addAllFileName(fileNames.asList())
                 .addAllNode(nodes)
                 .build();
     }
@@ -223,8 +295,10 @@ public class MutableProfile {
         jg.writeStartObject();
         jg.writeNumberField("unfilteredSampleCount", getUnfilteredSampleCount());
         jg.writeArrayFieldStart("rootNodes");
-        for (ProfileNode rootNode : rootNodes) {
-            new ProfileWriter(rootNode, jg).traverse();
+        ProfileWriter profileWriter = new ProfileWriter(jg);
+        for (int rootNode = nodeFirstChilds[ROOT]; rootNode != NONE;
+                rootNode = nodeNextSiblings[rootNode]) {
+            profileWriter.traverse(rootNode);
         }
         jg.writeEndArray();
         jg.writeEndObject();
@@ -236,30 +310,307 @@ public class MutableProfile {
         jg.writeStartObject();
         jg.writeNumberField("totalSampleCount", getSampleCount());
         jg.writeArrayFieldStart("rootNodes");
-        int height = 0;
-        for (ProfileNode rootNode : rootNodes) {
-            if (rootNode.sampleCount > rootNode.ellipsedSampleCount) {
-                FlameGraphWriter flameGraphWriter = new FlameGraphWriter(rootNode, jg);
-                flameGraphWriter.traverse();
-                height = Math.max(height, flameGraphWriter.height);
+        FlameGraphWriter flameGraphWriter = new FlameGraphWriter(jg);
+        for (int rootNode = nodeFirstChilds[ROOT]; rootNode != NONE;
+                rootNode = nodeNextSiblings[rootNode]) {
+            if (nodeSampleCounts[rootNode] > nodeEllipsedSampleCounts[rootNode]) {
+                flameGraphWriter.traverse(rootNode);
             }
         }
         jg.writeEndArray();
-        jg.writeNumberField("height", height);
+        jg.writeNumberField("height", flameGraphWriter.height);
         jg.writeEndObject();
         jg.close();
         return sb.toString();
     }
 
-    private static int getNameIndex(String name, Map<String, Integer> nameIndexes,
-            List<String> names) {
-        Integer index = nameIndexes.get(name);
-        if (index == null) {
-            index = names.size();
-            names.add(name);
-            nameIndexes.put(name, index);
+    private void truncateBranches(long minSamples) {
+        if (ellipsisFrame == NONE) {
+            ellipsisFrame = getOrAddFrame(packageNames.getOrAdd(""), classNames.getOrAdd(""),
+                    methodNames.getOrAdd(ELLIPSIS_METHOD_NAME), fileNames.getOrAdd(""), 0,
+                    Profile.LeafThreadState.NONE);
+        }
+        // breadth first, each node is visited at most once
+        int[] toBeVisited = new int[nodeCount];
+        int head = 0;
+        int tail = 0;
+        for (int rootNode = nodeFirstChilds[ROOT]; rootNode != NONE;
+                rootNode = nodeNextSiblings[rootNode]) {
+            toBeVisited[tail++] = rootNode;
+        }
+        while (head < tail) {
+            int node = toBeVisited[head++];
+            int prevChildNode = NONE;
+            int childNode = nodeFirstChilds[node];
+            while (childNode != NONE) {
+                int nextChildNode = nodeNextSiblings[childNode];
+                if (nodeSampleCounts[childNode] < minSamples) {
+                    removeChildNode(node, prevChildNode, childNode);
+                    // TODO capture sampleCount per timerName of non-ellipsed structure
+                    // and use this in UI dropdown filter of timer names
+                    // (currently sampleCount per timerName of ellipsed structure is used)
+                    nodeEllipsedSampleCounts[node] += nodeSampleCounts[childNode];
+                } else {
+                    toBeVisited[tail++] = childNode;
+                    prevChildNode = childNode;
+                }
+                childNode = nextChildNode;
+            }
+        }
+    }
+
+    private long[] getNonRootSampleCounts() {
+        long[] sampleCounts = new long[nodeCount];
+        int count = 0;
+        int[] toBeVisited = new int[nodeCount];
+        int head = 0;
+        int tail = 0;
+        for (int rootNode = nodeFirstChilds[ROOT]; rootNode != NONE;
+                rootNode = nodeNextSiblings[rootNode]) {
+            toBeVisited[tail++] = rootNode;
+        }
+        while (head < tail) {
+            int node = toBeVisited[head++];
+            for (int childNode = nodeFirstChilds[node]; childNode != NONE;
+                    childNode = nodeNextSiblings[childNode]) {
+                sampleCounts[count++] = nodeSampleCounts[childNode];
+                toBeVisited[tail++] = childNode;
+            }
+        }
+        return Arrays.copyOf(sampleCounts, count);
+    }
+
+    private int getFullClassNameIndex(String fullClassName) {
+        int fullClassNameIndex = fullClassNames.getOrAdd(fullClassName);
+        if (fullClassNameIndex < fullClassNameCount) {
+            return fullClassNameIndex;
+        }
+        int index = fullClassName.lastIndexOf('.');
+        String packageName;
+        String className;
+        if (index == -1) {
+            packageName = "";
+            className = fullClassName;
+        } else {
+            packageName = fullClassName.substring(0, index);
+            className = fullClassName.substring(index + 1);
+        }
+        if (fullClassNameIndex == fullClassNamePackageNameIndexes.length) {
+            int newCapacity = fullClassNameIndex * 2;
+            fullClassNamePackageNameIndexes =
+                    Arrays.copyOf(fullClassNamePackageNameIndexes, newCapacity);
+            fullClassNameClassNameIndexes =
+                    Arrays.copyOf(fullClassNameClassNameIndexes, newCapacity);
+        }
+        fullClassNamePackageNameIndexes[fullClassNameIndex] = packageNames.getOrAdd(packageName);
+        fullClassNameClassNameIndexes[fullClassNameIndex] = classNames.getOrAdd(className);
+        fullClassNameCount++;
+        return fullClassNameIndex;
+    }
+
+    private int getOrAddFrame(int packageNameIndex, int classNameIndex, int methodNameIndex,
+            int fileNameIndex, int lineNumber, Profile.LeafThreadState leafThreadState) {
+        int mask = frameSlots.length - 1;
+        int slot = hashFrame(packageNameIndex, classNameIndex, methodNameIndex, fileNameIndex,
+                lineNumber, leafThreadState.ordinal()) & mask;
+        while (true) {
+            int frame = frameSlots[slot];
+            if (frame == NONE) {
+                frame = addFrame(packageNameIndex, classNameIndex, methodNameIndex, fileNameIndex,
+                        lineNumber, leafThreadState);
+                frameSlots[slot] = frame;
+                // keep load factor at or below 0.5 so that probe sequences stay short
+                if (frameCount * 2 > frameSlots.length) {
+                    rehashFrames(frameSlots.length * 2);
+                }
+                return frame;
+            }
+            int offset = frame * FRAME_SIZE;
+            // checking line number first since most likely to be different
+            if (lineNumber == frames[offset + LINE_NUMBER]
+                    && fileNameIndex == frames[offset + FILE_NAME_INDEX]
+                    && leafThreadState.ordinal() == frames[offset + LEAF_THREAD_STATE]
+                    && methodNameIndex == frames[offset + METHOD_NAME_INDEX]
+                    && classNameIndex == frames[offset + CLASS_NAME_INDEX]
+                    && packageNameIndex == frames[offset + PACKAGE_NAME_INDEX]) {
+                return frame;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int addFrame(int packageNameIndex, int classNameIndex, int methodNameIndex,
+            int fileNameIndex, int lineNumber, Profile.LeafThreadState leafThreadState) {
+        if (frameCount * FRAME_SIZE == frames.length) {
+            frames = Arrays.copyOf(frames, frames.length * 2);
+        }
+        int frame = frameCount++;
+        int offset = frame * FRAME_SIZE;
+        frames[offset + PACKAGE_NAME_INDEX] = packageNameIndex;
+        frames[offset + CLASS_NAME_INDEX] = classNameIndex;
+        frames[offset + METHOD_NAME_INDEX] = methodNameIndex;
+        frames[offset + FILE_NAME_INDEX] = fileNameIndex;
+        frames[offset + LINE_NUMBER] = lineNumber;
+        frames[offset + LEAF_THREAD_STATE] = leafThreadState.ordinal();
+        return frame;
+    }
+
+    private void rehashFrames(int newCapacity) {
+        frameSlots = newFrameSlots(newCapacity);
+        int mask = newCapacity - 1;
+        for (int frame = 0; frame < frameCount; frame++) {
+            int offset = frame * FRAME_SIZE;
+            int slot = hashFrame(frames[offset + PACKAGE_NAME_INDEX],
+                    frames[offset + CLASS_NAME_INDEX], frames[offset + METHOD_NAME_INDEX],
+                    frames[offset + FILE_NAME_INDEX], frames[offset + LINE_NUMBER],
+                    frames[offset + LEAF_THREAD_STATE]) & mask;
+            while (frameSlots[slot] != NONE) {
+                slot = (slot + 1) & mask;
+            }
+            frameSlots[slot] = frame;
+        }
+    }
+
+    private int getOrAddChildNode(int parentNode, int frame) {
+        if (nodeChildCounts[parentNode] <= MAX_CHILD_NODES_SCANNED) {
+            for (int childNode = nodeFirstChilds[parentNode]; childNode != NONE;
+                    childNode = nodeNextSiblings[childNode]) {
+                if (nodeFrames[childNode] == frame) {
+                    return childNode;
+                }
+            }
+            int childNode = addNode(parentNode, frame);
+            if (nodeChildCounts[parentNode] > MAX_CHILD_NODES_SCANNED) {
+                for (int node = nodeFirstChilds[parentNode]; node != NONE;
+                        node = nodeNextSiblings[node]) {
+                    childNodeIndex.put(getChildNodeKey(parentNode, nodeFrames[node]), node);
+                }
+            }
+            return childNode;
+        }
+        long key = getChildNodeKey(parentNode, frame);
+        int childNode = childNodeIndex.get(key);
+        // the child node may have been removed since it was indexed
+        if (childNode != 0 && nodeParents[childNode] == parentNode) {
+            return childNode;
+        }
+        childNode = addNode(parentNode, frame);
+        childNodeIndex.put(key, childNode);
+        return childNode;
+    }
+
+    private int addNode(int parentNode, int frame) {
+        if (nodeCount == nodeFrames.length) {
+            int newCapacity = nodeCount * 2;
+            nodeFrames = Arrays.copyOf(nodeFrames, newCapacity);
+            nodeParents = Arrays.copyOf(nodeParents, newCapacity);
+            nodeFirstChilds = Arrays.copyOf(nodeFirstChilds, newCapacity);
+            nodeLastChilds = Arrays.copyOf(nodeLastChilds, newCapacity);
+            nodeChildCounts = Arrays.copyOf(nodeChildCounts, newCapacity);
+            nodeNextSiblings = Arrays.copyOf(nodeNextSiblings, newCapacity);
+            nodeSampleCounts = Arrays.copyOf(nodeSampleCounts, newCapacity);
+            nodeEllipsedSampleCounts = Arrays.copyOf(nodeEllipsedSampleCounts, newCapacity);
+            nodeMatched = Arrays.copyOf(nodeMatched, newCapacity);
+        }
+        int node = nodeCount++;
+        nodeFrames[node] = frame;
+        nodeParents[node] = parentNode;
+        nodeFirstChilds[node] = NONE;
+        nodeLastChilds[node] = NONE;
+        nodeNextSiblings[node] = NONE;
+        if (parentNode != NONE) {
+            int lastChildNode = nodeLastChilds[parentNode];
+            if (lastChildNode == NONE) {
+                nodeFirstChilds[parentNode] = node;
+            } else {
+                nodeNextSiblings[lastChildNode] = node;
+            }
+            nodeLastChilds[parentNode] = node;
+            nodeChildCounts[parentNode]++;
         }
-        return index;
+        return node;
+    }
+
+    private void removeChildNode(int parentNode, int prevChildNode, int childNode) {
+        int nextChildNode = nodeNextSiblings[childNode];
+        if (prevChildNode == NONE) {
+            nodeFirstChilds[parentNode] = nextChildNode;
+        } else {
+            nodeNextSiblings[prevChildNode] = nextChildNode;
+        }
+        if (nodeLastChilds[parentNode] == childNode) {
+            nodeLastChilds[parentNode] = prevChildNode;
+        }
+        nodeChildCounts[parentNode]--;
+        nodeParents[childNode] = NONE;
+    }
+
+    private Profile.LeafThreadState getLeafThreadState(int node) {
+        return LEAF_THREAD_STATES[frames[nodeFrames[node] * FRAME_SIZE + LEAF_THREAD_STATE]];
+    }
+
+    private String getText(int node) {
+        int frame = nodeFrames[node];
+        if (frameTexts.length < frameCount) {
+            frameTexts = Arrays.copyOf(frameTexts, frames.length / FRAME_SIZE);
+        }
+        String text = frameTexts[frame];
+        if (text == null) {
+            int offset = frame * FRAME_SIZE;
+            String packageName = packageNames.get(frames[offset + PACKAGE_NAME_INDEX]);
+            String className = classNames.get(frames[offset + CLASS_NAME_INDEX]);
+            String methodName = methodNames.get(frames[offset + METHOD_NAME_INDEX]);
+            String fullClassName;
+            if (packageName.isEmpty()) {
+                fullClassName = className;
+            } else {
+                fullClassName = packageName + '.' + className;
+            }
+            if (fullClassName.isEmpty() && methodName.equals(ELLIPSIS_METHOD_NAME)) {
+                // synthetic node carrying the samples of truncated branches
+                text = ELLIPSIS_METHOD_NAME;
+            } else {
+                text = new StackTraceElement(fullClassName, methodName,
+                        fileNames.get(frames[offset + FILE_NAME_INDEX]),
+                        frames[offset + LINE_NUMBER]).toString();
+            }
+            frameTexts[frame] = text;
+        }
+        return text;
+    }
+
+    private String getTextUpper(int node) {
+        int frame = nodeFrames[node];
+        if (frameTextUppers.length < frameCount) {
+            frameTextUppers = Arrays.copyOf(frameTextUppers, frames.length / FRAME_SIZE);
+        }
+        String textUpper = frameTextUppers[frame];
+        if (textUpper == null) {
+            textUpper = getText(node).toUpperCase(Locale.ENGLISH);
+            frameTextUppers[frame] = textUpper;
+        }
+        return textUpper;
+    }
+
+    private static long getChildNodeKey(int parentNode, int frame) {
+        return ((long) parentNode << 32) | frame;
+    }
+
+    private static int hashFrame(int packageNameIndex, int classNameIndex, int methodNameIndex,
+            int fileNameIndex, int lineNumber, int leafThreadState) {
+        int hash = packageNameIndex;
+        hash = 31 * hash + classNameIndex;
+        hash = 31 * hash + methodNameIndex;
+        hash = 31 * hash + fileNameIndex;
+        hash = 31 * hash + lineNumber;
+        hash = 31 * hash + leafThreadState;
+        return NameIndexTable.mix(hash);
+    }
+
+    private static int[] newFrameSlots(int capacity) {
+        int[] frameSlots = new int[capacity];
+        Arrays.fill(frameSlots, NONE);
+        return frameSlots;
     }
 
     private static Profile.LeafThreadState getThreadState(@Nullable Thread.State state) {
@@ -285,248 +636,172 @@ public class MutableProfile {
         }
     }
 
-    private static boolean isMatch(ProfileNode profileNode, int packageNameIndex,
-            int classNameIndex, int methodNameIndex, int fileNameIndex, int lineNumber,
-            Profile.LeafThreadState leafThreadState) {
-        // checking line number first since most likely to be different
-        return lineNumber == profileNode.lineNumber
-                && fileNameIndex == profileNode.fileNameIndex
-                && leafThreadState == profileNode.leafThreadState
-                && methodNameIndex == profileNode.methodNameIndex
-                && classNameIndex == profileNode.classNameIndex
-                && packageNameIndex == profileNode.packageNameIndex;
-    }
-
     private static int[] makeIndexMapping(List<String> toBeMergedNames,
-            Map<String, Integer> existingIndexes, List<String> existingNames) {
+            NameIndexTable existingNames) {
         int[] indexMapping = new int[toBeMergedNames.size()];
         for (int i = 0; i < toBeMergedNames.size(); i++) {
-            String toBeMergedName = toBeMergedNames.get(i);
-            Integer existingIndex = existingIndexes.get(toBeMergedName);
-            if (existingIndex == null) {
-                int newIndex = existingNames.size();
-                existingNames.add(toBeMergedName);
-                existingIndexes.put(toBeMergedName, newIndex);
-                indexMapping[i] = newIndex;
-            } else {
-                indexMapping[i] = existingIndex;
-            }
+            indexMapping[i] = existingNames.getOrAdd(toBeMergedNames.get(i));
         }
         return indexMapping;
     }
 
-    private class ProfileNode {
-
-        private final int packageNameIndex;
-        private final int classNameIndex;
-        private final int methodNameIndex;
-        private final int fileNameIndex;
-        private final int lineNumber;
-        private final Profile.LeafThreadState leafThreadState;
-
-        private long sampleCount;
-
-        private List<ProfileNode> childNodes = Lists.newArrayListWithCapacity(2);
-
-        // these fields are only used for filtering
-        private @Nullable String text;
-        private @Nullable String textUpper;
-        private boolean matched;
-        private long ellipsedSampleCount;
-
-        private ProfileNode(int packageNameIndex, int classNameIndex, int methodNameIndex,
-                int fileNameIndex, int lineNumber, Profile.LeafThreadState leafThreadState) {
-            this.packageNameIndex = packageNameIndex;
-            this.classNameIndex = classNameIndex;
-            this.methodNameIndex = methodNameIndex;
-            this.fileNameIndex = fileNameIndex;
-            this.lineNumber = lineNumber;
-            this.leafThreadState = leafThreadState;
-        }
-
-        private String getText() {
-            if (text == null) {
-                String packageName = packageNames.get(packageNameIndex);
-                String className = classNames.get(classNameIndex);
-                String fullClassName;
-                if (packageName.isEmpty()) {
-                    fullClassName = className;
-                } else {
-                    fullClassName = packageName + '.' + className;
+    // same traversal order as Traverser (and also non-recursive in order to avoid
+    // StackOverflowError), but over node ids instead of node objects
+    private abstract class NodeTraverser<E extends Exception> {
+
+        private int[] stack = new int[64];
+        private int stackSize;
+
+        void traverse(int rootNode) throws E {
+            stackSize = 0;
+            push(rootNode);
+            int depth = 0;
+            while (stackSize > 0) {
+                int popped = stack[--stackSize];
+                if (popped < 0) {
+                    // marker (complement of the node id) pushed underneath the child nodes
+                    revisitAfterChildren(~popped);
+                    depth--;
+                    continue;
                 }
-                text = new StackTraceElement(fullClassName, methodNames.get(methodNameIndex),
-                        fileNames.get(fileNameIndex), lineNumber).toString();
-            }
-            return text;
-        }
-
-        private String getTextUpper() {
-            if (textUpper == null) {
-                textUpper = getText().toUpperCase(Locale.ENGLISH);
-            }
-            return textUpper;
-        }
-    }
-
-    private class Merger {
-
-        private final int[] packageNameIndexMapping;
-        private final int[] classNameIndexMapping;
-        private final int[] methodNameIndexMapping;
-        private final int[] fileNameIndexMapping;
-
-        private final Deque<List<ProfileNode>> destinationStack = Queues.newArrayDeque();
-
-        private Merger(Profile toBeMergedProfile) {
-            packageNameIndexMapping = makeIndexMapping(toBeMergedProfile.getPackageNameList(),
-                    packageNameIndexes, packageNames);
-            classNameIndexMapping = makeIndexMapping(toBeMergedProfile.getClassNameList(),
-                    classNameIndexes, classNames);
-            methodNameIndexMapping = makeIndexMapping(toBeMergedProfile.getMethodNameList(),
-                    methodNameIndexes, methodNames);
-            fileNameIndexMapping = makeIndexMapping(toBeMergedProfile.getFileNameList(),
-                    fileNameIndexes, fileNames);
-        }
-
-        private void merge(List<Profile.ProfileNode> flatNodes,
-                List<ProfileNode> destinationRootNodes) {
-            destinationStack.push(destinationRootNodes);
-            PeekingIterator<Profile.ProfileNode> i =
-                    Iterators.peekingIterator(flatNodes.iterator());
-            while (i.hasNext()) {
-                Profile.ProfileNode flatNode = i.next();
-                int destinationDepth = destinationStack.size() - 1;
-                for (int j = 0; j < destinationDepth - flatNode.getDepth(); j++) {
-                    // TODO optimize: faster way to pop multiple elements at once
-                    destinationStack.pop();
+                if (!visit(popped, depth) || nodeFirstChilds[popped] == NONE) {
+                    // optimization for no children
+                    revisitAfterChildren(popped);
+                    continue;
                 }
-                ProfileNode destinationNode = mergeOne(flatNode, destinationStack.getFirst());
-                if (i.hasNext() && i.peek().getDepth() > flatNode.getDepth()) {
-                    destinationStack.push(destinationNode.childNodes);
+                push(~popped);
+                int firstPushed = stackSize;
+                for (int childNode = nodeFirstChilds[popped]; childNode != NONE;
+                        childNode = nodeNextSiblings[childNode]) {
+                    push(childNode);
                 }
+                // reverse so that child nodes are popped in order
+                for (int i = firstPushed, j = stackSize - 1; i < j; i++, j--) {
+                    int temp = stack[i];
+                    stack[i] = stack[j];
+                    stack[j] = temp;
+                }
+                depth++;
             }
         }
 
-        private ProfileNode mergeOne(Profile.ProfileNode toBeMergedNode,
-                List<ProfileNode> destinationNodes) {
-            int toBeMergedPackageNameIndex =
-                    packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()];
-            int toBeMergedClassNameIndex =
-                    classNameIndexMapping[toBeMergedNode.getClassNameIndex()];
-            int toBeMergedMethodNameIndex =
-                    methodNameIndexMapping[toBeMergedNode.getMethodNameIndex()];
-            int toBeMergedFileNameIndex = fileNameIndexMapping[toBeMergedNode.getFileNameIndex()];
-            int toBeMergedLineNumber = toBeMergedNode.getLineNumber();
-            Profile.LeafThreadState toBeMergedLeafThreadState =
-                    toBeMergedNode.getLeafThreadState();
-            for (ProfileNode destinationNode : destinationNodes) {
-                if (isMatch(destinationNode, toBeMergedPackageNameIndex, toBeMergedClassNameIndex,
-                        toBeMergedMethodNameIndex, toBeMergedFileNameIndex, toBeMergedLineNumber,
-                        toBeMergedLeafThreadState)) {
-                    merge(toBeMergedNode, destinationNode);
-                    return destinationNode;
-                }
+        private void push(int value) {
+            if (stackSize == stack.length) {
+                stack = Arrays.copyOf(stack, stackSize * 2);
             }
-            // no match found
-            ProfileNode destinationNode = new ProfileNode(toBeMergedPackageNameIndex,
-                    toBeMergedClassNameIndex, toBeMergedMethodNameIndex, toBeMergedFileNameIndex,
-                    toBeMergedLineNumber, toBeMergedLeafThreadState);
-            destinationNodes.add(destinationNode);
-            merge(toBeMergedNode, destinationNode);
-            return destinationNode;
+            stack[stackSize++] = value;
         }
 
-        private void merge(Profile.ProfileNode toBeMergedNode, ProfileNode destinationNode) {
-            destinationNode.sampleCount += toBeMergedNode.getSampleCount();
-        }
+        // returns false if child nodes should not be visited
+        abstract boolean visit(int node, int depth) throws E;
+
+        void revisitAfterChildren(@SuppressWarnings("unused") int node) throws E {}
     }
 
-    // using Traverser to avoid StackOverflowError caused by a recursive algorithm
-    private static class ProfileNodeCollector extends Traverser<ProfileNode, RuntimeException> {
+    private class ProfileNodeCollector extends NodeTraverser<RuntimeException> {
 
         private final List<Profile.ProfileNode> nodes;
 
-        public ProfileNodeCollector(ProfileNode rootNode, List<Profile.ProfileNode> nodes) {
-            super(rootNode);
+        private ProfileNodeCollector(List<Profile.ProfileNode> nodes) {
             this.nodes = nodes;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
+        boolean visit(int node, int depth) {
+            int offset = nodeFrames[node] * FRAME_SIZE;
             nodes.add(Profile.ProfileNode.newBuilder()
                     .setDepth(depth)
-                    .setPackageNameIndex(node.packageNameIndex)
-                    .setClassNameIndex(node.classNameIndex)
-                    .setMethodNameIndex(node.methodNameIndex)
-                    .setFileNameIndex(node.fileNameIndex)
-                    .setLineNumber(node.lineNumber)
-                    .setLeafThreadState(node.leafThreadState)
-                    .setSampleCount(node.sampleCount)
+                    .setPackageNameIndex(frames[offset + PACKAGE_NAME_INDEX])
+                    .setClassNameIndex(frames[offset + CLASS_NAME_INDEX])
+                    .setMethodNameIndex(frames[offset + METHOD_NAME_INDEX])
+                    .setFileNameIndex(frames[offset + FILE_NAME_INDEX])
+                    .setLineNumber(frames[offset + LINE_NUMBER])
+                    .setLeafThreadState(getLeafThreadState(node))
+                    .setSampleCount(nodeSampleCounts[node])
                     .build());
-            return node.childNodes;
+            long ellipsedSampleCount = nodeEllipsedSampleCounts[node];
+            if (ellipsedSampleCount > 0) {
+                // protobuf has no ellipsed sample count, so the truncated samples are folded into
+                // a synthetic "..." child node (which then merges like any other node)
+                int ellipsisOffset = ellipsisFrame * FRAME_SIZE;
+                nodes.add(Profile.ProfileNode.newBuilder()
+                        .setDepth(depth + 1)
+                        .setPackageNameIndex(frames[ellipsisOffset + PACKAGE_NAME_INDEX])
+                        .setClassNameIndex(frames[ellipsisOffset + CLASS_NAME_INDEX])
+                        .setMethodNameIndex(frames[ellipsisOffset + METHOD_NAME_INDEX])
+                        .setFileNameIndex(frames[ellipsisOffset + FILE_NAME_INDEX])
+                        .setLineNumber(0)
+                        .setLeafThreadState(Profile.LeafThreadState.NONE)
+                        .setSampleCount(ellipsedSampleCount)
+                        .build());
+            }
+            return true;
         }
     }
 
-    private static class ProfileFilterer extends Traverser<ProfileNode, RuntimeException> {
+    private class ProfileFilterer extends NodeTraverser<RuntimeException> {
 
         private final String filterTextUpper;
         private final boolean exclusion;
 
-        private ProfileFilterer(ProfileNode rootNode, String filterText, boolean exclusion) {
-            super(rootNode);
+        private ProfileFilterer(String filterText, boolean exclusion) {
             this.filterTextUpper = filterText.toUpperCase(Locale.ENGLISH);
             this.exclusion = exclusion;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
+        boolean visit(int node, int depth) {
             if (isMatch(node)) {
-                node.matched = true;
+                nodeMatched[node] = true;
                 // no need to visit children
-                return ImmutableList.of();
+                return false;
             }
-            return node.childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) {
-            if (node.matched) {
+        void revisitAfterChildren(int node) {
+            if (nodeMatched[node]) {
                 // if exclusion then node will be removed by parent
                 // if not exclusion then keep node and all children
                 return;
             }
-            if (node.childNodes.isEmpty()) {
+            if (nodeFirstChilds[node] == NONE) {
                 return;
             }
             if (removeNode(node)) {
                 // node will be removed by parent
                 if (exclusion) {
-                    node.matched = true;
+                    nodeMatched[node] = true;
                 }
                 return;
             }
             if (!exclusion) {
-                node.matched = true;
+                nodeMatched[node] = true;
             }
             // node is a partial match, need to filter it out
             long filteredSampleCount = 0;
-            for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
-                ProfileNode childNode = i.next();
-                if (exclusion == !childNode.matched) {
-                    filteredSampleCount += childNode.sampleCount;
+            int prevChildNode = NONE;
+            int childNode = nodeFirstChilds[node];
+            while (childNode != NONE) {
+                int nextChildNode = nodeNextSiblings[childNode];
+                if (exclusion == !nodeMatched[childNode]) {
+                    filteredSampleCount += nodeSampleCounts[childNode];
+                    prevChildNode = childNode;
                 } else {
-                    i.remove();
+                    removeChildNode(node, prevChildNode, childNode);
                 }
+                childNode = nextChildNode;
             }
-            node.sampleCount = filteredSampleCount;
+            nodeSampleCounts[node] = filteredSampleCount;
         }
 
-        private boolean isMatch(ProfileNode node) {
-            String textUpper = node.getTextUpper();
+        private boolean isMatch(int node) {
+            String textUpper = getTextUpper(node);
             if (textUpper.contains(filterTextUpper)) {
                 return true;
             }
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
+            Profile.LeafThreadState leafThreadState = getLeafThreadState(node);
             if (leafThreadState != null) {
                 String leafThreadStateUpper = leafThreadState.name().toUpperCase(Locale.ENGLISH);
                 if (leafThreadStateUpper.contains(filterTextUpper)) {
@@ -536,7 +811,7 @@ public class MutableProfile {
             return false;
         }
 
-        private boolean removeNode(ProfileNode node) {
+        private boolean removeNode(int node) {
             if (exclusion) {
                 return hasOnlyMatchedChildren(node);
             } else {
@@ -544,18 +819,20 @@ public class MutableProfile {
             }
         }
 
-        private boolean hasOnlyMatchedChildren(ProfileNode node) {
-            for (ProfileNode childNode : node.childNodes) {
-                if (!childNode.matched) {
+        private boolean hasOnlyMatchedChildren(int node) {
+            for (int childNode = nodeFirstChilds[node]; childNode != NONE;
+                    childNode = nodeNextSiblings[childNode]) {
+                if (!nodeMatched[childNode]) {
                     return false;
                 }
             }
             return true;
         }
 
-        private boolean hasNoMatchedChildren(ProfileNode node) {
-            for (ProfileNode childNode : node.childNodes) {
-                if (childNode.matched) {
+        private boolean hasNoMatchedChildren(int node) {
+            for (int childNode = nodeFirstChilds[node]; childNode != NONE;
+                    childNode = nodeNextSiblings[childNode]) {
+                if (nodeMatched[childNode]) {
                     return false;
                 }
             }
@@ -563,82 +840,75 @@ public class MutableProfile {
         }
     }
 
-    private static class ProfileResetMatches extends Traverser<ProfileNode, RuntimeException> {
-
-        private ProfileResetMatches(ProfileNode rootNode) {
-            super(rootNode);
-        }
+    private class ProfileResetMatches extends NodeTraverser<RuntimeException> {
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) {
-            node.matched = false;
-            return node.childNodes;
+        boolean visit(int node, int depth) {
+            nodeMatched[node] = false;
+            return true;
         }
     }
 
-    private class ProfileWriter extends Traverser<ProfileNode, IOException> {
+    private class ProfileWriter extends NodeTraverser<IOException> {
 
         private final JsonGenerator jg;
 
-        private ProfileWriter(ProfileNode rootNode, JsonGenerator jg) throws IOException {
-            super(rootNode);
+        private ProfileWriter(JsonGenerator jg) {
             this.jg = jg;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
+        boolean visit(int node, int depth) throws IOException {
             jg.writeStartObject();
-            jg.writeStringField("stackTraceElement", node.getText());
-            Profile.LeafThreadState leafThreadState = node.leafThreadState;
+            jg.writeStringField("stackTraceElement", getText(node));
+            Profile.LeafThreadState leafThreadState = getLeafThreadState(node);
             if (leafThreadState != Profile.LeafThreadState.NONE) {
                 jg.writeStringField("leafThreadState", leafThreadState.name());
             }
-            jg.writeNumberField("sampleCount", node.sampleCount);
-            long ellipsedSampleCount = node.ellipsedSampleCount;
+            jg.writeNumberField("sampleCount", nodeSampleCounts[node]);
+            long ellipsedSampleCount = nodeEllipsedSampleCounts[node];
             if (ellipsedSampleCount > 0) {
                 jg.writeNumberField("ellipsedSampleCount", ellipsedSampleCount);
             }
-            List<ProfileNode> childNodes = node.childNodes;
-            if (!childNodes.isEmpty()) {
+            if (nodeFirstChilds[node] != NONE) {
                 jg.writeArrayFieldStart("childNodes");
             }
-            return childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
+        void revisitAfterChildren(int node) throws IOException {
+            if (nodeFirstChilds[node] != NONE) {
                 jg.writeEndArray();
             }
             jg.writeEndObject();
         }
     }
 
-    private class FlameGraphWriter extends Traverser<ProfileNode, IOException> {
+    private class FlameGraphWriter extends NodeTraverser<IOException> {
 
         private final JsonGenerator jg;
         private int height;
 
-        private FlameGraphWriter(ProfileNode rootNode, JsonGenerator jg) throws IOException {
-            super(rootNode);
+        private FlameGraphWriter(JsonGenerator jg) {
             this.jg = jg;
         }
 
         @Override
-        public List<ProfileNode> visit(ProfileNode node, int depth) throws IOException {
+        boolean visit(int node, int depth) throws IOException {
             height = Math.max(height, depth + 1);
             jg.writeStartObject();
-            jg.writeStringField("name", node.getText());
-            jg.writeNumberField("value", node.sampleCount);
-            if (!node.childNodes.isEmpty()) {
+            jg.writeStringField("name", getText(node));
+            jg.writeNumberField("value", nodeSampleCounts[node]);
+            if (nodeFirstChilds[node] != NONE) {
                 jg.writeArrayFieldStart("children");
             }
-            return node.childNodes;
+            return true;
         }
 
         @Override
-        public void revisitAfterChildren(ProfileNode node) throws IOException {
-            if (!node.childNodes.isEmpty()) {
+        void revisitAfterChildren(int node) throws IOException {
+            if (nodeFirstChilds[node] != NONE) {
                 jg.writeEndArray();
             }
             jg.writeEndObject();
@@ -28,6 +28,22 @@ class MutableQuery {
         this.queryText = queryText;
     }
 
+    String getQueryText() {
+        return queryText;
+    }
+
+    double getTotalNanos() {
+        return totalNanos;
+    }
+
+    long getExecutionCount() {
+        return executionCount;
+    }
+
+    long getTotalRows() {
+        return totalRows;
+    }
+
     void addToTotalNanos(double totalNanos) {
         this.totalNanos += totalNanos;
     }
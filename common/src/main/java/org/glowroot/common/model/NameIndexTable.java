@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.Arrays;
+import java.util.List;
+
+// assigns sequential indexes to distinct strings
+//
+// this is an open addressing hash table (linear probing) over an int array of slots, which avoids
+// the entry objects and boxed Integer values of HashMap<String, Integer>
+class NameIndexTable {
+
+    private static final int EMPTY = -1;
+
+    private String[] names = new String[16];
+    private int size;
+
+    private int[] slots = newSlots(32);
+    private int mask = slots.length - 1;
+
+    int getOrAdd(String name) {
+        int slot = mix(name.hashCode()) & mask;
+        while (true) {
+            int index = slots[slot];
+            if (index == EMPTY) {
+                return add(name, slot);
+            }
+            if (names[index].equals(name)) {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    String get(int index) {
+        return names[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    List<String> asList() {
+        return Arrays.asList(names).subList(0, size);
+    }
+
+    private int add(String name, int slot) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+        }
+        int index = size++;
+        names[index] = name;
+        slots[slot] = index;
+        // keep load factor at or below 0.5 so that probe sequences stay short
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return index;
+    }
+
+    private void rehash(int newCapacity) {
+        slots = newSlots(newCapacity);
+        mask = newCapacity - 1;
+        for (int index = 0; index < size; index++) {
+            int slot = mix(names[index].hashCode()) & mask;
+            while (slots[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = index;
+        }
+    }
+
+    private static int[] newSlots(int capacity) {
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        return slots;
+    }
+
+    // spreads low quality hash codes (e.g. of similar strings) across the table
+    static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
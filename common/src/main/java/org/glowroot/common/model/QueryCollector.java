@@ -94,6 +94,21 @@ public class QueryCollector {
         }
     }
 
+    public void mergeQueries(QueryCollector toBeMergedQueries) {
+        for (Entry<String, Map<String, MutableQuery>> entry : toBeMergedQueries.queries
+                .entrySet()) {
+            Map<String, MutableQuery> queriesForQueryType = queries.get(entry.getKey());
+            if (queriesForQueryType == null) {
+                queriesForQueryType = Maps.newHashMap();
+                queries.put(entry.getKey(), queriesForQueryType);
+            }
+            for (MutableQuery query : entry.getValue().values()) {
+                mergeQuery(query.getQueryText(), query.getTotalNanos(), query.getExecutionCount(),
+                        query.getTotalRows(), queriesForQueryType);
+            }
+        }
+    }
+
     public void mergeQuery(String queryType, String queryText, long totalNanos, long executionCount,
             long totalRows) {
         Map<String, MutableQuery> queriesForQueryType = queries.get(queryType);
@@ -119,8 +134,8 @@ public class QueryCollector {
         aggregateQuery.addToTotalRows(query.getTotalRows());
     }
 
-    private void mergeQuery(String queryText, long totalNanos, long executionCount, long totalRows,
-            Map<String, MutableQuery> queriesForQueryType) {
+    private void mergeQuery(String queryText, double totalNanos, long executionCount,
+            long totalRows, Map<String, MutableQuery> queriesForQueryType) {
         MutableQuery aggregateQuery = queriesForQueryType.get(queryText);
         if (aggregateQuery == null) {
             if (maxMultiplierWhileBuilding != 0
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.util;
+
+// replaces the literals in sql (and cql) query texts with ?, so that query texts which only differ
+// by their (inlined) literals are aggregated together
+//
+// this is a single pass over the query text which does not allocate anything if the query text
+// contains no literals (in which case the same instance is returned)
+//
+// literals are string literals ('...', with '' as escape), numeric literals (including hex, e.g.
+// 0x1F, and leading dot, e.g. .5) and cql uuid literals, while quoted identifiers ("..." and
+// `...`) and comments are left as they are, and so are digits that are part of identifiers or
+// bind parameters (e.g. t1, $1, :1)
+//
+// this is only a lexical approximation of the many sql dialects, e.g. backslash escapes inside
+// string literals are not recognized, but whatever the input, the same query text always
+// normalizes to the same output
+public class QueryTextNormalizer {
+
+    private static final int UUID_LENGTH = 36;
+
+    private QueryTextNormalizer() {}
+
+    public static String normalize(String queryText) {
+        int length = queryText.length();
+        StringBuilder sb = null;
+        // index in queryText up to which has already been appended to sb
+        int appended = 0;
+        int i = 0;
+        while (i < length) {
+            char c = queryText.charAt(i);
+            int end;
+            if (c == '\'') {
+                end = skipStringLiteral(queryText, i);
+            } else if (c == '"' || c == '`') {
+                i = skipQuotedIdentifier(queryText, i, c);
+                continue;
+            } else if (c == '-' && isNext(queryText, i, '-')) {
+                i = skipLineComment(queryText, i);
+                continue;
+            } else if (c == '/' && isNext(queryText, i, '*')) {
+                i = skipBlockComment(queryText, i);
+                continue;
+            } else if (c == '.' && isLeadingDotNumericLiteral(queryText, i)) {
+                end = skipNumericLiteral(queryText, i);
+            } else if (isIdentifierPart(c)) {
+                if (!isLiteralStart(queryText, i)) {
+                    i = skipIdentifier(queryText, i);
+                    continue;
+                } else if (isHexDigit(c) && isUuidLiteral(queryText, i)) {
+                    end = i + UUID_LENGTH;
+                } else if (c >= '0' && c <= '9') {
+                    end = skipNumericLiteral(queryText, i);
+                } else {
+                    // identifiers are skipped as a whole, so that digits inside of them are not
+                    // mistaken for literals
+                    i = skipIdentifier(queryText, i);
+                    continue;
+                }
+            } else {
+                i++;
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder(length);
+            }
+            sb.append(queryText, appended, i);
+            sb.append('?');
+            appended = end;
+            i = end;
+        }
+        if (sb == null) {
+            return queryText;
+        }
+        sb.append(queryText, appended, length);
+        return sb.toString();
+    }
+
+    private static int skipStringLiteral(String queryText, int start) {
+        int length = queryText.length();
+        int i = start + 1;
+        while (i < length) {
+            if (queryText.charAt(i) == '\'') {
+                if (isNext(queryText, i, '\'')) {
+                    // escaped quote
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        // unterminated
+        return length;
+    }
+
+    private static int skipQuotedIdentifier(String queryText, int start, char quote) {
+        int index = queryText.indexOf(quote, start + 1);
+        return index == -1 ? queryText.length() : index + 1;
+    }
+
+    private static int skipLineComment(String queryText, int start) {
+        int index = queryText.indexOf('\n', start + 2);
+        return index == -1 ? queryText.length() : index + 1;
+    }
+
+    private static int skipBlockComment(String queryText, int start) {
+        int index = queryText.indexOf("*/", start + 2);
+        return index == -1 ? queryText.length() : index + 2;
+    }
+
+    private static int skipIdentifier(String queryText, int start) {
+        int length = queryText.length();
+        int i = start + 1;
+        while (i < length && isIdentifierPart(queryText.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipNumericLiteral(String queryText, int start) {
+        int length = queryText.length();
+        boolean hex = isNext(queryText, start, 'x') || isNext(queryText, start, 'X');
+        int i = start + 1;
+        while (i < length) {
+            char c = queryText.charAt(i);
+            if (Character.isLetterOrDigit(c) || c == '.' || c == '_') {
+                i++;
+            } else if ((c == '+' || c == '-') && !hex && isExponent(queryText.charAt(i - 1))) {
+                i++;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    // e.g. 123e4567-e89b-12d3-a456-426655440000
+    private static boolean isUuidLiteral(String queryText, int start) {
+        int end = start + UUID_LENGTH;
+        if (end > queryText.length() || end < queryText.length()
+                && isIdentifierPart(queryText.charAt(end))) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            int offset = i - start;
+            char c = queryText.charAt(i);
+            if (offset == 8 || offset == 13 || offset == 18 || offset == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (!isHexDigit(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // digits that directly follow identifier characters or bind parameter prefixes are not
+    // literals, e.g. t1, $1, :1, ?1, @p1
+    private static boolean isLiteralStart(String queryText, int index) {
+        if (index == 0) {
+            return true;
+        }
+        char prev = queryText.charAt(index - 1);
+        return !isIdentifierPart(prev) && prev != ':' && prev != '?' && prev != '.';
+    }
+
+    // e.g. .5, but not t.5 or (...).5
+    private static boolean isLeadingDotNumericLiteral(String queryText, int index) {
+        if (index + 1 >= queryText.length()) {
+            return false;
+        }
+        char next = queryText.charAt(index + 1);
+        if (next < '0' || next > '9') {
+            return false;
+        }
+        if (index == 0) {
+            return true;
+        }
+        char prev = queryText.charAt(index - 1);
+        return !isIdentifierPart(prev) && prev != ')' && prev != ']' && prev != '"'
+                && prev != '`';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        if (c < 128) {
+            // fast path
+            return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'
+                    || c == '_' || c == '$' || c == '@' || c == '#';
+        }
+        return Character.isLetterOrDigit(c);
+    }
+
+    private static boolean isHexDigit(char c) {
+        return c >= '0' && c <= '9' || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F';
+    }
+
+    private static boolean isExponent(char c) {
+        return c == 'e' || c == 'E';
+    }
+
+    private static boolean isNext(String queryText, int index, char c) {
+        return index + 1 < queryText.length() && queryText.charAt(index + 1) == c;
+    }
+}
@@ -23,10 +23,13 @@ import com.fasterxml.jackson.core.util.DefaultIndenter;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.io.CharStreams;
 import org.junit.Test;
 
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class MutableProfileTest {
@@ -164,6 +167,166 @@ public class MutableProfileTest {
                 + "}").replace(" ", ""));
     }
 
+    @Test
+    public void testMergingProto() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        List<StackTraceElement> stackTraceElements1 = Lists.newArrayList();
+        stackTraceElements1.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123));
+        stackTraceElements1.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        List<StackTraceElement> stackTraceElements2 = Lists.newArrayList();
+        stackTraceElements2.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 456));
+        stackTraceElements2.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        profile.merge(stackTraceElements1, Thread.State.RUNNABLE);
+        profile.merge(stackTraceElements2, Thread.State.WAITING);
+        MutableProfile otherProfile = new MutableProfile();
+        otherProfile.merge(stackTraceElements2, Thread.State.WAITING);
+        otherProfile.merge(stackTraceElements1, Thread.State.RUNNABLE);
+        // when
+        MutableProfile mergedProfile = new MutableProfile();
+        mergedProfile.merge(profile.toProto());
+        mergedProfile.merge(otherProfile.toProto());
+        profile.merge(otherProfile);
+        // then
+        assertThat(mergedProfile.toProto()).isEqualTo(profile.toProto());
+        assertThat(mergedProfile.getSampleCount()).isEqualTo(4);
+        assertThat(profile.toJson()).isEqualTo(("{"
+                + "  \"unfilteredSampleCount\": 4,"
+                + "  \"rootNodes\": ["
+                + "    {"
+                + "      \"stackTraceElement\": \"xx.yy.zz.Main.main(Main.java:789)\","
+                + "      \"sampleCount\": 4,"
+                + "      \"childNodes\": ["
+                + "        {"
+                + "          \"stackTraceElement\": \"aa.bb.cc.Def.ghi(Def.java:123)\","
+                + "          \"leafThreadState\": \"RUNNABLE\","
+                + "          \"sampleCount\": 2"
+                + "        },"
+                + "        {"
+                + "          \"stackTraceElement\": \"aa.bb.cc.Def.ghi(Def.java:456)\","
+                + "          \"leafThreadState\": \"WAITING\","
+                + "          \"sampleCount\": 2"
+                + "        }"
+                + "      ]"
+                + "    }"
+                + "  ]"
+                + "}").replace(" ", ""));
+    }
+
+    @Test
+    public void testFiltering() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        List<StackTraceElement> stackTraceElements1 = Lists.newArrayList();
+        stackTraceElements1.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", 123));
+        stackTraceElements1.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        List<StackTraceElement> stackTraceElements2 = Lists.newArrayList();
+        stackTraceElements2.add(new StackTraceElement("aa.bb.cc.Def", "jkl", "Def.java", 456));
+        stackTraceElements2.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+        profile.merge(stackTraceElements1, Thread.State.RUNNABLE);
+        profile.merge(stackTraceElements2, Thread.State.RUNNABLE);
+        profile.merge(stackTraceElements2, Thread.State.RUNNABLE);
+        // when
+        profile.filter(ImmutableList.of("Main"), ImmutableList.of("jkl"));
+        // then
+        assertThat(profile.getSampleCount()).isEqualTo(1);
+        assertThat(profile.toJson()).isEqualTo(("{"
+                + "  \"unfilteredSampleCount\": 3,"
+                + "  \"rootNodes\": ["
+                + "    {"
+                + "      \"stackTraceElement\": \"xx.yy.zz.Main.main(Main.java:789)\","
+                + "      \"sampleCount\": 1,"
+                + "      \"childNodes\": ["
+                + "        {"
+                + "          \"stackTraceElement\": \"aa.bb.cc.Def.ghi(Def.java:123)\","
+                + "          \"leafThreadState\": \"RUNNABLE\","
+                + "          \"sampleCount\": 1"
+                + "        }"
+                + "      ]"
+                + "    }"
+                + "  ]"
+                + "}").replace(" ", ""));
+    }
+
+    @Test
+    public void testManyChildNodes() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        // when
+        for (int i = 0; i < 2; i++) {
+            for (int j = 0; j < 20; j++) {
+                List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+                stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", j));
+                stackTraceElements.add(
+                        new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+                profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+            }
+        }
+        // then
+        Profile proto = profile.toProto();
+        assertThat(proto.getNodeCount()).isEqualTo(21);
+        assertThat(proto.getNode(0).getSampleCount()).isEqualTo(40);
+        for (int i = 1; i < 21; i++) {
+            assertThat(proto.getNode(i).getDepth()).isEqualTo(1);
+            assertThat(proto.getNode(i).getLineNumber()).isEqualTo(i - 1);
+            assertThat(proto.getNode(i).getSampleCount()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    public void testTruncateToMaxNodes() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j <= i; j++) {
+                List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+                stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", i));
+                stackTraceElements.add(
+                        new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+                profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+            }
+        }
+        // when
+        profile.truncateToMaxNodes(4);
+        // then
+        Profile proto = profile.toProto();
+        assertThat(proto.getNodeCount()).isEqualTo(5);
+        assertThat(proto.getNode(0).getSampleCount()).isEqualTo(55);
+        // truncated samples are folded into a synthetic ellipsis node
+        assertThat(proto.getMethodName(proto.getNode(1).getMethodNameIndex())).isEqualTo("...");
+        assertThat(proto.getNode(1).getDepth()).isEqualTo(1);
+        assertThat(proto.getNode(1).getSampleCount()).isEqualTo(28);
+        assertThat(proto.getNode(2).getLineNumber()).isEqualTo(7);
+        assertThat(proto.getNode(3).getLineNumber()).isEqualTo(8);
+        assertThat(proto.getNode(4).getLineNumber()).isEqualTo(9);
+    }
+
+    @Test
+    public void testTruncatedSamplesSurviveMerge() throws IOException {
+        // given
+        MutableProfile profile = new MutableProfile();
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j <= i; j++) {
+                List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+                stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", i));
+                stackTraceElements.add(
+                        new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+                profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+            }
+        }
+        profile.truncateToMaxNodes(4);
+        // when
+        MutableProfile mergedProfile = new MutableProfile();
+        mergedProfile.merge(profile.toProto());
+        mergedProfile.merge(profile.toProto());
+        // then
+        Profile proto = mergedProfile.toProto();
+        assertThat(proto.getNodeCount()).isEqualTo(5);
+        assertThat(proto.getNode(0).getSampleCount()).isEqualTo(110);
+        assertThat(proto.getNode(1).getSampleCount()).isEqualTo(56);
+        assertThat(mergedProfile.toJson()).contains("\"stackTraceElement\":\"...\"");
+    }
+
     // this is helpful when building tests
     @SuppressWarnings("unused")
     private static void prettyPrint(String json) throws IOException {
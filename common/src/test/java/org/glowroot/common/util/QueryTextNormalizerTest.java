@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.util;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryTextNormalizerTest {
+
+    @Test
+    public void shouldReturnSameInstanceWhenNoLiterals() {
+        // given
+        String queryText = "select a.x1, b.y2 from t1 a join t2 b on a.id = b.id where a.z = ?";
+        // when
+        String normalized = QueryTextNormalizer.normalize(queryText);
+        // then
+        assertThat(normalized).isSameAs(queryText);
+    }
+
+    @Test
+    public void shouldReplaceStringLiterals() {
+        assertThat(QueryTextNormalizer.normalize("select * from t where a = 'x' and b = 'it''s'"))
+                .isEqualTo("select * from t where a = ? and b = ?");
+    }
+
+    @Test
+    public void shouldReplaceNumericLiterals() {
+        assertThat(QueryTextNormalizer.normalize(
+                "select * from t where a = 12 and b = -1.5 and c = 1e-10 and d = 0x1F limit 10"))
+                        .isEqualTo("select * from t where a = ? and b = -? and c = ? and d = ?"
+                                + " limit ?");
+    }
+
+    @Test
+    public void shouldReplaceInListLiterals() {
+        assertThat(QueryTextNormalizer.normalize("select * from t where id in (1, 2, 3)"))
+                .isEqualTo("select * from t where id in (?, ?, ?)");
+    }
+
+    @Test
+    public void shouldReplaceLeadingDotNumericLiterals() {
+        assertThat(QueryTextNormalizer.normalize("select * from t where a > .5 and b < -.25e2"))
+                .isEqualTo("select * from t where a > ? and b < -?");
+        assertThat(QueryTextNormalizer.normalize("select t.a, t1.b from t, t1 where t.c = 1.5"))
+                .isEqualTo("select t.a, t1.b from t, t1 where t.c = ?");
+    }
+
+    @Test
+    public void shouldReplaceUuidLiterals() {
+        assertThat(QueryTextNormalizer.normalize("select * from t where id = "
+                + "123e4567-e89b-12d3-a456-426655440000 or id = "
+                + "f47ac10b-58cc-4372-a567-0e02b2c3d479"))
+                        .isEqualTo("select * from t where id = ? or id = ?");
+    }
+
+    @Test
+    public void shouldNotReplaceDigitsInIdentifiersOrBindParameters() {
+        // given
+        String queryText = "select t1.col_2, @p1, $1, :1, ?1 from schema3.table4 t1";
+        // when
+        String normalized = QueryTextNormalizer.normalize(queryText);
+        // then
+        assertThat(normalized).isSameAs(queryText);
+    }
+
+    @Test
+    public void shouldNotReplaceInsideQuotedIdentifiersOrComments() {
+        // given
+        String queryText = "select \"col 1\", `col 2` /* 'x' 3 */ from t -- 'y' 4\nwhere a = 5";
+        // when
+        String normalized = QueryTextNormalizer.normalize(queryText);
+        // then
+        assertThat(normalized).isEqualTo(
+                "select \"col 1\", `col 2` /* 'x' 3 */ from t -- 'y' 4\nwhere a = ?");
+    }
+
+    @Test
+    public void shouldHandleUnterminatedLiterals() {
+        assertThat(QueryTextNormalizer.normalize("select * from t where a = 'x")).isEqualTo(
+                "select * from t where a = ?");
+        assertThat(QueryTextNormalizer.normalize("select * from t /* x")).isEqualTo(
+                "select * from t /* x");
+    }
+}
@@ -50,6 +50,11 @@ public interface ConfigRepository {
     long ROLLUP_2_INTERVAL_MILLIS =
             Long.getLong("glowroot.internal.rollup.2.intervalMillis", 30 * 60 * 1000); // 30 minutes
 
+    // rolled up profiles are truncated to this many nodes (dropping the least sampled branches) so
+    // that reading a profile over a long time period merges a bounded amount of data per rollup
+    int ROLLUP_PROFILE_MAX_NODES =
+            Integer.getInteger("glowroot.internal.rollup.profileMaxNodes", 10000);
+
     TransactionConfig getTransactionConfig(String serverId);
 
     UserRecordingConfig getUserRecordingConfig(String serverId);
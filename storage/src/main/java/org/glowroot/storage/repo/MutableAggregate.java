@@ -50,9 +50,17 @@ public class MutableAggregate {
     private @MonotonicNonNull MutableProfile mainThreadProfile;
     private @MonotonicNonNull MutableProfile auxThreadProfile;
     private QueryCollector queries;
+    // profiles are truncated to this many nodes when converted to protobuf
+    private final int maxProfileNodes;
 
+    // for aggregates that never carry profiles (e.g. overview and percentile aggregates)
     public MutableAggregate(int maxAggregateQueriesPerQueryType) {
+        this(maxAggregateQueriesPerQueryType, Integer.MAX_VALUE);
+    }
+
+    public MutableAggregate(int maxAggregateQueriesPerQueryType, int maxProfileNodes) {
         queries = new QueryCollector(maxAggregateQueriesPerQueryType, 0);
+        this.maxProfileNodes = maxProfileNodes;
     }
 
     public boolean isEmpty() {
@@ -117,10 +125,10 @@ public class MutableAggregate {
             builder.setAuxThreadStats(auxThreadStats.toProto());
         }
         if (mainThreadProfile != null) {
-            builder.setMainThreadProfile(mainThreadProfile.toProto());
+            builder.setMainThreadProfile(toTruncatedProto(mainThreadProfile));
         }
         if (auxThreadProfile != null) {
-            builder.setAuxThreadProfile(auxThreadProfile.toProto());
+            builder.setAuxThreadProfile(toTruncatedProto(auxThreadProfile));
         }
         return builder.addAllQueriesByType(queries.toProto(true))
                 .build();
@@ -170,6 +178,18 @@ public class MutableAggregate {
         queries.mergeQueries(toBeMergedQueries);
     }
 
+    // truncates a copy, so that branches truncated here are not lost if more profiles are merged
+    // into this aggregate afterwards
+    private Profile toTruncatedProto(MutableProfile profile) {
+        if (profile.getNodeCount() <= maxProfileNodes) {
+            return profile.toProto();
+        }
+        MutableProfile copy = new MutableProfile();
+        copy.merge(profile);
+        copy.truncateToMaxNodes(maxProfileNodes);
+        return copy.toProto();
+    }
+
     private static void mergeRootTimer(Aggregate.Timer toBeMergedRootTimer,
             List<MutableTimer> rootTimers) {
         for (MutableTimer rootTimer : rootTimers) {
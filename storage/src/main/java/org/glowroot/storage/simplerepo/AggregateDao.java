@@ -1056,7 +1056,8 @@ public class AggregateDao implements AggregateRepository {
                                 toRollupLevel));
                     }
                     curr = ImmutableMutableOverallAggregate.of(transactionType,
-                            new MutableAggregate(maxAggregateQueriesPerQueryType));
+                            new MutableAggregate(maxAggregateQueriesPerQueryType,
+                                    ConfigRepository.ROLLUP_PROFILE_MAX_NODES));
                 }
                 merge(curr.aggregate(), resultSet, 2, fromRollupLevel);
             }
@@ -1123,7 +1124,8 @@ public class AggregateDao implements AggregateRepository {
                                 curr.aggregate().toAggregate(scratchBuffer), toRollupLevel));
                     }
                     curr = ImmutableMutableTransactionAggregate.of(transactionType, transactionName,
-                            new MutableAggregate(maxAggregateQueriesPerQueryType));
+                            new MutableAggregate(maxAggregateQueriesPerQueryType,
+                                    ConfigRepository.ROLLUP_PROFILE_MAX_NODES));
                 }
                 merge(curr.aggregate(), resultSet, 3, fromRollupLevel);
             }
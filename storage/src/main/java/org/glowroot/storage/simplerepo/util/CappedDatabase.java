@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2015 the original author or authors.
+ * Copyright 2012-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -24,11 +24,14 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
@@ -47,11 +50,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.storage.simplerepo.util.CappedDatabaseOutputStream.MappedRegion;
 
 public class CappedDatabase {
 
     private static final Logger logger = LoggerFactory.getLogger(CappedDatabase.class);
 
+    // in memory-mapped mode, reads do not need to acquire the lock, so they do not contend with
+    // (potentially slow) writes
+    private static final boolean MMAP = Boolean.getBoolean("glowroot.internal.cappedDatabase.mmap");
+
+    private static final int BUFFER_SIZE = 32768;
+
     private final File file;
     private final Object lock = new Object();
     @GuardedBy("lock")
@@ -65,9 +75,15 @@ public class CappedDatabase {
     private final Map<String, CappedDatabaseStats> statsByType = Maps.newHashMap();
 
     public CappedDatabase(File file, int requestedSizeKb, Ticker ticker) throws IOException {
+        this(file, requestedSizeKb, ticker, MMAP);
+    }
+
+    @VisibleForTesting
+    CappedDatabase(File file, int requestedSizeKb, Ticker ticker, boolean mmap)
+            throws IOException {
         this.file = file;
         this.ticker = ticker;
-        out = new CappedDatabaseOutputStream(file, requestedSizeKb);
+        out = new CappedDatabaseOutputStream(file, requestedSizeKb, mmap);
         inFile = new RandomAccessFile(file, "r");
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
@@ -141,9 +157,16 @@ public class CappedDatabase {
             Parser<T> parser) throws IOException {
         boolean overwritten;
         boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
+        MappedRegion mappedRegion = out.getMappedRegion();
+        if (mappedRegion == null) {
+            synchronized (lock) {
+                overwritten = out.isOverwritten(cappedId);
+                inTheFuture = cappedId >= out.getCurrIndex();
+            }
+        } else {
+            // lock-free
+            overwritten = !out.isStillValid(cappedId, mappedRegion);
+            inTheFuture = cappedId >= out.getCommittedIndex();
         }
         if (overwritten) {
             return null;
@@ -156,15 +179,12 @@ public class CappedDatabase {
             // glowroot.capped.db
             return null;
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = new LZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+        CappedBlockInputStream blockInput = new CappedBlockInputStream(cappedId);
+        InputStream input = newLZFInputStream(blockInput);
         try {
             return parser.parseFrom(input);
         } catch (Exception e) {
-            if (!out.isOverwritten(cappedId)) {
+            if (!blockInput.rolledOver && !out.isOverwritten(cappedId)) {
                 logger.error(e.getMessage(), e);
             }
             return null;
@@ -177,9 +197,16 @@ public class CappedDatabase {
             throws IOException {
         boolean overwritten;
         boolean inTheFuture;
-        synchronized (lock) {
-            overwritten = out.isOverwritten(cappedId);
-            inTheFuture = cappedId >= out.getCurrIndex();
+        MappedRegion mappedRegion = out.getMappedRegion();
+        if (mappedRegion == null) {
+            synchronized (lock) {
+                overwritten = out.isOverwritten(cappedId);
+                inTheFuture = cappedId >= out.getCurrIndex();
+            }
+        } else {
+            // lock-free
+            overwritten = !out.isStillValid(cappedId, mappedRegion);
+            inTheFuture = cappedId >= out.getCommittedIndex();
         }
         if (overwritten) {
             return ImmutableList.of();
@@ -192,11 +219,8 @@ public class CappedDatabase {
             // glowroot.capped.db
             return ImmutableList.of();
         }
-        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-        // lots of small reads from the underlying RandomAccessFile
-        final int bufferSize = 32768;
-        InputStream input = new LZFInputStream(
-                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize));
+        CappedBlockInputStream blockInput = new CappedBlockInputStream(cappedId);
+        InputStream input = newLZFInputStream(blockInput);
         SizeLimitBypassingParser<T> sizeLimitBypassingParser =
                 new SizeLimitBypassingParser<T>(parser);
         List<T> messages = Lists.newArrayList();
@@ -206,7 +230,7 @@ public class CappedDatabase {
                 messages.add(message);
             }
         } catch (Exception e) {
-            if (!out.isOverwritten(cappedId)) {
+            if (!blockInput.rolledOver && !out.isOverwritten(cappedId)) {
                 logger.error(e.getMessage(), e);
             }
             return ImmutableList.of();
@@ -254,6 +278,17 @@ public class CappedDatabase {
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
+    private static InputStream newLZFInputStream(CappedBlockInputStream blockInput)
+            throws IOException {
+        if (blockInput.mappedRegion != null) {
+            // reads from the mapped region are cheap, so no need for an intermediate buffer
+            return new LZFInputStream(blockInput);
+        }
+        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
+        // lots of small reads from the underlying RandomAccessFile
+        return new LZFInputStream(new BufferedInputStream(blockInput, BUFFER_SIZE));
+    }
+
     @OnlyUsedByTests
     private class CappedBlockCharSource extends CharSource {
 
@@ -265,11 +300,7 @@ public class CappedDatabase {
 
         @Override
         public Reader openStream() throws IOException {
-            // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
-            // lots of small reads from the underlying RandomAccessFile
-            final int bufferSize = 32768;
-            return new InputStreamReader(new LZFInputStream(
-                    new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize)),
+            return new InputStreamReader(newLZFInputStream(new CappedBlockInputStream(cappedId)),
                     Charsets.UTF_8);
         }
     }
@@ -280,8 +311,19 @@ public class CappedDatabase {
         private long blockLength = -1;
         private long blockIndex;
 
+        // non-null when in memory-mapped mode
+        private final @Nullable MappedRegion mappedRegion;
+        private final @Nullable ByteBuffer mappedBuffer;
+
+        private boolean rolledOver;
+
+        // only used by read(), in memory-mapped mode (which is not wrapped in a buffered stream)
+        private final byte[] singleByte = new byte[1];
+
         private CappedBlockInputStream(long cappedId) {
             this.cappedId = cappedId;
+            mappedRegion = out.getMappedRegion();
+            mappedBuffer = mappedRegion == null ? null : mappedRegion.newReadBuffer();
         }
 
         @Override
@@ -289,8 +331,12 @@ public class CappedDatabase {
             if (blockIndex == blockLength) {
                 return -1;
             }
+            if (mappedRegion != null && mappedBuffer != null) {
+                return readMapped(bytes, off, len, mappedRegion, mappedBuffer);
+            }
             synchronized (lock) {
                 if (out.isOverwritten(cappedId)) {
+                    rolledOver = true;
                     throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
                 }
                 if (blockLength == -1) {
@@ -313,15 +359,48 @@ public class CappedDatabase {
         @Override
         public int read(byte[] bytes) throws IOException {
             // this is never called since CappedBlockInputStream is always wrapped in a
-            // BufferedInputStream
+            // BufferedInputStream or LZFInputStream
             return read(bytes, 0, bytes.length);
         }
 
         @Override
         public int read() throws IOException {
+            if (mappedRegion != null) {
+                return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xFF;
+            }
             throw new UnsupportedOperationException(
                     "CappedBlockInputStream should always be wrapped in a BufferedInputStream");
         }
+
+        // lock-free, the bytes are validated against the current write index after they are read
+        // (the load fence keeps the plain reads of the mapped buffer from being reordered after
+        // the volatile read of the write index)
+        private int readMapped(byte[] bytes, int off, int len, MappedRegion mappedRegion,
+                ByteBuffer mappedBuffer) throws IOException {
+            if (blockLength == -1) {
+                blockLength = mappedBuffer.getLong(mappedRegion.convertToBufferPosition(cappedId));
+                MemoryFences.loadFence();
+                checkStillValid(mappedRegion);
+            }
+            long index = cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex;
+            long blockRemaining = blockLength - blockIndex;
+            int numToRead = (int) Longs.min(len, blockRemaining,
+                    mappedRegion.getRemainingBeforeWrap(index));
+            mappedBuffer.position(mappedRegion.convertToBufferPosition(index));
+            mappedBuffer.get(bytes, off, numToRead);
+            MemoryFences.loadFence();
+            checkStillValid(mappedRegion);
+            blockIndex += numToRead;
+            return numToRead;
+        }
+
+        private void checkStillValid(MappedRegion mappedRegion)
+                throws CappedBlockRolledOverMidReadException {
+            if (!out.isStillValid(cappedId, mappedRegion)) {
+                rolledOver = true;
+                throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
+            }
+        }
     }
 
     private class ShutdownHookThread extends Thread {
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2015 the original author or authors.
+ * Copyright 2012-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -19,10 +19,18 @@ import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+
+import javax.annotation.Nullable;
 
 import org.glowroot.common.util.OnlyUsedByTests;
 
 // Needs to be externally synchronized around startBlock()/write()/endBlock().
+//
+// In memory-mapped mode, blocks can also be read without external synchronization, see
+// getMappedRegion().
 class CappedDatabaseOutputStream extends OutputStream {
 
     static final int HEADER_SKIP_BYTES = 20;
@@ -46,8 +54,28 @@ class CappedDatabaseOutputStream extends OutputStream {
     private long blockStartIndex;
     private long blockStartPosition;
 
+    private final boolean mmapRequested;
+    // non-null when in memory-mapped mode
+    private volatile @Nullable MappedRegion mappedRegion;
+    // only accessed under the external synchronization
+    private @Nullable ByteBuffer mappedWriteBuffer;
+    // in memory-mapped mode, this is advanced before bytes are written (and currIndex is advanced
+    // after bytes are written), so that lock-free readers can detect after reading a block that it
+    // may have been overwritten while they were reading it
+    private volatile long reservedIndex;
+    // in memory-mapped mode, this is advanced after each block is completed so that lock-free
+    // readers can detect capped ids that are "in the future" (see CappedDatabase.readMessage())
+    private volatile long committedIndex;
+
     CappedDatabaseOutputStream(File file, int requestedSizeKb) throws IOException {
+        this(file, requestedSizeKb, false);
+    }
+
+    CappedDatabaseOutputStream(File file, int requestedSizeKb, boolean mmap) throws IOException {
         this.file = file;
+        // lock-free reads are not safe without memory fences (see MemoryFences), so fall back to
+        // regular file access if they are not available
+        mmapRequested = mmap && MemoryFences.isAvailable();
         boolean newFile = !file.exists() || file.length() == 0;
         out = new RandomAccessFile(file, "rw");
         if (newFile) {
@@ -66,6 +94,9 @@ class CappedDatabaseOutputStream extends OutputStream {
             sizeBytes = sizeKb * 1024L;
             lastResizeBaseIndex = out.readLong();
         }
+        reservedIndex = currIndex;
+        committedIndex = currIndex;
+        remap();
     }
 
     void startBlock() {
@@ -79,12 +110,26 @@ class CappedDatabaseOutputStream extends OutputStream {
         blockStartPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
         // make space for block size to be written at start position
         currIndex += BLOCK_HEADER_SKIP_BYTES;
+        reservedIndex = currIndex;
+        if (mappedRegion != null) {
+            // the block header is written in place in endBlock()
+            MemoryFences.storeFence();
+        }
     }
 
     long endBlock() throws IOException {
-        out.seek(HEADER_SKIP_BYTES + blockStartPosition);
-        out.writeLong(currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES);
-        out.getFD().sync();
+        long blockLength = currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES;
+        MappedRegion mappedRegion = this.mappedRegion;
+        if (mappedRegion == null) {
+            out.seek(HEADER_SKIP_BYTES + blockStartPosition);
+            out.writeLong(blockLength);
+            out.getFD().sync();
+        } else {
+            getMappedWriteBuffer().putLong((int) (HEADER_SKIP_BYTES + blockStartPosition),
+                    blockLength);
+            mappedRegion.buffer.force();
+        }
+        committedIndex = currIndex;
         return blockStartIndex;
     }
 
@@ -111,11 +156,34 @@ class CappedDatabaseOutputStream extends OutputStream {
         return (index - lastResizeBaseIndex) % sizeBytes;
     }
 
+    // this is ok to call outside of external synchronization
+    @Nullable
+    MappedRegion getMappedRegion() {
+        return mappedRegion;
+    }
+
+    // this is ok to call outside of external synchronization
+    long getCommittedIndex() {
+        return committedIndex;
+    }
+
+    // this is ok to call outside of external synchronization, returns false if the block may have
+    // been (or is currently being) overwritten, or if the region has been remapped by a resize
+    boolean isStillValid(long cappedId, MappedRegion mappedRegion) {
+        return this.mappedRegion == mappedRegion
+                && cappedId >= Math.max(mappedRegion.baseIndex,
+                        reservedIndex - mappedRegion.sizeBytes);
+    }
+
     // perform resize in-place to avoid using extra disk space
     void resize(int newSizeKb) throws IOException {
         if (performEasyResize(newSizeKb)) {
+            remap();
             return;
         }
+        // invalidate any in-progress lock-free reads before moving bytes around
+        mappedRegion = null;
+        mappedWriteBuffer = null;
         long newSizeBytes = newSizeKb * 1024L;
         // keep the min of the current and new capped size
         int numKeepKb = Math.min(sizeKb, newSizeKb);
@@ -138,17 +206,32 @@ class CappedDatabaseOutputStream extends OutputStream {
         } else {
             copy(out, tmpOut, numKeepBytes);
         }
-        out.close();
-        tmpOut.close();
-        if (!file.delete()) {
-            throw new IOException("Unable to delete existing capped database during resize");
-        }
-        if (!tmpCappedFile.renameTo(file)) {
-            throw new IOException("Unable to rename new capped database during resize");
+        if (mmapRequested) {
+            // the existing file cannot be deleted while it is still mapped (at least on windows,
+            // and there is no way to explicitly unmap it), so copy the bytes back into the
+            // existing file instead (when resizing smaller, this leaves unused bytes at the end of
+            // the file)
+            tmpOut.seek(0);
+            out.seek(0);
+            copy(tmpOut, out, HEADER_SKIP_BYTES + numKeepBytes);
+            tmpOut.close();
+            if (!tmpCappedFile.delete()) {
+                throw new IOException("Unable to delete temporary file during resize");
+            }
+        } else {
+            out.close();
+            tmpOut.close();
+            if (!file.delete()) {
+                throw new IOException("Unable to delete existing capped database during resize");
+            }
+            if (!tmpCappedFile.renameTo(file)) {
+                throw new IOException("Unable to rename new capped database during resize");
+            }
+            out = new RandomAccessFile(file, "rw");
         }
         sizeKb = newSizeKb;
         sizeBytes = newSizeBytes;
-        out = new RandomAccessFile(file, "rw");
+        remap();
     }
 
     @Override
@@ -173,6 +256,10 @@ class CappedDatabaseOutputStream extends OutputStream {
                     "A single block cannot have more bytes than size of the capped database");
         }
         long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
+        if (mappedRegion != null) {
+            writeMapped(b, off, len, currPosition);
+            return;
+        }
         out.seek(HEADER_SKIP_BYTES + currPosition);
         long remaining = sizeBytes - currPosition;
         if (len >= remaining) {
@@ -188,6 +275,48 @@ class CappedDatabaseOutputStream extends OutputStream {
         out.writeLong(currIndex);
     }
 
+    private void writeMapped(byte[] b, int off, int len, long currPosition) {
+        reservedIndex = currIndex + len;
+        // the bytes below must not become visible to lock-free readers before the reserved index
+        MemoryFences.storeFence();
+        ByteBuffer buffer = getMappedWriteBuffer();
+        buffer.position((int) (HEADER_SKIP_BYTES + currPosition));
+        long remaining = sizeBytes - currPosition;
+        if (len >= remaining) {
+            // intentionally handling == case here
+            buffer.put(b, off, (int) remaining);
+            buffer.position(HEADER_SKIP_BYTES);
+            buffer.put(b, off + (int) remaining, (int) (len - remaining));
+        } else {
+            buffer.put(b, off, len);
+        }
+        currIndex += len;
+        buffer.putLong(HEADER_CURR_INDEX_POS, currIndex);
+    }
+
+    private ByteBuffer getMappedWriteBuffer() {
+        ByteBuffer mappedWriteBuffer = this.mappedWriteBuffer;
+        if (mappedWriteBuffer == null) {
+            throw new IllegalStateException("Not in memory-mapped mode");
+        }
+        return mappedWriteBuffer;
+    }
+
+    private void remap() throws IOException {
+        long mappedSize = HEADER_SKIP_BYTES + sizeBytes;
+        if (!mmapRequested || mappedSize > Integer.MAX_VALUE) {
+            // a single MappedByteBuffer cannot be larger than 2gb, so fall back to regular file
+            // access in this case
+            mappedRegion = null;
+            mappedWriteBuffer = null;
+            return;
+        }
+        MappedByteBuffer buffer = out.getChannel().map(MapMode.READ_WRITE, 0, mappedSize);
+        mappedWriteBuffer = buffer.duplicate();
+        reservedIndex = currIndex;
+        mappedRegion = new MappedRegion(buffer, lastResizeBaseIndex, sizeBytes);
+    }
+
     private boolean performEasyResize(int newSizeKb) throws IOException {
         if (newSizeKb == sizeKb) {
             return true;
@@ -217,6 +346,32 @@ class CappedDatabaseOutputStream extends OutputStream {
         out.getFD().sync();
     }
 
+    static class MappedRegion {
+
+        private final MappedByteBuffer buffer;
+        private final long baseIndex;
+        private final long sizeBytes;
+
+        private MappedRegion(MappedByteBuffer buffer, long baseIndex, long sizeBytes) {
+            this.buffer = buffer;
+            this.baseIndex = baseIndex;
+            this.sizeBytes = sizeBytes;
+        }
+
+        // each reader needs its own buffer since position is not thread safe
+        ByteBuffer newReadBuffer() {
+            return buffer.asReadOnlyBuffer();
+        }
+
+        int convertToBufferPosition(long index) {
+            return (int) (HEADER_SKIP_BYTES + (index - baseIndex) % sizeBytes);
+        }
+
+        int getRemainingBeforeWrap(long index) {
+            return (int) (sizeBytes - (index - baseIndex) % sizeBytes);
+        }
+    }
+
     private static void copy(RandomAccessFile in, RandomAccessFile out, long numBytes)
             throws IOException {
         byte[] block = new byte[1024];
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2015 the original author or authors.
+ * Copyright 2012-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -23,7 +23,11 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
@@ -37,6 +41,7 @@ import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.checkerframework.checker.tainting.qual.Untainted;
+import org.h2.api.ErrorCode;
 import org.h2.jdbc.JdbcConnection;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,6 +51,7 @@ import org.glowroot.storage.simplerepo.util.Schemas.Column;
 import org.glowroot.storage.simplerepo.util.Schemas.Index;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 public class DataSource {
 
@@ -54,35 +60,73 @@ public class DataSource {
     private static final int CACHE_SIZE =
             Integer.getInteger("glowroot.internal.h2.cacheSize", 8192);
 
+    // when this is greater than zero (and not using memDb), queries are executed on a pool of
+    // dedicated read connections, concurrently with each other and with updates which are
+    // executed on a dedicated write connection (otherwise all access is serialized on a single
+    // connection)
+    private static final int READ_CONNECTIONS =
+            Integer.getInteger("glowroot.internal.h2.readConnections", 0);
+
+    // in concurrent mode, h2 uses table level locks, so updates still wait on slow queries against
+    // the same table (this is no worse than the single connection mode where updates wait on all
+    // queries), and the default h2 lock timeout of 1 second is too short for this
+    private static final int CONCURRENT_LOCK_TIMEOUT_MILLIS = 60000;
+
+    // updates that time out waiting on a table lock are retried, so that they are delayed (instead
+    // of lost) behind very slow queries against the same table
+    private static final int CONCURRENT_LOCK_TIMEOUT_RETRIES = 10;
+
+    private static final long READ_CONNECTION_POLL_MILLIS = 100;
+
     // null means use memDb
     private final @Nullable File dbFile;
+    private final int readConnectionCount;
     private final Thread shutdownHookThread;
-    private final Object lock = new Object();
+    // in single connection mode, this guards all access to the connection, in concurrent mode
+    // this guards access to the write connection (and to the read connection pool during defrag
+    // and close)
+    private final ReentrantLock lock = new ReentrantLock();
     @GuardedBy("lock")
-    private Connection connection;
+    private CachedConnection connection;
+    // null in single connection mode
+    private final @Nullable BlockingQueue<CachedConnection> readConnectionPool;
     private volatile int queryTimeoutSeconds;
     private volatile boolean closing = false;
+    private volatile @Nullable SchemaSyncListener schemaSyncListener;
 
-    private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache =
-            CacheBuilder.newBuilder().weakValues()
-                    .build(new CacheLoader</*@Untainted*/String, PreparedStatement>() {
-                        @Override
-                        public PreparedStatement load(@Untainted String sql) throws SQLException {
-                            return connection.prepareStatement(sql);
-                        }
-                    });
+    private final AtomicLong readCount = new AtomicLong();
+    private final AtomicLong readWaitNanos = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicLong writeWaitNanos = new AtomicLong();
 
     // creates an in-memory database
     public DataSource() throws SQLException {
         dbFile = null;
-        connection = createConnection(null);
+        // each connection to an unnamed in-memory database gets its own private database, so
+        // in-memory databases always use single connection mode
+        readConnectionCount = 0;
+        connection = new CachedConnection(createConnection(null, false));
+        readConnectionPool = null;
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
 
     public DataSource(File dbFile) throws SQLException {
+        this(dbFile, READ_CONNECTIONS);
+    }
+
+    @VisibleForTesting
+    DataSource(File dbFile, int readConnectionCount) throws SQLException {
         this.dbFile = dbFile;
-        connection = createConnection(dbFile);
+        this.readConnectionCount = readConnectionCount;
+        boolean concurrent = readConnectionCount > 0;
+        connection = new CachedConnection(createConnection(dbFile, concurrent));
+        if (concurrent) {
+            readConnectionPool = new ArrayBlockingQueue<CachedConnection>(readConnectionCount);
+            addReadConnections(dbFile, readConnectionPool, readConnectionCount);
+        } else {
+            readConnectionPool = null;
+        }
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -91,35 +135,45 @@ public class DataSource {
         this.queryTimeoutSeconds = queryTimeoutSeconds;
     }
 
+    public void setSchemaSyncListener(@Nullable SchemaSyncListener schemaSyncListener) {
+        this.schemaSyncListener = schemaSyncListener;
+    }
+
     public void defrag() throws SQLException {
         if (dbFile == null) {
             return;
         }
-        synchronized (lock) {
+        lock.lock();
+        try {
             if (closing) {
                 return;
             }
-            execute("shutdown defrag");
-            preparedStatementCache.invalidateAll();
-            connection = createConnection(dbFile);
+            if (readConnectionPool != null) {
+                // wait for in-progress queries to complete
+                for (int i = 0; i < readConnectionCount; i++) {
+                    takeReadConnection(readConnectionPool).close();
+                }
+            }
+            executeUnderLock("shutdown defrag");
+            connection = new CachedConnection(createConnection(dbFile, readConnectionPool != null));
+            if (readConnectionPool != null) {
+                addReadConnections(dbFile, readConnectionPool, readConnectionCount);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     public void execute(@Untainted String sql) throws SQLException {
         debug(sql);
-        synchronized (lock) {
+        lock.lock();
+        try {
             if (closing) {
                 return;
             }
-            Statement statement = connection.createStatement();
-            StatementCloser closer = new StatementCloser(statement);
-            try {
-                statement.execute(sql);
-            } catch (Throwable t) {
-                throw closer.rethrow(t);
-            } finally {
-                closer.close();
-            }
+            executeUnderLock(sql);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -132,11 +186,12 @@ public class DataSource {
     public @Nullable Long queryForOptionalLong(final @Untainted String sql, Object... args)
             throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closing) {
-                return null;
-            }
-            return queryUnderLock(sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
+        CachedConnection connection = acquireReadConnection();
+        if (connection == null) {
+            return null;
+        }
+        try {
+            return query(connection, sql, args, new ResultSetExtractor</*@Nullable*/ Long>() {
                 @Override
                 public @Nullable Long extractData(ResultSet resultSet) throws SQLException {
                     if (!resultSet.next()) {
@@ -150,21 +205,26 @@ public class DataSource {
                     return value;
                 }
             });
+        } finally {
+            releaseReadConnection(connection);
         }
     }
 
     public boolean queryForExists(final @Untainted String sql, Object... args) throws SQLException {
         debug(sql, args);
-        synchronized (lock) {
-            if (closing) {
-                return false;
-            }
-            return queryUnderLock(sql, args, new ResultSetExtractor<Boolean>() {
+        CachedConnection connection = acquireReadConnection();
+        if (connection == null) {
+            return false;
+        }
+        try {
+            return query(connection, sql, args, new ResultSetExtractor<Boolean>() {
                 @Override
                 public Boolean extractData(ResultSet resultSet) throws SQLException {
                     return resultSet.next();
                 }
             });
+        } finally {
+            releaseReadConnection(connection);
         }
     }
 
@@ -184,11 +244,12 @@ public class DataSource {
     }
 
     public <T> T query(JdbcQuery<T> jdbcQuery) throws Exception {
-        synchronized (lock) {
-            if (closing) {
-                return jdbcQuery.valueIfDataSourceClosing();
-            }
-            PreparedStatement preparedStatement = prepareStatement(jdbcQuery.getSql());
+        CachedConnection connection = acquireReadConnection();
+        if (connection == null) {
+            return jdbcQuery.valueIfDataSourceClosing();
+        }
+        try {
+            PreparedStatement preparedStatement = connection.prepareStatement(jdbcQuery.getSql());
             // setQueryTimeout() affects all statements of this connection (at least with h2)
             preparedStatement.setQueryTimeout(queryTimeoutSeconds);
             jdbcQuery.bind(preparedStatement);
@@ -201,7 +262,9 @@ public class DataSource {
             } finally {
                 closer.close();
             }
-            // don't need to close statement since they are all cached and used under lock
+            // don't need to close statement since they are all cached and used exclusively
+        } finally {
+            releaseReadConnection(connection);
         }
     }
 
@@ -219,11 +282,12 @@ public class DataSource {
 
     public <T extends /*@NonNull*/ Object> List<T> query(JdbcRowQuery<T> jdbcQuery)
             throws SQLException {
-        synchronized (lock) {
-            if (closing) {
-                return ImmutableList.of();
-            }
-            PreparedStatement preparedStatement = prepareStatement(jdbcQuery.getSql());
+        CachedConnection connection = acquireReadConnection();
+        if (connection == null) {
+            return ImmutableList.of();
+        }
+        try {
+            PreparedStatement preparedStatement = connection.prepareStatement(jdbcQuery.getSql());
             // setQueryTimeout() affects all statements of this connection (at least with h2)
             preparedStatement.setQueryTimeout(queryTimeoutSeconds);
             jdbcQuery.bind(preparedStatement);
@@ -240,7 +304,9 @@ public class DataSource {
             } finally {
                 closer.close();
             }
-            // don't need to close statement since they are all cached and used under lock
+            // don't need to close statement since they are all cached and used exclusively
+        } finally {
+            releaseReadConnection(connection);
         }
     }
 
@@ -268,16 +334,30 @@ public class DataSource {
             // TransactionCollectorImpl.logPendingLimitWarning())
             return 0;
         }
-        synchronized (lock) {
-            if (closing) {
-                return 0;
-            }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql());
-            jdbcUpdate.bind(preparedStatement);
+        CachedConnection connection = acquireWriteConnection();
+        if (connection == null) {
+            return 0;
+        }
+        try {
+            PreparedStatement preparedStatement = connection.prepareStatement(jdbcUpdate.getSql());
             // setQueryTimeout() affects all statements of this connection (at least with h2)
             preparedStatement.setQueryTimeout(0);
-            return preparedStatement.executeUpdate();
+            int lockTimeouts = 0;
+            while (true) {
+                jdbcUpdate.bind(preparedStatement);
+                try {
+                    // a single statement in auto-commit mode is rolled back on lock timeout, so it
+                    // is safe to retry
+                    return preparedStatement.executeUpdate();
+                } catch (SQLException e) {
+                    if (!shouldRetryAfterLockTimeout(e, ++lockTimeouts)) {
+                        throw e;
+                    }
+                }
+            }
             // don't need to close statement since they are all cached and used under lock
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -289,16 +369,43 @@ public class DataSource {
             // TransactionCollectorImpl.logPendingLimitWarning())
             return new int[0];
         }
-        synchronized (lock) {
-            if (closing) {
-                return new int[0];
-            }
-            PreparedStatement preparedStatement = prepareStatement(jdbcUpdate.getSql());
-            jdbcUpdate.bind(preparedStatement);
+        CachedConnection connection = acquireWriteConnection();
+        if (connection == null) {
+            return new int[0];
+        }
+        try {
+            PreparedStatement preparedStatement = connection.prepareStatement(jdbcUpdate.getSql());
             // setQueryTimeout() affects all statements of this connection (at least with h2)
             preparedStatement.setQueryTimeout(0);
-            return preparedStatement.executeBatch();
+            if (readConnectionPool == null) {
+                jdbcUpdate.bind(preparedStatement);
+                return preparedStatement.executeBatch();
+            }
+            // in concurrent mode, the batch is executed in a single transaction so that it can be
+            // rolled back and retried as a whole after a lock timeout
+            int lockTimeouts = 0;
+            connection.connection.setAutoCommit(false);
+            try {
+                while (true) {
+                    preparedStatement.clearBatch();
+                    jdbcUpdate.bind(preparedStatement);
+                    try {
+                        int[] updateCounts = preparedStatement.executeBatch();
+                        connection.connection.commit();
+                        return updateCounts;
+                    } catch (SQLException e) {
+                        connection.connection.rollback();
+                        if (!shouldRetryAfterLockTimeout(e, ++lockTimeouts)) {
+                            throw e;
+                        }
+                    }
+                }
+            } finally {
+                connection.connection.setAutoCommit(true);
+            }
             // don't need to close statement since they are all cached and used under lock
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -313,27 +420,50 @@ public class DataSource {
     }
 
     public void syncTable(@Untainted String tableName, List<Column> columns) throws SQLException {
-        synchronized (lock) {
+        lock.lock();
+        try {
             if (closing) {
                 return;
             }
-            Schemas.syncTable(tableName, columns, connection);
+            SchemaSyncListener listener = schemaSyncListener;
+            if (listener != null) {
+                listener.onSyncStart("Table " + tableName);
+            }
+            Schemas.syncTable(tableName, columns, connection.connection);
+            if (listener != null) {
+                listener.onSyncEnd();
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     public void syncIndexes(@Untainted String tableName, ImmutableList<Index> indexes)
             throws SQLException {
-        synchronized (lock) {
+        lock.lock();
+        try {
             if (closing) {
                 return;
             }
-            Schemas.syncIndexes(tableName, indexes, connection);
+            SchemaSyncListener listener = schemaSyncListener;
+            if (listener != null) {
+                listener.onSyncStart("Indexes " + tableName);
+            }
+            Schemas.syncIndexes(tableName, indexes, connection.connection);
+            if (listener != null) {
+                listener.onSyncEnd();
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     public boolean tableExists(String tableName) throws SQLException {
-        synchronized (lock) {
-            return !closing && Schemas.tableExists(tableName, connection);
+        lock.lock();
+        try {
+            return !closing && Schemas.tableExists(tableName, connection.connection);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -341,10 +471,30 @@ public class DataSource {
         return dbFile == null ? 0 : dbFile.length();
     }
 
+    int getReadConnectionCount() {
+        return readConnectionCount;
+    }
+
+    long getReadCount() {
+        return readCount.get();
+    }
+
+    long getReadWaitNanos() {
+        return readWaitNanos.get();
+    }
+
+    long getWriteCount() {
+        return writeCount.get();
+    }
+
+    long getWriteWaitNanos() {
+        return writeWaitNanos.get();
+    }
+
     // helpful for upgrading schema
     void renameTable(@Untainted String oldTableName, @Untainted String newTableName)
             throws SQLException {
-        if (Schemas.tableExists(oldTableName, connection)) {
+        if (Schemas.tableExists(oldTableName, connection.connection)) {
             execute("alter table " + oldTableName + " rename to " + newTableName);
         }
     }
@@ -352,7 +502,7 @@ public class DataSource {
     // helpful for upgrading schema
     void renameColumn(@Untainted String tableName, @Untainted String oldColumnName,
             @Untainted String newColumnName) throws SQLException {
-        if (Schemas.columnExists(tableName, oldColumnName, connection)) {
+        if (Schemas.columnExists(tableName, oldColumnName, connection.connection)) {
             execute("alter table " + tableName + " alter column " + oldColumnName + " rename to "
                     + newColumnName);
         }
@@ -360,20 +510,112 @@ public class DataSource {
 
     @OnlyUsedByTests
     public void close() throws SQLException {
-        synchronized (lock) {
+        lock.lock();
+        try {
             if (closing) {
                 return;
             }
             closing = true;
-            connection.close();
+            closeConnections();
+        } finally {
+            lock.unlock();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
-    // lock must be acquired prior to calling this method
-    private <T extends /*@Nullable*/ Object> T queryUnderLock(@Untainted String sql, Object[] args,
-            ResultSetExtractor<T> rse) throws SQLException {
-        PreparedStatement preparedStatement = prepareStatement(sql);
+    // returns null if data source is closing
+    private @Nullable CachedConnection acquireWriteConnection() {
+        return acquireLockedConnection(writeCount, writeWaitNanos);
+    }
+
+    // returns null if data source is closing
+    private @Nullable CachedConnection acquireLockedConnection(AtomicLong count,
+            AtomicLong waitNanos) {
+        long startTick = System.nanoTime();
+        lock.lock();
+        waitNanos.addAndGet(System.nanoTime() - startTick);
+        count.incrementAndGet();
+        if (closing) {
+            lock.unlock();
+            return null;
+        }
+        return connection;
+    }
+
+    // returns null if data source is closing
+    private @Nullable CachedConnection acquireReadConnection() throws SQLException {
+        if (readConnectionPool == null) {
+            return acquireLockedConnection(readCount, readWaitNanos);
+        }
+        if (closing) {
+            return null;
+        }
+        long startTick = System.nanoTime();
+        CachedConnection readConnection = takeReadConnection(readConnectionPool);
+        readWaitNanos.addAndGet(System.nanoTime() - startTick);
+        readCount.incrementAndGet();
+        if (closing) {
+            releaseReadConnection(readConnection);
+            return null;
+        }
+        return readConnection;
+    }
+
+    private void releaseReadConnection(CachedConnection readConnection) throws SQLException {
+        if (readConnectionPool == null) {
+            lock.unlock();
+            return;
+        }
+        if (closing) {
+            // the pool has already been closed
+            readConnection.close();
+            return;
+        }
+        readConnectionPool.add(readConnection);
+    }
+
+    private boolean shouldRetryAfterLockTimeout(SQLException e, int lockTimeouts) {
+        if (readConnectionPool == null || e.getErrorCode() != ErrorCode.LOCK_TIMEOUT_1
+                || closing) {
+            return false;
+        }
+        if (lockTimeouts > CONCURRENT_LOCK_TIMEOUT_RETRIES) {
+            return false;
+        }
+        logger.warn("update timed out waiting on a table lock held by a slow query, retrying"
+                + " ({} of {})", lockTimeouts, CONCURRENT_LOCK_TIMEOUT_RETRIES);
+        return true;
+    }
+
+    @GuardedBy("lock")
+    private void executeUnderLock(@Untainted String sql) throws SQLException {
+        Statement statement = connection.connection.createStatement();
+        StatementCloser closer = new StatementCloser(statement);
+        try {
+            statement.execute(sql);
+        } catch (Throwable t) {
+            throw closer.rethrow(t);
+        } finally {
+            closer.close();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void closeConnections() throws SQLException {
+        if (readConnectionPool != null) {
+            // read connections that are currently in use are closed when they are released
+            CachedConnection readConnection;
+            while ((readConnection = readConnectionPool.poll()) != null) {
+                readConnection.close();
+            }
+        }
+        connection.close();
+    }
+
+    // connection must be acquired prior to calling this method
+    private <T extends /*@Nullable*/ Object> T query(CachedConnection connection,
+            @Untainted String sql, Object[] args, ResultSetExtractor<T> rse) throws SQLException {
+        PreparedStatement preparedStatement = connection.prepareStatement(sql);
         for (int i = 0; i < args.length; i++) {
             preparedStatement.setObject(i + 1, args[i]);
         }
@@ -388,23 +630,42 @@ public class DataSource {
         } finally {
             closer.close();
         }
-        // don't need to close statement since they are all cached and used under lock
+        // don't need to close statement since they are all cached and used exclusively
     }
 
-    private PreparedStatement prepareStatement(@Untainted String sql) throws SQLException {
+    // polls instead of blocking indefinitely, since read connections that are in use when the
+    // data source is closed are not returned to the pool, so waiting readers would never wake up
+    private CachedConnection takeReadConnection(BlockingQueue<CachedConnection> readConnectionPool)
+            throws SQLException {
         try {
-            return preparedStatementCache.get(sql);
-        } catch (ExecutionException e) {
-            Throwable cause = e.getCause();
-            Throwables.propagateIfPossible(cause, SQLException.class);
-            // it should not really be possible to get here since the only checked exception that
-            // preparedStatementCache's CacheLoader throws is SQLException
-            logger.error(e.getMessage(), e);
+            while (true) {
+                CachedConnection readConnection =
+                        readConnectionPool.poll(READ_CONNECTION_POLL_MILLIS, MILLISECONDS);
+                if (readConnection != null) {
+                    return readConnection;
+                }
+                if (closing) {
+                    throw new SQLException("Data source is closed");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new SQLException(e);
         }
     }
 
-    private static Connection createConnection(@Nullable File dbFile) throws SQLException {
+    private static void addReadConnections(File dbFile,
+            BlockingQueue<CachedConnection> readConnectionPool, int readConnectionCount)
+            throws SQLException {
+        for (int i = 0; i < readConnectionCount; i++) {
+            Connection readConnection = createConnection(dbFile, true);
+            readConnection.setReadOnly(true);
+            readConnectionPool.add(new CachedConnection(readConnection));
+        }
+    }
+
+    private static Connection createConnection(@Nullable File dbFile, boolean concurrent)
+            throws SQLException {
         try {
             Class.forName("org.h2.Driver");
         } catch (ClassNotFoundException e) {
@@ -423,6 +684,10 @@ public class DataSource {
             // db_close_on_exit=false since jvm shutdown hook is handled by DataSource
             String url = "jdbc:h2:" + dbPath + ";compress=true;db_close_on_exit=false;cache_size="
                     + CACHE_SIZE;
+            if (concurrent) {
+                // h2 1.3 does not support combining multi_threaded with mvcc
+                url += ";multi_threaded=true;lock_timeout=" + CONCURRENT_LOCK_TIMEOUT_MILLIS;
+            }
             return new JdbcConnection(url, props);
         }
     }
@@ -478,6 +743,13 @@ public class DataSource {
         T extractData(ResultSet resultSet) throws Exception;
     }
 
+    // notified around each table and index sync (which is where the database schema upgrade or
+    // creation time goes during storage startup)
+    public interface SchemaSyncListener {
+        void onSyncStart(String description);
+        void onSyncEnd();
+    }
+
     // this replaces H2's default shutdown hook (see jdbc connection db_close_on_exit=false above)
     // in order to prevent exceptions from occurring (and getting logged) during shutdown in the
     // case that there are still traces being written
@@ -489,12 +761,53 @@ public class DataSource {
                 // waiting on the lock (once the flag is set, any threads in the backlog that
                 // haven't acquired the lock will abort quickly once they do obtain the lock)
                 closing = true;
-                synchronized (lock) {
-                    connection.close();
+                lock.lock();
+                try {
+                    closeConnections();
+                } finally {
+                    lock.unlock();
                 }
             } catch (SQLException e) {
                 logger.warn(e.getMessage(), e);
             }
         }
     }
+
+    // each connection has its own prepared statement cache, since prepared statements are bound
+    // to the connection that prepared them
+    private static class CachedConnection {
+
+        private final Connection connection;
+
+        private final LoadingCache</*@Untainted*/ String, PreparedStatement> preparedStatementCache;
+
+        private CachedConnection(final Connection connection) {
+            this.connection = connection;
+            preparedStatementCache = CacheBuilder.newBuilder().weakValues()
+                    .build(new CacheLoader</*@Untainted*/String, PreparedStatement>() {
+                        @Override
+                        public PreparedStatement load(@Untainted String sql) throws SQLException {
+                            return connection.prepareStatement(sql);
+                        }
+                    });
+        }
+
+        private PreparedStatement prepareStatement(@Untainted String sql) throws SQLException {
+            try {
+                return preparedStatementCache.get(sql);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                Throwables.propagateIfPossible(cause, SQLException.class);
+                // it should not really be possible to get here since the only checked exception
+                // that preparedStatementCache's CacheLoader throws is SQLException
+                logger.error(e.getMessage(), e);
+                throw new SQLException(e);
+            }
+        }
+
+        private void close() throws SQLException {
+            preparedStatementCache.invalidateAll();
+            connection.close();
+        }
+    }
 }
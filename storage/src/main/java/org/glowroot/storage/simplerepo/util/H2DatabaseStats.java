@@ -1,5 +1,5 @@
 /*
- * Copyright 2015 the original author or authors.
+ * Copyright 2015-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,6 +15,8 @@
  */
 package org.glowroot.storage.simplerepo.util;
 
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
 public class H2DatabaseStats implements H2DatabaseStatsMXBean {
 
     private final DataSource dataSource;
@@ -27,4 +29,29 @@ public class H2DatabaseStats implements H2DatabaseStatsMXBean {
     public long getFileSize() {
         return dataSource.getDbFileSize();
     }
+
+    @Override
+    public int getReadConnectionCount() {
+        return dataSource.getReadConnectionCount();
+    }
+
+    @Override
+    public long getReadCount() {
+        return dataSource.getReadCount();
+    }
+
+    @Override
+    public long getReadWaitMillis() {
+        return NANOSECONDS.toMillis(dataSource.getReadWaitNanos());
+    }
+
+    @Override
+    public long getWriteCount() {
+        return dataSource.getWriteCount();
+    }
+
+    @Override
+    public long getWriteWaitMillis() {
+        return NANOSECONDS.toMillis(dataSource.getWriteWaitNanos());
+    }
 }
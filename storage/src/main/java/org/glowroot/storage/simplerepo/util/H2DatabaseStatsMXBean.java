@@ -1,5 +1,5 @@
 /*
- * Copyright 2015 the original author or authors.
+ * Copyright 2015-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -18,4 +18,11 @@ package org.glowroot.storage.simplerepo.util;
 public interface H2DatabaseStatsMXBean {
 
     long getFileSize();
+
+    // zero when all access is serialized on a single connection
+    int getReadConnectionCount();
+    long getReadCount();
+    long getReadWaitMillis();
+    long getWriteCount();
+    long getWriteWaitMillis();
 }
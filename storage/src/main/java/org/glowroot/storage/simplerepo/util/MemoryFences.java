@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.storage.simplerepo.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// the lock-free reads in memory-mapped mode validate plain reads of the mapped buffer against a
+// volatile index that is read afterwards (seqlock style), which requires explicit load/store
+// fences, and these are only available (via sun.misc.Unsafe) in java 8+
+class MemoryFences {
+
+    private static final Logger logger = LoggerFactory.getLogger(MemoryFences.class);
+
+    private static final @Nullable Object unsafe;
+    private static final @Nullable Method loadFence;
+    private static final @Nullable Method storeFence;
+
+    static {
+        Object theUnsafe = null;
+        Method loadFenceMethod = null;
+        Method storeFenceMethod = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafeField = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafeField.setAccessible(true);
+            theUnsafe = theUnsafeField.get(null);
+            loadFenceMethod = unsafeClass.getMethod("loadFence");
+            storeFenceMethod = unsafeClass.getMethod("storeFence");
+        } catch (Exception e) {
+            // NoSuchMethodException is expected prior to java 8
+            logger.debug(e.getMessage(), e);
+            theUnsafe = null;
+            loadFenceMethod = null;
+            storeFenceMethod = null;
+        }
+        unsafe = theUnsafe;
+        loadFence = loadFenceMethod;
+        storeFence = storeFenceMethod;
+    }
+
+    private MemoryFences() {}
+
+    static boolean isAvailable() {
+        return unsafe != null && loadFence != null && storeFence != null;
+    }
+
+    // prevents loads before the fence from being reordered with loads and stores after the fence
+    static void loadFence() {
+        invoke(loadFence);
+    }
+
+    // prevents stores before the fence from being reordered with loads and stores after the fence
+    static void storeFence() {
+        invoke(storeFence);
+    }
+
+    private static void invoke(@Nullable Method fence) {
+        if (fence == null) {
+            throw new IllegalStateException("Memory fences are not available");
+        }
+        try {
+            fence.invoke(unsafe);
+        } catch (Exception e) {
+            // fences do not throw
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.storage.repo;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MutableAggregateTest {
+
+    @Test
+    public void shouldNotTruncateProfileThatIsStillBeingMerged() throws Exception {
+        // given
+        MutableAggregate aggregate = new MutableAggregate(0, 4);
+        MutableProfile profile = new MutableProfile();
+        for (int i = 0; i < 10; i++) {
+            addSamples(profile, i, i + 1);
+        }
+        aggregate.addTransactionCount(1);
+        aggregate.mergeMainThreadProfile(profile.toProto());
+        Aggregate first = aggregate.toAggregate(new ScratchBuffer());
+        // when
+        MutableProfile laterProfile = new MutableProfile();
+        addSamples(laterProfile, 0, 20);
+        aggregate.mergeMainThreadProfile(laterProfile.toProto());
+        Aggregate second = aggregate.toAggregate(new ScratchBuffer());
+        // then
+        // 4 nodes plus the ellipsis node
+        assertThat(first.getMainThreadProfile().getNodeCount()).isEqualTo(5);
+        Profile secondProfile = second.getMainThreadProfile();
+        assertThat(secondProfile.getNodeCount()).isEqualTo(5);
+        assertThat(secondProfile.getNode(0).getSampleCount()).isEqualTo(75);
+        // line 0 was truncated from the first result, but its earlier sample must still count
+        assertThat(secondProfile.getNode(2).getLineNumber()).isEqualTo(0);
+        assertThat(secondProfile.getNode(2).getSampleCount()).isEqualTo(21);
+    }
+
+    @Test
+    public void shouldNotCopyProfileWithinMaxNodes() throws Exception {
+        // given
+        MutableAggregate aggregate = new MutableAggregate(0, 4);
+        MutableProfile profile = new MutableProfile();
+        addSamples(profile, 0, 1);
+        addSamples(profile, 1, 2);
+        aggregate.addTransactionCount(1);
+        aggregate.mergeMainThreadProfile(profile.toProto());
+        // when
+        Aggregate aggregate2 = aggregate.toAggregate(new ScratchBuffer());
+        // then
+        assertThat(aggregate2.getMainThreadProfile()).isEqualTo(profile.toProto());
+    }
+
+    private static void addSamples(MutableProfile profile, int lineNumber, int count) {
+        for (int i = 0; i < count; i++) {
+            List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+            stackTraceElements
+                    .add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", lineNumber));
+            stackTraceElements
+                    .add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", 789));
+            profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+        }
+    }
+}
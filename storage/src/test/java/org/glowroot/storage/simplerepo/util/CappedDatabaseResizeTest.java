@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2015 the original author or authors.
+ * Copyright 2012-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -36,7 +36,7 @@ public class CappedDatabaseResizeTest {
     @Before
     public void onBefore() throws IOException {
         tempFile = File.createTempFile("glowroot-test-", ".capped.db");
-        cappedDatabase = new CappedDatabase(tempFile, 2, Ticker.systemTicker());
+        cappedDatabase = createCappedDatabase(tempFile, 2);
     }
 
     @After
@@ -92,7 +92,7 @@ public class CappedDatabaseResizeTest {
 
         // also test close and re-open
         cappedDatabase.close();
-        cappedDatabase = new CappedDatabase(tempFile, 2, Ticker.systemTicker());
+        cappedDatabase = createCappedDatabase(tempFile, 2);
         text2 = cappedDatabase.read(cappedId).read();
         assertThat(text2).isEqualTo(text);
     }
@@ -114,7 +114,7 @@ public class CappedDatabaseResizeTest {
 
         // also test close and re-open
         cappedDatabase.close();
-        cappedDatabase = new CappedDatabase(tempFile, 2, Ticker.systemTicker());
+        cappedDatabase = createCappedDatabase(tempFile, 2);
         text2 = cappedDatabase.read(cappedId).read();
         assertThat(text2).isEqualTo(text);
     }
@@ -128,4 +128,8 @@ public class CappedDatabaseResizeTest {
         String text = sb.toString();
         return text;
     }
+
+    CappedDatabase createCappedDatabase(File file, int sizeKb) throws IOException {
+        return new CappedDatabase(file, sizeKb, Ticker.systemTicker());
+    }
 }
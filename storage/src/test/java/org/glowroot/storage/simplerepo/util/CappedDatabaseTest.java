@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2015 the original author or authors.
+ * Copyright 2012-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -42,7 +42,7 @@ public class CappedDatabaseTest {
     @Before
     public void onBefore() throws IOException {
         tempFile = File.createTempFile("glowroot-test-", ".capped.db");
-        cappedDatabase = new CappedDatabase(tempFile, 1, Ticker.systemTicker());
+        cappedDatabase = createCappedDatabase(tempFile, 1);
     }
 
     @After
@@ -149,4 +149,8 @@ public class CappedDatabaseTest {
         assertThat(exceptionClassName).isEqualTo("org.glowroot.storage.simplerepo.util"
                 + ".CappedDatabase$CappedBlockRolledOverMidReadException");
     }
+
+    CappedDatabase createCappedDatabase(File file, int sizeKb) throws IOException {
+        return new CappedDatabase(file, sizeKb, Ticker.systemTicker());
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015 the original author or authors.
+ * Copyright 2015-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,11 +15,31 @@
  */
 package org.glowroot.storage.simplerepo.util;
 
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import javax.annotation.Nullable;
+
+import org.checkerframework.checker.tainting.qual.Untainted;
+import org.junit.After;
 import org.junit.Test;
 import org.slf4j.Logger;
 
+import org.glowroot.storage.simplerepo.util.DataSource.JdbcQuery;
+import org.glowroot.storage.simplerepo.util.DataSource.JdbcUpdate;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -27,6 +47,15 @@ import static org.mockito.Mockito.when;
 
 public class DataSourceTest {
 
+    private @Nullable File dbFile;
+
+    @After
+    public void afterEachTest() {
+        if (dbFile != null) {
+            dbFile.delete();
+        }
+    }
+
     @Test
     public void testDebugNoArgs() throws SQLException {
         // given
@@ -93,4 +122,144 @@ public class DataSourceTest {
                 "'aaa', NULL, 99");
         verifyNoMoreInteractions(logger);
     }
+
+    @Test
+    public void shouldQueryWhileUpdateIsInProgressInConcurrentMode() throws Exception {
+        // given
+        dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        dbFile.delete();
+        final DataSource dataSource = new DataSource(dbFile, 2);
+        dataSource.execute("create table test (id bigint)");
+        dataSource.update("insert into test (id) values (?)", 1L);
+        final CountDownLatch updateInProgress = new CountDownLatch(1);
+        final CountDownLatch finishUpdate = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> future = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                dataSource.update(new JdbcUpdate() {
+                    @Override
+                    public @Untainted String getSql() {
+                        return "insert into test (id) values (?)";
+                    }
+                    @Override
+                    public void bind(PreparedStatement preparedStatement) throws SQLException {
+                        // this is called while holding the write connection
+                        updateInProgress.countDown();
+                        try {
+                            finishUpdate.await();
+                        } catch (InterruptedException e) {
+                            throw new SQLException(e);
+                        }
+                        preparedStatement.setLong(1, 2);
+                    }
+                });
+                return null;
+            }
+        });
+        updateInProgress.await();
+        // when
+        long count = dataSource.queryForLong("select count(*) from test");
+        finishUpdate.countDown();
+        future.get();
+        // then
+        assertThat(count).isEqualTo(1);
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(2);
+        assertThat(dataSource.getReadCount()).isEqualTo(2);
+        assertThat(dataSource.getWriteCount()).isEqualTo(2);
+        executor.shutdown();
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldDefragInConcurrentMode() throws Exception {
+        // given
+        dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        dbFile.delete();
+        DataSource dataSource = new DataSource(dbFile, 2);
+        dataSource.execute("create table test (id bigint)");
+        dataSource.update("insert into test (id) values (?)", 1L);
+        // when
+        dataSource.defrag();
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(1);
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(1);
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(1);
+        dataSource.update("insert into test (id) values (?)", 2L);
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(2);
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldNotBlockWaitingReadAfterCloseInConcurrentMode() throws Exception {
+        // given
+        dbFile = File.createTempFile("glowroot-test-", ".h2.db");
+        dbFile.delete();
+        final DataSource dataSource = new DataSource(dbFile, 1);
+        dataSource.execute("create table test (id bigint)");
+        final CountDownLatch queryInProgress = new CountDownLatch(1);
+        final CountDownLatch finishQuery = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        // this holds the only read connection
+        Future<?> blockingFuture = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                dataSource.query(new BlockingQuery(queryInProgress, finishQuery));
+                return null;
+            }
+        });
+        queryInProgress.await();
+        Future<?> waitingFuture = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                dataSource.queryForLong("select count(*) from test");
+                return null;
+            }
+        });
+        // when
+        MILLISECONDS.sleep(200);
+        dataSource.close();
+        // then
+        try {
+            waitingFuture.get(10, SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(SQLException.class);
+            assertThat(e.getCause()).hasMessage("Data source is closed");
+        }
+        finishQuery.countDown();
+        blockingFuture.get();
+        executor.shutdown();
+    }
+
+    private static class BlockingQuery implements JdbcQuery<Void> {
+
+        private final CountDownLatch queryInProgress;
+        private final CountDownLatch finishQuery;
+
+        private BlockingQuery(CountDownLatch queryInProgress, CountDownLatch finishQuery) {
+            this.queryInProgress = queryInProgress;
+            this.finishQuery = finishQuery;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "select id from test";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) {}
+
+        @Override
+        public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
+            queryInProgress.countDown();
+            finishQuery.await();
+            return null;
+        }
+
+        @Override
+        public @Nullable Void valueIfDataSourceClosing() {
+            return null;
+        }
+    }
 }
@@ -333,6 +333,11 @@ glowroot.config([
       templateUrl: 'views/jvm/capabilities.html',
       controller: 'JvmCapabilitiesCtrl'
     });
+    $stateProvider.state('jvm.startupTimeline', {
+      url: '/startup-timeline',
+      templateUrl: 'views/jvm/startup-timeline.html',
+      controller: 'JvmStartupTimelineCtrl'
+    });
     $stateProvider.state('jvm.glowrootLog', {
       url: '/glowroot-log',
       templateUrl: 'views/jvm/glowroot-log.html',
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012-2015 the original author or authors.
+ * Copyright 2012-2016 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -18,6 +18,7 @@ package org.glowroot.ui;
 import javax.annotation.Nullable;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Stopwatch;
 import org.immutables.value.Value;
 
 import org.glowroot.common.live.LiveWeavingService;
@@ -29,6 +30,7 @@ import org.glowroot.storage.repo.TraceRepository;
 import org.glowroot.storage.repo.TransactionTypeRepository;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 @JsonService
 class AdminJsonService {
@@ -71,8 +73,10 @@ class AdminJsonService {
     @POST("/backend/admin/reweave")
     String reweave() throws Exception {
         checkNotNull(liveWeavingService);
+        Stopwatch stopwatch = Stopwatch.createStarted();
         int count = liveWeavingService.reweave(SERVER_ID);
-        return "{\"classes\":" + count + "}";
+        return "{\"classes\":" + count + ",\"millis\":" + stopwatch.elapsed(MILLISECONDS)
+                + "}";
     }
 
     @POST("/backend/admin/defrag-data")
@@ -572,6 +572,7 @@ class ConfigJsonService {
         abstract int maxTraceEntriesPerTransaction();
         abstract int maxStackTraceSamplesPerTransaction();
         abstract int mbeanGaugeNotFoundDelaySeconds();
+        abstract boolean normalizeQueryLiterals();
         abstract String version();
 
         private AdvancedConfig toConfig() {
@@ -584,6 +585,7 @@ class ConfigJsonService {
                     .maxTraceEntriesPerTransaction(maxTraceEntriesPerTransaction())
                     .maxStackTraceSamplesPerTransaction(maxStackTraceSamplesPerTransaction())
                     .mbeanGaugeNotFoundDelaySeconds(mbeanGaugeNotFoundDelaySeconds())
+                    .normalizeQueryLiterals(normalizeQueryLiterals())
                     .build();
         }
 
@@ -599,6 +601,7 @@ class ConfigJsonService {
                     .maxStackTraceSamplesPerTransaction(
                             config.maxStackTraceSamplesPerTransaction())
                     .mbeanGaugeNotFoundDelaySeconds(config.mbeanGaugeNotFoundDelaySeconds())
+                    .normalizeQueryLiterals(config.normalizeQueryLiterals())
                     .version(config.version())
                     .build();
         }
@@ -36,6 +36,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.common.live.LiveJvmService;
+import org.glowroot.common.live.StartupTimelineService;
 import org.glowroot.common.util.ObjectMappers;
 import org.glowroot.common.util.UsedByJsonSerialization;
 import org.glowroot.storage.repo.ServerRepository;
@@ -56,10 +57,13 @@ class JvmJsonService {
 
     private final ServerRepository serverRepository;
     private final @Nullable LiveJvmService liveJvmService;
+    private final @Nullable StartupTimelineService startupTimelineService;
 
-    JvmJsonService(ServerRepository serverRepository, @Nullable LiveJvmService liveJvmService) {
+    JvmJsonService(ServerRepository serverRepository, @Nullable LiveJvmService liveJvmService,
+            @Nullable StartupTimelineService startupTimelineService) {
         this.serverRepository = serverRepository;
         this.liveJvmService = liveJvmService;
+        this.startupTimelineService = startupTimelineService;
     }
 
     @GET("/backend/jvm/process-info")
@@ -245,6 +249,12 @@ class JvmJsonService {
         return mapper.writeValueAsString(liveJvmService.getCapabilities(serverId));
     }
 
+    @GET("/backend/jvm/startup-timeline")
+    String getStartupTimeline() throws Exception {
+        checkNotNull(startupTimelineService);
+        return mapper.writeValueAsString(startupTimelineService.getStartupTimeline());
+    }
+
     private static String getServerId(String queryString) {
         return QueryStringDecoder.decodeComponent(queryString.substring("server-id".length() + 1));
     }
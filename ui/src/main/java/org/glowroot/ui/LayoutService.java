@@ -50,15 +50,18 @@ class LayoutService {
     private static final ObjectMapper mapper = ObjectMappers.create();
 
     private final boolean central;
+    // false in viewer mode and in central
+    private final boolean startupTimelineAvailable;
     private final String version;
     private final ConfigRepository configRepository;
     private final ServerRepository serverRepository;
     private final TransactionTypeRepository transactionTypeRepository;
 
-    LayoutService(boolean central, String version, ConfigRepository configRepository,
-            ServerRepository serverRepository,
+    LayoutService(boolean central, boolean startupTimelineAvailable, String version,
+            ConfigRepository configRepository, ServerRepository serverRepository,
             TransactionTypeRepository transactionTypeRepository) {
         this.central = central;
+        this.startupTimelineAvailable = startupTimelineAvailable;
         this.version = version;
         this.configRepository = configRepository;
         this.serverRepository = serverRepository;
@@ -128,6 +131,7 @@ class LayoutService {
         }
         return ImmutableLayout.builder()
                 .central(central)
+                .startupTimelineAvailable(startupTimelineAvailable)
                 .footerMessage("Glowroot version " + version)
                 .adminPasswordEnabled(userInterfaceConfig.adminPasswordEnabled())
                 .readOnlyPasswordEnabled(userInterfaceConfig.readOnlyPasswordEnabled())
@@ -145,6 +149,7 @@ class LayoutService {
     abstract static class Layout {
 
         abstract boolean central();
+        abstract boolean startupTimelineAvailable();
         abstract String footerMessage();
         abstract boolean adminPasswordEnabled();
         abstract boolean readOnlyPasswordEnabled();
@@ -28,6 +28,7 @@ import org.glowroot.common.config.PluginDescriptor;
 import org.glowroot.common.live.LiveJvmService;
 import org.glowroot.common.live.LiveTraceRepository;
 import org.glowroot.common.live.LiveWeavingService;
+import org.glowroot.common.live.StartupTimelineService;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.storage.repo.AggregateRepository;
@@ -61,13 +62,14 @@ public class UiModule {
             RollupLevelService rollupLevelService,
             LiveTraceRepository liveTraceRepository,
             @Nullable LiveWeavingService liveWeavingService,
+            @Nullable StartupTimelineService startupTimelineService,
             String bindAddress,
             int numWorkerThreads,
             String version,
             List<PluginDescriptor> pluginDescriptors) throws Exception {
 
-        LayoutService layoutService = new LayoutService(central, version, configRepository,
-                serverRepository, transactionTypeRepository);
+        LayoutService layoutService = new LayoutService(central, startupTimelineService != null,
+                version, configRepository, serverRepository, transactionTypeRepository);
         HttpSessionManager httpSessionManager =
                 new HttpSessionManager(configRepository, clock, layoutService);
         IndexHtmlHttpService indexHtmlHttpService =
@@ -113,7 +115,8 @@ public class UiModule {
         jsonServices.add(errorJsonService);
         jsonServices.add(configJsonService);
         jsonServices.add(gaugeValueJsonService);
-        jsonServices.add(new JvmJsonService(serverRepository, liveJvmService));
+        jsonServices.add(
+                new JvmJsonService(serverRepository, liveJvmService, startupTimelineService));
         if (liveJvmService != null) {
             jsonServices.add(new GaugeConfigJsonService(configRepository, liveJvmService));
         }
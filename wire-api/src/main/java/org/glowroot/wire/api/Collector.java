@@ -35,5 +35,7 @@ public interface Collector {
 
     void collectTrace(Trace trace) throws Exception;
 
+    void collectTraces(List<Trace> traces) throws Exception;
+
     void log(LogEvent logEvent) throws Exception;
 }